@@ -1,5 +1,14 @@
+import support.MemoryBudget;
+import support.PlaybackMetrics;
+import support.PlayerWindow;
+import support.StartupTrace;
+
 public class Main {
     public static void main(String[] args) {
+        StartupTrace.mark("main");
+        PlayerWindow.preloadResources();
+        PlaybackMetrics.publish();
+        MemoryBudget.global().watchPressure();
         new Player();
     }
 }
@@ -2,15 +2,33 @@ import javazoom.jl.decoder.*;
 import javazoom.jl.player.AudioDevice;
 import javazoom.jl.player.FactoryRegistry;
 import jdk.jfr.Event;
-import support.PlayerWindow;
-import support.Playlist;
-import support.Song;
+import support.*;
 import javax.swing.event.MouseInputAdapter;
 import java.awt.*;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseEvent;
+import java.io.File;
 import java.io.FileNotFoundException;
-import java.util.Objects;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.UnaryOperator;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -22,31 +40,226 @@ public class Player {
      */
     private Bitstream bitstream;
     /**
-     * The MPEG audio decoder.
+     * The MPEG audio decoder. Written under lockPlaying, read by the track thread while it waits.
      */
-    private Decoder decoder;
+    private volatile FloatDecoder decoder;
     /**
-     * The AudioDevice where audio samples are written to.
+     * The AudioDevice where audio samples are written to. Frames are written in batches. Written under
+     * lockPlaying, read by the track thread while it waits.
      */
-    private AudioDevice device;
+    private volatile BatchingAudioDevice device;
 
+    /**
+     * Processing applied to every decoded frame before it is written to the device.
+     */
+    private final DspChain dsp = new DspChain();
+    private final GainStage gain = new GainStage();
+    private final EqualizerStage equalizer = new EqualizerStage();
+    private final CrossfadeStage crossfade = new CrossfadeStage(Integer.getInteger("player.crossfadeMs", 0));
+    /**
+     * Announcements and jingles played over the music. Last in the chain, so the volume and ReplayGain of the
+     * music don't apply to them.
+     */
+    private final MixerStage mixer = new MixerStage();
+    /**
+     * Decoder of the next track while a crossfade is in progress.
+     */
+    private TrackDecoder incoming;
+    /**
+     * Song of {@link #incoming}, looked up in the queue again at the handover, as it may be moved or removed
+     * during the crossfade.
+     */
+    private Song incomingSong;
+    private boolean crossfadeAttempted;
+    /**
+     * Decoded start of the current song while it plays from memory, null once the decoder has taken over, see
+     * {@link #startIntro()}. Guarded by lockPlaying, like the fields below.
+     */
+    private IntroCache.Intro intro;
+    /**
+     * The file of the current song, opened in the background while its intro plays, positioned after the intro.
+     */
+    private CompletableFuture<Bitstream> takeover;
+    /**
+     * Frame of the intro being played, processed in place by the DSP chain.
+     */
+    private short[] introFrame = new short[0];
+    /**
+     * Becomes true once the first frame is written to an audio device. The device itself is only created when
+     * the first song is opened, so startup never waits for the sound system.
+     */
+    private boolean audioStarted;
+    private final PlaybackMetrics metrics = PlaybackMetrics.global();
+    /**
+     * Time the song being opened was requested, until its first frame is written to the device; 0 otherwise.
+     * Guarded by lockPlaying.
+     */
+    private long switchStarted;
+
+    /**
+     * Content hashes of the songs of the queue, shared by the caches of data derived from their audio.
+     */
+    private final ContentIndex contents = new ContentIndex();
+    private final WaveformCache waveforms = new WaveformCache(contents);
+    private final Prefetcher prefetcher = new Prefetcher();
+    private final IntroCache intros = new IntroCache(contents);
+    /**
+     * Opens the files of the songs started from their intro.
+     */
+    private final ExecutorService introOpener = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "intro-takeover");
+        t.setDaemon(true);
+        return t;
+    });
+    /**
+     * Index of the song selected in the queue, -1 if none. Its intro and its neighbours' are kept decoded, since
+     * "Play Now" would start it.
+     */
+    private volatile int selectedIndex = -1;
+    private final SearchIndex search = new SearchIndex();
+    /**
+     * Continues the queue with similar songs once it runs out. Null if disabled with {@code player.autoDj}.
+     */
+    private final AutoDj autoDj = Boolean.parseBoolean(System.getProperty("player.autoDj", "true"))
+            ? new AutoDj(contents) : null;
+    private final AtomicBoolean continuing = new AtomicBoolean();
+    /**
+     * Ships the queue and the transport to the players following this one, if {@code player.replication.listen}
+     * is set. Null otherwise.
+     */
+    private final ReplicationLeader replicationLeader;
+    /**
+     * Keeps the queue and the transport in step with another player, if {@code player.replication.leader} is set.
+     * Null otherwise.
+     */
+    private final ReplicationFollower replicationFollower;
+    /**
+     * Maximum number of songs shown while searching the queue.
+     */
+    private final int searchLimit = Integer.getInteger("player.search.limit", 1000);
+    private volatile String searchQuery = "";
+    /**
+     * Where playback is, kept so it can resume after a crash. Null if the journal could not be opened.
+     */
+    private final ResumeJournal journal;
+
+    private final AudioOutput audioOutput;
+    /**
+     * True when running without a window, see {@link #Player(AudioOutput, boolean)}.
+     */
+    private final boolean headless;
     private PlayerWindow window;
+    /**
+     * What the window shows, published by {@link #publishView()} and shown by the renderer.
+     */
+    private final AtomicReference<ViewState> view;
+    /**
+     * Null when headless.
+     */
+    private final ViewRenderer renderer;
     private Playlist playlist;
     private int currentFrame;
     private float scrubberValue;
-    private Song currentSong;
+    /**
+     * Written under lockPlaying, read by every thread without locking.
+     */
+    private volatile Song currentSong;
+    /**
+     * Column the queue was last sorted by, and the direction. Clicking the same column again reverses the order.
+     */
+    private LibraryIndex.Column lastSortColumn;
+    private boolean sortAscending;
+
+    /**
+     * Index of the frames of the current song, used for seeking. Built in the background when a song starts.
+     */
+    private CompletableFuture<FrameIndex> frameIndex;
 
     private final Lock
             lockPaused = new ReentrantLock(),
-            trackTimeLock = new ReentrantLock(),
-            lockPlaying = new ReentrantLock();
+            lockPlaying = new ReentrantLock(),
+            lockScrub = new ReentrantLock();
 
     private final Condition
-            threadUnpaused = lockPaused.newCondition();
+            threadUnpaused = lockPaused.newCondition(),
+            scrubRequested = lockScrub.newCondition();
+
+    /**
+     * Written under lockPaused or lockPlaying, read by every thread without locking.
+     */
+    private volatile SongState state;
 
-    private SongState state;
+    /**
+     * True while the user drags the scrubber. The track thread holds still and the scrub thread plays previews.
+     */
+    private volatile boolean scrubbing;
+    /**
+     * Latest scrubber position requested, in milliseconds, or -1 if there is none. Guarded by lockScrub.
+     */
+    private int scrubTarget = -1;
+    /**
+     * True if scrubTarget is the final position, set when the scrubber is released. Guarded by lockScrub.
+     */
+    private boolean scrubCommit;
 
-    private final Thread TrackThread = new Thread(this::PlayTrack);
+    private final Thread TrackThread = new Thread(this::PlayTrack, "track");
+    private volatile boolean shutdown;
+    private final Thread ScrubThread = new Thread(this::PreviewScrub, "scrub");
+
+    /**
+     * Time the track thread waits while paused or stopped before releasing the audio device, the decoder and the
+     * file, in nanoseconds; 0 to keep them open. See {@link #releaseIdle()}.
+     */
+    private final long idleReleaseNs = TimeUnit.MILLISECONDS.toNanos(Long.getLong("player.idle.releaseMs", 60_000));
+    /**
+     * Where the song released while idle resumes, or null if nothing is released. Written under lockPlaying, read
+     * by every thread without locking.
+     */
+    private volatile ResumeToken released;
+    /**
+     * Reopens what was released while idle ahead of play, see {@link #reopenInBackground()}.
+     */
+    private final ExecutorService warmer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "warm-resume");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Minimum time between two previews while scrubbing.
+     */
+    private static final long SCRUB_INTERVAL_NS = TimeUnit.MILLISECONDS.toNanos(90);
+    /**
+     * Number of frames played by each preview while scrubbing.
+     */
+    private static final int SCRUB_PREVIEW_FRAMES = 3;
+    /**
+     * Number of frames decoded and discarded after a seek, so the decoder has the data it needs from earlier
+     * frames when the target frame is played.
+     */
+    private static final int SEEK_PRIMING_FRAMES = 2;
+    /**
+     * Number of songs parsed from an imported playlist before they are added to the queue.
+     */
+    private static final int IMPORT_BATCH = 64;
+    /**
+     * Number of samples per channel the mixer writes at once while the music is paused or stopped, as many as an
+     * MPEG audio frame.
+     */
+    private static final int MIXER_FRAME = 1152;
+    /**
+     * Number of songs the auto-DJ keeps queued after the current one, so they are prefetched before they play.
+     */
+    private static final int AUTO_DJ_AHEAD = 2;
+    /**
+     * Number of songs before the current one the auto-DJ does not suggest again, at most half of the queue.
+     */
+    private static final int AUTO_DJ_HISTORY = 50;
+    /**
+     * Distance from the position of the leader beyond which a follower seeks, more than the delay of the network
+     * and of opening a song.
+     */
+    private static final int FOLLOW_TOLERANCE_MS = 500;
 
      private enum SongState {
         PLAYING,
@@ -54,301 +267,1350 @@ public class Player {
         STOPPED;
     }
 
+    /**
+     * Where a song released while idle resumes: the frame heard last, and the frame and byte offset decoding
+     * restarts from, a few frames earlier so the decoder rebuilds its bit reservoir before that frame is heard.
+     * The offset is -1 if the frame index of the song was not ready or only estimates the offsets.
+     */
+    private static final class ResumeToken {
+        final Song song;
+        final int frame;
+        final int from;
+        final long offset;
+
+        ResumeToken(Song song, int frame, int from, long offset) {
+            this.song = song;
+            this.frame = frame;
+            this.from = from;
+            this.offset = offset;
+        }
+    }
+
     /** Each new track played is instantiated as a Thread object that uses this method call as parameter.
      *  When a new track thread starts, it will wait for the previous track to stop and signal the condition.
      */
     private void PlayTrack() {
         try {
-            while (true) {
-                while (state != SongState.PLAYING) {
-                    lockPaused.lock();
-                    threadUnpaused.await();             //thread waits to be unpaused
+            while (!shutdown) {
+                boolean waited = false;
+                boolean idle = false;
+                lockPaused.lock();
+                try {
+                    while ((state != SongState.PLAYING || scrubbing) && !canMixAlone()) {
+                        waited = true;
+                        if (idleReleaseNs == 0 || device == null) {
+                            threadUnpaused.await();         //thread waits to be unpaused
+                        } else if (threadUnpaused.awaitNanos(idleReleaseNs) <= 0) {
+                            idle = true;                    // nothing happened for idleReleaseNs
+                            break;
+                        }
+                    }
+                } finally {
                     lockPaused.unlock();
                 }
 
+                // The end of a track is handled while still holding lockPlaying, so a song started by another
+                // thread in between is never skipped or stopped as if it had ended. The batches of frames are
+                // written to the device once it is released, so commands never wait for the audio line.
+                boolean played = false;
+                BatchingAudioDevice written;
+                BatchingAudioDevice ended = null;
                 lockPlaying.lock();
-                boolean EOF = !playNextFrame();
-                lockPlaying.unlock();
-
-                if(EOF) {
-                    if(playlist.hasNext()) {
-                        playNext();
+                try {
+                    if (state != SongState.PLAYING || scrubbing) {
+                        if (canMixAlone()) {
+                            if (waited) device.resetClock();
+                            playMixerFrame();
+                        } else if (idle) {
+                            releaseIdle();
+                        }
                     } else {
-                        songToStop();
+                        played = true;
+                        reopenReleased();
+                        if (waited && device != null) device.resetClock();   // a pause is not an underrun
+                        startCrossfadeIfDue();
+                        if (playNextFrame()) {
+                            currentFrame++;
+                        } else if (incoming == null || !handOverCrossfade()) {
+                            device.endBatch();              //let the last frames play
+                            if (playlist.hasNext()) {
+                                ended = device;             // closed below, once its last frames are written
+                                device = null;
+                                songPlayNow(playlist.getNextIndex(), false);  // keeps a pause requested meanwhile
+                                if (device == null) {       // the next song is gone, the end is handled again
+                                    device = ended;
+                                    ended = null;
+                                }
+                            } else {
+                                songToStop();
+                            }
+                        }
                     }
-                } else currentFrame++;
+                } finally {
+                    written = device;
+                    lockPlaying.unlock();
+                }
 
-                if(trackTimeLock.tryLock() && state != SongState.STOPPED)
-                {
-                    updateTrackTime();
-                    trackTimeLock.unlock();
+                if (ended != null) {
+                    ended.writeReady();
+                    ended.close();
+                }
+                if (written != null) written.writeReady();
+                if (played && !scrubbing && state != SongState.STOPPED) {
+                    publishView();
+                    recordResumePoint(false);
                 }
             }
 
-        } catch (JavaLayerException | InterruptedException e) {
+        } catch (InterruptedException ignored) {
+        } catch (JavaLayerException e) {
             throw new RuntimeException(e);
         }
     }
 
     /**
-     * updates the info of the track
+     * Body of the scrub thread. Waits for scrubber positions and serves only the latest one, at most once every
+     * SCRUB_INTERVAL_NS while dragging, so rapid drags never queue up seeks. While dragging, each position plays a
+     * short preview; the position set when the scrubber is released becomes the new playback position.
      */
-    private void updateTrackInfo() {
-        switch(state) {
-            case PLAYING:
-                EventQueue.invokeLater(() -> {
-                    window.setPlayingSongInfo(
-                        currentSong.getTitle(),
-                        currentSong.getAlbum(),
-                        currentSong.getArtist());
-                });
-                updateButtonsNextPrevious();
+    private void PreviewScrub() {
+        long nextPreview = 0;
+        try {
+            while (true) {
+                int target;
+                boolean commit;
+                lockScrub.lock();
+                try {
+                    while (scrubTarget < 0 || (!scrubCommit && System.nanoTime() < nextPreview)) {
+                        if (scrubTarget < 0) scrubRequested.await();
+                        else scrubRequested.awaitNanos(nextPreview - System.nanoTime());
+                    }
+                    target = scrubTarget;
+                    commit = scrubCommit;
+                    scrubTarget = -1;
+                    scrubCommit = false;
+                } finally {
+                    lockScrub.unlock();
+                }
+
+                if (commit) {
+                    commitScrub(target);
+                } else {
+                    previewScrub(target);
+                    nextPreview = System.nanoTime() + SCRUB_INTERVAL_NS;
+                }
+            }
+        } catch (InterruptedException ignored) {
+        } catch (JavaLayerException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Requests the scrub thread to preview or seek to the specified position, replacing any request
+     * it did not serve yet.
+     *
+     * @param ms     position in milliseconds.
+     * @param commit True if it is the final position.
+     */
+    private void requestScrub(int ms, boolean commit) {
+        lockScrub.lock();
+        try {
+            scrubTarget = Math.max(0, ms);
+            scrubCommit |= commit;
+            scrubRequested.signal();
+        } finally {
+            lockScrub.unlock();
+        }
+    }
+
+    /**
+     * Plays a few frames from the specified position. Skipped until the frame index of the song is ready,
+     * so a preview never has to read the file up to the position.
+     */
+    private void previewScrub(int ms) throws JavaLayerException {
+        BatchingAudioDevice preview;
+        lockPlaying.lock();
+        try {
+            reopenReleased();
+            finishIntro();
+            if (currentSong == null || bitstream == null || !isFrameIndexReady()) return;
+            cancelCrossfade();
+            seekToFrame((int) (ms / currentSong.getMsPerFrame()));
+            for (int i = 0; i < SCRUB_PREVIEW_FRAMES && playNextFrame(); i++) currentFrame++;
+            device.endBatch();
+            preview = device;
+        } finally {
+            lockPlaying.unlock();
+        }
+        preview.writeReady();       // a seek or a switch meanwhile drops the preview instead of waiting for it
+    }
+
+    /**
+     * Moves playback to the specified position and lets the track thread resume.
+     */
+    private void commitScrub(int ms) throws JavaLayerException {
+        lockPlaying.lock();
+        try {
+            if (currentSong != null && (device != null || released != null)) {
+                int frame = (int) (ms / currentSong.getMsPerFrame());
+                cancelCrossfade();
+                if (device != null) closeBitStream();       // a new device drops the audio queued before the seek
+                setTrack();
+                seekToFrame(frame);
+            }
+        } finally {
+            lockPlaying.unlock();
+        }
 
-                break;
-            case STOPPED:
-                EventQueue.invokeLater(() -> {
-                    window.setEnabledScrubber(false);
-                    window.resetMiniPlayer();
-                });
-                break;
+        lockPaused.lock();
+        scrubbing = false;
+        threadUnpaused.signal();
+        lockPaused.unlock();
+        if (currentSong != null) {
+            publishView();
+            recordResumePoint(true);
+            replicateTransport();
         }
     }
 
+    /**
+     * Shows the changes made to the queue, and searches it again if a search is in progress.
+     */
     private void updateSongPanels() {
-        EventQueue.invokeLater(() -> window.setQueueList(playlist.getDisplayInfo()));
+        publishView();
+        if (!searchQuery.isBlank()) updateSearch();
     }
 
     /**
-     * Update buttons NextSong and PreviousSong
+     * Searches the queue for the text of the search field in the background, then shows only the songs found.
+     * Results of queries superseded by newer keystrokes are discarded.
      */
-    private void updateButtonsNextPrevious(){
-        if(state != SongState.STOPPED){
-            EventQueue.invokeLater(() -> {
-                window.setEnabledNextButton(playlist.hasNext());
-                window.setEnabledPreviousButton(playlist.hasPrevious());
-            });
+    private void updateSearch() {
+        String query = searchQuery;
+        search.searchAsync(query, searchLimit).thenAccept(songs -> {
+            Set<String> uuids = null;
+            if (!query.isBlank()) {
+                uuids = new HashSet<>();
+                for (Song song : songs) uuids.add(song.getUuid());
+            }
+            Set<String> filter = uuids;
+            publishView(v -> v.withQueueFilter(filter));
+        });
+    }
+
+    /**
+     * Draws the waveform of the current song behind the scrubber once its peaks are available. Should be called
+     * after the song was published, peaks of a song no longer shown are dropped. Remote songs have no waveform.
+     */
+    private void updateWaveform() {
+        Song song = currentSong;
+        if (headless || song == null || song.isRemote()) return;
+        waveforms.request(song).thenAccept(peaks -> publishView(v -> v.getSong() == song ? v.withWaveform(peaks) : v));
+    }
+
+    /**
+     * Tells the prefetcher which songs will play after the current one, and the memory budget which songs the
+     * caches should keep. Should be called whenever the current song or the playlist changes.
+     */
+    private void updatePrefetch() {
+        Playlist.Snapshot snapshot = playlist.snapshot();
+        List<Song> upcoming = new ArrayList<>();
+        for (int index : snapshot.getUpcomingIndices(prefetcher.getLookahead())) upcoming.add(snapshot.get(index));
+        prefetcher.update(upcoming);
+        MemoryBudget.global().setFocus(snapshot.get(snapshot.getCurrentIndex()), upcoming);
+        updateIntros(snapshot);
+        continueQueue(snapshot);
+    }
+
+    /**
+     * Tells the intro cache which songs may be started next: the selected song and the ones next to it, then the
+     * songs that will play after the current one.
+     */
+    private void updateIntros(Playlist.Snapshot snapshot) {
+        List<Song> likely = new ArrayList<>();
+        int selected = selectedIndex;
+        if (selected >= 0) {
+            for (int index : new int[]{selected, selected + 1, selected - 1}) {
+                Song song = snapshot.get(index);
+                if (song != null) likely.add(song);
+            }
+        }
+        for (int index : snapshot.getUpcomingIndices(intros.getLookahead())) likely.add(snapshot.get(index));
+        intros.update(likely);
+    }
+
+    /**
+     * Has the auto-DJ append songs similar to the last one of the queue when fewer than AUTO_DJ_AHEAD are left to
+     * play after the current one. Songs are appended in the background, leaving out the songs still to play and
+     * the ones played recently. Does nothing while stopped or looping, nor when following another player, whose
+     * auto-DJ continues the queue for both.
+     */
+    private void continueQueue(Playlist.Snapshot snapshot) {
+        if (autoDj == null || replicationFollower != null || state == SongState.STOPPED || snapshot.isLooping()
+                || snapshot.isEmpty()) return;
+        int left = snapshot.getUpcomingIndices(AUTO_DJ_AHEAD).length;
+        if (left >= AUTO_DJ_AHEAD || !continuing.compareAndSet(false, true)) return;
+        int size = snapshot.size();
+        int from = Math.max(0, snapshot.getCurrentIndex() - Math.min(AUTO_DJ_HISTORY, size / 2));
+        List<Song> exclude = new ArrayList<>();
+        for (int i = from; i < size; i++) exclude.add(snapshot.get(i));
+        autoDj.suggest(snapshot.get(size - 1), AUTO_DJ_AHEAD - left, exclude).thenAccept(songs -> {
+            continuing.set(false);
+            if (songs.isEmpty() || playlist.snapshot().getUpcomingIndices(AUTO_DJ_AHEAD).length >= AUTO_DJ_AHEAD) return;
+            playlist.addAll(songs);
+            updatePrefetch();
+            updateSongPanels();
+        });
+    }
+
+    /**
+     * Records the current song and frame in the resume journal. Without {@code force}, the journal limits how often
+     * it is written, so this can be called after every frame.
+     */
+    private void recordResumePoint(boolean force) {
+        if (journal == null) return;
+        Song song = state == SongState.STOPPED ? null : currentSong;
+        int frame = Math.max(0, currentFrame - (device == null ? 0 : device.getPendingFrames()));
+        Playlist.Snapshot snapshot = playlist.snapshot();
+        if (force) journal.forceRecord(song, frame, snapshot.isLooping(), snapshot.isShuffled());
+        else journal.record(song, frame, snapshot.isLooping(), snapshot.isShuffled());
+    }
+
+    /**
+     * Loads the song recorded in the resume journal, paused at the recorded frame, so a crash or power loss only
+     * costs pressing play. With {@code player.autoplay} set, playback starts right away instead. Called once the
+     * saved queue has been restored; does nothing if a song was started since.
+     */
+    private void resumeFromJournal() {
+        ResumeJournal.Point point = journal == null ? null : journal.read();
+        if (point != null) resumeAt(point);
+    }
+
+    /**
+     * Loads the song of a recorded position, paused at its frame, unless a song was started.
+     */
+    private void resumeAt(ResumeJournal.Point point) {
+        Playlist.Snapshot snapshot = playlist.snapshot();
+        int found = snapshot.findIndex(point.getUuid());
+        if (found < 0) return;
+        // Indexed before taking the lock, so the seek doesn't decode the whole prefix and commands don't wait for it.
+        CompletableFuture<FrameIndex> index = FrameIndex.scanAsync(snapshot.get(found));
+        try {
+            index.join();
+        } catch (CompletionException | CancellationException e) {
+            e.printStackTrace();
+        }
+
+        boolean autoplay = Boolean.getBoolean("player.autoplay");
+        lockPlaying.lock();
+        try {
+            // Checked again with the lock held, so a song started meanwhile is not replaced.
+            if (state != SongState.STOPPED) return;
+            playlist.setLooping(point.isLooping());
+            if (!point.isShuffled() && playlist.isShuffled()) playlist.toggleShuffle(false);
+            if (!changeCurrentSong(playlist.snapshot().findIndex(point.getUuid()))) return;
+            frameIndex = index;
+            updatePrefetch();
+            setTrack();
+            seekToFrame(point.getFrame());
+
+            lockPaused.lock();
+            state = autoplay ? SongState.PLAYING : SongState.PAUSED;
+            threadUnpaused.signal();
+            lockPaused.unlock();
+        } catch (JavaLayerException | RuntimeException e) {
+            e.printStackTrace();
+            return;
+        } finally {
+            lockPlaying.unlock();
         }
+
+        publishView();
+        updateWaveform();
+        replicateTransport();
+    }
+
+    private void publishView() {
+        publishView(UnaryOperator.identity());
     }
 
     /**
-     * Update Stop and Play/Pause buttons when a song is started
+     * Publishes what the window should show: the song, playback state, position and queue as they are now, changed
+     * by {@code change}, then has the window show it. Every read happens here, on the thread that changed the
+     * state, so the window never shows a song with the buttons or position of another one. Can be called from any
+     * thread; when several threads publish at once, the last state published was built from the latest values.
      */
-    private void updateCentralButtons() {
-        EventQueue.invokeLater(() -> {
-            window.setEnabledStopButton(true);
-            window.setEnabledPlayPauseButton(true);
-            window.setPlayPauseButtonIcon(window.BUTTON_ICON_PAUSE);
+    private void publishView(UnaryOperator<ViewState> change) {
+        view.updateAndGet(previous -> {
+            SongState shown = state;
+            Song song = shown == SongState.STOPPED ? null : currentSong;
+            return change.apply(previous.with(song, shown == SongState.PLAYING, positionMs(song), playlist.snapshot()));
         });
+        if (renderer != null) renderer.requestRender();
     }
 
-    private void updateTrackTime() {
-        EventQueue.invokeLater(() -> { window.setTime((int)(currentFrame * currentSong.getMsPerFrame()), (int)currentSong.getMsLength());});
+    /**
+     * @return the position of the current song in milliseconds: the position of the scrubber while it is dragged,
+     * otherwise the position of the frame being heard.
+     */
+    private int positionMs(Song song) {
+        if (song == null) return 0;
+        if (scrubbing) return (int) scrubberValue;
+        BatchingAudioDevice playing = device;
+        int frame = Math.max(0, currentFrame - (playing == null ? 0 : playing.getPendingFrames()));
+        return (int) (frame * song.getMsPerFrame());
     }
 
 
 
     /**
-     * Set device for new Track
+     * Set device for new Track, and apply the ReplayGain of its tag
      */
     private void setTrack() {
         try {
-            createBitStream();
+            createBitStream(prefetcher.open(currentSong));
         } catch (FileNotFoundException | JavaLayerException e) {
             throw new RuntimeException(e);
         }
+        gain.setReplayGain(ReplayGain.trackGain(bitstream));
         currentFrame = 0;
+        crossfadeAttempted = false;
+        released = null;
     }
 
+    /**
+     * Closes the audio device, the decoder and the file of the current song, keeping only a {@link ResumeToken},
+     * so a player left paused or stopped holds neither the sound system nor a file handle. Called by the track
+     * thread while holding lockPlaying, once nothing happened for idleReleaseNs. Does nothing while the mixer or
+     * the scrubber needs the device.
+     */
+    private void releaseIdle() {
+        if (device == null || scrubbing || mixer.hasSources()) return;
+        int frame = Math.max(0, currentFrame - device.getPendingFrames());
+        int from = Math.max(0, frame - SEEK_PRIMING_FRAMES);
+        FrameIndex index = isFrameIndexReady() ? frameIndex.join() : null;
+        long offset = index != null && !index.isEstimated() && from < index.size() ? index.offset(from) : -1;
+        cancelCrossfade();
+        closeBitStream();
+        bitstream = null;
+        device = null;
+        decoder = null;
+        currentFrame = frame;
+        released = new ResumeToken(currentSong, frame, from, offset);
+        metrics.idleReleased();
+    }
 
+    /**
+     * Reopens what {@link #releaseIdle()} closed, at the frame heard last. Does nothing if nothing is released.
+     * Should be called while holding lockPlaying.
+     */
+    private void reopenReleased() throws JavaLayerException {
+        ResumeToken token = released;
+        if (token == null) return;
+        long start = System.nanoTime();
+        if (token.offset < 0) {
+            setTrack();
+            seekToFrame(token.frame);
+        } else {
+            try {
+                createBitStream(token.song.getBufferedInputStream(token.offset));
+            } catch (IOException e) {
+                throw new JavaLayerException("Could not reopen " + token.song.getFilePath(), e);
+            }
+            crossfadeAttempted = false;
+            released = null;
+            primeFrom(token.from, token.frame);
+        }
+        metrics.idleResumed(start);
+    }
 
-    private void songPlayNow(int songIndex) throws InterruptedException {
-        if (state == SongState.STOPPED && !TrackThread.isAlive()) TrackThread.start();
-        changeCurrentSong(songIndex);
-        updateTrackInfo();
+    /**
+     * Reopens what was released while idle on the warm-resume thread, then wakes the track thread, so it starts
+     * its idle timeout again or plays the mixer.
+     */
+    private void reopenInBackground() {
+        warmer.execute(() -> {
+            lockPlaying.lock();
+            try {
+                reopenReleased();
+            } catch (JavaLayerException | RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                lockPlaying.unlock();
+            }
+            lockPaused.lock();
+            try {
+                threadUnpaused.signal();
+            } finally {
+                lockPaused.unlock();
+            }
+        });
+    }
+
+    /**
+     * Gets a paused song released while idle ready to play again, so pressing play does not wait for the audio
+     * device. Called when the mouse enters the play button.
+     */
+    private void warmUp() {
+        if (state == SongState.PAUSED && released != null) reopenInBackground();
+    }
+
+    /**
+     * Opens the next track and starts mixing it in once the current one is within the crossfade duration
+     * of its end. Should be called from the track thread while holding lockPlaying.
+     */
+    private void startCrossfadeIfDue() {
+        if (crossfade.getDurationMs() == 0 || crossfadeAttempted || bitstream == null) return;
+        int fadeFrames = (int) (crossfade.getDurationMs() / currentSong.getMsPerFrame());
+        // The end of a remote song of unknown length is only known once reached.
+        if (currentSong.getNumFrames() <= 0 || currentFrame < currentSong.getNumFrames() - fadeFrames) return;
 
+        Playlist.Snapshot snapshot = playlist.snapshot();
+        if (!snapshot.hasNext()) return;
+        crossfadeAttempted = true;
+        incomingSong = snapshot.get(snapshot.getNextIndex());
+        try {
+            incoming = new TrackDecoder(prefetcher.open(incomingSong));
+            if (!incoming.fill()
+                    || incoming.getSampleRate() != decoder.getOutputFrequency()
+                    || incoming.getChannels() != decoder.getOutputChannels()) {
+                cancelCrossfade();
+                return;
+            }
+        } catch (FileNotFoundException | JavaLayerException e) {
+            cancelCrossfade();
+            return;
+        }
+        crossfade.start(incoming, decoder.getOutputFrequency(), decoder.getOutputChannels());
+    }
+
+    /**
+     * Makes the track being mixed in the current one, reusing its decoder and the open audio device,
+     * so playback continues without a gap. Cancels the crossfade instead if its song was removed from the queue
+     * meanwhile.
+     *
+     * @return False if the song being mixed in is no longer in the queue.
+     */
+    private boolean handOverCrossfade() throws JavaLayerException {
         lockPlaying.lock();
-        if (bitstream != null) closeBitStream();
-        setTrack();
-        lockPlaying.unlock();
+        try {
+            if (playlist.setCurrentSong(incomingSong) < 0) {
+                cancelCrossfade();
+                return false;
+            }
+            crossfade.stop();
+            short[] rest = new short[incoming.available()];
+            int length = incoming.drain(rest);
+            dsp.process(rest, length, decoder.getOutputChannels(), decoder.getOutputFrequency());
+            device.write(rest, 0, length);
 
-        if (state != SongState.PLAYING) songPlayPause();
+            bitstream.close();
+            bitstream = incoming.getBitstream();
+            gain.setReplayGain(ReplayGain.trackGain(bitstream));
+            decoder = incoming.getDecoder();
+            currentFrame = incoming.getFrame();
+            crossfadeAttempted = false;
+            incoming = null;
+            currentSong = incomingSong;
+            incomingSong = null;
+            frameIndex = FrameIndex.scanAsync(currentSong);
+        } finally {
+            lockPlaying.unlock();
+        }
+        updatePrefetch();
+        publishView();
+        updateWaveform();
+        replicateTransport();
+        return true;
+    }
 
-        updateButtonsNextPrevious();
-        updateCentralButtons();
-        EventQueue.invokeLater(() -> window.setEnabledScrubber(true));
+    /**
+     * Stops a crossfade in progress and closes the track being mixed in.
+     */
+    private void cancelCrossfade() {
+        crossfade.stop();
+        incomingSong = null;
+        if (incoming != null) {
+            incoming.close();
+            incoming = null;
+        }
+    }
+
+
+
+    /**
+     * Starts playing the song at the specified index, replacing the current one. Does nothing if there is no song
+     * at that index. The whole switch happens while holding lockPlaying, so commands from several threads take
+     * effect one after the other.
+     */
+    private void songPlayNow(int songIndex) {
+        songPlayNow(songIndex, true);
     }
 
+    /**
+     * @param start True to start playing if paused. False when the track thread moves on to the next song, so a
+     *              pause requested while it did so is kept.
+     */
+    private void songPlayNow(int songIndex, boolean start) {
+        long requested = System.nanoTime();
+        lockPlaying.lock();
+        try {
+            if (!changeCurrentSong(songIndex)) return;
+            frameIndex = FrameIndex.scanAsync(currentSong);
+            updatePrefetch();
+
+            switchStarted = requested;
+            cancelCrossfade();
+            closeBitStream();
+            if (!startIntro()) setTrack();
+
+            if (start && state != SongState.PLAYING) setPlaying(true);
+        } finally {
+            lockPlaying.unlock();
+        }
+
+        publishView();
+        updateWaveform();
+        replicateTransport();
+    }
+
+    /**
+     * Pauses playback, or resumes it if paused. Does nothing while stopped, like the disabled button.
+     */
     private void songPlayPause() {
-        if (state == SongState.PLAYING) {
-            state = SongState.PAUSED;
-            EventQueue.invokeLater(() -> window.setPlayPauseButtonIcon(window.BUTTON_ICON_PLAY));
-        } else {
-            lockPaused.lock();
-            state = SongState.PLAYING;
-            threadUnpaused.signal();        //wakes trackThread
+        lockPaused.lock();
+        try {
+            if (state != SongState.STOPPED) setPlaying(state != SongState.PLAYING);
+        } finally {
             lockPaused.unlock();
-            EventQueue.invokeLater(() -> window.setPlayPauseButtonIcon(window.BUTTON_ICON_PAUSE));
         }
     }
 
+    /**
+     * @param playing True to play the current song, false to pause it.
+     */
+    private void setPlaying(boolean playing) {
+        lockPaused.lock();
+        try {
+            state = playing ? SongState.PLAYING : SongState.PAUSED;
+            if (playing) threadUnpaused.signal();        //wakes trackThread
+        } finally {
+            lockPaused.unlock();
+        }
+        if (!playing) recordResumePoint(true);
+        publishView();
+        replicateTransport();
+    }
+
     private void songToStop() {
-        state = SongState.STOPPED;
-        currentFrame = 0;
-        updateTrackTime();
-        updateTrackInfo();
+        lockPlaying.lock();
+        try {
+            cancelCrossfade();
+            state = SongState.STOPPED;
+            currentFrame = 0;
+        } finally {
+            lockPlaying.unlock();
+        }
+        recordResumePoint(true);
+        publishView();
+        replicateTransport();
+    }
+
+    /**
+     * Ships the state of playback to the players following this one. Called after every change of song, state or
+     * position, not for the frames played in between, since followers play on their own.
+     */
+    private void replicateTransport() {
+        if (replicationLeader == null) return;
+        SongState shown = state;
+        Song song = shown == SongState.STOPPED ? null : currentSong;
+        ReplicationLog.Transport transport = switch (shown) {
+            case PLAYING -> ReplicationLog.Transport.PLAYING;
+            case PAUSED -> ReplicationLog.Transport.PAUSED;
+            case STOPPED -> ReplicationLog.Transport.STOPPED;
+        };
+        replicationLeader.transport(transport, song, positionMs(song));
+    }
+
+    /**
+     * Plays, pauses or stops like the leader of the queue, on the same song, and seeks when more than
+     * FOLLOW_TOLERANCE_MS away from its position. Called by the replication follower thread.
+     */
+    private void followTransport(ReplicationLog.Transport transport, UUID uuid, int positionMs) {
+        if (transport == ReplicationLog.Transport.STOPPED || uuid == null) {
+            if (state != SongState.STOPPED) songToStop();
+            return;
+        }
+        int index = playlist.snapshot().findIndex(uuid);
+        if (index < 0) return;
+        Song song = currentSong;
+        if (song == null || !song.hasUuid(uuid) || state == SongState.STOPPED) songPlayNow(index, false);
+        if (Math.abs(positionMs(currentSong) - positionMs) > FOLLOW_TOLERANCE_MS) {
+            scrubberValue = positionMs;
+            scrubbing = true;
+            requestScrub(positionMs, true);
+        }
+        boolean playing = transport == ReplicationLog.Transport.PLAYING;
+        if ((state == SongState.PLAYING) != playing) setPlaying(playing);
+    }
+
+    /**
+     * @return a leader listening at {@code player.replication.listen}, given as [host:]port, on the loopback
+     * address by default. Null if it is not set or the address could not be bound.
+     */
+    private ReplicationLeader startLeader() {
+        String listen = System.getProperty("player.replication.listen");
+        if (listen == null || listen.isBlank()) return null;
+        try {
+            ReplicationLeader leader = new ReplicationLeader(playlist,
+                    address(listen, InetAddress.getLoopbackAddress().getHostAddress()),
+                    Integer.getInteger("player.replication.logSize", 10_000));
+            playlist.addListener(leader);
+            return leader;
+        } catch (IOException | IllegalArgumentException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @return a follower of the leader at {@code player.replication.leader}, given as host:port, or null if it is
+     * not set.
+     */
+    private ReplicationFollower startFollower() {
+        String leader = System.getProperty("player.replication.leader");
+        if (leader == null || leader.isBlank()) return null;
+        try {
+            return new ReplicationFollower(playlist, address(leader, null), this::followTransport, () -> {
+                updatePrefetch();
+                updateSongPanels();
+            });
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @param value       [host:]port.
+     * @param defaultHost host if {@code value} has none, or null if it must have one.
+     */
+    private static InetSocketAddress address(String value, String defaultHost) {
+        int colon = value.lastIndexOf(':');
+        String host = colon < 0 ? defaultHost : value.substring(0, colon);
+        if (host == null) throw new IllegalArgumentException("Expected host:port, got " + value);
+        return new InetSocketAddress(host, Integer.parseInt(value.substring(colon + 1).trim()));
     }
 
-    /** Closes the bit stream and the audio device */
+    /**
+     * Closes the bit stream and the audio device, dropping the frames not written to it yet, and the file opened
+     * for the intro being played if any
+     */
     private void closeBitStream(){
+        cancelIntro();
         try{
-            bitstream.close();
+            if (bitstream != null) bitstream.close();
         } catch (BitstreamException e) {
             throw new RuntimeException(e);
         }
-        device.close();
+        if (device != null) device.close();
+    }
+
+    /**
+     * Starts the current song from its decoded intro, if the intro cache has it, so it plays without waiting for
+     * its file. The audio device is opened for the format of the intro, and the file is opened on an
+     * intro-takeover thread, which decodes the frames of the intro again with the decoder of the device, so the
+     * decoder is exactly where it would be had it played them, and the intro hands over to it without a seam.
+     * Should be called while holding lockPlaying, after the previous song was closed.
+     *
+     * @return False if the intro of the song is not cached; nothing was opened.
+     */
+    private boolean startIntro() {
+        IntroCache.Intro cached = intros.get(currentSong);
+        metrics.introStarted(cached != null);
+        if (cached == null) return false;
+        FloatDecoder introDecoder = new FloatDecoder(cached.getSampleRate(), cached.getChannels());
+        try {
+            device = new BatchingAudioDevice(audioOutput.create());
+            device.open(decoder = introDecoder);
+        } catch (JavaLayerException e) {
+            throw new RuntimeException(e);
+        }
+        Song song = currentSong;
+        takeover = CompletableFuture.supplyAsync(() -> openAfterIntro(song, introDecoder, cached.getFrames()),
+                introOpener);
+        if (introFrame.length < cached.getFrameLength()) introFrame = new short[cached.getFrameLength()];
+        intro = cached;
+        gain.setReplayGain(cached.getReplayGain());
+        bitstream = null;
+        currentFrame = 0;
+        crossfadeAttempted = false;
+        released = null;
+        return true;
+    }
+
+    /**
+     * Body of the intro-takeover thread: opens the song and decodes its first {@code frames} frames with
+     * {@code target}, discarding the samples.
+     *
+     * @return the bit stream of the song, at the first frame after the intro.
+     */
+    private Bitstream openAfterIntro(Song song, FloatDecoder target, int frames) {
+        Bitstream stream;
+        try {
+            stream = new Bitstream(prefetcher.open(song));
+        } catch (FileNotFoundException e) {
+            throw new CompletionException(e);
+        }
+        try {
+            for (int i = 0; i < frames; i++) {
+                Header h = stream.readFrame();
+                if (h == null) break;
+                target.decodeFrame(h, stream);
+                stream.closeFrame();
+            }
+            return stream;
+        } catch (JavaLayerException e) {
+            try {
+                stream.close();
+            } catch (BitstreamException ignored) {
+            }
+            throw new CompletionException(e);
+        }
     }
 
-    /**Create a new audio device as well as a new input stream
+    /**
+     * Makes the decoder opened in the background play the current song, waiting for it if it is not ready yet.
+     * Should be called while holding lockPlaying, when an intro is playing.
+     *
+     * @return False if the song could not be opened.
      */
-    private void createBitStream() throws JavaLayerException, FileNotFoundException {
-        device = FactoryRegistry.systemRegistry().createAudioDevice();
-        device.open(decoder = new Decoder());
-        bitstream = new Bitstream(currentSong.getBufferedInputStream());
+    private boolean takeOver() {
+        long start = System.nanoTime();
+        try {
+            bitstream = takeover.join();
+            return true;
+        } catch (CompletionException | CancellationException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            intro = null;
+            takeover = null;
+            metrics.introTakenOver(start);
+        }
+    }
+
+    /**
+     * Hands the current song over to its decoder right away if it is playing its intro, for moving playback
+     * elsewhere in the song. The bit stream is then after the intro, wherever playback was in it.
+     */
+    private void finishIntro() {
+        if (intro == null) return;
+        int frames = intro.getFrames();
+        if (takeOver()) currentFrame = frames;
+    }
+
+    /**
+     * Stops playing the intro of the current song, and closes its file once it is opened.
+     */
+    private void cancelIntro() {
+        if (intro == null) return;
+        takeover.thenAccept(stream -> {
+            try {
+                stream.close();
+            } catch (BitstreamException e) {
+                e.printStackTrace();
+            }
+        });
+        intro = null;
+        takeover = null;
+    }
+
+    /**Create a new audio device as well as a new bit stream reading {@code in}
+     */
+    private void createBitStream(InputStream in) throws JavaLayerException {
+        device = new BatchingAudioDevice(audioOutput.create());
+        device.open(decoder = new FloatDecoder());
+        bitstream = new Bitstream(in);
     }
 
     /**
      * @param index new index
+     * @return False if there is no song at that index.
      */
-    private void changeCurrentSong(int index){
+    private boolean changeCurrentSong(int index){
+        Song song = playlist.get(index);
+        if (song == null) return false;
         playlist.setCurrentIndex(index);
-        currentSong = playlist.get(index);
+        currentSong = song;
+        return true;
     }
 
     private void playNext(){
-        try {
-            songPlayNow(playlist.getNextIndex());
-        } catch (InterruptedException ex) {
-            throw new RuntimeException(ex);
-        }
+        songPlayNow(playlist.getNextIndex());
     }
 
     private void playPrevious() {
-        try {
-            songPlayNow(playlist.getPreviousIndex());
-        } catch (InterruptedException ex) {
-            throw new RuntimeException(ex);
-        }
+        songPlayNow(playlist.getPreviousIndex());
     }
-    private final ActionListener buttonListenerPlayNow = e -> {
+
+    /**
+     * Removes the song at the specified index from the queue, stopping it first if it is playing.
+     */
+    private void removeSong(int index) {
+        Song song = playlist.get(index);
+        if (song == null) return;
+        lockPlaying.lock();
         try {
-            songPlayNow(window.getSelectedSongIndex());
-        } catch (InterruptedException ex) {
-            throw new RuntimeException(ex);
+            if (song == currentSong && state != SongState.STOPPED) songToStop();
+            playlist.remove(index);
+        } finally {
+            lockPlaying.unlock();
         }
-    };
-    private final ActionListener buttonListenerRemove = e -> new Thread(() -> {
-        int index = window.getSelectedSongIndex();
-        if(currentSong != null && Objects.equals(currentSong.getUuid(), window.getSelectedSongID())) {
-            songToStop();
-        }
-
-        playlist.remove(index);
+        updatePrefetch();
         updateSongPanels();
-        updateButtonsNextPrevious();
-    }).start();
+    }
+
+    private final ActionListener buttonListenerPlayNow = e -> songPlayNow(window.getSelectedSongIndex());
+    private final ActionListener buttonListenerRemove = e -> new Thread(() -> removeSong(window.getSelectedSongIndex())).start();
     private final ActionListener buttonListenerAddSong = e -> new Thread(() -> {
         Song newSong = window.openFileChooser();
         if (newSong != null) playlist.add(newSong);
+        updatePrefetch();
         updateSongPanels();
-        updateButtonsNextPrevious();
+    }).start();
+    private final ActionListener buttonListenerImport = e -> new Thread(() -> {
+        File file = window.openPlaylistChooser();
+        if (file == null) return;
+        try {
+            M3u.importFrom(file.toPath(), IMPORT_BATCH, songs -> {
+                playlist.addAll(songs);
+                updatePrefetch();
+                updateSongPanels();
+            });
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }).start();
+    private final ActionListener buttonListenerExport = e -> new Thread(() -> {
+        File file = window.savePlaylistChooser();
+        if (file == null) return;
+        try {
+            M3u.exportTo(file.toPath(), playlist.snapshot().getSongs());
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }).start();
+    private final ActionListener buttonListenerAnnounce = e -> new Thread(() -> {
+        Song announcement = window.openFileChooser();
+        if (announcement != null) mixIn(announcement, 1f, true);
     }).start();
     private final ActionListener buttonListenerPlayPause = e -> {
         songPlayPause();
     };
+    private final Runnable playPauseHoverListener = this::warmUp;
     private final ActionListener buttonListenerStop = e -> new Thread(this::songToStop).start();
     private final ActionListener buttonListenerNext = e -> new Thread(this::playNext).start();
     private final ActionListener buttonListenerPrevious = e -> new Thread(this::playPrevious).start();
     private final ActionListener buttonListenerShuffle = e -> {};
     private final ActionListener buttonListenerLoop = e -> {};
+    private final IntConsumer queueSortListener = column -> new Thread(() -> {
+        if (column >= LibraryIndex.Column.values().length) return;
+        LibraryIndex.Column sortColumn = LibraryIndex.Column.values()[column];
+        synchronized (this) {
+            sortAscending = sortColumn != lastSortColumn || !sortAscending;
+            lastSortColumn = sortColumn;
+        }
+        playlist.sort(sortColumn, sortAscending);
+        updatePrefetch();
+        updateSongPanels();
+    }).start();
+    private final Consumer<String> queueSearchListener = text -> {
+        searchQuery = text;
+        updateSearch();
+    };
+    private final IntConsumer queueSelectionListener = index -> {
+        selectedIndex = index;
+        updateIntros(playlist.snapshot());
+    };
     private final MouseInputAdapter scrubberMouseInputAdapter = new MouseInputAdapter() {
         @Override
         public void mouseReleased(MouseEvent e) {
-            trackTimeLock.unlock();
-            lockPlaying.lock();
-            try {
-                int frame = (int) (scrubberValue / currentSong.getMsPerFrame());
-                closeBitStream();
-                setTrack();
-                skipToFrame(frame);
-            } catch (JavaLayerException ex) {
-                throw new RuntimeException(ex);
-            } finally {
-                lockPlaying.unlock();
-            }
-            trackTimeLock.lock();
-            updateTrackTime();
-            trackTimeLock.unlock();
-
+            requestScrub(window.getScrubberValue(), true);
         }
 
         @Override
         public void mousePressed(MouseEvent e) {
-            trackTimeLock.lock();
+            scrubbing = true;
             scrubberValue = window.getScrubberValue();
+            requestScrub((int) scrubberValue, false);
         }
 
         @Override
         public void mouseDragged(MouseEvent e) {
             scrubberValue = window.getScrubberValue();
-            EventQueue.invokeLater(() -> window.setTime(
-                    (int) scrubberValue,
-                    (int) currentSong.getMsLength()));
+            requestScrub((int) scrubberValue, false);
+            publishView();
         }
     };
 
+    /**
+     * Creates the audio device each song is played on.
+     */
+    @FunctionalInterface
+    interface AudioOutput {
+        AudioDevice create() throws JavaLayerException;
+    }
+
     public Player() {
+        this(() -> FactoryRegistry.systemRegistry().createAudioDevice(), false);
+    }
+
+    /**
+     * @param audioOutput creates the audio device of each song.
+     * @param headless    True to run without a window and without restoring or saving the session, as in tests.
+     */
+    Player(AudioOutput audioOutput, boolean headless) {
+        this.audioOutput = audioOutput;
+        this.headless = headless;
         this.state = SongState.STOPPED;
         this.playlist = new Playlist();
+        this.playlist.addListener(search);
+        this.playlist.addListener(contents);
+        if (autoDj != null) this.playlist.addListener(autoDj);    // after contents, which it reads
+        this.view = new AtomicReference<>(ViewState.stopped(playlist.snapshot()));
 
-        try {
-            this.device = FactoryRegistry.systemRegistry().createAudioDevice();
-        } catch (JavaLayerException e) {
-            throw new RuntimeException(e);
+        gain.setVolume(Float.parseFloat(System.getProperty("player.volume", "1")));
+        equalizer.setBands(EqualizerStage.parseBands(System.getProperty("player.eq")));
+        dsp.add(crossfade);
+        dsp.add(equalizer);
+        dsp.add(gain);
+        dsp.add(mixer);
+
+        ScrubThread.setDaemon(true);
+        ScrubThread.start();
+        TrackThread.setDaemon(true);
+        TrackThread.start();
+        this.replicationLeader = startLeader();
+        this.replicationFollower = startFollower();
+
+        if (headless) {
+            this.journal = null;
+            this.renderer = null;
+            return;
         }
 
-        String[][] table = playlist.getDisplayInfo();
+        ViewState shown = view.get();
+        String[][] table = shown.getQueue().getDisplayInfo();
+        this.renderer = new ViewRenderer(shown, view::get, () -> window);
         EventQueue.invokeLater(() -> window = new PlayerWindow(
                 "Player", // Placeholder title
                 table,
                 buttonListenerPlayNow,
                 buttonListenerRemove,
                 buttonListenerAddSong,
+                buttonListenerImport,
+                buttonListenerExport,
+                buttonListenerAnnounce,
                 buttonListenerShuffle,
                 buttonListenerPrevious,
                 buttonListenerPlayPause,
+                playPauseHoverListener,
                 buttonListenerStop,
                 buttonListenerNext,
                 buttonListenerLoop,
-                scrubberMouseInputAdapter)
+                scrubberMouseInputAdapter,
+                queueSortListener,
+                queueSearchListener,
+                queueSelectionListener)
         );
+
+        ResumeJournal resumeJournal = null;
+        try {
+            resumeJournal = new ResumeJournal(AppData.dir("session").resolve("resume.journal"));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        this.journal = resumeJournal;
+        if (replicationFollower != null) return;        // the queue is the leader's
+
+        try {
+            new SessionStore(SessionStore.defaultFile()).restoreAndAutosave(playlist, () -> {
+                updatePrefetch();
+                updateSongPanels();
+            }, () -> {
+                StartupTrace.mark("queue restored");
+                resumeFromJournal();
+            });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //<editor-fold desc="Headless control">
+    /*
+     * Entry points of the controls for running the player without a window. Each one does what its button does,
+     * on the calling thread, with the song index given instead of read from the queue selection.
+     */
+
+    Playlist getPlaylist() {
+        return playlist;
+    }
+
+    void playNow(int index) {
+        songPlayNow(index);
+    }
+
+    void playPause() {
+        songPlayPause();
+    }
+
+    void stop() {
+        songToStop();
+    }
+
+    void next() {
+        playNext();
+    }
+
+    void previous() {
+        playPrevious();
+    }
+
+    /**
+     * Does what restarting after a crash does once the queue is restored, with the position read from a journal.
+     */
+    void resume(ResumeJournal.Point point) {
+        resumeAt(point);
+    }
+
+    void remove(int index) {
+        removeSong(index);
+    }
+
+    MixerStage.Source announce(Song song) {
+        return mixIn(song, 1f, true);
+    }
+
+    /**
+     * Plays a preview of the specified position, as dragging the scrubber does. Playback holds still until
+     * {@link #seek(int)} releases the scrubber.
+     */
+    void drag(int ms) {
+        scrubbing = true;
+        scrubberValue = ms;
+        requestScrub(ms, false);
+        publishView();
+    }
+
+    /**
+     * Moves playback to the specified position, as releasing the scrubber does. The move happens on the scrub
+     * thread; {@link #isSeeking()} is true until it is done.
+     */
+    void seek(int ms) {
+        scrubberValue = ms;
+        scrubbing = true;
+        requestScrub(ms, true);
+    }
+
+    boolean isSeeking() {
+        return scrubbing;
+    }
+
+    /**
+     * @return True while the next song is being mixed in.
+     */
+    boolean isCrossfading() {
+        return incomingSong != null;
+    }
+
+    boolean isPlaying() {
+        return state == SongState.PLAYING;
+    }
+
+    boolean isStopped() {
+        return state == SongState.STOPPED;
+    }
+
+    Song getCurrentSong() {
+        return currentSong;
+    }
+
+    /**
+     * Does what hovering the play button does.
+     */
+    void hoverPlay() {
+        warmUp();
+    }
+
+    /**
+     * @return True if the audio device and the file were released while idle.
+     */
+    boolean isReleased() {
+        return released != null;
+    }
+
+    /**
+     * Does what selecting a song of the queue does.
+     */
+    void select(int index) {
+        queueSelectionListener.accept(index);
+    }
+
+    /**
+     * @return True if the intro of the song is decoded, so it would start playing from memory.
+     */
+    boolean hasIntro(Song song) {
+        return intros.get(song) != null;
     }
 
+    /**
+     * @return what the window would show.
+     */
+    ViewState getView() {
+        return view.get();
+    }
+
+    /**
+     * Stops the track and scrub threads and the background pools, closes the audio device and the resume journal and
+     * stops replicating.
+     */
+    void shutdown() throws InterruptedException {
+        shutdown = true;
+        TrackThread.interrupt();
+        ScrubThread.interrupt();
+        TrackThread.join();
+        ScrubThread.join();
+        introOpener.shutdownNow();
+        warmer.shutdownNow();
+        prefetcher.shutdown();
+        intros.shutdown();
+        waveforms.shutdown();
+        if (autoDj != null) autoDj.shutdown();
+        search.shutdown();
+        contents.shutdown();
+        if (device != null) device.close();
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (replicationFollower != null) replicationFollower.close();
+        if (replicationLeader != null) {
+            try {
+                replicationLeader.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+    //</editor-fold>
+
     //<editor-fold desc="Essential">
     /**
      * @return False if there are no more frames to play.
      */
     private boolean playNextFrame() throws JavaLayerException {
-        if (device != null) {
+        if (device != null && intro != null) {
+            if (currentFrame < intro.getFrames()) {
+                int length = intro.copyFrame(currentFrame, introFrame);
+                dsp.process(introFrame, length, intro.getChannels(), intro.getSampleRate());
+                device.write(introFrame, 0, length);
+                frameWritten();
+                return true;
+            }
+            if (!takeOver()) return false;
+        }
+        if (device != null && bitstream != null) {
+            long start = System.nanoTime();
             Header h = bitstream.readFrame();
             if (h == null) return false;
 
-            SampleBuffer output = (SampleBuffer) decoder.decodeFrame(h, bitstream);
+            FloatSampleBuffer output = decoder.decodeFrame(h, bitstream);
+            metrics.frameDecoded(start);
+            dsp.process(output, decoder.getOutputChannels(), decoder.getOutputFrequency());
             device.write(output.getBuffer(), 0, output.getBufferLength());
             bitstream.closeFrame();
+            frameWritten();
         }
         return true;
     }
 
+    /**
+     * Records the first audio of the session and of the song after a switch.
+     */
+    private void frameWritten() {
+        if (!audioStarted) {
+            audioStarted = true;
+            StartupTrace.mark("first audio");
+        }
+        if (switchStarted != 0) {
+            metrics.trackSwitched(switchStarted);
+            switchStarted = 0;
+        }
+    }
+
+    /**
+     * Plays a track over the music. When the music is paused or stopped, the track plays alone on the device of
+     * the last song; before the first song is played, it waits for it.
+     *
+     * @param song       track to be played, such as an announcement or a jingle.
+     * @param gain       linear gain of the track.
+     * @param ducksMusic True to turn the music down while the track plays.
+     * @return the source of the track in the mixer, or null if it could not be opened.
+     */
+    private MixerStage.Source mixIn(Song song, float gain, boolean ducksMusic) {
+        TrackDecoder track;
+        try {
+            track = new TrackDecoder(song.getBufferedInputStream());
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+            return null;
+        }
+        try {
+            if (!track.fill()) {        // decodes the first frame here rather than on the track thread
+                track.close();
+                return null;
+            }
+        } catch (JavaLayerException e) {
+            e.printStackTrace();
+            track.close();
+            return null;
+        }
+        MixerStage.Source source = mixer.add(track, gain, ducksMusic);
+        if (released != null) reopenInBackground();     // the mixer needs a device while the music is paused
+        lockPaused.lock();
+        try {
+            threadUnpaused.signal();
+        } finally {
+            lockPaused.unlock();
+        }
+        return source;
+    }
+
+    /**
+     * @return True if the mixer has tracks to play while the music is paused or stopped, and there is a device to
+     * play them on.
+     */
+    private boolean canMixAlone() {
+        FloatDecoder d = decoder;
+        return mixer.hasSources() && !scrubbing && device != null && d != null && d.getOutputFrequency() > 0;
+    }
+
+    /**
+     * Writes one frame of the tracks of the mixer, over silence. Called by the track thread while holding
+     * lockPlaying, when the music is paused or stopped.
+     */
+    private void playMixerFrame() throws JavaLayerException {
+        int channels = decoder.getOutputChannels();
+        int length = MIXER_FRAME * channels;
+        device.write(mixer.processAlone(length, channels, decoder.getOutputFrequency()), 0, length);
+        if (!mixer.hasSources()) device.endBatch();         // let the end of the last track play
+    }
+
     /**
      * @return False if there are no more frames to skip.
      */
@@ -370,5 +1632,52 @@ public class Player {
         boolean condition = true;
         while (framesToSkip-- > 0 && condition) condition = skipNextFrame();
     }
+
+    /**
+     * @return True if the frame index of the current song has been built.
+     */
+    private boolean isFrameIndexReady() {
+        return frameIndex != null && frameIndex.isDone() && !frameIndex.isCompletedExceptionally();
+    }
+
+    /**
+     * Moves the bitstream to the target frame. When the frame index of the current song is ready, the file is
+     * reopened right before the target, so the cost does not depend on how far the target is. Otherwise falls
+     * back to {@link #skipToFrame(int)}.
+     *
+     * @param newFrame Frame to move to.
+     */
+    private void seekToFrame(int newFrame) throws JavaLayerException {
+        long start = System.nanoTime();
+        FrameIndex index = isFrameIndexReady() ? frameIndex.join() : null;
+        if (index == null || newFrame >= index.size()) {
+            skipToFrame(newFrame);
+            metrics.seeked(start);
+            return;
+        }
+
+        int from = Math.max(0, newFrame - SEEK_PRIMING_FRAMES);
+        bitstream.close();
+        try {
+            bitstream = new Bitstream(index.open(currentSong, from));
+        } catch (IOException e) {
+            throw new JavaLayerException("Could not reopen " + currentSong.getFilePath(), e);
+        }
+        primeFrom(from, newFrame);
+        metrics.seeked(start);
+    }
+
+    /**
+     * Decodes and discards the frames from {@code from}, where the bitstream is, up to {@code newFrame}, so the
+     * decoder has the data it needs from earlier frames when the target frame is played.
+     */
+    private void primeFrom(int from, int newFrame) throws JavaLayerException {
+        for (currentFrame = from; currentFrame < newFrame; currentFrame++) {
+            Header h = bitstream.readFrame();
+            if (h == null) break;
+            decoder.decodeFrame(h, bitstream);
+            bitstream.closeFrame();
+        }
+    }
     //</editor-fold>
 }
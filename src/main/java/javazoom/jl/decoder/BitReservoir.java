@@ -0,0 +1,76 @@
+package javazoom.jl.decoder;
+
+/**
+ * Main data reservoir of {@link Layer3Decoder}. Holds the same 4096 bytes as JLayer's {@link BitReserve}, wrapping
+ * around the same way, but as bytes rather than one int per bit, so that several bits are read at once. Reading
+ * past the data put so far returns what was left there before, exactly like {@link BitReserve} does, which keeps
+ * the decoders in step on broken streams too.
+ */
+final class BitReservoir {
+    private static final int SIZE = 4096;
+    private static final int BIT_MASK = SIZE * 8 - 1;
+
+    /**
+     * The reservoir, followed by a copy of its first bytes so that reads never have to wrap around.
+     */
+    private final byte[] buffer = new byte[SIZE + 4];
+    private int writePosition;
+    private int bitPosition;
+    private int totalBits;
+
+    /**
+     * @return number of bits read so far, less the ones given back.
+     */
+    int position() {
+        return totalBits;
+    }
+
+    /**
+     * Appends a byte of main data.
+     */
+    void put(int value) {
+        buffer[writePosition] = (byte) value;
+        if (writePosition < 4) buffer[SIZE + writePosition] = (byte) value;
+        writePosition = (writePosition + 1) & (SIZE - 1);
+    }
+
+    /**
+     * @return the next 24 bits, the first one being the most significant, without consuming them.
+     */
+    int peek24() {
+        int index = bitPosition >>> 3;
+        int word = buffer[index] << 24 | (buffer[index + 1] & 0xFF) << 16 | (buffer[index + 2] & 0xFF) << 8
+                | buffer[index + 3] & 0xFF;
+        return word << (bitPosition & 7) >>> 8;
+    }
+
+    /**
+     * @param count number of bits to read, at most 24.
+     * @return the bits, the first one being the most significant.
+     */
+    int get(int count) {
+        if (count == 0) return 0;
+        int value = peek24() >>> (24 - count);
+        skip(count);
+        return value;
+    }
+
+    /**
+     * @return the next bit.
+     */
+    int get1() {
+        int value = buffer[bitPosition >>> 3] >>> (7 - (bitPosition & 7)) & 1;
+        skip(1);
+        return value;
+    }
+
+    void skip(int count) {
+        totalBits += count;
+        bitPosition = (bitPosition + count) & BIT_MASK;
+    }
+
+    void rewind(int count) {
+        totalBits -= count;
+        bitPosition = (bitPosition - count) & BIT_MASK;
+    }
+}
@@ -0,0 +1,155 @@
+package javazoom.jl.decoder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Huffman table of MPEG audio Layer III as a lookup table, decoding a code in one or two lookups where JLayer's
+ * {@link huffcodetab} walks its tree one bit at a time. The codes are read from JLayer's own tables, by decoding
+ * every path through them, so both decoders agree on every code.
+ */
+final class HuffmanLookup {
+    /**
+     * Index of the first of the two tables coding 4 values in 1 bit each, for the count1 region.
+     */
+    static final int QUAD = 32;
+    private static final int PRIMARY_BITS = 8;
+    private static final int[] LINBITS = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+            1, 2, 3, 4, 6, 8, 10, 13, 4, 5, 6, 7, 8, 9, 11, 13, 0, 0};
+
+    /**
+     * The 34 tables, indexed like {@link huffcodetab#ht}.
+     */
+    static final HuffmanLookup[] TABLES = build();
+
+    /**
+     * Number of bits added to a value of 15, 0 if the table has no escape.
+     */
+    final int linbits;
+    private final int primaryBits;
+    /**
+     * Leaves as {@code length << 8 | value}, or for codes longer than {@link #primaryBits} the complement of
+     * {@code offset << 4 | bits} of a second level table indexed by the next {@code bits} bits.
+     */
+    private final int[] entries;
+
+    private HuffmanLookup(int linbits, List<int[]> codes) {
+        this.linbits = linbits;
+        int maxLength = 0;
+        for (int[] code : codes) maxLength = Math.max(maxLength, code[1]);
+        primaryBits = Math.min(maxLength, PRIMARY_BITS);
+        int[] secondaryBits = new int[1 << primaryBits];
+        for (int[] code : codes) {
+            int extra = code[1] - primaryBits;
+            if (extra > 0) {
+                int prefix = code[0] >>> extra;
+                secondaryBits[prefix] = Math.max(secondaryBits[prefix], extra);
+            }
+        }
+        int size = 1 << primaryBits;
+        int[] offsets = new int[secondaryBits.length];
+        for (int prefix = 0; prefix < secondaryBits.length; prefix++) {
+            if (secondaryBits[prefix] == 0) continue;
+            offsets[prefix] = size;
+            size += 1 << secondaryBits[prefix];
+        }
+        entries = new int[size];
+        for (int prefix = 0; prefix < secondaryBits.length; prefix++) {
+            if (secondaryBits[prefix] > 0) entries[prefix] = ~(offsets[prefix] << 4 | secondaryBits[prefix]);
+        }
+        for (int[] code : codes) {
+            int leaf = code[1] << 8 | code[2];
+            int extra = code[1] - primaryBits;
+            if (extra <= 0) {
+                int first = code[0] << -extra;
+                for (int i = 0; i < 1 << -extra; i++) entries[first + i] = leaf;
+            } else {
+                int prefix = code[0] >>> extra;
+                int unused = secondaryBits[prefix] - extra;
+                int first = offsets[prefix] + ((code[0] & ((1 << extra) - 1)) << unused);
+                for (int i = 0; i < 1 << unused; i++) entries[first + i] = leaf;
+            }
+        }
+    }
+
+    /**
+     * Looks a code up.
+     *
+     * @param window the next 24 bits, the first one being the most significant, as read by
+     *               {@link BitReservoir#peek24()}.
+     * @return the length of the code, shifted left by 8, and the value it codes: {@code x << 4 | y}, or for the
+     * quad tables {@code v << 3 | w << 2 | x << 1 | y}.
+     */
+    int lookup(int window) {
+        int entry = entries[window >>> (24 - primaryBits)];
+        if (entry < 0) {
+            entry = ~entry;
+            int bits = entry & 15;
+            entry = entries[(entry >>> 4) + ((window >>> (24 - primaryBits - bits)) & ((1 << bits) - 1))];
+        }
+        return entry;
+    }
+
+    private static HuffmanLookup[] build() {
+        huffcodetab.inithuff();
+        Prober prober = new Prober();
+        HuffmanLookup[] tables = new HuffmanLookup[huffcodetab.ht.length];
+        for (int table = 0; table < tables.length; table++) {
+            List<int[]> codes = new ArrayList<>();
+            prober.explore(table, 0, 0, codes);
+            tables[table] = new HuffmanLookup(LINBITS[table], codes);
+        }
+        return tables;
+    }
+
+    /**
+     * Finds the codes of JLayer's tables by decoding bit patterns with them.
+     */
+    private static final class Prober {
+        private final BitReserve reserve = new BitReserve();
+        private final int[] x = new int[1], y = new int[1], v = new int[1], w = new int[1];
+
+        /**
+         * Adds the codes starting with the specified bits to {@code codes}, as {code, length, value}.
+         */
+        void explore(int table, int prefix, int length, List<int[]> codes) {
+            long decoded = decode(table, prefix, length);
+            int codeLength = (int) (decoded >>> 32);
+            if (codeLength <= length) {
+                codes.add(new int[]{prefix >>> (length - codeLength), codeLength, (int) decoded});
+            } else {
+                explore(table, prefix << 1, length + 1, codes);
+                explore(table, prefix << 1 | 1, length + 1, codes);
+            }
+        }
+
+        /**
+         * Decodes the specified bits followed by zeros, so no escape adds to the value and no value is negated.
+         *
+         * @return the length of the code, excluding escape and sign bits, in the high half, and its value.
+         */
+        private long decode(int table, int prefix, int length) {
+            long bits = length == 0 ? 0 : (long) prefix << (64 - length);
+            for (int shift = 56; shift >= 0; shift -= 8) reserve.hputbuf((int) (bits >>> shift) & 0xFF);
+            int start = reserve.hsstell();
+            if (huffcodetab.huffman_decoder(huffcodetab.ht[table], x, y, v, w, reserve) != 0) {
+                throw new IllegalStateException("Incomplete Huffman table " + table);
+            }
+            int read = reserve.hsstell() - start;
+            // Keeps each pattern 64 bits after the previous one, where the next one is put.
+            for (int skip = 64 - read; skip > 0; skip -= 16) reserve.hgetbits(Math.min(16, skip));
+            int value;
+            int extra;
+            if (table >= QUAD) {
+                value = v[0] << 3 | w[0] << 2 | x[0] << 1 | y[0];
+                extra = Integer.bitCount(value);
+            } else {
+                value = x[0] << 4 | y[0];
+                int linbits = LINBITS[table];
+                extra = (x[0] != 0 ? 1 : 0) + (y[0] != 0 ? 1 : 0)
+                        + (linbits != 0 && x[0] == 15 ? linbits : 0) + (linbits != 0 && y[0] == 15 ? linbits : 0);
+            }
+            return (long) (read - extra) << 32 | value;
+        }
+    }
+}
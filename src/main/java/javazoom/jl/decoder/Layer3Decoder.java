@@ -0,0 +1,981 @@
+package javazoom.jl.decoder;
+
+import java.util.Arrays;
+
+/**
+ * MPEG audio Layer III decoder producing exactly the samples of JLayer's {@link LayerIIIDecoder}, bit for bit,
+ * in a fraction of the time. Every floating point operation is JLayer's, in JLayer's order; the work around them
+ * is what changed:
+ * <ul>
+ * <li>The main data is kept as bytes in a {@link BitReservoir} instead of one int per bit, and Huffman codes are
+ * decoded with {@link HuffmanLookup} tables, along with their sign bits, instead of walking a tree one bit at a
+ * time.</li>
+ * <li>Spectra are flat arrays, so dequantization and the stereo processing no longer divide every index by 18.
+ * Dequantization goes band by band, looking the gain of each band up once, and scales each value as it computes
+ * it.</li>
+ * <li>The IMDCT skips the subbands above the highest one holding a value, whose output is just the overlap of the
+ * previous granule, or zero.</li>
+ * <li>The synthesis filter is a {@link PolyphaseFilter}, which applies its window with the Vector API.</li>
+ * </ul>
+ * It is a port of {@link LayerIIIDecoder} of JLayer 1.0.1 ({@code javazoom:jlayer:1.0.1}), under the same LGPL
+ * license as the rest of JLayer. It sits in JLayer's package to read the package-private tables of
+ * {@link LayerIIIDecoder} and {@link huffcodetab}, so it only works with JLayer on the class path, where packages
+ * may be split across jars, and has to be checked against the samples of any other JLayer version before
+ * upgrading. Only output to both channels is supported, as {@link Decoder} does. This class is NOT THREAD SAFE!
+ */
+public final class Layer3Decoder implements FrameDecoder {
+    private static final int[][] SLEN = {{0, 0, 0, 0, 3, 1, 1, 1, 2, 2, 2, 3, 3, 3, 4, 4},
+            {0, 1, 2, 3, 0, 1, 2, 3, 1, 2, 3, 1, 2, 3, 2, 3}};
+    private static final float[] CS = {0.8574929f, 0.881742f, 0.94962865f, 0.9833146f, 0.9955178f, 0.9991606f,
+            0.9998992f, 0.99999315f};
+    private static final float[] CA = {-0.51449573f, -0.47173196f, -0.31337744f, -0.1819132f, -0.09457419f,
+            -0.040965583f, -0.014198569f, -0.0036999746f};
+    /**
+     * Scale factor band boundaries of long blocks, for MPEG-2 22.05, 24 and 16 kHz, MPEG-1 44.1, 48 and 32 kHz,
+     * and MPEG-2.5 11.025, 12 and 8 kHz.
+     */
+    private static final int[][] LONG_BANDS = {
+            {0, 6, 12, 18, 24, 30, 36, 44, 54, 66, 80, 96, 116, 140, 168, 200, 238, 284, 336, 396, 464, 522, 576},
+            {0, 6, 12, 18, 24, 30, 36, 44, 54, 66, 80, 96, 114, 136, 162, 194, 232, 278, 330, 394, 464, 540, 576},
+            {0, 6, 12, 18, 24, 30, 36, 44, 54, 66, 80, 96, 116, 140, 168, 200, 238, 284, 336, 396, 464, 522, 576},
+            {0, 4, 8, 12, 16, 20, 24, 30, 36, 44, 52, 62, 74, 90, 110, 134, 162, 196, 238, 288, 342, 418, 576},
+            {0, 4, 8, 12, 16, 20, 24, 30, 36, 42, 50, 60, 72, 88, 106, 128, 156, 190, 230, 276, 330, 384, 576},
+            {0, 4, 8, 12, 16, 20, 24, 30, 36, 44, 54, 66, 82, 102, 126, 156, 194, 240, 296, 364, 448, 550, 576},
+            {0, 6, 12, 18, 24, 30, 36, 44, 54, 66, 80, 96, 116, 140, 168, 200, 238, 284, 336, 396, 464, 522, 576},
+            {0, 6, 12, 18, 24, 30, 36, 44, 54, 66, 80, 96, 116, 140, 168, 200, 238, 284, 336, 396, 464, 522, 576},
+            {0, 12, 24, 36, 48, 60, 72, 88, 108, 132, 160, 192, 232, 280, 336, 400, 476, 566, 568, 570, 572, 574,
+                    576}};
+    /**
+     * Scale factor band boundaries of short blocks, ordered like {@link #LONG_BANDS}.
+     */
+    private static final int[][] SHORT_BANDS = {
+            {0, 4, 8, 12, 18, 24, 32, 42, 56, 74, 100, 132, 174, 192},
+            {0, 4, 8, 12, 18, 26, 36, 48, 62, 80, 104, 136, 180, 192},
+            {0, 4, 8, 12, 18, 26, 36, 48, 62, 80, 104, 134, 174, 192},
+            {0, 4, 8, 12, 16, 22, 30, 40, 52, 66, 84, 106, 136, 192},
+            {0, 4, 8, 12, 16, 22, 28, 38, 50, 64, 80, 100, 126, 192},
+            {0, 4, 8, 12, 16, 22, 30, 42, 58, 78, 104, 138, 180, 192},
+            {0, 4, 8, 12, 18, 26, 36, 48, 62, 80, 104, 134, 174, 192},
+            {0, 4, 8, 12, 18, 26, 36, 48, 62, 80, 104, 134, 174, 192},
+            {0, 8, 16, 24, 36, 52, 72, 96, 124, 160, 162, 164, 166, 192}};
+
+    private final Bitstream stream;
+    private final Header header;
+    private final Obuffer buffer;
+    private final int channels;
+    private final int granules;
+    private final int sfreq;
+    private final int[] longBands;
+    private final int[] shortBands;
+    private final int[] reorder;
+    private final PolyphaseFilter[] filters;
+
+    private final BitReservoir reservoir = new BitReservoir();
+    private final Granule[][] granule = {{new Granule(), new Granule()}, {new Granule(), new Granule()}};
+    private final int[][] scfsi = new int[2][4];
+    private int mainDataBegin;
+    private int frameStart;
+    private int part2Start;
+
+    private final int[][] scalefacLong = new int[2][23];
+    private final int[][][] scalefacShort = new int[2][3][13];
+    private final int[] scalefacBuffer = new int[54];
+    private final int[] newSlen = new int[4];
+
+    private final int[] is1d = new int[580];
+    private final int[] nonzero = {576, 576};
+    private final float[][] ro = new float[2][576];
+    private final float[][] lr = new float[2][576];
+    private final int[] isPos = new int[576];
+    private final float[] isRatio = new float[576];
+    private final float[][] k = new float[2][576];
+
+    private final float[] out = new float[576];
+    private final float[][] previous = new float[2][576];
+    /**
+     * Number of subbands of {@link #previous} that may hold something other than zeros, per channel.
+     */
+    private final int[] previousSubbands = new int[2];
+    private final float[] mdctIn = new float[18];
+    private final float[] mdctOut = new float[36];
+    private final float[] subbandSamples = new float[32];
+    private final float[] pcm = new float[32];
+
+    /**
+     * @param stream stream the frames are read from.
+     * @param header header of the frames, updated by {@code stream} as it reads them.
+     * @param buffer buffer receiving the samples.
+     */
+    public Layer3Decoder(Bitstream stream, Header header, Obuffer buffer) {
+        this.stream = stream;
+        this.header = header;
+        this.buffer = buffer;
+        channels = header.mode() == Header.SINGLE_CHANNEL ? 1 : 2;
+        granules = header.version() == Header.MPEG1 ? 2 : 1;
+        sfreq = header.sample_frequency() + (header.version() == Header.MPEG1 ? 3
+                : header.version() == Header.MPEG25_LSF ? 6 : 0);
+        longBands = LONG_BANDS[sfreq];
+        shortBands = SHORT_BANDS[sfreq];
+        reorder = LayerIIIDecoder.reorder(shortBands);
+        filters = new PolyphaseFilter[channels];
+        for (int ch = 0; ch < channels; ch++) filters[ch] = new PolyphaseFilter(32700f);
+    }
+
+    @Override
+    public void decodeFrame() {
+        int slots = header.slots();
+        readSideInfo();
+        for (int i = 0; i < slots; i++) reservoir.put(stream.get_bits(8));
+        int mainDataEnd = reservoir.position() >>> 3;
+        int flush = reservoir.position() & 7;
+        if (flush != 0) {
+            reservoir.skip(8 - flush);
+            mainDataEnd++;
+        }
+        int discard = frameStart - mainDataEnd - mainDataBegin;
+        frameStart += slots;
+        if (discard < 0) return;
+        if (mainDataEnd > 4096) {
+            frameStart -= 4096;
+            reservoir.rewind(4096 * 8);
+        }
+        reservoir.skip(discard * 8);
+
+        for (int gr = 0; gr < granules; gr++) {
+            for (int ch = 0; ch < channels; ch++) {
+                part2Start = reservoir.position();
+                if (header.version() == Header.MPEG1) readScalefactors(ch, gr);
+                else readLsfScalefactors(ch, gr);
+                decodeHuffman(ch, gr);
+                dequantize(ro[ch], ch, gr);
+            }
+            stereo(gr);
+            for (int ch = 0; ch < channels; ch++) {
+                reorder(channels == 1 ? ro[0] : lr[ch], granule[ch][gr]);
+                antialias(granule[ch][gr]);
+                int subbands = hybrid(ch, granule[ch][gr]);
+                synthesize(ch, subbands);
+            }
+        }
+    }
+
+    //<editor-fold desc="Side info and scale factors">
+    private void readSideInfo() {
+        if (header.version() == Header.MPEG1) {
+            mainDataBegin = stream.get_bits(9);
+            stream.get_bits(channels == 1 ? 5 : 3);
+            for (int ch = 0; ch < channels; ch++) {
+                for (int band = 0; band < 4; band++) scfsi[ch][band] = stream.get_bits(1);
+            }
+            for (int gr = 0; gr < 2; gr++) {
+                for (int ch = 0; ch < channels; ch++) {
+                    Granule g = granule[ch][gr];
+                    g.part23Length = stream.get_bits(12);
+                    g.bigValues = stream.get_bits(9);
+                    g.globalGain = stream.get_bits(8);
+                    g.scalefacCompress = stream.get_bits(4);
+                    g.windowSwitching = stream.get_bits(1);
+                    if (g.windowSwitching != 0) {
+                        g.blockType = stream.get_bits(2);
+                        g.mixedBlock = stream.get_bits(1);
+                        g.tableSelect[0] = stream.get_bits(5);
+                        g.tableSelect[1] = stream.get_bits(5);
+                        g.subblockGain[0] = stream.get_bits(3);
+                        g.subblockGain[1] = stream.get_bits(3);
+                        g.subblockGain[2] = stream.get_bits(3);
+                        // Like JLayer, stops reading the side info, so the main data starts early.
+                        if (g.blockType == 0) return;
+                        g.region0Count = g.blockType == 2 && g.mixedBlock == 0 ? 8 : 7;
+                        g.region1Count = 20 - g.region0Count;
+                    } else {
+                        g.tableSelect[0] = stream.get_bits(5);
+                        g.tableSelect[1] = stream.get_bits(5);
+                        g.tableSelect[2] = stream.get_bits(5);
+                        g.region0Count = stream.get_bits(4);
+                        g.region1Count = stream.get_bits(3);
+                        g.blockType = 0;
+                    }
+                    g.preflag = stream.get_bits(1);
+                    g.scalefacScale = stream.get_bits(1);
+                    g.count1TableSelect = stream.get_bits(1);
+                }
+            }
+        } else {
+            mainDataBegin = stream.get_bits(8);
+            stream.get_bits(channels == 1 ? 1 : 2);
+            for (int ch = 0; ch < channels; ch++) {
+                Granule g = granule[ch][0];
+                g.part23Length = stream.get_bits(12);
+                g.bigValues = stream.get_bits(9);
+                g.globalGain = stream.get_bits(8);
+                g.scalefacCompress = stream.get_bits(9);
+                g.windowSwitching = stream.get_bits(1);
+                if (g.windowSwitching != 0) {
+                    g.blockType = stream.get_bits(2);
+                    g.mixedBlock = stream.get_bits(1);
+                    g.tableSelect[0] = stream.get_bits(5);
+                    g.tableSelect[1] = stream.get_bits(5);
+                    g.subblockGain[0] = stream.get_bits(3);
+                    g.subblockGain[1] = stream.get_bits(3);
+                    g.subblockGain[2] = stream.get_bits(3);
+                    if (g.blockType == 0) return;
+                    if (g.blockType == 2 && g.mixedBlock == 0) {
+                        g.region0Count = 8;
+                    } else {
+                        g.region0Count = 7;
+                        g.region1Count = 20 - g.region0Count;
+                    }
+                } else {
+                    g.tableSelect[0] = stream.get_bits(5);
+                    g.tableSelect[1] = stream.get_bits(5);
+                    g.tableSelect[2] = stream.get_bits(5);
+                    g.region0Count = stream.get_bits(4);
+                    g.region1Count = stream.get_bits(3);
+                    g.blockType = 0;
+                }
+                g.scalefacScale = stream.get_bits(1);
+                g.count1TableSelect = stream.get_bits(1);
+            }
+        }
+    }
+
+    private void readScalefactors(int ch, int gr) {
+        Granule g = granule[ch][gr];
+        int length0 = SLEN[0][g.scalefacCompress];
+        int length1 = SLEN[1][g.scalefacCompress];
+        int[] l = scalefacLong[ch];
+        int[][] s = scalefacShort[ch];
+        if (g.windowSwitching != 0 && g.blockType == 2) {
+            if (g.mixedBlock != 0) {
+                for (int sfb = 0; sfb < 8; sfb++) l[sfb] = reservoir.get(length0);
+                for (int sfb = 3; sfb < 6; sfb++) {
+                    for (int window = 0; window < 3; window++) s[window][sfb] = reservoir.get(length0);
+                }
+            } else {
+                for (int sfb = 0; sfb < 6; sfb++) {
+                    for (int window = 0; window < 3; window++) s[window][sfb] = reservoir.get(length0);
+                }
+            }
+            for (int sfb = 6; sfb < 12; sfb++) {
+                for (int window = 0; window < 3; window++) s[window][sfb] = reservoir.get(length1);
+            }
+            for (int window = 0; window < 3; window++) s[window][12] = 0;
+        } else {
+            if (scfsi[ch][0] == 0 || gr == 0) for (int sfb = 0; sfb < 6; sfb++) l[sfb] = reservoir.get(length0);
+            if (scfsi[ch][1] == 0 || gr == 0) for (int sfb = 6; sfb < 11; sfb++) l[sfb] = reservoir.get(length0);
+            if (scfsi[ch][2] == 0 || gr == 0) for (int sfb = 11; sfb < 16; sfb++) l[sfb] = reservoir.get(length1);
+            if (scfsi[ch][3] == 0 || gr == 0) for (int sfb = 16; sfb < 21; sfb++) l[sfb] = reservoir.get(length1);
+            l[21] = 0;
+            l[22] = 0;
+        }
+    }
+
+    private void readLsfScaleData(int ch, int gr) {
+        int modeExtension = header.mode_extension();
+        int blockNumber = 0;
+        Granule g = granule[ch][gr];
+        int compress = g.scalefacCompress;
+        int blockTypeNumber = g.blockType == 2 ? (g.mixedBlock == 0 ? 1 : g.mixedBlock == 1 ? 2 : 0) : 0;
+        boolean intensity = (modeExtension == 1 || modeExtension == 3) && ch == 1;
+        if (!intensity) {
+            if (compress < 400) {
+                newSlen[0] = (compress >>> 4) / 5;
+                newSlen[1] = (compress >>> 4) % 5;
+                newSlen[2] = (compress & 0xF) >>> 2;
+                newSlen[3] = compress & 3;
+                g.preflag = 0;
+                blockNumber = 0;
+            } else if (compress < 500) {
+                newSlen[0] = (compress - 400 >>> 2) / 5;
+                newSlen[1] = (compress - 400 >>> 2) % 5;
+                newSlen[2] = compress - 400 & 3;
+                newSlen[3] = 0;
+                g.preflag = 0;
+                blockNumber = 1;
+            } else if (compress < 512) {
+                newSlen[0] = (compress - 500) / 3;
+                newSlen[1] = (compress - 500) % 3;
+                newSlen[2] = 0;
+                newSlen[3] = 0;
+                g.preflag = 1;
+                blockNumber = 2;
+            }
+        } else {
+            int intensityCompress = compress >>> 1;
+            if (intensityCompress < 180) {
+                newSlen[0] = intensityCompress / 36;
+                newSlen[1] = intensityCompress % 36 / 6;
+                newSlen[2] = intensityCompress % 36 % 6;
+                newSlen[3] = 0;
+                g.preflag = 0;
+                blockNumber = 3;
+            } else if (intensityCompress < 244) {
+                newSlen[0] = (intensityCompress - 180 & 0x3F) >>> 4;
+                newSlen[1] = (intensityCompress - 180 & 0xF) >>> 2;
+                newSlen[2] = intensityCompress - 180 & 3;
+                newSlen[3] = 0;
+                g.preflag = 0;
+                blockNumber = 4;
+            } else if (intensityCompress < 255) {
+                newSlen[0] = (intensityCompress - 244) / 3;
+                newSlen[1] = (intensityCompress - 244) % 3;
+                newSlen[2] = 0;
+                newSlen[3] = 0;
+                g.preflag = 0;
+                blockNumber = 5;
+            }
+        }
+        Arrays.fill(scalefacBuffer, 0, 45, 0);
+        int m = 0;
+        for (int i = 0; i < 4; i++) {
+            int count = LayerIIIDecoder.nr_of_sfb_block[blockNumber][blockTypeNumber][i];
+            for (int j = 0; j < count; j++) scalefacBuffer[m++] = newSlen[i] == 0 ? 0 : reservoir.get(newSlen[i]);
+        }
+    }
+
+    private void readLsfScalefactors(int ch, int gr) {
+        Granule g = granule[ch][gr];
+        readLsfScaleData(ch, gr);
+        int[] l = scalefacLong[ch];
+        int[][] s = scalefacShort[ch];
+        int m = 0;
+        if (g.windowSwitching != 0 && g.blockType == 2) {
+            int first = 0;
+            if (g.mixedBlock != 0) {
+                for (int sfb = 0; sfb < 8; sfb++) l[sfb] = scalefacBuffer[m++];
+                first = 3;
+            }
+            for (int sfb = first; sfb < 12; sfb++) {
+                for (int window = 0; window < 3; window++) s[window][sfb] = scalefacBuffer[m++];
+            }
+            for (int window = 0; window < 3; window++) s[window][12] = 0;
+        } else {
+            for (int sfb = 0; sfb < 21; sfb++) l[sfb] = scalefacBuffer[m++];
+            l[21] = 0;
+            l[22] = 0;
+        }
+    }
+    //</editor-fold>
+
+    //<editor-fold desc="Huffman decoding and dequantization">
+    private void decodeHuffman(int ch, int gr) {
+        Granule g = granule[ch][gr];
+        int part23End = part2Start + g.part23Length;
+        int region1Start;
+        int region2Start;
+        if (g.windowSwitching != 0 && g.blockType == 2) {
+            region1Start = sfreq == 8 ? 72 : 36;
+            region2Start = 576;
+        } else {
+            int region1 = g.region0Count + 1;
+            int region2 = Math.min(region1 + g.region1Count + 1, longBands.length - 1);
+            region1Start = longBands[region1];
+            region2Start = longBands[region2];
+        }
+        int index = 0;
+        int end = g.bigValues << 1;
+        for (int i = 0; i < end; i += 2) {
+            HuffmanLookup table = HuffmanLookup.TABLES[g.tableSelect[i < region1Start ? 0 : i < region2Start ? 1 : 2]];
+            int window = reservoir.peek24();
+            int entry = table.lookup(window);
+            int length = entry >>> 8;
+            int x = entry >>> 4 & 15;
+            int y = entry & 15;
+            int linbits = table.linbits;
+            if (linbits == 0 || x < 15 && y < 15) {
+                // No escape: the sign bits follow the code, within the 24 bits read.
+                int signs = window << 8 + length;
+                if (x != 0) {
+                    if (signs < 0) x = -x;
+                    signs <<= 1;
+                    length++;
+                }
+                if (y != 0) {
+                    if (signs < 0) y = -y;
+                    length++;
+                }
+                reservoir.skip(length);
+            } else {
+                reservoir.skip(length);
+                if (x == 15) x += reservoir.get(linbits);
+                if (x != 0 && reservoir.get1() != 0) x = -x;
+                if (y == 15) y += reservoir.get(linbits);
+                if (y != 0 && reservoir.get1() != 0) y = -y;
+            }
+            is1d[index++] = x;
+            is1d[index++] = y;
+        }
+        HuffmanLookup quad = HuffmanLookup.TABLES[HuffmanLookup.QUAD + g.count1TableSelect];
+        int bits = reservoir.position();
+        while (bits < part23End && index < 576) {
+            // At most 6 bits of code and 4 sign bits.
+            int window = reservoir.peek24();
+            int entry = quad.lookup(window);
+            int length = entry >>> 8;
+            int signs = window << 8 + length;
+            for (int shift = 3; shift >= 0; shift--) {
+                int q = entry >>> shift & 1;
+                if (q != 0) {
+                    if (signs < 0) q = -q;
+                    signs <<= 1;
+                    length++;
+                }
+                is1d[index++] = q;
+            }
+            reservoir.skip(length);
+            bits = reservoir.position();
+        }
+        if (bits > part23End) {
+            reservoir.rewind(bits - part23End);
+            index -= 4;
+        }
+        bits = reservoir.position();
+        if (bits < part23End) reservoir.skip(part23End - bits);
+        nonzero[ch] = Math.min(index, 576);
+        if (index < 0) index = 0;
+        if (index < 576) Arrays.fill(is1d, index, 576, 0);
+    }
+
+    /**
+     * Dequantizes the Huffman decoded values of a granule of a channel, band by band.
+     */
+    private void dequantize(float[] xr, int ch, int gr) {
+        Granule g = granule[ch][gr];
+        float gain = (float) Math.pow(2.0, 0.25 * ((double) g.globalGain - 210.0));
+        int count = Math.max(nonzero[ch], 0);
+        if (g.windowSwitching != 0 && g.blockType == 2) {
+            int first = 0;
+            if (g.mixedBlock != 0) {
+                // The two lowest subbands are long blocks, the first 8 bands.
+                dequantizeLong(xr, ch, g, 8, Math.min(count, 36), gain);
+                first = 3;
+            }
+            int[][] s = scalefacShort[ch];
+            float[] pow2 = LayerIIIDecoder.two_to_negative_half_pow;
+            for (int cb = first; cb < 13; cb++) {
+                int width = shortBands[cb + 1] - shortBands[cb];
+                int from = shortBands[cb] * 3;
+                for (int window = 0; window < 3 && from < count; window++, from += width) {
+                    float factor = pow2[(s[window][cb] << g.scalefacScale) + (g.subblockGain[window] << 2)];
+                    int to = Math.min(from + width, count);
+                    for (int j = from; j < to; j++) xr[j] = dequantize(is1d[j], gain) * factor;
+                }
+            }
+        } else {
+            dequantizeLong(xr, ch, g, 22, count, gain);
+        }
+        Arrays.fill(xr, count, 576, 0.0f);
+    }
+
+    /**
+     * Dequantizes the values of the long block bands before {@code bands}, up to line {@code count}.
+     */
+    private void dequantizeLong(float[] xr, int ch, Granule g, int bands, int count, float gain) {
+        int[] l = scalefacLong[ch];
+        float[] pow2 = LayerIIIDecoder.two_to_negative_half_pow;
+        for (int cb = 0; cb < bands && longBands[cb] < count; cb++) {
+            int index = l[cb];
+            if (g.preflag != 0) index += LayerIIIDecoder.pretab[cb];
+            float factor = pow2[index << g.scalefacScale];
+            int to = Math.min(longBands[cb + 1], count);
+            for (int j = longBands[cb]; j < to; j++) xr[j] = dequantize(is1d[j], gain) * factor;
+        }
+    }
+
+    /**
+     * @return {@code gain * value^(4/3)}, the sign of {@code value} kept, rounded like JLayer does.
+     */
+    private static float dequantize(int value, float gain) {
+        float[] t43 = LayerIIIDecoder.t_43;
+        if (value > 0) return value < t43.length ? gain * t43[value] : gain * (float) Math.pow(value, 1.3333333333333333);
+        return -value < t43.length ? -gain * t43[-value] : -gain * (float) Math.pow(-value, 1.3333333333333333);
+    }
+    //</editor-fold>
+
+    //<editor-fold desc="Stereo">
+    private void stereo(int gr) {
+        if (channels == 1) return;
+        Granule g = granule[0][gr];
+        int modeExtension = header.mode_extension();
+        boolean msStereo = header.mode() == Header.JOINT_STEREO && (modeExtension & 2) != 0;
+        boolean iStereo = header.mode() == Header.JOINT_STEREO && (modeExtension & 1) != 0;
+        float[] ro0 = ro[0];
+        float[] ro1 = ro[1];
+        float[] lr0 = lr[0];
+        float[] lr1 = lr[1];
+        if (!msStereo && !iStereo) {
+            System.arraycopy(ro0, 0, lr0, 0, 576);
+            System.arraycopy(ro1, 0, lr1, 0, 576);
+            return;
+        }
+        boolean lsf = header.version() == Header.MPEG2_LSF || header.version() == Header.MPEG25_LSF;
+        int ioType = g.scalefacCompress & 1;
+        Arrays.fill(isPos, 7);
+        Arrays.fill(isRatio, 0.0f);
+        if (iStereo) {
+            int[] s = shortBands;
+            int[] l = longBands;
+            int i;
+            int sb;
+            int sfb;
+            int temp;
+            int lines;
+            if (g.windowSwitching != 0 && g.blockType == 2) {
+                if (g.mixedBlock != 0) {
+                    int maxSfb = 0;
+                    for (int j = 0; j < 3; j++) {
+                        int sfbcnt = 2;
+                        for (sfb = 12; sfb >= 3; sfb--) {
+                            i = s[sfb];
+                            lines = s[sfb + 1] - i;
+                            i = (i << 2) - i + (j + 1) * lines - 1;
+                            while (lines > 0) {
+                                if (ro1[i] != 0.0f) {
+                                    sfbcnt = sfb;
+                                    sfb = -10;
+                                    lines = -10;
+                                }
+                                lines--;
+                                i--;
+                            }
+                        }
+                        sfb = sfbcnt + 1;
+                        if (sfb > maxSfb) maxSfb = sfb;
+                        while (sfb < 12) {
+                            temp = s[sfb];
+                            sb = s[sfb + 1] - temp;
+                            i = (temp << 2) - temp + j * sb;
+                            for (; sb > 0; sb--) setIntensity(i++, scalefacShort[1][j][sfb], lsf, ioType);
+                            sfb++;
+                        }
+                        copyLastShortBand(j, lsf);
+                    }
+                    if (maxSfb <= 3) {
+                        i = 2;
+                        int ss = 17;
+                        sb = -1;
+                        while (i >= 0) {
+                            if (ro1[i * 18 + ss] != 0.0f) {
+                                sb = (i << 4) + (i << 1) + ss;
+                                i = -1;
+                            } else if (--ss < 0) {
+                                i--;
+                                ss = 17;
+                            }
+                        }
+                        i = 0;
+                        while (l[i] <= sb) i++;
+                        sfb = i;
+                        i = l[i];
+                        for (; sfb < 8; sfb++) {
+                            for (sb = l[sfb + 1] - l[sfb]; sb > 0; sb--) setIntensity(i++, scalefacLong[1][sfb], lsf, ioType);
+                        }
+                    }
+                } else {
+                    for (int j = 0; j < 3; j++) {
+                        int sfbcnt = -1;
+                        for (sfb = 12; sfb >= 0; sfb--) {
+                            temp = s[sfb];
+                            lines = s[sfb + 1] - temp;
+                            i = (temp << 2) - temp + (j + 1) * lines - 1;
+                            while (lines > 0) {
+                                if (ro1[i] != 0.0f) {
+                                    sfbcnt = sfb;
+                                    sfb = -10;
+                                    lines = -10;
+                                }
+                                lines--;
+                                i--;
+                            }
+                        }
+                        for (sfb = sfbcnt + 1; sfb < 12; sfb++) {
+                            temp = s[sfb];
+                            sb = s[sfb + 1] - temp;
+                            i = (temp << 2) - temp + j * sb;
+                            for (; sb > 0; sb--) setIntensity(i++, scalefacShort[1][j][sfb], lsf, ioType);
+                        }
+                        copyLastShortBand(j, lsf);
+                    }
+                }
+            } else {
+                i = 31;
+                int ss = 17;
+                sb = 0;
+                while (i >= 0) {
+                    if (ro1[i * 18 + ss] != 0.0f) {
+                        sb = (i << 4) + (i << 1) + ss;
+                        i = -1;
+                    } else if (--ss < 0) {
+                        i--;
+                        ss = 17;
+                    }
+                }
+                i = 0;
+                while (l[i] <= sb) i++;
+                sfb = i;
+                i = l[i];
+                for (; sfb < 21; sfb++) {
+                    for (sb = l[sfb + 1] - l[sfb]; sb > 0; sb--) setIntensity(i++, scalefacLong[1][sfb], lsf, ioType);
+                }
+                sfb = l[20];
+                for (sb = 576 - l[21]; sb > 0 && i < 576; i++, sb--) {
+                    isPos[i] = isPos[sfb];
+                    if (lsf) {
+                        k[0][i] = k[0][sfb];
+                        k[1][i] = k[1][sfb];
+                    } else {
+                        isRatio[i] = isRatio[sfb];
+                    }
+                }
+            }
+        }
+        float[] k0 = k[0];
+        float[] k1 = k[1];
+        for (int i = 0; i < 576; i++) {
+            if (isPos[i] == 7) {
+                if (msStereo) {
+                    lr0[i] = (ro0[i] + ro1[i]) * 0.70710677f;
+                    lr1[i] = (ro0[i] - ro1[i]) * 0.70710677f;
+                } else {
+                    lr0[i] = ro0[i];
+                    lr1[i] = ro1[i];
+                }
+            } else if (iStereo) {
+                if (lsf) {
+                    lr0[i] = ro0[i] * k0[i];
+                    lr1[i] = ro0[i] * k1[i];
+                } else {
+                    lr1[i] = ro0[i] / (1.0f + isRatio[i]);
+                    lr0[i] = lr1[i] * isRatio[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the intensity stereo position of a spectral line, and its ratio or factors.
+     */
+    private void setIntensity(int i, int position, boolean lsf, int ioType) {
+        isPos[i] = position;
+        if (position == 7) return;
+        if (!lsf) {
+            isRatio[i] = LayerIIIDecoder.TAN12[position];
+        } else if (position == 0) {
+            k[0][i] = 1.0f;
+            k[1][i] = 1.0f;
+        } else if ((position & 1) != 0) {
+            k[0][i] = LayerIIIDecoder.io[ioType][position + 1 >>> 1];
+            k[1][i] = 1.0f;
+        } else {
+            k[0][i] = 1.0f;
+            k[1][i] = LayerIIIDecoder.io[ioType][position >>> 1];
+        }
+    }
+
+    /**
+     * Gives the last short block band of window {@code j} the intensity stereo position of the band before it.
+     */
+    private void copyLastShortBand(int j, boolean lsf) {
+        int[] s = shortBands;
+        int sb = s[11] - s[10];
+        int sfb = (s[10] << 2) - s[10] + j * sb;
+        sb = s[12] - s[11];
+        int i = (s[11] << 2) - s[11] + j * sb;
+        for (; sb > 0; sb--, i++) {
+            isPos[i] = isPos[sfb];
+            if (lsf) {
+                k[0][i] = k[0][sfb];
+                k[1][i] = k[1][sfb];
+            } else {
+                isRatio[i] = isRatio[sfb];
+            }
+        }
+    }
+    //</editor-fold>
+
+    //<editor-fold desc="Reordering, alias reduction, IMDCT and synthesis">
+    private void reorder(float[] xr, Granule g) {
+        if (g.windowSwitching != 0 && g.blockType == 2) {
+            if (g.mixedBlock != 0) {
+                Arrays.fill(out, 36, 576, 0.0f);
+                System.arraycopy(xr, 0, out, 0, 36);
+                for (int sfb = 3; sfb < 13; sfb++) {
+                    int start = shortBands[sfb];
+                    int lines = shortBands[sfb + 1] - start;
+                    int start3 = (start << 2) - start;
+                    for (int freq = 0, freq3 = 0; freq < lines; freq++, freq3 += 3) {
+                        int src = start3 + freq;
+                        int dst = start3 + freq3;
+                        out[dst] = xr[src];
+                        out[dst + 1] = xr[src + lines];
+                        out[dst + 2] = xr[src + 2 * lines];
+                    }
+                }
+            } else {
+                for (int i = 0; i < 576; i++) out[i] = xr[reorder[i]];
+            }
+        } else {
+            System.arraycopy(xr, 0, out, 0, 576);
+        }
+    }
+
+    private void antialias(Granule g) {
+        if (g.windowSwitching != 0 && g.blockType == 2 && g.mixedBlock == 0) return;
+        int limit = g.windowSwitching != 0 && g.mixedBlock != 0 && g.blockType == 2 ? 18 : 558;
+        for (int sb18 = 0; sb18 < limit; sb18 += 18) {
+            for (int ss = 0; ss < 8; ss++) {
+                int up = sb18 + 17 - ss;
+                int down = sb18 + 18 + ss;
+                float bu = out[up];
+                float bd = out[down];
+                out[up] = bu * CS[ss] - bd * CA[ss];
+                out[down] = bd * CS[ss] + bu * CA[ss];
+            }
+        }
+    }
+
+    /**
+     * Runs the IMDCT of each subband and overlaps it with the previous granule, in {@link #out}.
+     *
+     * @return number of subbands that may hold something other than zeros.
+     */
+    private int hybrid(int ch, Granule g) {
+        int last = 575;
+        while (last >= 0 && out[last] == 0.0f) last--;
+        int subbands = last / 18 + 1;
+        float[] prev = previous[ch];
+        for (int sb18 = 0; sb18 < subbands * 18; sb18 += 18) {
+            int blockType = g.windowSwitching != 0 && g.mixedBlock != 0 && sb18 < 36 ? 0 : g.blockType;
+            System.arraycopy(out, sb18, mdctIn, 0, 18);
+            inverseMdct(mdctIn, mdctOut, blockType);
+            for (int i = 0; i < 18; i++) {
+                out[sb18 + i] = mdctOut[i] + prev[sb18 + i];
+                prev[sb18 + i] = mdctOut[18 + i];
+            }
+        }
+        // Silent subbands: the IMDCT is all zeros, so only the overlap is left.
+        int overlapped = Math.max(subbands, previousSubbands[ch]);
+        for (int i = subbands * 18; i < overlapped * 18; i++) {
+            out[i] = prev[i];
+            prev[i] = 0.0f;
+        }
+        previousSubbands[ch] = subbands;
+        return overlapped;
+    }
+
+    private void synthesize(int ch, int subbands) {
+        PolyphaseFilter filter = filters[ch];
+        float[] samples = subbandSamples;
+        Arrays.fill(samples, subbands, 32, 0.0f);
+        for (int ss = 0; ss < 18; ss++) {
+            for (int sb = 0; sb < subbands; sb++) {
+                float sample = out[sb * 18 + ss];
+                // Frequency inversion of the odd samples of the odd subbands.
+                samples[sb] = (sb & ss & 1) != 0 ? -sample : sample;
+            }
+            filter.synthesize(samples, pcm);
+            buffer.appendSamples(ch, pcm);
+        }
+    }
+
+    /**
+     * JLayer's IMDCT of the 18 samples of a subband, operation for operation.
+     *
+     * @param in        samples of the subband, modified.
+     * @param out       receives 36 samples: the first half for this granule, the second one for the next.
+     * @param blockType block type of the subband.
+     */
+    private static void inverseMdct(float[] in, float[] out, int blockType) {
+        if (blockType == 2) {
+            Arrays.fill(out, 0.0f);
+            int sixI = 0;
+            for (int i = 0; i < 3; i++) {
+                in[15 + i] += in[12 + i];
+                in[12 + i] += in[9 + i];
+                in[9 + i] += in[6 + i];
+                in[6 + i] += in[3 + i];
+                in[3 + i] += in[i];
+                in[15 + i] += in[9 + i];
+                in[9 + i] += in[3 + i];
+                float pp2 = in[12 + i] * 0.5f;
+                float pp1 = in[6 + i] * 0.8660254f;
+                float sum = in[i] + pp2;
+                float tmpf1 = in[i] - in[12 + i];
+                float tmpf0 = sum + pp1;
+                float tmpf2 = sum - pp1;
+                pp2 = in[15 + i] * 0.5f;
+                pp1 = in[9 + i] * 0.8660254f;
+                sum = in[3 + i] + pp2;
+                float tmpf4 = in[3 + i] - in[15 + i];
+                float tmpf5 = sum + pp1;
+                float tmpf3 = sum - pp1;
+                tmpf3 *= 1.9318516f;
+                tmpf5 *= 0.5176381f;
+                float save = tmpf0;
+                tmpf0 += tmpf5;
+                tmpf5 = save - tmpf5;
+                tmpf4 *= 0.70710677f;
+                save = tmpf1;
+                tmpf1 += tmpf4;
+                tmpf4 = save - tmpf4;
+                save = tmpf2;
+                tmpf2 += tmpf3;
+                tmpf3 = save - tmpf3;
+                tmpf0 *= 0.5043145f;
+                tmpf1 *= 0.5411961f;
+                tmpf2 *= 0.6302362f;
+                tmpf3 *= 0.8213398f;
+                tmpf4 *= 1.306563f;
+                tmpf5 *= 3.830649f;
+                float tmpf8 = -tmpf0 * 0.7933533f;
+                float tmpf9 = -tmpf0 * 0.6087614f;
+                float tmpf7 = -tmpf1 * 0.9238795f;
+                float tmpf10 = -tmpf1 * 0.38268343f;
+                float tmpf6 = -tmpf2 * 0.9914449f;
+                float tmpf11 = -tmpf2 * 0.13052619f;
+                tmpf0 = tmpf3;
+                tmpf1 = tmpf4 * 0.38268343f;
+                tmpf2 = tmpf5 * 0.6087614f;
+                tmpf3 = -tmpf5 * 0.7933533f;
+                tmpf4 = -tmpf4 * 0.9238795f;
+                tmpf5 = -tmpf0 * 0.9914449f;
+                tmpf0 *= 0.13052619f;
+                out[sixI + 6] += tmpf0;
+                out[sixI + 7] += tmpf1;
+                out[sixI + 8] += tmpf2;
+                out[sixI + 9] += tmpf3;
+                out[sixI + 10] += tmpf4;
+                out[sixI + 11] += tmpf5;
+                out[sixI + 12] += tmpf6;
+                out[sixI + 13] += tmpf7;
+                out[sixI + 14] += tmpf8;
+                out[sixI + 15] += tmpf9;
+                out[sixI + 16] += tmpf10;
+                out[sixI + 17] += tmpf11;
+                sixI += 6;
+            }
+            return;
+        }
+        for (int i = 17; i > 0; i--) in[i] += in[i - 1];
+        for (int i = 17; i > 1; i -= 2) in[i] += in[i - 2];
+
+        float i00 = in[0] + in[0];
+        float iip12 = i00 + in[12];
+        float tmp0 = iip12 + in[4] * 1.8793852f + in[8] * 1.5320889f + in[16] * 0.34729636f;
+        float tmp1 = i00 + in[4] - in[8] - in[12] - in[12] - in[16];
+        float tmp2 = iip12 - in[4] * 0.34729636f - in[8] * 1.8793852f + in[16] * 1.5320889f;
+        float tmp3 = iip12 - in[4] * 1.5320889f + in[8] * 0.34729636f - in[16] * 1.8793852f;
+        float tmp4 = in[0] - in[4] + in[8] - in[12] + in[16];
+        float i66 = in[6] * 1.7320508f;
+        float tmp0e = in[2] * 1.9696155f + i66 + in[10] * 1.2855753f + in[14] * 0.6840403f;
+        float tmp1e = (in[2] - in[10] - in[14]) * 1.7320508f;
+        float tmp2e = in[2] * 1.2855753f - i66 - in[10] * 0.6840403f + in[14] * 1.9696155f;
+        float tmp3e = in[2] * 0.6840403f - i66 + in[10] * 1.9696155f - in[14] * 1.2855753f;
+        float i0 = in[1] + in[1];
+        float i0p12 = i0 + in[13];
+        float tmp0o = i0p12 + in[5] * 1.8793852f + in[9] * 1.5320889f + in[17] * 0.34729636f;
+        float tmp1o = i0 + in[5] - in[9] - in[13] - in[13] - in[17];
+        float tmp2o = i0p12 - in[5] * 0.34729636f - in[9] * 1.8793852f + in[17] * 1.5320889f;
+        float tmp3o = i0p12 - in[5] * 1.5320889f + in[9] * 0.34729636f - in[17] * 1.8793852f;
+        float tmp4o = (in[1] - in[5] + in[9] - in[13] + in[17]) * 0.70710677f;
+        float i6 = in[7] * 1.7320508f;
+        float tmp0eo = in[3] * 1.9696155f + i6 + in[11] * 1.2855753f + in[15] * 0.6840403f;
+        float tmp1eo = (in[3] - in[11] - in[15]) * 1.7320508f;
+        float tmp2eo = in[3] * 1.2855753f - i6 - in[11] * 0.6840403f + in[15] * 1.9696155f;
+        float tmp3eo = in[3] * 0.6840403f - i6 + in[11] * 1.9696155f - in[15] * 1.2855753f;
+
+        float e = tmp0 + tmp0e;
+        float o = (tmp0o + tmp0eo) * 0.5019099f;
+        float tmpf0 = e + o;
+        float tmpf17 = e - o;
+        e = tmp1 + tmp1e;
+        o = (tmp1o + tmp1eo) * 0.5176381f;
+        float tmpf1 = e + o;
+        float tmpf16 = e - o;
+        e = tmp2 + tmp2e;
+        o = (tmp2o + tmp2eo) * 0.55168897f;
+        float tmpf2 = e + o;
+        float tmpf15 = e - o;
+        e = tmp3 + tmp3e;
+        o = (tmp3o + tmp3eo) * 0.61038727f;
+        float tmpf3 = e + o;
+        float tmpf14 = e - o;
+        float tmpf4 = tmp4 + tmp4o;
+        float tmpf13 = tmp4 - tmp4o;
+        e = tmp3 - tmp3e;
+        o = (tmp3o - tmp3eo) * 0.8717234f;
+        float tmpf5 = e + o;
+        float tmpf12 = e - o;
+        e = tmp2 - tmp2e;
+        o = (tmp2o - tmp2eo) * 1.1831008f;
+        float tmpf6 = e + o;
+        float tmpf11 = e - o;
+        e = tmp1 - tmp1e;
+        o = (tmp1o - tmp1eo) * 1.9318516f;
+        float tmpf7 = e + o;
+        float tmpf10 = e - o;
+        e = tmp0 - tmp0e;
+        o = (tmp0o - tmp0eo) * 5.7368565f;
+        float tmpf8 = e + o;
+        float tmpf9 = e - o;
+
+        float[] win = LayerIIIDecoder.win[blockType];
+        out[0] = -tmpf9 * win[0];
+        out[1] = -tmpf10 * win[1];
+        out[2] = -tmpf11 * win[2];
+        out[3] = -tmpf12 * win[3];
+        out[4] = -tmpf13 * win[4];
+        out[5] = -tmpf14 * win[5];
+        out[6] = -tmpf15 * win[6];
+        out[7] = -tmpf16 * win[7];
+        out[8] = -tmpf17 * win[8];
+        out[9] = tmpf17 * win[9];
+        out[10] = tmpf16 * win[10];
+        out[11] = tmpf15 * win[11];
+        out[12] = tmpf14 * win[12];
+        out[13] = tmpf13 * win[13];
+        out[14] = tmpf12 * win[14];
+        out[15] = tmpf11 * win[15];
+        out[16] = tmpf10 * win[16];
+        out[17] = tmpf9 * win[17];
+        out[18] = tmpf8 * win[18];
+        out[19] = tmpf7 * win[19];
+        out[20] = tmpf6 * win[20];
+        out[21] = tmpf5 * win[21];
+        out[22] = tmpf4 * win[22];
+        out[23] = tmpf3 * win[23];
+        out[24] = tmpf2 * win[24];
+        out[25] = tmpf1 * win[25];
+        out[26] = tmpf0 * win[26];
+        out[27] = tmpf0 * win[27];
+        out[28] = tmpf1 * win[28];
+        out[29] = tmpf2 * win[29];
+        out[30] = tmpf3 * win[30];
+        out[31] = tmpf4 * win[31];
+        out[32] = tmpf5 * win[32];
+        out[33] = tmpf6 * win[33];
+        out[34] = tmpf7 * win[34];
+        out[35] = tmpf8 * win[35];
+    }
+    //</editor-fold>
+
+    /**
+     * Side info of a granule of a channel.
+     */
+    private static final class Granule {
+        int part23Length;
+        int bigValues;
+        int globalGain;
+        int scalefacCompress;
+        int windowSwitching;
+        int blockType;
+        int mixedBlock;
+        final int[] tableSelect = new int[3];
+        final int[] subblockGain = new int[3];
+        int region0Count;
+        int region1Count;
+        int preflag;
+        int scalefacScale;
+        int count1TableSelect;
+    }
+}
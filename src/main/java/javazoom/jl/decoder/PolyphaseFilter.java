@@ -0,0 +1,456 @@
+package javazoom.jl.decoder;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.io.IOException;
+
+/**
+ * Polyphase synthesis filter of {@link Layer3Decoder}, producing exactly the samples of JLayer's
+ * {@link SynthesisFilter}. The 32-point DCT is JLayer's, operation for operation. The V vector and the window
+ * coefficients are stored transposed, sample index innermost, so each of the 16 taps of the window is a multiply and
+ * an add over 32 consecutive floats, run with the Vector API when the {@code jdk.incubator.vector} module is present
+ * and the system property {@code player.dsp.scalar} is not {@code true}. Each sample still adds its 16 products in
+ * JLayer's order, and the multiplies and adds are never fused, so no rounding changes.<br>
+ * This class is NOT THREAD SAFE!
+ */
+final class PolyphaseFilter {
+    /**
+     * True if the window is applied with the Vector API.
+     */
+    static final boolean VECTORIZED = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()
+            && !Boolean.getBoolean("player.dsp.scalar");
+    private static final float cos1_64 = cos(1, 64);
+    private static final float cos3_64 = cos(3, 64);
+    private static final float cos5_64 = cos(5, 64);
+    private static final float cos7_64 = cos(7, 64);
+    private static final float cos9_64 = cos(9, 64);
+    private static final float cos11_64 = cos(11, 64);
+    private static final float cos13_64 = cos(13, 64);
+    private static final float cos15_64 = cos(15, 64);
+    private static final float cos17_64 = cos(17, 64);
+    private static final float cos19_64 = cos(19, 64);
+    private static final float cos21_64 = cos(21, 64);
+    private static final float cos23_64 = cos(23, 64);
+    private static final float cos25_64 = cos(25, 64);
+    private static final float cos27_64 = cos(27, 64);
+    private static final float cos29_64 = cos(29, 64);
+    private static final float cos31_64 = cos(31, 64);
+    private static final float cos1_32 = cos(1, 32);
+    private static final float cos3_32 = cos(3, 32);
+    private static final float cos5_32 = cos(5, 32);
+    private static final float cos7_32 = cos(7, 32);
+    private static final float cos9_32 = cos(9, 32);
+    private static final float cos11_32 = cos(11, 32);
+    private static final float cos13_32 = cos(13, 32);
+    private static final float cos15_32 = cos(15, 32);
+    private static final float cos1_16 = cos(1, 16);
+    private static final float cos3_16 = cos(3, 16);
+    private static final float cos5_16 = cos(5, 16);
+    private static final float cos7_16 = cos(7, 16);
+    private static final float cos1_8 = cos(1, 8);
+    private static final float cos3_8 = cos(3, 8);
+    private static final float cos1_4 = cos(1, 4);
+
+    /**
+     * Window coefficients of JLayer, {@code WINDOW[tap * 32 + sample]}.
+     */
+    private static final float[] WINDOW = loadWindow();
+
+    private final float[] v1 = new float[512];
+    private final float[] v2 = new float[512];
+    private final float[] samples = new float[32];
+    private final float scalefactor;
+    private float[] actual = v1;
+    /**
+     * Slot of {@link #actual} the next V vector is written to, each slot holding 32 values.
+     */
+    private int writePosition = 15;
+
+    /**
+     * @param scalefactor factor applied to every output sample, 32700 in JLayer's {@link Decoder}.
+     */
+    PolyphaseFilter(float scalefactor) {
+        this.scalefactor = scalefactor;
+    }
+
+    /**
+     * Computes 32 output samples from 32 subband samples.
+     *
+     * @param subbands subband samples, from the lowest to the highest frequency.
+     * @param out      receives the output samples.
+     */
+    void synthesize(float[] subbands, float[] out) {
+        System.arraycopy(subbands, 0, samples, 0, 32);
+        computeNewV();
+        if (VECTORIZED) Vectorized.window(actual, writePosition, scalefactor, out);
+        else window(actual, writePosition, scalefactor, out);
+        writePosition = (writePosition + 1) & 15;
+        actual = actual == v1 ? v2 : v1;
+    }
+
+    /**
+     * Applies the window to the V vector.
+     *
+     * @param v           V vector, the newest values in slot {@code position}.
+     * @param position    slot of the newest values.
+     * @param scalefactor factor applied to every output sample.
+     * @param out         receives the 32 output samples.
+     */
+    private static void window(float[] v, int position, float scalefactor, float[] out) {
+        int slot = position << 5;
+        for (int i = 0; i < 32; i++) out[i] = v[slot + i] * WINDOW[i];
+        for (int tap = 1; tap < 16; tap++) {
+            slot = ((position - tap) & 15) << 5;
+            int offset = tap << 5;
+            for (int i = 0; i < 32; i++) out[i] += v[slot + i] * WINDOW[offset + i];
+        }
+        for (int i = 0; i < 32; i++) out[i] *= scalefactor;
+    }
+
+    private void computeNewV() {
+        float new_v0, new_v1, new_v2, new_v3, new_v4, new_v5, new_v6, new_v7, new_v8, new_v9, new_v10, new_v11, new_v12, new_v13, new_v14, new_v15;
+        float new_v16, new_v17, new_v18, new_v19, new_v20, new_v21, new_v22, new_v23, new_v24, new_v25, new_v26, new_v27, new_v28, new_v29, new_v30, new_v31;
+        float[] s = samples;
+        float s0 = s[0];
+        float s1 = s[1];
+        float s2 = s[2];
+        float s3 = s[3];
+        float s4 = s[4];
+        float s5 = s[5];
+        float s6 = s[6];
+        float s7 = s[7];
+        float s8 = s[8];
+        float s9 = s[9];
+        float s10 = s[10];
+        float s11 = s[11];
+        float s12 = s[12];
+        float s13 = s[13];
+        float s14 = s[14];
+        float s15 = s[15];
+        float s16 = s[16];
+        float s17 = s[17];
+        float s18 = s[18];
+        float s19 = s[19];
+        float s20 = s[20];
+        float s21 = s[21];
+        float s22 = s[22];
+        float s23 = s[23];
+        float s24 = s[24];
+        float s25 = s[25];
+        float s26 = s[26];
+        float s27 = s[27];
+        float s28 = s[28];
+        float s29 = s[29];
+        float s30 = s[30];
+        float s31 = s[31];
+        float p0 = s0 + s31;
+        float p1 = s1 + s30;
+        float p2 = s2 + s29;
+        float p3 = s3 + s28;
+        float p4 = s4 + s27;
+        float p5 = s5 + s26;
+        float p6 = s6 + s25;
+        float p7 = s7 + s24;
+        float p8 = s8 + s23;
+        float p9 = s9 + s22;
+        float p10 = s10 + s21;
+        float p11 = s11 + s20;
+        float p12 = s12 + s19;
+        float p13 = s13 + s18;
+        float p14 = s14 + s17;
+        float p15 = s15 + s16;
+        float pp0 = p0 + p15;
+        float pp1 = p1 + p14;
+        float pp2 = p2 + p13;
+        float pp3 = p3 + p12;
+        float pp4 = p4 + p11;
+        float pp5 = p5 + p10;
+        float pp6 = p6 + p9;
+        float pp7 = p7 + p8;
+        float pp8 = (p0 - p15) * cos1_32;
+        float pp9 = (p1 - p14) * cos3_32;
+        float pp10 = (p2 - p13) * cos5_32;
+        float pp11 = (p3 - p12) * cos7_32;
+        float pp12 = (p4 - p11) * cos9_32;
+        float pp13 = (p5 - p10) * cos11_32;
+        float pp14 = (p6 - p9) * cos13_32;
+        float pp15 = (p7 - p8) * cos15_32;
+        p0 = pp0 + pp7;
+        p1 = pp1 + pp6;
+        p2 = pp2 + pp5;
+        p3 = pp3 + pp4;
+        p4 = (pp0 - pp7) * cos1_16;
+        p5 = (pp1 - pp6) * cos3_16;
+        p6 = (pp2 - pp5) * cos5_16;
+        p7 = (pp3 - pp4) * cos7_16;
+        p8 = pp8 + pp15;
+        p9 = pp9 + pp14;
+        p10 = pp10 + pp13;
+        p11 = pp11 + pp12;
+        p12 = (pp8 - pp15) * cos1_16;
+        p13 = (pp9 - pp14) * cos3_16;
+        p14 = (pp10 - pp13) * cos5_16;
+        p15 = (pp11 - pp12) * cos7_16;
+        pp0 = p0 + p3;
+        pp1 = p1 + p2;
+        pp2 = (p0 - p3) * cos1_8;
+        pp3 = (p1 - p2) * cos3_8;
+        pp4 = p4 + p7;
+        pp5 = p5 + p6;
+        pp6 = (p4 - p7) * cos1_8;
+        pp7 = (p5 - p6) * cos3_8;
+        pp8 = p8 + p11;
+        pp9 = p9 + p10;
+        pp10 = (p8 - p11) * cos1_8;
+        pp11 = (p9 - p10) * cos3_8;
+        pp12 = p12 + p15;
+        pp13 = p13 + p14;
+        pp14 = (p12 - p15) * cos1_8;
+        pp15 = (p13 - p14) * cos3_8;
+        p0 = pp0 + pp1;
+        p1 = (pp0 - pp1) * cos1_4;
+        p2 = pp2 + pp3;
+        p3 = (pp2 - pp3) * cos1_4;
+        p4 = pp4 + pp5;
+        p5 = (pp4 - pp5) * cos1_4;
+        p6 = pp6 + pp7;
+        p7 = (pp6 - pp7) * cos1_4;
+        p8 = pp8 + pp9;
+        p9 = (pp8 - pp9) * cos1_4;
+        p10 = pp10 + pp11;
+        p11 = (pp10 - pp11) * cos1_4;
+        p12 = pp12 + pp13;
+        p13 = (pp12 - pp13) * cos1_4;
+        p14 = pp14 + pp15;
+        p15 = (pp14 - pp15) * cos1_4;
+        new_v12 = p7;
+        new_v4 = new_v12 + p5;
+        new_v19 = -new_v4 - p6;
+        new_v27 = -p6 - p7 - p4;
+        new_v14 = p15;
+        new_v10 = new_v14 + p11;
+        new_v6 = new_v10 + p13;
+        new_v2 = p15 + p13 + p9;
+        new_v17 = -new_v2 - p14;
+        float tmp1 = -p14 - p15 - p10 - p11;
+        new_v21 = tmp1 - p13;
+        new_v29 = -p14 - p15 - p12 - p8;
+        new_v25 = tmp1 - p12;
+        new_v31 = -p0;
+        new_v0 = p1;
+        new_v8 = p3;
+        new_v23 = -new_v8 - p2;
+        p0 = (s0 - s31) * cos1_64;
+        p1 = (s1 - s30) * cos3_64;
+        p2 = (s2 - s29) * cos5_64;
+        p3 = (s3 - s28) * cos7_64;
+        p4 = (s4 - s27) * cos9_64;
+        p5 = (s5 - s26) * cos11_64;
+        p6 = (s6 - s25) * cos13_64;
+        p7 = (s7 - s24) * cos15_64;
+        p8 = (s8 - s23) * cos17_64;
+        p9 = (s9 - s22) * cos19_64;
+        p10 = (s10 - s21) * cos21_64;
+        p11 = (s11 - s20) * cos23_64;
+        p12 = (s12 - s19) * cos25_64;
+        p13 = (s13 - s18) * cos27_64;
+        p14 = (s14 - s17) * cos29_64;
+        p15 = (s15 - s16) * cos31_64;
+        pp0 = p0 + p15;
+        pp1 = p1 + p14;
+        pp2 = p2 + p13;
+        pp3 = p3 + p12;
+        pp4 = p4 + p11;
+        pp5 = p5 + p10;
+        pp6 = p6 + p9;
+        pp7 = p7 + p8;
+        pp8 = (p0 - p15) * cos1_32;
+        pp9 = (p1 - p14) * cos3_32;
+        pp10 = (p2 - p13) * cos5_32;
+        pp11 = (p3 - p12) * cos7_32;
+        pp12 = (p4 - p11) * cos9_32;
+        pp13 = (p5 - p10) * cos11_32;
+        pp14 = (p6 - p9) * cos13_32;
+        pp15 = (p7 - p8) * cos15_32;
+        p0 = pp0 + pp7;
+        p1 = pp1 + pp6;
+        p2 = pp2 + pp5;
+        p3 = pp3 + pp4;
+        p4 = (pp0 - pp7) * cos1_16;
+        p5 = (pp1 - pp6) * cos3_16;
+        p6 = (pp2 - pp5) * cos5_16;
+        p7 = (pp3 - pp4) * cos7_16;
+        p8 = pp8 + pp15;
+        p9 = pp9 + pp14;
+        p10 = pp10 + pp13;
+        p11 = pp11 + pp12;
+        p12 = (pp8 - pp15) * cos1_16;
+        p13 = (pp9 - pp14) * cos3_16;
+        p14 = (pp10 - pp13) * cos5_16;
+        p15 = (pp11 - pp12) * cos7_16;
+        pp0 = p0 + p3;
+        pp1 = p1 + p2;
+        pp2 = (p0 - p3) * cos1_8;
+        pp3 = (p1 - p2) * cos3_8;
+        pp4 = p4 + p7;
+        pp5 = p5 + p6;
+        pp6 = (p4 - p7) * cos1_8;
+        pp7 = (p5 - p6) * cos3_8;
+        pp8 = p8 + p11;
+        pp9 = p9 + p10;
+        pp10 = (p8 - p11) * cos1_8;
+        pp11 = (p9 - p10) * cos3_8;
+        pp12 = p12 + p15;
+        pp13 = p13 + p14;
+        pp14 = (p12 - p15) * cos1_8;
+        pp15 = (p13 - p14) * cos3_8;
+        p0 = pp0 + pp1;
+        p1 = (pp0 - pp1) * cos1_4;
+        p2 = pp2 + pp3;
+        p3 = (pp2 - pp3) * cos1_4;
+        p4 = pp4 + pp5;
+        p5 = (pp4 - pp5) * cos1_4;
+        p6 = pp6 + pp7;
+        p7 = (pp6 - pp7) * cos1_4;
+        p8 = pp8 + pp9;
+        p9 = (pp8 - pp9) * cos1_4;
+        p10 = pp10 + pp11;
+        p11 = (pp10 - pp11) * cos1_4;
+        p12 = pp12 + pp13;
+        p13 = (pp12 - pp13) * cos1_4;
+        p14 = pp14 + pp15;
+        new_v15 = p15 = (pp14 - pp15) * cos1_4;
+        new_v13 = new_v15 + p7;
+        new_v11 = new_v13 + p11;
+        new_v5 = new_v11 + p5 + p13;
+        new_v9 = p15 + p11 + p3;
+        new_v7 = new_v9 + p13;
+        tmp1 = p13 + p15 + p9;
+        new_v1 = tmp1 + p1;
+        new_v16 = -new_v1 - p14;
+        new_v3 = tmp1 + p5 + p7;
+        new_v18 = -new_v3 - p6 - p14;
+        tmp1 = -p10 - p11 - p14 - p15;
+        new_v22 = tmp1 - p13 - p2 - p3;
+        new_v20 = tmp1 - p13 - p5 - p6 - p7;
+        new_v24 = tmp1 - p12 - p2 - p3;
+        float tmp2 = p4 + p6 + p7;
+        new_v26 = tmp1 - p12 - tmp2;
+        tmp1 = -p8 - p12 - p14 - p15;
+        new_v30 = tmp1 - p0;
+        new_v28 = tmp1 - tmp2;
+        float[] dest = actual;
+        int pos = writePosition << 5;
+        dest[pos + 0] = new_v0;
+        dest[pos + 1] = new_v1;
+        dest[pos + 2] = new_v2;
+        dest[pos + 3] = new_v3;
+        dest[pos + 4] = new_v4;
+        dest[pos + 5] = new_v5;
+        dest[pos + 6] = new_v6;
+        dest[pos + 7] = new_v7;
+        dest[pos + 8] = new_v8;
+        dest[pos + 9] = new_v9;
+        dest[pos + 10] = new_v10;
+        dest[pos + 11] = new_v11;
+        dest[pos + 12] = new_v12;
+        dest[pos + 13] = new_v13;
+        dest[pos + 14] = new_v14;
+        dest[pos + 15] = new_v15;
+        dest[pos + 16] = 0.0f;
+        dest[pos + 17] = -new_v15;
+        dest[pos + 18] = -new_v14;
+        dest[pos + 19] = -new_v13;
+        dest[pos + 20] = -new_v12;
+        dest[pos + 21] = -new_v11;
+        dest[pos + 22] = -new_v10;
+        dest[pos + 23] = -new_v9;
+        dest[pos + 24] = -new_v8;
+        dest[pos + 25] = -new_v7;
+        dest[pos + 26] = -new_v6;
+        dest[pos + 27] = -new_v5;
+        dest[pos + 28] = -new_v4;
+        dest[pos + 29] = -new_v3;
+        dest[pos + 30] = -new_v2;
+        dest[pos + 31] = -new_v1;
+        dest = actual == v1 ? v2 : v1;
+        dest[pos + 0] = -new_v0;
+        dest[pos + 1] = new_v16;
+        dest[pos + 2] = new_v17;
+        dest[pos + 3] = new_v18;
+        dest[pos + 4] = new_v19;
+        dest[pos + 5] = new_v20;
+        dest[pos + 6] = new_v21;
+        dest[pos + 7] = new_v22;
+        dest[pos + 8] = new_v23;
+        dest[pos + 9] = new_v24;
+        dest[pos + 10] = new_v25;
+        dest[pos + 11] = new_v26;
+        dest[pos + 12] = new_v27;
+        dest[pos + 13] = new_v28;
+        dest[pos + 14] = new_v29;
+        dest[pos + 15] = new_v30;
+        dest[pos + 16] = new_v31;
+        dest[pos + 17] = new_v30;
+        dest[pos + 18] = new_v29;
+        dest[pos + 19] = new_v28;
+        dest[pos + 20] = new_v27;
+        dest[pos + 21] = new_v26;
+        dest[pos + 22] = new_v25;
+        dest[pos + 23] = new_v24;
+        dest[pos + 24] = new_v23;
+        dest[pos + 25] = new_v22;
+        dest[pos + 26] = new_v21;
+        dest[pos + 27] = new_v20;
+        dest[pos + 28] = new_v19;
+        dest[pos + 29] = new_v18;
+        dest[pos + 30] = new_v17;
+        dest[pos + 31] = new_v16;
+    }
+
+    private static float cos(int numerator, int denominator) {
+        return (float) (1.0 / (2.0 * Math.cos(Math.PI * numerator / denominator)));
+    }
+
+    private static float[] loadWindow() {
+        float[] d;
+        try {
+            d = (float[]) JavaLayerUtils.deserializeArrayResource("sfd.ser", float.class, 512);
+        } catch (IOException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+        float[] window = new float[512];
+        for (int sample = 0; sample < 32; sample++) {
+            for (int tap = 0; tap < 16; tap++) window[tap << 5 | sample] = d[sample << 4 | tap];
+        }
+        return window;
+    }
+
+    /**
+     * Holds every reference to the incubator classes, so they are only loaded when {@link #VECTORIZED} is true.
+     */
+    private static final class Vectorized {
+        private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+        static void window(float[] v, int position, float scalefactor, float[] out) {
+            int bound = SPECIES.loopBound(32);
+            int i = 0;
+            for (; i < bound; i += SPECIES.length()) {
+                FloatVector sum = FloatVector.fromArray(SPECIES, v, (position << 5) + i)
+                        .mul(FloatVector.fromArray(SPECIES, WINDOW, i));
+                for (int tap = 1; tap < 16; tap++) {
+                    FloatVector product = FloatVector.fromArray(SPECIES, v, (((position - tap) & 15) << 5) + i)
+                            .mul(FloatVector.fromArray(SPECIES, WINDOW, (tap << 5) + i));
+                    sum = sum.add(product);
+                }
+                sum.mul(scalefactor).intoArray(out, i);
+            }
+            for (; i < 32; i++) {
+                float sum = v[(position << 5) + i] * WINDOW[i];
+                for (int tap = 1; tap < 16; tap++) sum += v[(((position - tap) & 15) << 5) + i] * WINDOW[(tap << 5) + i];
+                out[i] = sum * scalefactor;
+            }
+        }
+    }
+}
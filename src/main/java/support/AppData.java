@@ -0,0 +1,35 @@
+package support;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Locations of the files the player keeps between runs, such as caches. Everything lives under
+ * {@code ~/.multithreading-music-player}, unless the system property {@code player.dataDir} points somewhere else.
+ */
+public final class AppData {
+
+    private AppData() {
+    }
+
+    /**
+     * @return the root directory of the player's files.
+     */
+    public static Path root() {
+        String custom = System.getProperty("player.dataDir");
+        if (custom != null && !custom.isBlank()) return Path.of(custom);
+        return Path.of(System.getProperty("user.home"), ".multithreading-music-player");
+    }
+
+    /**
+     * Returns a subdirectory of {@link #root()}, creating it if needed.
+     *
+     * @param name name of the subdirectory.
+     * @return path of the subdirectory.
+     * @throws IOException if the directory could not be created.
+     */
+    public static Path dir(String name) throws IOException {
+        return Files.createDirectories(root().resolve(name));
+    }
+}
@@ -0,0 +1,200 @@
+package support;
+
+import javazoom.jl.decoder.JavaLayerException;
+
+import java.io.IOException;
+
+/**
+ * Extracts a compact description of how a track sounds, for finding similar tracks: tempo, energy, spectral
+ * centroid and loudness, each scaled to about 0 to 1 so they weigh the same in a distance.<br>
+ * Only the first {@value #MAX_FRAMES} frames are decoded, about two minutes at 44.1 kHz, read as background work
+ * of the {@link IoScheduler}. The samples are mixed down to mono and cut in blocks of {@value #BLOCK} samples, half
+ * an MPEG-1 frame:<br>
+ * loudness is the mean power of the track, in dBFS from -60 to 0;<br>
+ * energy is how much the level rises from one block to the next, relative to the level, high for busy, percussive
+ * tracks and low for sustained ones;<br>
+ * tempo is the strongest period of those rises between 60 and 180 BPM, by autocorrelation;<br>
+ * spectral centroid is the mean frequency of the spectrum, weighted by magnitude, of every eighth frame, relative
+ * to half the sample rate.
+ */
+public final class AudioFeatures {
+    public static final int TEMPO = 0;
+    public static final int ENERGY = 1;
+    public static final int CENTROID = 2;
+    public static final int LOUDNESS = 3;
+    public static final int DIMENSIONS = 4;
+
+    private static final int MAX_FRAMES = 4600;
+    private static final int BLOCK = 576;
+    private static final int FFT_SIZE = 512;
+    private static final int SPECTRUM_INTERVAL = 8;
+    private static final float MIN_BPM = 60;
+    private static final float MAX_BPM = 180;
+    private static final float FLOOR_DB = -60;
+
+    private AudioFeatures() {
+    }
+
+    /**
+     * Decodes the start of a song and describes it.
+     *
+     * @return the features, {@link #DIMENSIONS} of them, indexed by {@link #TEMPO}, {@link #ENERGY},
+     * {@link #CENTROID} and {@link #LOUDNESS}.
+     * @throws IOException         if the file could not be read.
+     * @throws JavaLayerException if the file could not be decoded.
+     */
+    public static float[] extract(Song song) throws IOException, JavaLayerException {
+        float[] levels = new float[MAX_FRAMES * 2];
+        int blocks = 0;
+        double power = 0;
+        long samples = 0;
+        double centroids = 0;
+        int spectra = 0;
+        int sampleRate = 0;
+        float[] mono = new float[0];
+        float[] re = new float[FFT_SIZE];
+        float[] im = new float[FFT_SIZE];
+        try (TrackDecoder track = new TrackDecoder(song.getBufferedInputStream(0, IoScheduler.Priority.BACKGROUND))) {
+            FloatSampleBuffer output;
+            for (int frame = 0; frame < MAX_FRAMES && (output = track.decodeFrame()) != null; frame++) {
+                int channels = output.getChannelCount();
+                int length = output.getBufferLength() / channels;
+                sampleRate = output.getSampleFrequency();
+                if (mono.length < length) mono = new float[length];
+                float[] interleaved = output.getSamples();
+                for (int i = 0; i < length; i++) {
+                    float sum = 0;
+                    for (int c = 0; c < channels; c++) sum += interleaved[i * channels + c];
+                    mono[i] = sum / channels / 32768f;
+                }
+
+                for (int start = 0; start + BLOCK <= length && blocks < levels.length; start += BLOCK) {
+                    double blockPower = 0;
+                    for (int i = start; i < start + BLOCK; i++) blockPower += mono[i] * mono[i];
+                    power += blockPower;
+                    samples += BLOCK;
+                    levels[blocks++] = (float) Math.sqrt(blockPower / BLOCK);
+                }
+
+                if (frame % SPECTRUM_INTERVAL == 0 && length >= FFT_SIZE) {
+                    float centroid = centroid(mono, re, im);
+                    if (centroid >= 0) {
+                        centroids += centroid;
+                        spectra++;
+                    }
+                }
+            }
+        }
+
+        float[] features = new float[DIMENSIONS];
+        if (blocks < 2 || sampleRate == 0) return features;
+        double meanPower = power / samples;
+        float db = meanPower > 0 ? (float) (10 * Math.log10(meanPower)) : FLOOR_DB;
+        features[LOUDNESS] = clamp((db - FLOOR_DB) / -FLOOR_DB);
+        features[CENTROID] = spectra == 0 ? 0 : (float) (centroids / spectra);
+
+        // Rises of the level from block to block, the onsets of notes and beats.
+        float[] onsets = new float[blocks - 1];
+        double onsetSum = 0;
+        double levelSum = 0;
+        for (int i = 1; i < blocks; i++) {
+            onsets[i - 1] = Math.max(0, levels[i] - levels[i - 1]);
+            onsetSum += onsets[i - 1];
+            levelSum += levels[i];
+        }
+        features[ENERGY] = levelSum == 0 ? 0 : clamp((float) (onsetSum / levelSum * 4));
+        float bpm = tempo(onsets, (float) onsetSum / onsets.length, (float) BLOCK / sampleRate);
+        features[TEMPO] = bpm == 0 ? 0 : clamp((bpm - MIN_BPM) / (MAX_BPM - MIN_BPM));
+        return features;
+    }
+
+    /**
+     * @param onsets       rises of the level, one per block.
+     * @param mean         mean of the rises.
+     * @param blockSeconds duration of a block.
+     * @return the tempo whose period best matches the rises, in BPM, or 0 if there are none.
+     */
+    private static float tempo(float[] onsets, float mean, float blockSeconds) {
+        int shortest = Math.max(1, Math.round(60 / (MAX_BPM * blockSeconds)));
+        int longest = Math.round(60 / (MIN_BPM * blockSeconds));
+        int bestLag = 0;
+        double bestCorrelation = 0;
+        for (int lag = shortest; lag <= longest && lag < onsets.length; lag++) {
+            double correlation = 0;
+            for (int i = lag; i < onsets.length; i++) correlation += (onsets[i] - mean) * (onsets[i - lag] - mean);
+            correlation /= onsets.length - lag;
+            if (correlation > bestCorrelation) {
+                bestCorrelation = correlation;
+                bestLag = lag;
+            }
+        }
+        return bestLag == 0 ? 0 : 60 / (bestLag * blockSeconds);
+    }
+
+    /**
+     * @return the spectral centroid of the first {@value #FFT_SIZE} samples, relative to half the sample rate, or
+     * -1 if they are silent.
+     */
+    private static float centroid(float[] samples, float[] re, float[] im) {
+        for (int i = 0; i < FFT_SIZE; i++) {
+            float hann = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / (FFT_SIZE - 1)));
+            re[i] = samples[i] * hann;
+            im[i] = 0;
+        }
+        fft(re, im);
+        double weighted = 0;
+        double total = 0;
+        for (int k = 1; k < FFT_SIZE / 2; k++) {
+            double magnitude = Math.sqrt(re[k] * re[k] + im[k] * im[k]);
+            weighted += k * magnitude;
+            total += magnitude;
+        }
+        return total < 1e-9 ? -1 : (float) (weighted / total / (FFT_SIZE / 2));
+    }
+
+    /**
+     * In place radix-2 fast Fourier transform. The length must be a power of two.
+     */
+    private static void fft(float[] re, float[] im) {
+        int n = re.length;
+        for (int i = 1, j = 0; i < n; i++) {
+            int bit = n >> 1;
+            for (; (j & bit) != 0; bit >>= 1) j ^= bit;
+            j ^= bit;
+            if (i < j) {
+                float t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+        for (int size = 2; size <= n; size <<= 1) {
+            double angle = -2 * Math.PI / size;
+            float stepRe = (float) Math.cos(angle);
+            float stepIm = (float) Math.sin(angle);
+            for (int start = 0; start < n; start += size) {
+                float wRe = 1;
+                float wIm = 0;
+                for (int k = 0; k < size / 2; k++) {
+                    int a = start + k;
+                    int b = a + size / 2;
+                    float tRe = re[b] * wRe - im[b] * wIm;
+                    float tIm = re[b] * wIm + im[b] * wRe;
+                    re[b] = re[a] - tRe;
+                    im[b] = im[a] - tIm;
+                    re[a] += tRe;
+                    im[a] += tIm;
+                    float next = wRe * stepRe - wIm * stepIm;
+                    wIm = wRe * stepIm + wIm * stepRe;
+                    wRe = next;
+                }
+            }
+        }
+    }
+
+    private static float clamp(float value) {
+        return Math.max(0, Math.min(1, value));
+    }
+}
@@ -0,0 +1,280 @@
+package support;
+
+import javazoom.jl.decoder.JavaLayerException;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Picks songs that sound like a given one, to continue the queue once it runs out. Songs are described by their
+ * {@link AudioFeatures}, extracted in the background as they are added to the playlist, on a pool of low priority
+ * daemon threads. The features of all the songs are kept in a {@link FeatureMatrix} outside the heap, one row per
+ * {@link ContentIndex} hash, so copies of a track at several paths are one candidate; finding similar songs is a
+ * nearest-neighbour scan of the matrix.<br>
+ * Features are also cached on disk by hash, so each track is only decoded once. The matrix is charged to the
+ * {@link MemoryBudget} as off-heap memory; when evicted, the next search fills it again from the disk cache first.
+ * Remote songs are not hashed, so they are never suggested.
+ *
+ * @see Playlist#addListener(Playlist.Listener)
+ */
+public class AutoDj implements Playlist.Listener {
+    private static final int MAGIC = 0x4D504654; // "MPFT"
+    private static final int VERSION = 1;
+    private static final int INITIAL_ROWS = 1024;
+    /**
+     * Weight of each feature in the distance between two songs.
+     */
+    private static final float[] WEIGHTS = {1f, 1f, 1f, 1f};
+    /**
+     * Cost of building the matrix again, for the {@link MemoryBudget}: every feature is read back from its own
+     * file.
+     */
+    private static final float BUDGET_WEIGHT = 4f;
+
+    private final ContentIndex contents;
+    private final ExecutorService executor;
+    private final SharedTasks<String, float[]> running;
+
+    /*
+     * Guarded by this.
+     */
+    private final FeatureMatrix matrix = new FeatureMatrix(AudioFeatures.DIMENSIONS, INITIAL_ROWS);
+    private final Map<String, Integer> rows = new HashMap<>();
+    /**
+     * Song suggested for each row, one of the songs of the playlist with its content.
+     */
+    private final List<Song> songs = new ArrayList<>();
+    /**
+     * Songs added and not removed since.
+     */
+    private final Set<Song> live = Collections.newSetFromMap(new IdentityHashMap<>());
+    private MemoryBudget.Charge charge;
+    private boolean evicted;
+    /**
+     * Completed once the matrix is filled again after the last eviction.
+     */
+    private CompletableFuture<Void> reloaded = CompletableFuture.completedFuture(null);
+
+    /**
+     * @param contents index giving the content hash of songs, listening to the same playlist.
+     */
+    public AutoDj(ContentIndex contents) {
+        this.contents = contents;
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "audio-features");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+        running = new SharedTasks<>(executor);
+    }
+
+    /**
+     * Stops the background threads. Work still queued is dropped.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public void songsAdded(List<Song> added) {
+        synchronized (this) {
+            live.addAll(added);
+        }
+        for (Song song : added) index(song);
+    }
+
+    @Override
+    public synchronized void songsRemoved(List<Song> removed) {
+        for (Song song : removed) {
+            live.remove(song);
+            String hash = contents.getKnownHash(song);
+            Integer row = hash == null ? null : rows.get(hash);
+            if (row == null || songs.get(row) != song) continue;
+            Song replacement = null;
+            for (Song same : contents.getSameContent(song)) {
+                if (live.contains(same)) replacement = same;
+            }
+            songs.set(row, replacement);
+            if (replacement == null) {
+                matrix.remove(row);
+                rows.remove(hash);
+            }
+        }
+    }
+
+    /**
+     * Finds songs that sound like {@code seed}, waiting for its features if they were not extracted yet.
+     *
+     * @param seed    song the suggestions should sound like.
+     * @param count   maximum number of songs to suggest.
+     * @param exclude songs not to suggest, nor any other copy of them, like the songs just played.
+     * @return a future completed with new queue entries of the songs found, most similar first, each with its own
+     * UUID. Empty if there are no other songs or the features of {@code seed} could not be extracted.
+     */
+    public CompletableFuture<List<Song>> suggest(Song seed, int count, Collection<Song> exclude) {
+        return contents.hash(seed)
+                .thenCompose(hash -> features(hash, seed))
+                .thenCompose(features -> reload().thenApply(v -> nearest(features, count, exclude)))
+                .exceptionally(e -> List.of());
+    }
+
+    /**
+     * Fills the matrix again if it was evicted, rather than searching it empty.
+     *
+     * @return a future completed once the features of every song known at the eviction are back in the matrix, or
+     * failed to be read.
+     */
+    private synchronized CompletableFuture<Void> reload() {
+        if (evicted) {
+            evicted = false;
+            reloaded = CompletableFuture.allOf(live.stream()
+                    .map(song -> index(song).exceptionally(e -> null))
+                    .toArray(CompletableFuture[]::new));
+        }
+        return reloaded;
+    }
+
+    private List<Song> nearest(float[] features, int count, Collection<Song> exclude) {
+        List<Song> found = new ArrayList<>();
+        synchronized (this) {
+            if (charge != null) charge.touch();
+            Set<Integer> excluded = new HashSet<>();
+            for (Song song : exclude) {
+                String hash = contents.getKnownHash(song);
+                Integer row = hash == null ? null : rows.get(hash);
+                if (row != null) excluded.add(row);
+            }
+            for (int row : matrix.nearest(features, WEIGHTS, count, row -> !excluded.contains(row))) {
+                Song song = songs.get(row);
+                found.add(new Song(UUID.randomUUID(), song.getTitle(), song.getAlbum(), song.getArtist(),
+                        song.getYear(), song.getMsLength(), song.getFilePath(), song.getFileSize(), song.getNumFrames(),
+                        song.getMsPerFrame()));
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the number of tracks whose features are known, copies counted once.
+     */
+    public synchronized int size() {
+        return matrix.size();
+    }
+
+    /**
+     * Extracts the features of a song in the background, if its content is not in the matrix yet, and adds them.
+     *
+     * @return a future completed once they are added.
+     */
+    private CompletableFuture<Void> index(Song song) {
+        return contents.hash(song).thenCompose(hash -> features(hash, song).thenAccept(features -> {
+            synchronized (this) {
+                if (!live.contains(song) || rows.containsKey(hash)) return;
+                int row = matrix.add(features);
+                rows.put(hash, row);
+                while (songs.size() <= row) songs.add(null);
+                songs.set(row, song);
+                recharge();
+            }
+        }));
+    }
+
+    /**
+     * Charges the matrix to the budget again after it grew. Called holding the lock.
+     */
+    private void recharge() {
+        long bytes = matrix.getMemoryBytes();
+        if (charge != null && charge.getBytes() == bytes) return;
+        if (charge != null) charge.release();
+        charge = MemoryBudget.global().charge(this::evict, "features", null, bytes, true, BUDGET_WEIGHT);
+    }
+
+    private synchronized void evict(MemoryBudget.Charge evictedCharge) {
+        if (evictedCharge != charge) return;
+        charge = null;
+        matrix.clear(INITIAL_ROWS);
+        rows.clear();
+        songs.clear();
+        evicted = true;
+    }
+
+    /**
+     * @return the features of the song with the specified hash: from the matrix, the disk cache, or extracted in
+     * the background. Concurrent requests for the same hash share a single extraction.
+     */
+    private CompletableFuture<float[]> features(String hash, Song song) {
+        synchronized (this) {
+            Integer row = rows.get(hash);
+            if (row != null) return CompletableFuture.completedFuture(matrix.get(row));
+        }
+        return running.run(hash, () -> loadOrExtract(song, hash));
+    }
+
+    private static float[] loadOrExtract(Song song, String hash) {
+        Path file = null;
+        try {
+            file = AppData.dir("features").resolve(hash + ".features");
+            if (Files.exists(file)) return read(file);
+        } catch (InterruptedIOException e) {
+            throw new CompletionException(e);   // shut down
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        float[] features;
+        try {
+            features = AudioFeatures.extract(song);
+        } catch (IOException | JavaLayerException e) {
+            throw new CompletionException(e);
+        }
+        if (file != null) {
+            try {
+                write(file, features);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return features;
+    }
+
+    private static float[] read(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                IoScheduler.global().open(file, 0, IoScheduler.Priority.BACKGROUND)))) {
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION || in.readInt() != AudioFeatures.DIMENSIONS) {
+                throw new IOException("Invalid features file " + file);
+            }
+            float[] features = new float[AudioFeatures.DIMENSIONS];
+            for (int i = 0; i < features.length; i++) features[i] = in.readFloat();
+            return features;
+        }
+    }
+
+    private static void write(Path file, float[] features) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(features.length);
+            for (float feature : features) out.writeFloat(feature);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
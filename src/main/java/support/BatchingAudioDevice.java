@@ -0,0 +1,229 @@
+package support;
+
+import javazoom.jl.decoder.Decoder;
+import javazoom.jl.decoder.JavaLayerException;
+import javazoom.jl.player.AudioDevice;
+
+import java.util.Arrays;
+
+/**
+ * {@link AudioDevice} that collects several decoded frames into one contiguous buffer and writes them to the
+ * wrapped device with a single call, so the per-call cost of the audio line is paid once per batch instead of
+ * once per frame.<br>
+ * The batch size is read from the system property {@code player.batchFrames}. When it is 0 (the default), the
+ * batch holds as many frames as fit in {@code player.batchMs} milliseconds of audio (default 100), which keeps
+ * the batch well below the buffer of the audio line. Frames waiting in the batch have not been heard yet, so
+ * callers reporting the playback position should subtract {@link #getPendingFrames()}.<br>
+ * A full batch is not written by {@link #write}, which never blocks: it is handed over, and written to the wrapped
+ * device by {@link #writeReady()}, which blocks while the audio line is full. The thread producing the frames can
+ * so hold its locks while it decodes and release them before it waits for the line. {@link #close()} drops the
+ * frames not written yet, so closing for a seek or another song never plays stale audio first.<br>
+ * Writes to the wrapped device are timed in {@link PlaybackMetrics}, which also counts underruns: writes made
+ * after all the audio written before them should have finished playing. How much audio is queued is reported to
+ * {@link IoScheduler}, which holds back other reads when it runs low.
+ * Frames must be written by one thread at a time. {@link #writeReady()}, {@link #getPendingFrames()} and
+ * {@link #close()} can be called from any thread.
+ */
+public class BatchingAudioDevice implements AudioDevice {
+    private static final long UNDERRUN_SLACK_NS = 5_000_000;
+
+    private final AudioDevice device;
+    private final int configuredFrames = Integer.getInteger("player.batchFrames", 0);
+    private final int targetMs = Integer.getInteger("player.batchMs", 100);
+    private volatile Decoder decoder;
+
+    /**
+     * Batch being filled, by the thread writing frames.
+     */
+    private short[] batch = new short[0];
+    private volatile int pendingSamples;
+    private volatile int frameLength;
+    private int batchFrames;
+    /**
+     * Batch handed over and not written yet, or null. Guarded by this, like the fields below.
+     */
+    private short[] ready;
+    private int readySamples;
+    /**
+     * Samples of the batch being written by {@link #writeReady()}.
+     */
+    private int writingSamples;
+    /**
+     * Batch written last, reused for the next one.
+     */
+    private short[] spare;
+    /**
+     * Time by which all the audio written to the wrapped device will have played, or 0 after a pause.
+     */
+    private volatile long drainsAt;
+
+    /**
+     * @param device device the batches are written to.
+     */
+    public BatchingAudioDevice(AudioDevice device) {
+        this.device = device;
+    }
+
+    @Override
+    public void open(Decoder decoder) throws JavaLayerException {
+        this.decoder = decoder;
+        device.open(decoder);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return device.isOpen();
+    }
+
+    /**
+     * Adds the samples to the batch, and hands the batch over to {@link #writeReady()} once it is full.
+     */
+    @Override
+    public void write(short[] samples, int offs, int len) {
+        if (len > frameLength) resize(len);
+        System.arraycopy(samples, offs, batch, pendingSamples, len);
+        pendingSamples += len;
+        if (pendingSamples + frameLength > batch.length) endBatch();
+    }
+
+    /**
+     * Hands the frames collected so far over to {@link #writeReady()}, even if the batch is not full, such as at
+     * the end of a song. Does not block. Frames handed over before and not written yet are written first.
+     */
+    public void endBatch() {
+        int length = pendingSamples;
+        if (length == 0) return;
+        synchronized (this) {
+            if (ready == null) {
+                ready = batch;
+                readySamples = length;
+                batch = spare != null && spare.length == batch.length ? spare : new short[batch.length];
+                spare = null;
+            } else {
+                if (ready.length < readySamples + length) ready = Arrays.copyOf(ready, readySamples + length);
+                System.arraycopy(batch, 0, ready, readySamples, length);
+                readySamples += length;
+            }
+            pendingSamples = 0;
+        }
+    }
+
+    /**
+     * Writes the frames handed over to the wrapped device, blocking while it is full. Should be called without
+     * holding the locks the writing thread needs to hand frames over, so nothing waits for the audio line. Does
+     * nothing if no frames were handed over, or if they were dropped by {@link #close()}.
+     */
+    public void writeReady() throws JavaLayerException {
+        short[] samples;
+        int length;
+        synchronized (this) {
+            if (ready == null) return;
+            samples = ready;
+            length = readySamples;
+            ready = null;
+            readySamples = 0;
+            writingSamples = length;
+        }
+        try {
+            writeThrough(samples, length);
+        } finally {
+            synchronized (this) {
+                writingSamples = 0;
+                spare = samples;
+            }
+        }
+    }
+
+    /**
+     * Writes the frames waiting in the batch to the wrapped device right away, blocking while it is full. Unlike
+     * {@link #flush()}, does not wait for the device to play them.
+     */
+    public void flushBatch() throws JavaLayerException {
+        endBatch();
+        writeReady();
+    }
+
+    /**
+     * Tells the device that the gap before the next write is intended, like a pause, and is not an underrun.
+     */
+    public void resetClock() {
+        drainsAt = 0;
+        IoScheduler.global().playbackQueued(0);
+    }
+
+    private void writeThrough(short[] samples, int len) throws JavaLayerException {
+        long start = System.nanoTime();
+        if (drainsAt != 0 && start > drainsAt + UNDERRUN_SLACK_NS) PlaybackMetrics.global().underrun();
+        device.write(samples, 0, len);
+        PlaybackMetrics.global().deviceWritten(start);
+        Decoder d = decoder;
+        int channels = Math.max(1, d == null ? 1 : d.getOutputChannels());
+        int rate = d == null ? 0 : d.getOutputFrequency();
+        if (rate > 0) drainsAt = Math.max(drainsAt, start) + len * 1_000_000_000L / channels / rate;
+        IoScheduler.global().playbackQueued(drainsAt);
+    }
+
+    /**
+     * @return number of frames written to this device that were not written to the wrapped device yet, including
+     * the ones being written.
+     */
+    public int getPendingFrames() {
+        int length = frameLength;
+        if (length == 0) return 0;
+        int handedOver;
+        synchronized (this) {
+            handedOver = readySamples + writingSamples;
+        }
+        return (pendingSamples + handedOver) / length;
+    }
+
+    /**
+     * Sizes the batch for frames of {@code length} samples.
+     */
+    private void resize(int length) {
+        endBatch();
+        frameLength = length;
+        batchFrames = configuredFrames;
+        if (batchFrames <= 0) {
+            Decoder d = decoder;
+            int channels = Math.max(1, d == null ? 1 : d.getOutputChannels());
+            int rate = d == null ? 0 : d.getOutputFrequency();
+            float frameMs = rate == 0 ? 26 : 1000f * length / channels / rate;
+            batchFrames = Math.max(1, (int) (targetMs / frameMs));
+        }
+        batch = new short[batchFrames * frameLength];
+        synchronized (this) {
+            spare = null;
+        }
+    }
+
+    /**
+     * Drops the frames not written to the wrapped device yet and closes it. A write in progress on another thread
+     * is not waited for. To let the last frames of a song play, call {@link #flushBatch()} first.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            ready = null;
+            readySamples = 0;
+            pendingSamples = 0;
+        }
+        device.close();
+        IoScheduler.global().playbackQueued(0);
+    }
+
+    @Override
+    public void flush() {
+        try {
+            flushBatch();
+        } catch (JavaLayerException e) {
+            e.printStackTrace();
+        }
+        device.flush();
+    }
+
+    @Override
+    public int getPosition() {
+        return device.getPosition();
+    }
+}
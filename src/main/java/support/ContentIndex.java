@@ -0,0 +1,337 @@
+package support;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Groups the songs of a {@link Playlist} by the content of their audio, so the same track synced to several
+ * paths is recognised as one. The content hash is the SHA-256 of the file without its ID3 tags, so copies that only
+ * differ in their tags share it. Caches of data derived from the audio, like {@link WaveformCache}, use the hash as
+ * their key, so that work is done once per track rather than once per path.<br>
+ * Songs are hashed in the background as they are added to the playlist, several files at a time, reading each file
+ * through memory-mapped buffers, as background reads of the {@link IoScheduler}. A caller that needs a hash at once
+ * hashes the file on its own thread with {@link #hashNow(Song)}, instead of waiting for the files queued before it.
+ * Each file is hashed once; it is hashed again if its size or modification time changed when its hash is asked
+ * for. Hashes of files no longer in the playlist are forgotten. Remote songs are not hashed.
+ *
+ * @see Playlist#addListener(Playlist.Listener)
+ */
+public class ContentIndex implements Playlist.Listener {
+    /**
+     * Length of the file mapped at once.
+     */
+    private static final long WINDOW = 64L * 1024 * 1024;
+    /**
+     * Length of the mapped window hashed at once, admitted by the {@link IoScheduler} as one background read.
+     */
+    private static final int CHUNK = 1024 * 1024;
+    private static final int ID3V2_HEADER = 10;
+    private static final int ID3V1_SIZE = 128;
+    private static final int ID3V1_EXTENDED_SIZE = 227;
+
+    /**
+     * Hashes by absolute path of the file.
+     */
+    private final Map<String, Hashing> hashes = new ConcurrentHashMap<>();
+    /**
+     * Songs of the playlist by content hash. Guarded by this.
+     */
+    private final Map<String, Set<Song>> groups = new ConcurrentHashMap<>();
+    /**
+     * Songs added and not removed since. Guarded by this.
+     */
+    private final Set<Song> live = Collections.newSetFromMap(new IdentityHashMap<>());
+    /**
+     * Number of live songs by absolute path of their file. Guarded by this.
+     */
+    private final Map<String, Integer> paths = new HashMap<>();
+    private final ExecutorService executor;
+
+    /**
+     * Hash of one version of a file, computed by a thread of the pool or by a caller of {@link #hashNow(Song)},
+     * whichever gets to it first.
+     */
+    private static final class Hashing implements Runnable {
+        final Path file;
+        final long size;
+        final long modified;
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        private final AtomicBoolean started = new AtomicBoolean();
+
+        Hashing(Path file, long size, long modified) {
+            this.file = file;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        /**
+         * Hashes the file, unless another thread started to.
+         */
+        @Override
+        public void run() {
+            if (!started.compareAndSet(false, true)) return;
+            try {
+                result.complete(HexFormat.of().formatHex(hashAudio(file)));
+            } catch (IOException | RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        }
+    }
+
+    public ContentIndex() {
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "content-hash");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+    }
+
+    /**
+     * Stops the background threads. Work still queued is dropped.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public void songsAdded(List<Song> songs) {
+        synchronized (this) {
+            live.addAll(songs);
+            for (Song song : songs) if (!song.isRemote()) paths.merge(path(song), 1, Integer::sum);
+        }
+        for (Song song : songs) {
+            hash(song).thenAccept(hash -> {
+                synchronized (this) {
+                    if (live.contains(song)) groups.computeIfAbsent(hash, k -> ConcurrentHashMap.newKeySet()).add(song);
+                }
+            });
+        }
+    }
+
+    @Override
+    public synchronized void songsRemoved(List<Song> songs) {
+        for (Song song : songs) {
+            if (!live.remove(song)) continue;
+            String hash = getKnownHash(song);
+            if (!song.isRemote()) {
+                String path = path(song);
+                if (paths.merge(path, -1, Integer::sum) == 0) {
+                    paths.remove(path);
+                    hashes.remove(path);
+                }
+            }
+            if (hash == null) continue;
+            Set<Song> group = groups.get(hash);
+            if (group == null) continue;
+            group.remove(song);
+            if (group.isEmpty()) groups.remove(hash);
+        }
+    }
+
+    /**
+     * Returns the content hash of the song, computing it in the background if needed.
+     *
+     * @return future completed with the hash as a hexadecimal string, or completed exceptionally if the file could
+     * not be read or is remote.
+     */
+    public CompletableFuture<String> hash(Song song) {
+        if (song.isRemote()) return CompletableFuture.failedFuture(new IOException("Remote song " + song.getFilePath()));
+        return hashing(song).result;
+    }
+
+    /**
+     * Returns the content hash of the song, computing it on the calling thread if needed, unless another thread
+     * is computing it already.
+     *
+     * @return future completed with the hash as a hexadecimal string, or completed exceptionally if the file could
+     * not be read or is remote. Done, unless another thread is still computing the hash.
+     */
+    public CompletableFuture<String> hashNow(Song song) {
+        if (song.isRemote()) return CompletableFuture.failedFuture(new IOException("Remote song " + song.getFilePath()));
+        Hashing hashing = hashing(song);
+        hashing.run();
+        return hashing.result;
+    }
+
+    /**
+     * @return the hashing of the current version of the file of a local song, queued on the pool if new.
+     */
+    private Hashing hashing(Song song) {
+        Path file = Path.of(song.getFilePath());
+        long size;
+        long modified;
+        try {
+            size = Files.size(file);
+            modified = Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            size = -1;
+            modified = -1;
+        }
+        long currentSize = size;
+        long currentModified = modified;
+        Hashing[] created = new Hashing[1];
+        Hashing hashing = hashes.compute(path(song), (path, known) ->
+                known != null && known.size == currentSize && known.modified == currentModified
+                        ? known
+                        : (created[0] = new Hashing(file, currentSize, currentModified)));
+        if (hashing == created[0]) executor.execute(hashing);
+        return hashing;
+    }
+
+    /**
+     * Returns the content hash of the song if it was already computed. Does not check whether the file changed
+     * since, which {@link #hash(Song)} does.
+     *
+     * @return the hash, or null if unknown.
+     */
+    public String getKnownHash(Song song) {
+        if (song.isRemote()) return null;
+        Hashing hashing = hashes.get(path(song));
+        if (hashing == null || !hashing.result.isDone() || hashing.result.isCompletedExceptionally()) return null;
+        return hashing.result.join();
+    }
+
+    /**
+     * @return the songs of the playlist with the same content as {@code song}, including itself, or an empty set if
+     * its hash is not known yet.
+     */
+    public Set<Song> getSameContent(Song song) {
+        String hash = getKnownHash(song);
+        Set<Song> group = hash == null ? null : groups.get(hash);
+        return group == null ? Set.of() : Collections.unmodifiableSet(group);
+    }
+
+    /**
+     * @return the groups of two or more songs of the playlist with the same content, among the songs hashed so far.
+     */
+    public List<Set<Song>> getDuplicates() {
+        List<Set<Song>> duplicates = new ArrayList<>();
+        for (Set<Song> group : groups.values()) {
+            if (group.size() > 1) duplicates.add(Collections.unmodifiableSet(group));
+        }
+        return duplicates;
+    }
+
+    /**
+     * @return key of the file of a local song in {@link #hashes} and {@link #paths}.
+     */
+    private static String path(Song song) {
+        return Path.of(song.getFilePath()).toAbsolutePath().toString();
+    }
+
+    /**
+     * Computes the SHA-256 of the audio of an MP3 file: everything but the ID3v2 tags at its start and the ID3v1 and
+     * ID3v2 tags at its end.
+     *
+     * @param file MP3 file.
+     * @return the hash, 32 bytes.
+     * @throws IOException if the file can't be read.
+     */
+    public static byte[] hashAudio(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (FileChannel channel = FileChannel.open(file)) {
+            long size = channel.size();
+            long start = audioStart(channel, size);
+            long end = Math.max(start, audioEnd(channel, start, size));
+            for (long position = start; position < end; position += WINDOW) {
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(WINDOW, end - position));
+                for (int offset = 0; offset < window.limit(); offset += CHUNK) {
+                    ByteBuffer chunk = window.slice(offset, Math.min(CHUNK, window.limit() - offset));
+                    IoScheduler.global().run(IoScheduler.Priority.BACKGROUND, chunk.remaining(), () -> {
+                        digest.update(chunk);
+                        return null;
+                    });
+                }
+            }
+        }
+        return digest.digest();
+    }
+
+    /**
+     * @return the position right after the ID3v2 tags at the start of the file.
+     */
+    private static long audioStart(FileChannel channel, long size) throws IOException {
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(ID3V2_HEADER);
+        while (position + ID3V2_HEADER <= size && read(channel, header, position)
+                && header.get(0) == 'I' && header.get(1) == 'D' && header.get(2) == '3') {
+            boolean footer = (header.get(5) & 0x10) != 0;
+            position += ID3V2_HEADER + syncsafe(header, 6) + (footer ? ID3V2_HEADER : 0);
+        }
+        return Math.min(position, size);
+    }
+
+    /**
+     * @return the position of the first ID3v1 or appended ID3v2 tag at the end of the file, or its size if there is
+     * none.
+     */
+    private static long audioEnd(FileChannel channel, long start, long size) throws IOException {
+        long end = size;
+        ByteBuffer tag = ByteBuffer.allocate(4);
+        if (end - ID3V1_SIZE >= start && read(channel, tag, end - ID3V1_SIZE) && startsWith(tag, "TAG")) {
+            end -= ID3V1_SIZE;
+            if (end - ID3V1_EXTENDED_SIZE >= start && read(channel, tag, end - ID3V1_EXTENDED_SIZE)
+                    && startsWith(tag, "TAG+")) {
+                end -= ID3V1_EXTENDED_SIZE;
+            }
+        }
+        ByteBuffer footer = ByteBuffer.allocate(ID3V2_HEADER);
+        if (end - ID3V2_HEADER >= start && read(channel, footer, end - ID3V2_HEADER)
+                && footer.get(0) == '3' && footer.get(1) == 'D' && footer.get(2) == 'I') {
+            long length = syncsafe(footer, 6) + 2L * ID3V2_HEADER;
+            if (end - length >= start) end -= length;
+        }
+        return end;
+    }
+
+    private static boolean read(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) return false;
+        }
+        return true;
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, String prefix) {
+        byte[] bytes = prefix.getBytes(StandardCharsets.US_ASCII);
+        for (int i = 0; i < bytes.length; i++) if (buffer.get(i) != bytes[i]) return false;
+        return true;
+    }
+
+    /**
+     * Reads the 28 bit "synchsafe" integer of ID3v2 headers, 7 bits per byte.
+     */
+    private static long syncsafe(ByteBuffer buffer, int offset) {
+        long value = 0;
+        for (int i = 0; i < 4; i++) value = (value << 7) | (buffer.get(offset + i) & 0x7F);
+        return value;
+    }
+}
@@ -0,0 +1,84 @@
+package support;
+
+/**
+ * {@link DspStage} mixing the beginning of the next track into the end of the current one.
+ * The crossfade uses equal-power gain curves, so the perceived loudness stays constant while
+ * the tracks overlap. Once the fade is complete the incoming track keeps being mixed in at full
+ * gain until the player hands playback over to it.
+ */
+public class CrossfadeStage implements DspStage {
+    private volatile int durationMs;
+    private volatile PcmSource incoming;
+    private int totalSamples;
+    private int position;
+    private float[] scratch = new float[0];
+
+    /**
+     * @param durationMs length of the crossfade in milliseconds, 0 disables crossfading.
+     */
+    public CrossfadeStage(int durationMs) {
+        setDurationMs(durationMs);
+    }
+
+    public int getDurationMs() {
+        return durationMs;
+    }
+
+    public void setDurationMs(int durationMs) {
+        this.durationMs = Math.max(0, durationMs);
+    }
+
+    /**
+     * Starts mixing the specified source in. Should be called from the playback thread.
+     *
+     * @param source     decoded samples of the incoming track.
+     * @param sampleRate sample rate of both tracks in Hz.
+     * @param channels   number of channels of both tracks.
+     */
+    public void start(PcmSource source, int sampleRate, int channels) {
+        totalSamples = Math.max(1, (int) ((long) durationMs * sampleRate / 1000) * channels);
+        position = 0;
+        incoming = source;
+    }
+
+    /**
+     * Stops mixing the incoming track in, whether the fade is complete or not.
+     */
+    public void stop() {
+        incoming = null;
+    }
+
+    /**
+     * @return True if a crossfade is in progress.
+     */
+    public boolean isRunning() {
+        return incoming != null;
+    }
+
+    @Override
+    public boolean isActive() {
+        return incoming != null;
+    }
+
+    @Override
+    public void process(float[] samples, int length, int channels, int sampleRate) {
+        PcmSource source = incoming;
+        if (source == null) return;
+        if (scratch.length < length) scratch = new float[length];
+
+        int read = 0;
+        while (read < length) {
+            int n = source.read(scratch, read, length - read);
+            if (n < 0) break;
+            read += n;
+        }
+        for (int i = read; i < length; i++) scratch[i] = 0f;
+
+        double from = Math.min(1.0, (double) position / totalSamples) * Math.PI / 2;
+        double to = Math.min(1.0, (double) (position + length) / totalSamples) * Math.PI / 2;
+        VectorOps.mix(samples, scratch, length,
+                (float) Math.cos(from), (float) Math.cos(to),
+                (float) Math.sin(from), (float) Math.sin(to));
+        position += length;
+    }
+}
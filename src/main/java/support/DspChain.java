@@ -0,0 +1,87 @@
+package support;
+
+import java.util.Arrays;
+
+/**
+ * Ordered list of {@link DspStage}s applied to every decoded frame before it is written to the audio device.
+ * Stages may be added or removed from any thread; the playback thread always works on a consistent array of
+ * stages and never takes a lock. The float work buffer is reused between calls and only grows, so a running
+ * stream does not allocate.
+ *
+ * @see DspStage
+ */
+public class DspChain {
+    private volatile DspStage[] stages = new DspStage[0];
+    private float[] work = new float[0];
+
+    /**
+     * Appends the specified stage to the end of the chain.
+     *
+     * @param stage stage to be appended.
+     */
+    public synchronized void add(DspStage stage) {
+        DspStage[] next = Arrays.copyOf(stages, stages.length + 1);
+        next[stages.length] = stage;
+        stages = next;
+    }
+
+    /**
+     * Removes the specified stage from the chain, if present.
+     *
+     * @param stage stage to be removed.
+     */
+    public synchronized void remove(DspStage stage) {
+        stages = Arrays.stream(stages).filter(s -> s != stage).toArray(DspStage[]::new);
+    }
+
+    /**
+     * @return True if at least one stage would modify the samples.
+     */
+    public boolean isActive() {
+        return isActive(stages);
+    }
+
+    private static boolean isActive(DspStage[] stages) {
+        for (DspStage stage : stages) if (stage.isActive()) return true;
+        return false;
+    }
+
+    /**
+     * Runs every active stage over the samples, in place. Should only be called from the playback thread.
+     *
+     * @param pcm        interleaved 16-bit samples, as returned by {@code SampleBuffer.getBuffer()}.
+     * @param length     number of valid samples.
+     * @param channels   number of interleaved channels.
+     * @param sampleRate sample rate in Hz.
+     */
+    public void process(short[] pcm, int length, int channels, int sampleRate) {
+        DspStage[] current = stages;
+        if (!isActive(current)) return;
+        if (work.length < length) work = new float[length];
+
+        VectorOps.toFloat(pcm, work, length);
+        for (DspStage stage : current) {
+            if (stage.isActive()) stage.process(work, length, channels, sampleRate);
+        }
+        VectorOps.toShort(work, pcm, length);
+    }
+
+    /**
+     * Runs every active stage over the float samples of a decoded frame, in place. Unlike
+     * {@link #process(short[], int, int, int)} the samples are not converted to floats and back, and keep the
+     * precision of the synthesis filter until the device reads them. Should only be called from the playback thread.
+     *
+     * @param frame      frame decoded by a {@link FloatDecoder}.
+     * @param channels   number of interleaved channels.
+     * @param sampleRate sample rate in Hz.
+     */
+    public void process(FloatSampleBuffer frame, int channels, int sampleRate) {
+        DspStage[] current = stages;
+        if (!isActive(current)) return;
+        float[] samples = frame.getSamples();
+        int length = frame.getBufferLength();
+        for (DspStage stage : current) {
+            if (stage.isActive()) stage.process(samples, length, channels, sampleRate);
+        }
+    }
+}
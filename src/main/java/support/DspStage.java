@@ -0,0 +1,28 @@
+package support;
+
+/**
+ * A processing step of a {@link DspChain}. Stages run on the playback thread, between the decoder and the
+ * audio device, so {@link #process} must work in place and must not allocate or block.
+ *
+ * @see DspChain
+ */
+public interface DspStage {
+
+    /**
+     * Processes a block of interleaved samples in place. Samples are floats in the 16-bit range
+     * (-32768 to 32767), as produced by the decoder.
+     *
+     * @param samples    interleaved samples.
+     * @param length     number of valid samples in the array.
+     * @param channels   number of interleaved channels.
+     * @param sampleRate sample rate in Hz.
+     */
+    void process(float[] samples, int length, int channels, int sampleRate);
+
+    /**
+     * @return False if the stage would leave the samples untouched, so the chain may skip it.
+     */
+    default boolean isActive() {
+        return true;
+    }
+}
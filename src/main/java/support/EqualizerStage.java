@@ -0,0 +1,148 @@
+package support;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Simple parametric equalizer made of peaking biquad filters, one per band. Coefficients follow the
+ * RBJ audio EQ cookbook and are recomputed on the playback thread only when the bands or the sample
+ * rate change.<br>
+ * Bands can be parsed from a string such as {@code "100:4:0.7,3000:-2:1"}, where each band is
+ * {@code frequency:gain:q}, with the frequency in Hz and the gain in decibels.
+ */
+public class EqualizerStage implements DspStage {
+
+    /**
+     * A single peaking band.
+     */
+    public static final class Band {
+        private final float frequency;
+        private final float gainDb;
+        private final float q;
+
+        /**
+         * @param frequency center frequency in Hz.
+         * @param gainDb    gain at the center frequency in decibels.
+         * @param q         quality factor, higher values give a narrower band.
+         */
+        public Band(float frequency, float gainDb, float q) {
+            this.frequency = frequency;
+            this.gainDb = gainDb;
+            this.q = q;
+        }
+
+        public float getFrequency() {
+            return frequency;
+        }
+
+        public float getGainDb() {
+            return gainDb;
+        }
+
+        public float getQ() {
+            return q;
+        }
+    }
+
+    private volatile Band[] bands = new Band[0];
+
+    // Playback thread only.
+    private Band[] configured;
+    private int configuredRate;
+    private int configuredChannels;
+    private float[] coefficients = new float[0];
+    private float[] state = new float[0];
+
+    /**
+     * Parses bands in the format {@code frequency:gain:q}, separated by commas.
+     * Malformed bands are ignored.
+     *
+     * @param spec band specification, may be null or empty.
+     * @return parsed bands.
+     */
+    public static Band[] parseBands(String spec) {
+        if (spec == null || spec.isBlank()) return new Band[0];
+        return Arrays.stream(spec.split(","))
+                .map(s -> s.trim().split(":"))
+                .filter(p -> p.length == 3)
+                .map(p -> {
+                    try {
+                        return new Band(Float.parseFloat(p[0]), Float.parseFloat(p[1]), Float.parseFloat(p[2]));
+                    } catch (NumberFormatException e) {
+                        return null;
+                    }
+                })
+                .filter(Objects::nonNull)
+                .filter(b -> b.frequency > 0 && b.q > 0)
+                .toArray(Band[]::new);
+    }
+
+    /**
+     * Replaces the bands of the equalizer. Takes effect on the next processed block.
+     *
+     * @param bands new bands, an empty array disables the equalizer.
+     */
+    public void setBands(Band[] bands) {
+        this.bands = bands.clone();
+    }
+
+    public Band[] getBands() {
+        return bands.clone();
+    }
+
+    @Override
+    public boolean isActive() {
+        return bands.length > 0;
+    }
+
+    @Override
+    public void process(float[] samples, int length, int channels, int sampleRate) {
+        Band[] current = bands;
+        if (current != configured || sampleRate != configuredRate || channels != configuredChannels) {
+            configure(current, sampleRate, channels);
+        }
+
+        for (int b = 0; b < current.length; b++) {
+            float b0 = coefficients[b * 5];
+            float b1 = coefficients[b * 5 + 1];
+            float b2 = coefficients[b * 5 + 2];
+            float a1 = coefficients[b * 5 + 3];
+            float a2 = coefficients[b * 5 + 4];
+            for (int c = 0; c < channels; c++) {
+                int s = (b * channels + c) * 2;
+                float z1 = state[s];
+                float z2 = state[s + 1];
+                for (int i = c; i < length; i += channels) {
+                    float in = samples[i];
+                    float out = b0 * in + z1;
+                    z1 = b1 * in - a1 * out + z2;
+                    z2 = b2 * in - a2 * out;
+                    samples[i] = out;
+                }
+                state[s] = z1;
+                state[s + 1] = z2;
+            }
+        }
+    }
+
+    private void configure(Band[] current, int sampleRate, int channels) {
+        coefficients = new float[current.length * 5];
+        state = new float[current.length * channels * 2];
+        for (int b = 0; b < current.length; b++) {
+            Band band = current[b];
+            double a = Math.pow(10, band.gainDb / 40);
+            double w0 = 2 * Math.PI * Math.min(band.frequency, sampleRate * 0.49) / sampleRate;
+            double alpha = Math.sin(w0) / (2 * band.q);
+            double cos = Math.cos(w0);
+            double a0 = 1 + alpha / a;
+            coefficients[b * 5] = (float) ((1 + alpha * a) / a0);
+            coefficients[b * 5 + 1] = (float) ((-2 * cos) / a0);
+            coefficients[b * 5 + 2] = (float) ((1 - alpha * a) / a0);
+            coefficients[b * 5 + 3] = (float) ((-2 * cos) / a0);
+            coefficients[b * 5 + 4] = (float) ((1 - alpha / a) / a0);
+        }
+        configured = current;
+        configuredRate = sampleRate;
+        configuredChannels = channels;
+    }
+}
@@ -0,0 +1,162 @@
+package support;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntPredicate;
+
+/**
+ * Feature vectors of tracks in a direct buffer outside the heap, searched for the nearest neighbours of a vector.
+ * The matrix is stored column by column: all the values of the first feature, then all the values of the second
+ * one, and so on, so a search reads each feature of a block of rows as one contiguous run and computes the
+ * distances of the whole block with {@link VectorOps}, a row per lane. A million rows of four features take 16 MB
+ * and are scanned in a few milliseconds.<br>
+ * Rows are reused once removed, and the buffer doubles when full. Thread safe: every method locks the matrix.
+ */
+public final class FeatureMatrix {
+    /**
+     * Rows whose distances are computed at once, small enough for their values and distances to stay in cache.
+     */
+    private static final int BLOCK = 4096;
+
+    private final int dimensions;
+    private FloatBuffer data;
+    private int capacity;
+    /**
+     * Rows used so far, removed ones included.
+     */
+    private int rows;
+    private final BitSet removed = new BitSet();
+
+    /**
+     * @param dimensions number of features of each row.
+     * @param capacity   number of rows allocated at first.
+     */
+    public FeatureMatrix(int dimensions, int capacity) {
+        this.dimensions = dimensions;
+        this.capacity = Math.max(1, capacity);
+        this.data = allocate(dimensions, this.capacity);
+    }
+
+    private static FloatBuffer allocate(int dimensions, int capacity) {
+        return ByteBuffer.allocateDirect(dimensions * capacity * Float.BYTES).order(ByteOrder.nativeOrder())
+                .asFloatBuffer();
+    }
+
+    /**
+     * Stores a vector in a free row.
+     *
+     * @param features values of the features, {@code dimensions} of them.
+     * @return the row of the vector.
+     */
+    public synchronized int add(float[] features) {
+        int row = removed.nextSetBit(0);
+        if (row >= 0) {
+            removed.clear(row);
+        } else {
+            if (rows == capacity) grow();
+            row = rows++;
+        }
+        for (int d = 0; d < dimensions; d++) data.put(d * capacity + row, features[d]);
+        return row;
+    }
+
+    /**
+     * Frees a row, which searches skip until it is reused.
+     */
+    public synchronized void remove(int row) {
+        if (row < rows) removed.set(row);
+    }
+
+    /**
+     * @return a copy of the vector stored in the row.
+     */
+    public synchronized float[] get(int row) {
+        float[] features = new float[dimensions];
+        for (int d = 0; d < dimensions; d++) features[d] = data.get(d * capacity + row);
+        return features;
+    }
+
+    /**
+     * @return the number of rows holding a vector.
+     */
+    public synchronized int size() {
+        return rows - removed.cardinality();
+    }
+
+    /**
+     * @return the memory taken by the buffer, in bytes.
+     */
+    public synchronized long getMemoryBytes() {
+        return (long) dimensions * capacity * Float.BYTES;
+    }
+
+    /**
+     * Removes every row and shrinks the buffer back to {@code capacity} rows.
+     */
+    public synchronized void clear(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        data = allocate(dimensions, this.capacity);
+        rows = 0;
+        removed.clear();
+    }
+
+    /**
+     * Finds the rows nearest to a vector, by weighted squared Euclidean distance.
+     *
+     * @param query   vector searched for.
+     * @param weights weight of each feature.
+     * @param count   maximum number of rows to return.
+     * @param accept  tells if a row may be returned; only called for rows nearer than the ones found so far.
+     * @return the rows found, nearest first.
+     */
+    public synchronized int[] nearest(float[] query, float[] weights, int count, IntPredicate accept) {
+        int[] best = new int[count];
+        float[] bestDistances = new float[count];
+        Arrays.fill(bestDistances, Float.POSITIVE_INFINITY);
+        int found = 0;
+        float[] values = new float[Math.min(BLOCK, rows)];
+        float[] distances = new float[values.length];
+        for (int start = 0; start < rows && count > 0; start += BLOCK) {
+            int length = Math.min(BLOCK, rows - start);
+            Arrays.fill(distances, 0, length, 0f);
+            for (int d = 0; d < dimensions; d++) {
+                data.get(d * capacity + start, values, 0, length);
+                VectorOps.accumulateDistance(values, length, query[d], weights[d], distances);
+            }
+            float worst = bestDistances[count - 1];
+            for (int i = 0; i < length; i++) {
+                float distance = distances[i];
+                if (distance >= worst) continue;
+                int row = start + i;
+                if (removed.get(row) || !accept.test(row)) continue;
+                // Insertion into the few best rows found so far, kept sorted.
+                int position = Math.min(found, count - 1);
+                while (position > 0 && bestDistances[position - 1] > distance) {
+                    bestDistances[position] = bestDistances[position - 1];
+                    best[position] = best[position - 1];
+                    position--;
+                }
+                bestDistances[position] = distance;
+                best[position] = row;
+                found = Math.min(found + 1, count);
+                worst = bestDistances[count - 1];
+            }
+        }
+        return Arrays.copyOf(best, found);
+    }
+
+    private void grow() {
+        int grown = capacity * 2;
+        FloatBuffer bigger = allocate(dimensions, grown);
+        float[] column = new float[rows];
+        for (int d = 0; d < dimensions; d++) {
+            data.get(d * capacity, column, 0, rows);
+            bigger.put(d * grown, column, 0, rows);
+        }
+        data = bigger;
+        capacity = grown;
+    }
+}
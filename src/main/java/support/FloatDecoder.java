@@ -0,0 +1,74 @@
+package support;
+
+import javazoom.jl.decoder.*;
+
+/**
+ * {@link Decoder} writing to a {@link FloatSampleBuffer}, created from the header of the first frame. Frames it
+ * decodes can be passed to {@link DspChain#process(FloatSampleBuffer, int, int)} without converting them to floats
+ * first.<br>
+ * Layer III frames are decoded by {@link Layer3Decoder}, which produces the same samples as JLayer's decoder several
+ * times faster.
+ */
+public class FloatDecoder extends Decoder {
+    private FloatSampleBuffer output;
+    private Layer3Decoder layer3;
+    /**
+     * Stream {@link #layer3} reads its frames from.
+     */
+    private Bitstream layer3Stream;
+    private final int presumedFrequency;
+    private final int presumedChannels;
+
+    public FloatDecoder() {
+        this(0, 0);
+    }
+
+    /**
+     * Creates a decoder that reports the specified format until it decodes its first frame, so an audio device can
+     * be opened for a track before its file is, as when it starts from an {@link IntroCache.Intro}.
+     *
+     * @param frequency sample rate of the track in Hz.
+     * @param channels  number of channels of the track.
+     */
+    public FloatDecoder(int frequency, int channels) {
+        this.presumedFrequency = frequency;
+        this.presumedChannels = channels;
+    }
+
+    @Override
+    public int getOutputFrequency() {
+        int frequency = super.getOutputFrequency();
+        return frequency == 0 ? presumedFrequency : frequency;
+    }
+
+    @Override
+    public int getOutputChannels() {
+        int channels = super.getOutputChannels();
+        return channels == 0 ? presumedChannels : channels;
+    }
+
+    /**
+     * @return the samples of the frame, in a buffer reused by the next call.
+     */
+    @Override
+    public FloatSampleBuffer decodeFrame(Header header, Bitstream stream) throws DecoderException {
+        if (output == null) {
+            output = new FloatSampleBuffer(header.frequency(), header.mode() == Header.SINGLE_CHANNEL ? 1 : 2);
+            setOutputBuffer(output);
+        }
+        super.decodeFrame(header, stream);
+        return output;
+    }
+
+    @Override
+    protected FrameDecoder retrieveDecoder(Header header, Bitstream stream, int layer) throws DecoderException {
+        if (layer != 3) return super.retrieveDecoder(header, stream, layer);
+        // A stream reopened at another frame, as seeks do, gets a decoder of its own, since the decoder reads the
+        // frames from the stream it was created with.
+        if (layer3 == null || layer3Stream != stream) {
+            layer3 = new Layer3Decoder(stream, header, output);
+            layer3Stream = stream;
+        }
+        return layer3;
+    }
+}
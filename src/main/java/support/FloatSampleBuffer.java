@@ -0,0 +1,81 @@
+package support;
+
+import javazoom.jl.decoder.SampleBuffer;
+
+/**
+ * {@link SampleBuffer} that keeps the samples of the synthesis filter as floats. JLayer's buffer clips and
+ * truncates every sample to 16 bits as the filter produces it, so a {@link DspChain} with active stages had to
+ * convert the frame back to floats and then to 16 bits again. This buffer stores the filter output as is: the DSP
+ * stages run on {@link #getSamples()} directly and the frame is converted to 16 bits once, when
+ * {@link #getBuffer()} is first called after decoding it.<br>
+ * Samples are clipped to the full 16-bit range by {@link VectorOps#toShort}, so without DSP they are the
+ * same as the ones of {@link SampleBuffer}, bit for bit, except for -32768 where JLayer stops at -32767. Nothing
+ * is allocated after construction. This class is NOT THREAD SAFE!
+ *
+ * @see FloatDecoder
+ */
+public class FloatSampleBuffer extends SampleBuffer {
+    private final float[] samples = new float[OBUFFERSIZE];
+    private final short[] pcm = new short[OBUFFERSIZE];
+    private final int[] positions;
+    private final int channels;
+    private boolean converted;
+
+    /**
+     * @param sampleFrequency sample rate in Hz.
+     * @param channels        number of interleaved channels, 1 or 2.
+     */
+    public FloatSampleBuffer(int sampleFrequency, int channels) {
+        super(sampleFrequency, channels);
+        this.channels = channels;
+        this.positions = new int[channels];
+        clear_buffer();
+    }
+
+    @Override
+    public void appendSamples(int channel, float[] f) {
+        int position = positions[channel];
+        for (int i = 0; i < 32; i++, position += channels) samples[position] = f[i];
+        positions[channel] = position;
+        converted = false;
+    }
+
+    @Override
+    public void append(int channel, short value) {
+        samples[positions[channel]] = value;
+        positions[channel] += channels;
+        converted = false;
+    }
+
+    @Override
+    public void clear_buffer() {
+        for (int i = 0; i < channels; i++) positions[i] = i;
+        converted = false;
+    }
+
+    /**
+     * @return the samples of the last frame as floats in the 16-bit range, interleaved. Changes to the samples are
+     * seen by the next call to {@link #getBuffer()}.
+     */
+    public float[] getSamples() {
+        converted = false;
+        return samples;
+    }
+
+    /**
+     * @return the samples of the last frame, clipped and truncated to 16 bits.
+     */
+    @Override
+    public short[] getBuffer() {
+        if (!converted) {
+            VectorOps.toShort(samples, pcm, getBufferLength());
+            converted = true;
+        }
+        return pcm;
+    }
+
+    @Override
+    public int getBufferLength() {
+        return positions[0];
+    }
+}
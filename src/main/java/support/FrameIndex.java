@@ -0,0 +1,219 @@
+package support;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Byte offset of every MPEG audio frame of a file, so the player can jump to any frame by opening the file at
+ * the right position instead of reading every frame before it. The index is built by walking the frame headers
+ * of a memory-mapped file, which only touches four bytes per frame and decodes nothing. Remote songs are not
+ * downloaded for it: their frames are assumed to be the same size, so the offsets are estimated from the size of
+ * the file, and a stream opened at an estimated offset is moved on to the next frame header. The index of a remote
+ * song of unknown size is empty, so seeks in it read forward.
+ * Instances are immutable.
+ */
+public final class FrameIndex {
+    private static final int[][] BITRATES_V1 = {
+            {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320}};
+    private static final int[][] BITRATES_V2 = {
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160}};
+    private static final int[][] SAMPLE_RATES = {{11025, 12000, 8000}, {0, 0, 0}, {22050, 24000, 16000}, {44100, 48000, 32000}};
+    /**
+     * Bytes searched for a frame header after an estimated offset: two of the longest frames, a Layer II frame at
+     * 384 kbps and 32 kHz, and the header after them.
+     */
+    private static final int SYNC_WINDOW = 2 * 1729 + 4;
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "frame-index");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final int[] offsets;
+    private final boolean estimated;
+
+    private FrameIndex(int[] offsets, boolean estimated) {
+        this.offsets = offsets;
+        this.estimated = estimated;
+    }
+
+    /**
+     * Builds the index of the specified song in the background.
+     *
+     * @param song song to be indexed.
+     * @return a future completed with the index.
+     */
+    public static CompletableFuture<FrameIndex> scanAsync(Song song) {
+        if (song.isRemote()) return CompletableFuture.completedFuture(estimate(song));
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return scan(Path.of(song.getFilePath()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, EXECUTOR);
+    }
+
+    /**
+     * Estimates the offsets of the frames of a song without reading it, as if all its frames were the same size.
+     *
+     * @return the estimated index, empty if the size of the file or its number of frames is unknown.
+     */
+    static FrameIndex estimate(Song song) {
+        int frames = song.getNumFrames();
+        long size = song.getFileSize();
+        if (frames <= 0 || size <= 0) return new FrameIndex(new int[0], true);
+        int[] offsets = new int[frames];
+        for (int i = 0; i < frames; i++) offsets[i] = (int) (i * size / frames);
+        return new FrameIndex(offsets, true);
+    }
+
+    /**
+     * Builds the index of the specified file.
+     *
+     * @param file MPEG audio file.
+     * @return the index of the frames found in the file.
+     * @throws IOException if the file could not be read.
+     */
+    public static FrameIndex scan(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            return IoScheduler.global().run(IoScheduler.Priority.INTERACTIVE, size,
+                    () -> scan(channel.map(FileChannel.MapMode.READ_ONLY, 0, size)));
+        }
+    }
+
+    /**
+     * Builds the index of the frames of a whole file held in a buffer.
+     */
+    private static FrameIndex scan(ByteBuffer buffer) {
+        int limit = buffer.limit();
+        int[] offsets = new int[1024];
+        int count = 0;
+        int position = id3v2Size(buffer);
+        while (position + 4 <= limit) {
+            int length = frameAt(buffer, position);
+            if (length < 0) {
+                position++;
+                continue;
+            }
+            if (count == offsets.length) offsets = Arrays.copyOf(offsets, count * 2);
+            offsets[count++] = position;
+            position += length;
+        }
+        return new FrameIndex(Arrays.copyOf(offsets, count), false);
+    }
+
+    /**
+     * @return length of the frame starting at the position, or -1 if there is no header there or it is not
+     * followed by another one. A header too close to the limit to be followed by another one is taken as a frame.
+     */
+    private static int frameAt(ByteBuffer buffer, int position) {
+        int length = frameLength(buffer.getInt(position));
+        if (length < 0 || position + length + 4 > buffer.limit()) return length;
+        return frameLength(buffer.getInt(position + length)) > 0 ? length : -1;
+    }
+
+    /**
+     * @return size of the ID3v2 tag at the start of the buffer, or 0 if there is none.
+     */
+    private static int id3v2Size(ByteBuffer buffer) {
+        if (buffer.limit() < 10 || buffer.get(0) != 'I' || buffer.get(1) != 'D' || buffer.get(2) != '3') return 0;
+        int size = (buffer.get(6) & 0x7F) << 21 | (buffer.get(7) & 0x7F) << 14
+                | (buffer.get(8) & 0x7F) << 7 | (buffer.get(9) & 0x7F);
+        boolean footer = (buffer.get(5) & 0x10) != 0;
+        return 10 + size + (footer ? 10 : 0);
+    }
+
+    /**
+     * @param header the four header bytes of a frame, big endian.
+     * @return length of the frame in bytes including the header, or -1 if the bytes are not a valid header.
+     */
+    static int frameLength(int header) {
+        if ((header & 0xFFE00000) != 0xFFE00000) return -1;
+        int version = (header >>> 19) & 3;
+        int layer = 4 - ((header >>> 17) & 3);
+        int bitrateIndex = (header >>> 12) & 0xF;
+        int rateIndex = (header >>> 10) & 3;
+        int padding = (header >>> 9) & 1;
+        if (version == 1 || layer == 4 || bitrateIndex == 0 || bitrateIndex == 15 || rateIndex == 3) return -1;
+
+        int bitrate = (version == 3 ? BITRATES_V1 : BITRATES_V2)[layer - 1][bitrateIndex] * 1000;
+        int sampleRate = SAMPLE_RATES[version][rateIndex];
+        if (layer == 1) return (12 * bitrate / sampleRate + padding) * 4;
+        if (layer == 3 && version != 3) return 72 * bitrate / sampleRate + padding;
+        return 144 * bitrate / sampleRate + padding;
+    }
+
+    /**
+     * @return number of frames in the file.
+     */
+    public int size() {
+        return offsets.length;
+    }
+
+    /**
+     * @param frame index of the frame.
+     * @return byte offset of the frame header in the file, or an estimate of it, see {@link #isEstimated()}.
+     */
+    public int offset(int frame) {
+        return offsets[frame];
+    }
+
+    /**
+     * @return True if the offsets are estimates, which only {@link #open(Song, int)} can start reading at.
+     */
+    public boolean isEstimated() {
+        return estimated;
+    }
+
+    /**
+     * Opens the file of the song at a frame.
+     *
+     * @param song  song this index was built for.
+     * @param frame index of the frame.
+     * @return a stream starting at the frame, or at the first frame after the estimated offset of the frame.
+     * @throws IOException if the file could not be opened.
+     */
+    public BufferedInputStream open(Song song, int frame) throws IOException {
+        BufferedInputStream in = song.getBufferedInputStream(offsets[frame]);
+        if (!estimated) return in;
+        try {
+            skipToHeader(in);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return in;
+    }
+
+    /**
+     * Skips to the first frame header followed by another one. Leaves the stream where it was if there is none
+     * within {@link #SYNC_WINDOW} bytes.
+     */
+    private static void skipToHeader(BufferedInputStream in) throws IOException {
+        in.mark(SYNC_WINDOW);
+        ByteBuffer window = ByteBuffer.wrap(in.readNBytes(SYNC_WINDOW));
+        in.reset();
+        for (int position = 0; position + 4 <= window.limit(); position++) {
+            if (frameAt(window, position) > 0) {
+                in.skipNBytes(position);
+                return;
+            }
+        }
+    }
+}
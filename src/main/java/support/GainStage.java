@@ -0,0 +1,49 @@
+package support;
+
+/**
+ * {@link DspStage} applying the output volume and the ReplayGain adjustment of the current track.
+ * Gain changes are ramped over one block so they never click.
+ */
+public class GainStage implements DspStage {
+    private volatile float volume = 1f;
+    private volatile float replayGainDb;
+    private float applied = 1f;
+
+    /**
+     * @param volume linear volume, from 0 (mute) to 1 (unchanged).
+     */
+    public void setVolume(float volume) {
+        this.volume = Math.max(0f, Math.min(1f, volume));
+    }
+
+    public float getVolume() {
+        return volume;
+    }
+
+    /**
+     * @param replayGainDb ReplayGain adjustment of the current track in decibels, 0 for none.
+     */
+    public void setReplayGain(float replayGainDb) {
+        this.replayGainDb = replayGainDb;
+    }
+
+    public float getReplayGain() {
+        return replayGainDb;
+    }
+
+    private float target() {
+        return volume * (float) Math.pow(10, replayGainDb / 20);
+    }
+
+    @Override
+    public boolean isActive() {
+        return applied != 1f || target() != 1f;
+    }
+
+    @Override
+    public void process(float[] samples, int length, int channels, int sampleRate) {
+        float target = target();
+        VectorOps.ramp(samples, length, applied, target);
+        applied = target;
+    }
+}
@@ -0,0 +1,488 @@
+package support;
+
+import javazoom.jl.decoder.Bitstream;
+import javazoom.jl.decoder.BitstreamException;
+import javazoom.jl.decoder.Header;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.Cleaner;
+import java.lang.ref.WeakReference;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link InputStream} of a remote file, downloaded over HTTP in the background into a jitter buffer. Reads are
+ * served from the buffer and only wait when it is empty, so a slow or stalled connection never holds the decoder
+ * as long as there is buffered audio. Reading starts, and resumes after the buffer ran dry, once
+ * {@code player.stream.prebufferKb} KiB are buffered (default 64); the buffer holds up to
+ * {@code player.stream.bufferKb} KiB (default 1024), and the download waits for room beyond that.<br>
+ * The stream can start at any byte of the file with an HTTP range request. When the connection fails, is closed
+ * before the end of the file or sends nothing for {@code player.stream.timeoutMs} ms (default 5000), the download
+ * is resumed where it stopped with another range request, up to {@code player.stream.retries} times in a row
+ * (default 5) with an increasing delay. The audio buffered meanwhile
+ * keeps playing, so a reconnect that takes less time than the buffer holds is not heard. Servers ignoring range
+ * requests are supported by skipping the bytes before the requested position.<br>
+ * Rebuffering and reconnects are counted in {@link PlaybackMetrics}.<br>
+ * The connection and the watchdog only hold the stream weakly, so a stream abandoned without being closed is
+ * collected and releases both.
+ */
+public class HttpStream extends InputStream {
+    private static final int BUFFER_BYTES = Integer.getInteger("player.stream.bufferKb", 1024) * 1024;
+    private static final int PREBUFFER_BYTES = Math.min(BUFFER_BYTES,
+            Integer.getInteger("player.stream.prebufferKb", 64) * 1024);
+    private static final int RETRIES = Integer.getInteger("player.stream.retries", 5);
+    private static final long STALL_NS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("player.stream.timeoutMs", 5000));
+    private static final long FIRST_RETRY_MS = 250;
+    private static final long MAX_RETRY_MS = 4000;
+
+    private static final HttpClient CLIENT = HttpClient.newBuilder()
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .connectTimeout(Duration.ofSeconds(5))
+            .executor(Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "http-stream");
+                t.setDaemon(true);
+                return t;
+            }))
+            .build();
+    private static final ScheduledExecutorService RETRY = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "http-stream-retry");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final URI uri;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition readable = lock.newCondition();
+
+    // Guarded by lock.
+    private final byte[] buffer = new byte[BUFFER_BYTES];
+    private int readPosition;
+    private int count;
+    /**
+     * Data received that did not fit in the buffer yet. The download is paused until it does.
+     */
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+    /**
+     * Position in the file of the next byte to be received.
+     */
+    private long position;
+    /**
+     * Bytes of the response to be discarded, when the server ignored the range request.
+     */
+    private long skip;
+    /**
+     * Length of the file, or -1 until known.
+     */
+    private long length = -1;
+    private boolean buffering = true;
+    private boolean started;
+    private boolean complete;
+    private boolean closed;
+    private IOException failure;
+    /**
+     * Number of the current connection; callbacks of earlier connections are ignored.
+     */
+    private int connection;
+    private int attempts;
+    private final Resources resources = new Resources();
+    private final Cleaner.Cleanable cleanable;
+    private boolean requested;
+    /**
+     * Time data was last asked for and has not arrived since, as returned by {@link System#nanoTime()}, or 0.
+     */
+    private long waitingSince;
+
+    /**
+     * What is released when the stream is closed or collected. Holds nothing of the stream.
+     */
+    private static final class Resources implements Runnable {
+        /**
+         * Subscription of the current connection, or null between connections. Written while holding the lock
+         * of the stream.
+         */
+        volatile Flow.Subscription subscription;
+        volatile ScheduledFuture<?> watchdog;
+
+        @Override
+        public void run() {
+            watchdog.cancel(false);
+            Flow.Subscription current = subscription;
+            subscription = null;
+            if (current != null) current.cancel();
+        }
+    }
+
+    /**
+     * Starts downloading the file in the background. Never blocks: connection errors are thrown by the reads.
+     *
+     * @param uri    URL of the file.
+     * @param offset position in the file of the first byte to be read.
+     */
+    public HttpStream(URI uri, long offset) {
+        this.uri = uri;
+        this.position = Math.max(0, offset);
+        WeakReference<HttpStream> self = new WeakReference<>(this);
+        resources.watchdog = RETRY.scheduleWithFixedDelay(() -> {
+            HttpStream stream = self.get();
+            if (stream != null) stream.checkStalled();
+        }, 1, 1, TimeUnit.SECONDS);
+        cleanable = CLEANER.register(this, resources);
+        connect();
+    }
+
+    private void connect() {
+        WeakReference<HttpStream> self = new WeakReference<>(this);
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri).GET();
+        int id;
+        lock.lock();
+        try {
+            if (closed || complete) return;
+            id = ++connection;
+            waitingSince = System.nanoTime();
+            if (position > 0) request.header("Range", "bytes=" + position + "-");
+        } finally {
+            lock.unlock();
+        }
+        CLIENT.sendAsync(request.build(), info -> {
+            HttpStream stream = self.get();
+            return stream == null ? HttpResponse.BodySubscribers.discarding() : stream.body(info, id, self);
+        }).whenComplete((response, e) -> {
+            HttpStream stream = self.get();
+            if (e != null && stream != null) stream.retry(id, e);
+        });
+    }
+
+    /**
+     * Checks the status of a response and returns the subscriber its body is written to.
+     */
+    private HttpResponse.BodySubscriber<Void> body(HttpResponse.ResponseInfo info, int id,
+                                                   WeakReference<HttpStream> self) {
+        int status = info.statusCode();
+        lock.lock();
+        try {
+            if (id != connection) return HttpResponse.BodySubscribers.discarding();
+            if (status == 206) {
+                String range = info.headers().firstValue("Content-Range").orElse("");
+                int slash = range.lastIndexOf('/');
+                if (slash >= 0 && !range.endsWith("*")) length = Long.parseLong(range.substring(slash + 1).strip());
+                skip = 0;
+            } else if (status == 200) {
+                info.headers().firstValueAsLong("Content-Length").ifPresent(value -> length = value);
+                skip = position;        // the server ignored the range
+            } else if (status == 416) {
+                complete = true;        // nothing left after the position
+                resources.watchdog.cancel(false);
+                readable.signalAll();
+                return HttpResponse.BodySubscribers.discarding();
+            } else if (status < 500) {
+                fail(new IOException("HTTP " + status + " for " + uri));
+                return HttpResponse.BodySubscribers.discarding();
+            } else {
+                RETRY.execute(() -> retry(id, new IOException("HTTP " + status + " for " + uri)));
+                return HttpResponse.BodySubscribers.discarding();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return HttpResponse.BodySubscribers.fromSubscriber(new Receiver(self, id));
+    }
+
+    /**
+     * Receives the body of one connection, one list of buffers at a time. Cancels the connection once the stream
+     * was collected.
+     */
+    private static final class Receiver implements Flow.Subscriber<List<ByteBuffer>> {
+        private final WeakReference<HttpStream> stream;
+        private final int id;
+        private Flow.Subscription subscription;
+
+        Receiver(WeakReference<HttpStream> stream, int id) {
+            this.stream = stream;
+            this.id = id;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            HttpStream current = stream.get();
+            if (current == null) subscription.cancel();
+            else current.subscribed(id, subscription);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> items) {
+            HttpStream current = stream.get();
+            if (current == null) subscription.cancel();
+            else current.received(id, items);
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            HttpStream current = stream.get();
+            if (current != null) current.retry(id, e);
+        }
+
+        @Override
+        public void onComplete() {
+            HttpStream current = stream.get();
+            if (current != null) current.completed(id);
+        }
+    }
+
+    private void subscribed(int id, Flow.Subscription subscription) {
+        lock.lock();
+        try {
+            if (id != connection || closed) {
+                subscription.cancel();
+                return;
+            }
+            resources.subscription = subscription;
+            requested = false;
+        } finally {
+            lock.unlock();
+        }
+        requestMore();
+    }
+
+    private void received(int id, List<ByteBuffer> items) {
+        lock.lock();
+        try {
+            if (id != connection) return;
+            requested = false;
+            waitingSince = 0;
+            attempts = 0;
+            for (ByteBuffer item : items) {
+                int discard = (int) Math.min(skip, item.remaining());
+                item.position(item.position() + discard);
+                skip -= discard;
+                position += item.remaining();
+                if (item.hasRemaining()) pending.add(item);
+            }
+            fill();
+        } finally {
+            lock.unlock();
+        }
+        requestMore();
+    }
+
+    private void completed(int id) {
+        lock.lock();
+        try {
+            if (id != connection) return;
+            resources.subscription = null;
+            if (length < 0 || position >= length) {
+                complete = true;
+                resources.watchdog.cancel(false);
+                readable.signalAll();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        retry(id, new EOFException("Connection closed at byte " + position + " of " + uri));
+    }
+
+    /**
+     * Moves received data into the buffer, as far as there is room. Should be called while holding the lock.
+     */
+    private void fill() {
+        while (!pending.isEmpty() && count < buffer.length) {
+            ByteBuffer item = pending.peek();
+            int writePosition = (readPosition + count) % buffer.length;
+            int n = Math.min(item.remaining(), Math.min(buffer.length - count, buffer.length - writePosition));
+            item.get(buffer, writePosition, n);
+            count += n;
+            if (!item.hasRemaining()) pending.poll();
+        }
+        if (buffering && (count >= PREBUFFER_BYTES || count == buffer.length)) buffering = false;
+        readable.signalAll();
+    }
+
+    /**
+     * Asks the connection for more data once everything received fit in the buffer. Called without holding the
+     * lock, since the connection may deliver the data right away on the calling thread.
+     */
+    private void requestMore() {
+        Flow.Subscription next;
+        lock.lock();
+        try {
+            if (requested || resources.subscription == null || !pending.isEmpty() || count == buffer.length) return;
+            requested = true;
+            waitingSince = System.nanoTime();
+            next = resources.subscription;
+        } finally {
+            lock.unlock();
+        }
+        next.request(1);
+    }
+
+    /**
+     * Reconnects after connection {@code id} failed, or fails the stream once the retries are exhausted.
+     */
+    private void retry(int id, Throwable cause) {
+        long delay = -1;
+        Flow.Subscription failed;
+        lock.lock();
+        try {
+            if (id != connection || closed || complete) return;
+            failed = resources.subscription;
+            resources.subscription = null;
+            waitingSince = 0;
+            connection++;       // ignores anything else the failed connection delivers
+            if (++attempts > RETRIES) fail(new IOException("Could not read " + uri, cause));
+            else delay = Math.min(MAX_RETRY_MS, FIRST_RETRY_MS << (attempts - 1));
+        } finally {
+            lock.unlock();
+        }
+        if (failed != null) failed.cancel();
+        if (delay < 0) return;
+        PlaybackMetrics.global().streamReconnected();
+        RETRY.schedule(this::connect, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reconnects if the data asked for did not arrive within the timeout.
+     */
+    private void checkStalled() {
+        int id;
+        lock.lock();
+        try {
+            if (waitingSince == 0 || System.nanoTime() - waitingSince < STALL_NS) return;
+            id = connection;
+        } finally {
+            lock.unlock();
+        }
+        retry(id, new IOException("No data from " + uri + " for " + TimeUnit.NANOSECONDS.toMillis(STALL_NS) + " ms"));
+    }
+
+    /**
+     * Should be called while holding the lock.
+     */
+    private void fail(IOException e) {
+        failure = e;
+        resources.watchdog.cancel(false);
+        readable.signalAll();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        int n;
+        lock.lock();
+        try {
+            while (true) {
+                if (closed) throw new IOException("Stream closed");
+                if (count > 0 && (!buffering || complete || failure != null)) break;
+                if (count == 0 && complete && pending.isEmpty()) return -1;
+                if (failure != null) throw failure;
+                if (count == 0 && !buffering) {
+                    buffering = true;
+                    if (started) PlaybackMetrics.global().streamRebuffered();
+                }
+                readable.await();
+            }
+            started = true;
+            n = Math.min(len, Math.min(count, buffer.length - readPosition));
+            System.arraycopy(buffer, readPosition, b, off, n);
+            readPosition = (readPosition + n) % buffer.length;
+            count -= n;
+            fill();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while buffering " + uri, e);
+        } finally {
+            lock.unlock();
+        }
+        requestMore();
+        return n;
+    }
+
+    @Override
+    public int available() {
+        lock.lock();
+        try {
+            return buffering && !complete ? 0 : count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return length of the whole file in bytes, or -1 if the server did not tell it yet.
+     */
+    public long getLength() {
+        lock.lock();
+        try {
+            return length;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            connection++;
+            pending.clear();
+            readable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        cleanable.clean();
+    }
+
+    /**
+     * Describes a remote MP3 file as a song, reading only its first frame. The length and number of frames are
+     * estimated from the first frame and the size of the file, or read from its VBR header if it has one.
+     *
+     * @param uri    URL of the file.
+     * @param artist artist of the song, or null if unknown.
+     * @param title  title of the song, or null to use the name of the file.
+     * @return a new {@link Song} with its own {@link UUID}.
+     * @throws IOException if the file can't be read or is not MPEG audio.
+     */
+    public static Song probe(URI uri, String artist, String title) throws IOException {
+        HttpStream stream = new HttpStream(uri, 0);
+        Bitstream bitstream = new Bitstream(stream);
+        try {
+            Header header = bitstream.readFrame();
+            if (header == null) throw new IOException("No MPEG audio frame in " + uri);
+            int size = (int) Math.min(Integer.MAX_VALUE, Math.max(0, stream.getLength()));
+            if (title == null) {
+                String path = uri.getPath();
+                title = path == null ? uri.toString() : path.substring(path.lastIndexOf('/') + 1);
+            }
+            return new Song(UUID.randomUUID(), title, "", artist == null ? "" : artist, "",
+                    header.total_ms(size), uri.toString(), size, header.max_number_of_frames(size), header.ms_per_frame());
+        } catch (BitstreamException e) {
+            throw new IOException("Could not read " + uri, e);
+        } finally {
+            stream.close();
+        }
+    }
+}
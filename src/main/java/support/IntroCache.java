@@ -0,0 +1,238 @@
+package support;
+
+import javazoom.jl.decoder.JavaLayerException;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Decoded first seconds of the songs the user is likely to start next, so a song starts playing from memory while
+ * its file is opened and decoded in the background. The player tells the cache which songs those are, the songs
+ * around the selection of the queue and the next ones to play, and intros of other songs are dropped.<br>
+ * Intros are 16-bit PCM, bit for bit what the decoder would write to the device, cut in whole MPEG frames so the
+ * decoder can take over at a frame boundary. They are decoded one at a time on a low priority daemon thread,
+ * reading files as background work of the {@link IoScheduler}, and keyed by {@link ContentIndex} hash, so copies
+ * of a track share one intro and remote songs, which are not hashed, have none. Each intro is charged to the
+ * {@link MemoryBudget}, which may evict it.<br>
+ * The length of the intros and the number of upcoming songs are read from system properties:<br>
+ * {@code player.intro.seconds} - seconds decoded per song (default 3, 0 disables the cache);<br>
+ * {@code player.intro.tracks} - number of upcoming songs given an intro (default 2).
+ */
+public class IntroCache {
+    /**
+     * Cost of building an intro again, for the {@link MemoryBudget}: the start of the file has to be decoded.
+     */
+    private static final float BUDGET_WEIGHT = 2f;
+
+    private final float seconds = Float.parseFloat(System.getProperty("player.intro.seconds", "3"));
+    private final int tracks = Integer.getInteger("player.intro.tracks", 2);
+    private final ContentIndex contents;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    /**
+     * Songs passed to the last {@link #update(List)}. Guarded by this.
+     */
+    private Set<Song> wanted = Set.of();
+    /**
+     * Songs waiting to be decoded.
+     */
+    private final Set<Song> queued = ConcurrentHashMap.newKeySet();
+    private final ExecutorService decoder = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "intro-decode");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    /**
+     * The first frames of a track, decoded.
+     */
+    public static final class Intro {
+        private final int sampleRate;
+        private final int channels;
+        private final int frameLength;
+        private final int frames;
+        private final short[] samples;
+        private final float replayGainDb;
+
+        Intro(int sampleRate, int channels, int frameLength, int frames, short[] samples, float replayGainDb) {
+            this.sampleRate = sampleRate;
+            this.channels = channels;
+            this.frameLength = frameLength;
+            this.frames = frames;
+            this.samples = samples;
+            this.replayGainDb = replayGainDb;
+        }
+
+        public int getSampleRate() {
+            return sampleRate;
+        }
+
+        public int getChannels() {
+            return channels;
+        }
+
+        /**
+         * @return the number of interleaved samples of each frame.
+         */
+        public int getFrameLength() {
+            return frameLength;
+        }
+
+        /**
+         * @return the number of frames of the intro, the index of the first frame the decoder plays after it.
+         */
+        public int getFrames() {
+            return frames;
+        }
+
+        /**
+         * @return the ReplayGain adjustment of the track in decibels, read from its tag, 0 for none.
+         */
+        public float getReplayGain() {
+            return replayGainDb;
+        }
+
+        /**
+         * Copies the interleaved samples of a frame.
+         *
+         * @param frame index of the frame, less than {@link #getFrames()}.
+         * @param dst   array with room for the samples of a frame.
+         * @return the number of samples copied.
+         */
+        public int copyFrame(int frame, short[] dst) {
+            System.arraycopy(samples, frame * frameLength, dst, 0, frameLength);
+            return frameLength;
+        }
+    }
+
+    private static final class Entry {
+        final Intro intro;
+        final MemoryBudget.Charge charge;
+
+        Entry(Intro intro, MemoryBudget.Charge charge) {
+            this.intro = intro;
+            this.charge = charge;
+        }
+    }
+
+    /**
+     * @param contents index giving the content hash of songs, listening to the same playlist.
+     */
+    public IntroCache(ContentIndex contents) {
+        this.contents = contents;
+    }
+
+    /**
+     * Stops the background threads. Work still queued is dropped.
+     */
+    public void shutdown() {
+        decoder.shutdownNow();
+    }
+
+    /**
+     * @return number of upcoming songs the player should pass to {@link #update(List)}, besides the ones around
+     * the selection.
+     */
+    public int getLookahead() {
+        return seconds > 0 ? tracks : 0;
+    }
+
+    /**
+     * Sets the songs the user is likely to start next. Their intros are decoded in the background, in order, and
+     * the intros of other songs are dropped.
+     *
+     * @param songs songs to keep an intro of, most likely first.
+     */
+    public synchronized void update(List<Song> songs) {
+        if (seconds <= 0) return;
+        Set<Song> next = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<String> hashes = new HashSet<>();
+        for (Song song : songs) {
+            if (song.isRemote() || !next.add(song)) continue;
+            String hash = contents.getKnownHash(song);
+            if (hash != null) hashes.add(hash);
+            if ((hash == null || !entries.containsKey(hash)) && queued.add(song)) {
+                contents.hash(song).whenComplete((h, e) -> {
+                    if (e == null) decoder.execute(() -> load(h, song));
+                    else queued.remove(song);
+                });
+            }
+        }
+        wanted = next;
+        entries.forEach((hash, entry) -> {
+            if (!hashes.contains(hash)) drop(hash, entry);
+        });
+    }
+
+    /**
+     * @return the intro of the song, or null if it is not decoded.
+     */
+    public Intro get(Song song) {
+        String hash = contents.getKnownHash(song);
+        Entry entry = hash == null ? null : entries.get(hash);
+        if (entry == null) return null;
+        entry.charge.touch();
+        return entry.intro;
+    }
+
+    private void load(String hash, Song song) {
+        queued.remove(song);
+        synchronized (this) {
+            if (entries.containsKey(hash) || !wanted.contains(song)) return;
+        }
+        Intro intro;
+        try {
+            intro = decode(song);
+        } catch (IOException | JavaLayerException e) {
+            if (!decoder.isShutdown()) e.printStackTrace();
+            return;
+        }
+        if (intro == null) return;
+        Entry[] created = new Entry[1];
+        created[0] = new Entry(intro, MemoryBudget.global().charge(charge -> drop(hash, created[0]), hash, song,
+                (long) intro.samples.length * Short.BYTES, false, BUDGET_WEIGHT));
+        synchronized (this) {
+            // Dropped if no longer wanted, or if a copy of the track was decoded meanwhile.
+            if (!wanted.contains(song) || entries.putIfAbsent(hash, created[0]) != null) created[0].charge.release();
+        }
+    }
+
+    private void drop(String hash, Entry entry) {
+        if (entries.remove(hash, entry)) entry.charge.release();
+    }
+
+    /**
+     * Decodes the first {@code seconds} of a song, stopping early if the length of the frames changes.
+     *
+     * @return the intro, or null if the song has no frames.
+     */
+    private Intro decode(Song song) throws IOException, JavaLayerException {
+        try (TrackDecoder track = new TrackDecoder(song.getBufferedInputStream(0, IoScheduler.Priority.BACKGROUND))) {
+            FloatSampleBuffer output = track.decodeFrame();
+            if (output == null) return null;
+            int sampleRate = output.getSampleFrequency();
+            int channels = output.getChannelCount();
+            int frameLength = output.getBufferLength();
+            int maxFrames = Math.max(1, (int) Math.ceil(seconds * sampleRate * channels / frameLength));
+            short[] samples = new short[maxFrames * frameLength];
+            int frames = 0;
+            do {
+                if (output.getBufferLength() != frameLength) break;
+                System.arraycopy(output.getBuffer(), 0, samples, frames * frameLength, frameLength);
+                frames++;
+            } while (frames < maxFrames && (output = track.decodeFrame()) != null);
+            if (frames < maxFrames) samples = Arrays.copyOf(samples, frames * frameLength);
+            return new Intro(sampleRate, channels, frameLength, frames, samples,
+                    ReplayGain.trackGain(track.getBitstream()));
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package support;
+
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single gate for the reads of audio files, so playback does not compete on equal terms with the other work reading
+ * the same disk. Every read belongs to a {@link Priority}:<br>
+ * {@link Priority#PLAYBACK} reads are never held back;<br>
+ * {@link Priority#INTERACTIVE} reads wait at most {@value #INTERACTIVE_PREEMPTION_MS} ms while playback is short of
+ * data;<br>
+ * {@link Priority#BACKGROUND} reads wait while playback is short of data, up to {@value #BACKGROUND_PREEMPTION_MS}
+ * ms per read.<br>
+ * Playback is short of data when less than {@code player.io.lowWaterMs} milliseconds (default 150) of audio are
+ * queued on the audio device, as reported by {@link BatchingAudioDevice}. Interactive and background reads are
+ * also capped by token buckets of {@code player.io.interactiveKbps} and {@code player.io.backgroundKbps} KiB/s
+ * (defaults 0, for unlimited, and 8192). Bytes read and the time each read took, waiting included, are recorded
+ * per priority in {@link PlaybackMetrics}.<br>
+ * Streams are opened with {@link #open(Path, long, Priority)}; reads done by other means, like memory-mapped
+ * buffers or libraries opening the file themselves, go through {@link #run(Priority, long, IoCall)}.
+ */
+public final class IoScheduler {
+    static final int INTERACTIVE_PREEMPTION_MS = 20;
+    static final int BACKGROUND_PREEMPTION_MS = 1000;
+    private static final long POLL_MS = 5;
+    /**
+     * Gap since the queued audio ran out after which the device is considered paused or stopped rather than short
+     * of data.
+     */
+    private static final long IDLE_NS = TimeUnit.SECONDS.toNanos(2);
+    private static final long MIN_BURST = 256 * 1024;
+
+    private static final IoScheduler GLOBAL = new IoScheduler(
+            Long.getLong("player.io.interactiveKbps", 0) * 1024,
+            Long.getLong("player.io.backgroundKbps", 8192) * 1024,
+            Integer.getInteger("player.io.lowWaterMs", 150));
+
+    /**
+     * Class of a read, from the most to the least urgent.
+     */
+    public enum Priority {
+        /**
+         * Reads of the song playing and of the songs about to play.
+         */
+        PLAYBACK,
+        /**
+         * Reads a user waits for, like parsing a file they just added.
+         */
+        INTERACTIVE,
+        /**
+         * Reads nobody waits for, like imports, hashing and analysis.
+         */
+        BACKGROUND
+    }
+
+    /**
+     * Read done outside the streams of the scheduler.
+     */
+    @FunctionalInterface
+    public interface IoCall<T> {
+        T call() throws IOException;
+    }
+
+    private final TokenBucket[] buckets;
+    private final long lowWaterNs;
+    private final PlaybackMetrics metrics = PlaybackMetrics.global();
+    /**
+     * Time by which the audio queued on the device will have played, or 0 when nothing is playing.
+     */
+    private volatile long drainsAt;
+
+    /**
+     * @param interactiveRate maximum rate of interactive reads in bytes per second, 0 for unlimited.
+     * @param backgroundRate  maximum rate of background reads in bytes per second, 0 for unlimited.
+     * @param lowWaterMs      audio queued on the device below which playback is short of data.
+     */
+    public IoScheduler(long interactiveRate, long backgroundRate, int lowWaterMs) {
+        buckets = new TokenBucket[]{new TokenBucket(0), new TokenBucket(interactiveRate),
+                new TokenBucket(backgroundRate)};
+        lowWaterNs = TimeUnit.MILLISECONDS.toNanos(lowWaterMs);
+    }
+
+    /**
+     * @return the scheduler of this process.
+     */
+    public static IoScheduler global() {
+        return GLOBAL;
+    }
+
+    /**
+     * Tells the scheduler how much audio is queued on the audio device. Called after every write to the device.
+     *
+     * @param drainsAt time, as of {@link System#nanoTime()}, by which the audio written will have played, or 0 when
+     *                 playback paused or stopped.
+     */
+    public void playbackQueued(long drainsAt) {
+        this.drainsAt = drainsAt;
+    }
+
+    /**
+     * @return True if playback is running and less than the low water mark of audio is queued.
+     */
+    public boolean isPlaybackShort() {
+        long queued = drainsAt;
+        if (queued == 0) return false;
+        long left = queued - System.nanoTime();
+        return left < lowWaterNs && left > -IDLE_NS;
+    }
+
+    /**
+     * Opens a file for reading, with every read going through the scheduler.
+     *
+     * @param file     file to be read.
+     * @param offset   position of the first byte to be read.
+     * @param priority class of the reads.
+     * @return an unbuffered stream of the file.
+     */
+    public InputStream open(Path file, long offset, Priority priority) throws IOException {
+        FileInputStream stream = new FileInputStream(file.toFile());
+        try {
+            if (offset > 0) stream.getChannel().position(offset);
+        } catch (IOException e) {
+            stream.close();
+            throw e;
+        }
+        return new ScheduledInputStream(stream, priority);
+    }
+
+    /**
+     * Admits a read done by {@code call} and records it.
+     *
+     * @param priority class of the read.
+     * @param bytes    number of bytes {@code call} reads, at most.
+     * @param call     the read, like hashing a memory-mapped buffer.
+     * @return what {@code call} returned.
+     */
+    public <T> T run(Priority priority, long bytes, IoCall<T> call) throws IOException {
+        long start = System.nanoTime();
+        admit(priority, bytes);
+        T result = call.call();
+        metrics.ioRead(priority, bytes, start);
+        return result;
+    }
+
+    /**
+     * Waits until a read of {@code bytes} of the specified class may start.
+     */
+    private void admit(Priority priority, long bytes) throws InterruptedIOException {
+        if (priority == Priority.PLAYBACK) return;
+        try {
+            long limit = TimeUnit.MILLISECONDS.toNanos(priority == Priority.BACKGROUND
+                    ? BACKGROUND_PREEMPTION_MS : INTERACTIVE_PREEMPTION_MS);
+            long start = System.nanoTime();
+            if (isPlaybackShort()) {
+                metrics.ioPreempted();
+                do {
+                    TimeUnit.MILLISECONDS.sleep(POLL_MS);
+                } while (isPlaybackShort() && System.nanoTime() - start < limit);
+            }
+            long wait = buckets[priority.ordinal()].reserve(bytes);
+            if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + priority + " read");
+        }
+    }
+
+    /**
+     * Bucket filled at a constant rate up to a quarter of a second of reads. A read takes its size from the bucket,
+     * going into debt if needed, and then waits until the debt would be paid off, so reads of any size are admitted
+     * in turn at the configured rate.
+     */
+    private static final class TokenBucket {
+        private final long rate;
+        private final long capacity;
+        private double tokens;
+        private long refilled = System.nanoTime();
+
+        /**
+         * @param rate bytes per second, 0 for unlimited.
+         */
+        TokenBucket(long rate) {
+            this.rate = rate;
+            this.capacity = Math.max(MIN_BURST, rate / 4);
+            this.tokens = capacity;
+        }
+
+        /**
+         * @return how long the read of {@code bytes} has to wait, in nanoseconds.
+         */
+        synchronized long reserve(long bytes) {
+            if (rate <= 0) return 0;
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - refilled) * (rate / 1e9));
+            refilled = now;
+            tokens -= bytes;
+            return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate);
+        }
+    }
+
+    /**
+     * Stream whose reads are admitted by the scheduler and recorded in the metrics of their class.
+     */
+    private final class ScheduledInputStream extends FilterInputStream {
+        private final Priority priority;
+
+        ScheduledInputStream(InputStream in, Priority priority) {
+            super(in);
+            this.priority = priority;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            admit(priority, 1);
+            int b = in.read();
+            metrics.ioRead(priority, b < 0 ? 0 : 1, start);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long start = System.nanoTime();
+            admit(priority, len);
+            int n = in.read(b, off, len);
+            metrics.ioRead(priority, Math.max(0, n), start);
+            return n;
+        }
+    }
+}
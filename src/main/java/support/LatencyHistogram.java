@@ -0,0 +1,132 @@
+package support;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations in nanoseconds, cheap enough to be updated for every frame. Each power of two is split in
+ * {@value #SUB_BUCKETS} buckets, so a percentile read from the histogram is within 25% of the real value. Buckets
+ * are {@link LongAdder}s, so threads recording at the same time never wait for each other; a {@link #snapshot()}
+ * taken while durations are recorded may miss the most recent ones.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    private final LongAdder[] buckets = new LongAdder[64 * SUB_BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Long::max, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) buckets[i] = new LongAdder();
+    }
+
+    /**
+     * @param nanos duration to be recorded. Negative durations are recorded as 0.
+     */
+    public void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        buckets[bucket(nanos)].increment();
+        count.increment();
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    /**
+     * Records the time elapsed since {@code startNanos}, a value of {@link System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    private static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) return (int) nanos;
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the largest duration that falls in the bucket.
+     */
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long lower = (1L << exponent) | (sub << (exponent - SUB_BITS));
+        return lower + (1L << (exponent - SUB_BITS)) - 1;
+    }
+
+    /**
+     * @return the current figures of the histogram.
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[buckets.length];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) total += counts[i] = buckets[i].sum();
+        long maxNanos = max.get();
+        return new Snapshot(total, total == 0 ? 0 : sum.sum() / total,
+                percentile(counts, total, 0.50, maxNanos),
+                percentile(counts, total, 0.90, maxNanos),
+                percentile(counts, total, 0.99, maxNanos),
+                maxNanos);
+    }
+
+    private static long percentile(long[] counts, long total, double fraction, long maxNanos) {
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(upperBound(i), maxNanos);
+        }
+        return maxNanos;
+    }
+
+    /**
+     * Figures of a histogram at one point in time, in microseconds.
+     */
+    public static final class Snapshot {
+        private final long count;
+        private final long mean;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long max;
+
+        private Snapshot(long count, long mean, long p50, long p90, long p99, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanMicros() {
+            return TimeUnit.NANOSECONDS.toMicros(mean);
+        }
+
+        public long getP50Micros() {
+            return TimeUnit.NANOSECONDS.toMicros(p50);
+        }
+
+        public long getP90Micros() {
+            return TimeUnit.NANOSECONDS.toMicros(p90);
+        }
+
+        public long getP99Micros() {
+            return TimeUnit.NANOSECONDS.toMicros(p99);
+        }
+
+        public long getMaxMicros() {
+            return TimeUnit.NANOSECONDS.toMicros(max);
+        }
+    }
+}
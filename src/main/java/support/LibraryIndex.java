@@ -0,0 +1,271 @@
+package support;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Column oriented copy of the songs of a playlist, used to sort and filter large queues. Numbers are kept in
+ * primitive arrays and the title, album, artist and year are dictionary encoded: each row stores an int id of its
+ * value, and each dictionary knows the sorted rank of every id, computed once the first time it is needed.<br>
+ * Sorting packs the rank (or the length) and the row of each song into one long and sorts the longs with
+ * {@link Arrays#parallelSort(long[])}, so it allocates two arrays no matter how many songs there are, and never an
+ * object per row. The index never changes after being built, so it is thread safe.
+ *
+ * @see Playlist#sort(Column, boolean)
+ */
+public final class LibraryIndex {
+    /**
+     * Columns songs can be sorted by, in the same order as the columns of the queue table.
+     */
+    public enum Column {
+        TITLE,
+        ALBUM,
+        ARTIST,
+        YEAR,
+        LENGTH
+    }
+
+    private final int size;
+    private final float[] msLength;
+    private final int[] numFrames;
+    private final int[] fileSize;
+    private final int[] titleIds;
+    private final int[] albumIds;
+    private final int[] artistIds;
+    private final int[] yearIds;
+    private final Dictionary titles = new Dictionary();
+    private final Dictionary albums = new Dictionary();
+    private final Dictionary artists = new Dictionary();
+    private final Dictionary years = new Dictionary();
+
+    /**
+     * Maps the distinct values of a column to consecutive ids, and the ids to their rank in sorted order. Values
+     * are found with an open addressing table of ids, so encoding a row allocates nothing but the array growth.
+     */
+    private static final class Dictionary {
+        /**
+         * Id + 1 of the value hashed to each slot, 0 for an empty slot. Its length is a power of two, at least
+         * twice the number of values.
+         */
+        private int[] slots = new int[16];
+        private String[] values = new String[8];
+        private int size;
+        private volatile int[] ranks;
+
+        int idOf(String value) {
+            int slot = slot(value);
+            if (slots[slot] != 0) return slots[slot] - 1;
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size] = value;
+            slots[slot] = ++size;
+            if (size * 2 > slots.length) rehash();
+            return size - 1;
+        }
+
+        /**
+         * @return the id of the value, or -1 if it is not in the dictionary.
+         */
+        int find(String value) {
+            return slots[slot(value)] - 1;
+        }
+
+        /**
+         * @return the slot holding the value, or the empty slot where it would be added.
+         */
+        private int slot(String value) {
+            int mask = slots.length - 1;
+            int slot = mix(Objects.hashCode(value)) & mask;
+            while (slots[slot] != 0 && !Objects.equals(values[slots[slot] - 1], value)) slot = (slot + 1) & mask;
+            return slot;
+        }
+
+        private void rehash() {
+            slots = new int[slots.length * 2];
+            int mask = slots.length - 1;
+            for (int id = 0; id < size; id++) {
+                int slot = mix(Objects.hashCode(values[id])) & mask;
+                while (slots[slot] != 0) slot = (slot + 1) & mask;
+                slots[slot] = id + 1;
+            }
+        }
+
+        /**
+         * Spreads the bits of a hash code, so values whose hashes only differ in their high bits don't collide.
+         */
+        private static int mix(int hash) {
+            hash *= 0x9E3779B9;
+            return hash ^ (hash >>> 16);
+        }
+
+        String valueOf(int id) {
+            if (id >= size) throw new IndexOutOfBoundsException(id);
+            return values[id];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int[] ranks() {
+            int[] result = ranks;
+            if (result == null) {
+                synchronized (this) {
+                    result = ranks;
+                    if (result == null) {
+                        String[] sorted = Arrays.copyOf(values, size);
+                        Arrays.parallelSort(sorted, String.CASE_INSENSITIVE_ORDER);
+                        result = new int[sorted.length];
+                        for (int rank = 0; rank < sorted.length; rank++) result[find(sorted[rank])] = rank;
+                        ranks = result;
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    private LibraryIndex(int size) {
+        this.size = size;
+        this.msLength = new float[size];
+        this.numFrames = new int[size];
+        this.fileSize = new int[size];
+        this.titleIds = new int[size];
+        this.albumIds = new int[size];
+        this.artistIds = new int[size];
+        this.yearIds = new int[size];
+    }
+
+    /**
+     * @param songs songs to be indexed. The row of each song is its position in {@code songs}.
+     * @return a new index of the songs.
+     */
+    public static LibraryIndex of(PersistentVector<Song> songs) {
+        LibraryIndex index = new LibraryIndex(songs.size());
+        int row = 0;
+        for (Song song : songs) {
+            index.msLength[row] = song.getMsLength();
+            index.numFrames[row] = song.getNumFrames();
+            index.fileSize[row] = song.getFileSize();
+            index.titleIds[row] = index.titles.idOf(song.getTitle());
+            index.albumIds[row] = index.albums.idOf(song.getAlbum());
+            index.artistIds[row] = index.artists.idOf(song.getArtist());
+            index.yearIds[row] = index.years.idOf(song.getYear());
+            row++;
+        }
+        return index;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public float getMsLength(int row) {
+        return msLength[row];
+    }
+
+    public int getNumFrames(int row) {
+        return numFrames[row];
+    }
+
+    public int getFileSize(int row) {
+        return fileSize[row];
+    }
+
+    /**
+     * @return the id of the value of {@code column} in the specified row. Rows with equal values have equal ids.
+     * @throws IllegalArgumentException if the column is not dictionary encoded.
+     */
+    public int getId(Column column, int row) {
+        return ids(column)[row];
+    }
+
+    /**
+     * @return the number of distinct values in the specified column.
+     * @throws IllegalArgumentException if the column is not dictionary encoded.
+     */
+    public int getDistinctCount(Column column) {
+        return dictionary(column).size();
+    }
+
+    /**
+     * @return the value with the specified id in the specified column.
+     * @throws IllegalArgumentException if the column is not dictionary encoded.
+     */
+    public String getValue(Column column, int id) {
+        return dictionary(column).valueOf(id);
+    }
+
+    /**
+     * Returns the rows in the order they would have if sorted by the specified column. Rows with equal values keep
+     * their relative order, in both directions.
+     *
+     * @param column    column to sort by.
+     * @param ascending True to sort in ascending order, false for descending.
+     * @return array whose element {@code i} is the row that comes at position {@code i} once sorted.
+     */
+    public int[] sortedRows(Column column, boolean ascending) {
+        long[] keys = new long[size];
+        if (column == Column.LENGTH) {
+            for (int row = 0; row < size; row++) {
+                int bits = Float.floatToIntBits(Math.max(0f, msLength[row]));
+                keys[row] = key(ascending ? bits : Integer.MAX_VALUE - bits, row);
+            }
+        } else {
+            int[] ids = ids(column);
+            int[] ranks = dictionary(column).ranks();
+            for (int row = 0; row < size; row++) {
+                int rank = ranks[ids[row]];
+                keys[row] = key(ascending ? rank : Integer.MAX_VALUE - rank, row);
+            }
+        }
+        Arrays.parallelSort(keys);
+        int[] rows = new int[size];
+        for (int i = 0; i < size; i++) rows[i] = (int) keys[i];
+        return rows;
+    }
+
+    /**
+     * Returns the rows whose value in the specified column equals {@code value}, in order.
+     *
+     * @throws IllegalArgumentException if the column is not dictionary encoded.
+     */
+    public int[] rowsWith(Column column, String value) {
+        int id = dictionary(column).find(value);
+        if (id < 0) return new int[0];
+        int[] ids = ids(column);
+        int count = 0;
+        for (int row = 0; row < size; row++) if (ids[row] == id) count++;
+        int[] rows = new int[count];
+        count = 0;
+        for (int row = 0; row < size; row++) if (ids[row] == id) rows[count++] = row;
+        return rows;
+    }
+
+    /**
+     * Sort key with the value in the high half, and the row in the low half to keep the sort stable.
+     * {@code value} must not be negative.
+     */
+    private static long key(int value, int row) {
+        return ((long) value << 32) | row;
+    }
+
+    private int[] ids(Column column) {
+        return switch (column) {
+            case TITLE -> titleIds;
+            case ALBUM -> albumIds;
+            case ARTIST -> artistIds;
+            case YEAR -> yearIds;
+            default -> throw new IllegalArgumentException(column + " is not dictionary encoded");
+        };
+    }
+
+    private Dictionary dictionary(Column column) {
+        return switch (column) {
+            case TITLE -> titles;
+            case ALBUM -> albums;
+            case ARTIST -> artists;
+            case YEAR -> years;
+            default -> throw new IllegalArgumentException(column + " is not dictionary encoded");
+        };
+    }
+}
@@ -0,0 +1,133 @@
+package support;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Import and export of M3U playlists. Both read and write one line at a time, so a playlist of any length is never
+ * held in memory as a whole. Files are read and written as UTF-8, which also covers the ASCII {@code .m3u} files
+ * written by most players. Relative paths are resolved against the directory of the playlist. Entries may also be
+ * {@code http://} or {@code https://} URLs of remote files, described by their {@code #EXTINF} line and their first
+ * frame, see {@link HttpStream#probe(URI, String, String)}.
+ *
+ * @see PlaylistFile
+ */
+public final class M3u {
+    private static final String HEADER = "#EXTM3U";
+    private static final String EXTINF = "#EXTINF:";
+
+    private M3u() {
+    }
+
+    /**
+     * Reads the playlist and parses each MP3 file it lists, in order. Files that can't be read are skipped.
+     * Songs are handed over in batches, so a caller can show the first ones while the rest are parsed.
+     *
+     * @param file      playlist to be read.
+     * @param batchSize maximum number of songs per batch.
+     * @param batches   receives the songs, in order.
+     * @return number of songs read.
+     * @throws IOException if the playlist can't be read.
+     */
+    public static int importFrom(Path file, int batchSize, Consumer<List<Song>> batches) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        int count = 0;
+        List<Song> batch = new ArrayList<>(batchSize);
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            String extinf = null;
+            while ((line = reader.readLine()) != null) {
+                line = line.strip();
+                if (line.startsWith("\uFEFF")) line = line.substring(1);
+                if (line.startsWith(EXTINF)) extinf = line.substring(EXTINF.length());
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                Song song = Song.isUrl(line) ? remoteSong(line, extinf) : localSong(directory, line);
+                extinf = null;
+                if (song == null) continue;
+                batch.add(song);
+                count++;
+                if (batch.size() >= batchSize) {
+                    batches.accept(batch);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+        }
+        if (!batch.isEmpty()) batches.accept(batch);
+        return count;
+    }
+
+    private static Song localSong(Path directory, String line) {
+        Path path;
+        try {
+            path = directory == null ? Path.of(line) : directory.resolve(line);
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        if (!Files.isRegularFile(path)) return null;
+        return PlayerWindow.parseInfo(path.toFile(), IoScheduler.Priority.BACKGROUND);
+    }
+
+    /**
+     * @param extinf what follows {@code #EXTINF:} on the line before the URL, as {@code seconds,artist - title},
+     *               or null.
+     */
+    private static Song remoteSong(String line, String extinf) {
+        String artist = null;
+        String title = null;
+        int comma = extinf == null ? -1 : extinf.indexOf(',');
+        if (comma >= 0) {
+            String name = extinf.substring(comma + 1).strip();
+            int dash = name.indexOf(" - ");
+            if (dash >= 0) {
+                artist = name.substring(0, dash);
+                title = name.substring(dash + 3);
+            } else if (!name.isEmpty()) {
+                title = name;
+            }
+        }
+        try {
+            return HttpStream.probe(URI.create(line), artist, title);
+        } catch (IOException | IllegalArgumentException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Writes the songs as an extended M3U playlist, with their length, artist and title, or only their title if
+     * they have no artist. Paths are written as they are stored in the songs.
+     *
+     * @param file  destination file.
+     * @param songs songs to be written, in order.
+     * @throws IOException if the playlist can't be written.
+     */
+    public static void exportTo(Path file, Iterable<Song> songs) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            for (Song song : songs) {
+                writer.write(EXTINF);
+                writer.write(Integer.toString(Math.round(song.getMsLength() / 1000)));
+                writer.write(',');
+                // Remote songs may have no artist, and "- title" would be read back as the title.
+                if (!song.getArtist().isEmpty()) {
+                    writer.write(song.getArtist());
+                    writer.write(" - ");
+                }
+                writer.write(song.getTitle());
+                writer.newLine();
+                writer.write(song.getFilePath());
+                writer.newLine();
+            }
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package support;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One memory budget shared by every cache of the player, so together they never outgrow the heap however many
+ * caches there are. Caches {@link #charge(Owner, Object, Song, long, boolean, float) charge} each entry they keep
+ * to the budget, with its size and whether it is on the heap or off it, and {@link Charge#release() release} it
+ * when they drop the entry. Heap and off-heap entries have separate limits: {@code player.memory.heapMb} (default
+ * a quarter of the maximum heap) and {@code player.memory.offHeapMb} (default 128).<br>
+ * When a limit is exceeded, entries are evicted from whichever cache holds them, lowest value first. The value of
+ * an entry is its weight, the cost of building it again as given by its cache, times a factor for its song: the
+ * current song and the next ones are worth the most, see {@link #setFocus(Song, List)}. That is divided by its size
+ * and by the time since it was last used, so large, stale entries of songs nobody is about to hear go first.<br>
+ * With {@link #watchPressure()}, the budget also listens to the usage thresholds of the heap memory pools, set at
+ * {@code player.memory.pressurePercent} percent (default 85) of their maximum, and halves the heap used by caches
+ * when one is crossed, before the garbage collector starts running back to back. The collection threshold is
+ * crossed again after every collection for as long as the heap stays full, so caches are only trimmed again once
+ * they grew past what the last trim left, and never below an eighth of their heap limit: when something else fills
+ * the heap, emptying the caches would not help.<br>
+ * Evictions run on a single daemon thread, never on the thread charging an entry, and the budget holds no lock
+ * while it calls a cache back.
+ */
+public final class MemoryBudget {
+    private static final MemoryBudget GLOBAL = new MemoryBudget(
+            Long.getLong("player.memory.heapMb", Runtime.getRuntime().maxMemory() / 4 / 1024 / 1024) * 1024 * 1024,
+            Long.getLong("player.memory.offHeapMb", 128) * 1024 * 1024);
+
+    private final long heapLimit;
+    private final long offHeapLimit;
+    /**
+     * Heap the caches keep however much pressure there is.
+     */
+    private final long heapFloor;
+    /**
+     * Entries charged and not released, in the order they were charged. Guarded by this, like the fields below.
+     */
+    private final Set<Charge> charges = new LinkedHashSet<>();
+    private long heapBytes;
+    private long offHeapBytes;
+    /**
+     * Heap used by caches right after the last time pressure was relieved, or -1.
+     */
+    private long relievedTo = -1;
+    private Map<Song, Float> focus = Map.of();
+
+    private final AtomicBoolean trimPending = new AtomicBoolean();
+    private final ExecutorService evictor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "memory-budget");
+        t.setDaemon(true);
+        return t;
+    });
+    private final PlaybackMetrics metrics = PlaybackMetrics.global();
+
+    /**
+     * Removes entries from a cache when the budget evicts them.
+     */
+    @FunctionalInterface
+    public interface Owner {
+        /**
+         * Drops the entry of the charge, if the cache still holds it. Called on the thread of the budget; the charge
+         * is already released.
+         */
+        void evict(Charge charge);
+    }
+
+    /**
+     * Memory taken by one entry of a cache.
+     */
+    public final class Charge {
+        private final Owner owner;
+        private final Object key;
+        private final Song song;
+        private final long bytes;
+        private final boolean offHeap;
+        private final float weight;
+        private volatile long lastUsed = System.nanoTime();
+        private boolean released;
+
+        private Charge(Owner owner, Object key, Song song, long bytes, boolean offHeap, float weight) {
+            this.owner = owner;
+            this.key = key;
+            this.song = song;
+            this.bytes = bytes;
+            this.offHeap = offHeap;
+            this.weight = weight;
+        }
+
+        /**
+         * @return the key of the entry in its cache.
+         */
+        public Object getKey() {
+            return key;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Records a use of the entry, which makes it less likely to be evicted.
+         */
+        public void touch() {
+            lastUsed = System.nanoTime();
+        }
+
+        /**
+         * Gives the memory of the entry back to the budget. Does nothing if it was already released or evicted.
+         */
+        public void release() {
+            synchronized (MemoryBudget.this) {
+                if (released) return;
+                releaseLocked(this);
+            }
+        }
+
+        /**
+         * Value of keeping the entry per byte, as described in {@link MemoryBudget}. Called holding the budget lock.
+         */
+        private double value(long now) {
+            float boost = song == null ? 1f : focus.getOrDefault(song, 1f);
+            double idleSeconds = (now - lastUsed) / 1e9;
+            return weight * boost / (1 + idleSeconds) / Math.max(1, bytes);
+        }
+    }
+
+    /**
+     * @param heapLimit    bytes of heap the caches may use together.
+     * @param offHeapLimit bytes of memory outside the heap the caches may use together.
+     */
+    public MemoryBudget(long heapLimit, long offHeapLimit) {
+        this.heapLimit = heapLimit;
+        this.offHeapLimit = offHeapLimit;
+        heapFloor = heapLimit / 8;
+    }
+
+    /**
+     * @return the budget of this process.
+     */
+    public static MemoryBudget global() {
+        return GLOBAL;
+    }
+
+    /**
+     * Charges a new entry of a cache to the budget. If the budget is exceeded, entries are evicted in the background.
+     *
+     * @param owner   cache holding the entry.
+     * @param key     key of the entry in the cache.
+     * @param song    song the entry belongs to, or null.
+     * @param bytes   memory taken by the entry.
+     * @param offHeap True if the memory is outside the heap, like a direct buffer.
+     * @param weight  cost of building the entry again, relative to the entries of other caches. 1 for data read
+     *                back from a file, more for data that has to be decoded or computed.
+     * @return the charge, to be released when the cache drops the entry.
+     */
+    public Charge charge(Owner owner, Object key, Song song, long bytes, boolean offHeap, float weight) {
+        Charge charge = new Charge(owner, key, song, bytes, offHeap, weight);
+        boolean over;
+        synchronized (this) {
+            charges.add(charge);
+            if (offHeap) offHeapBytes += bytes;
+            else heapBytes += bytes;
+            over = heapBytes > heapLimit || offHeapBytes > offHeapLimit;
+        }
+        if (over) requestTrim();
+        return charge;
+    }
+
+    /**
+     * Sets the songs whose entries are worth the most: the current one, then the upcoming ones in order.
+     *
+     * @param current  the current song, or null.
+     * @param upcoming songs that will play next, in order.
+     */
+    public void setFocus(Song current, List<Song> upcoming) {
+        Map<Song, Float> next = new HashMap<>();
+        for (int i = upcoming.size() - 1; i >= 0; i--) next.put(upcoming.get(i), i == 0 ? 4f : 2f);
+        if (current != null) next.put(current, 8f);
+        synchronized (this) {
+            focus = next;
+        }
+    }
+
+    public synchronized long getHeapBytes() {
+        return heapBytes;
+    }
+
+    public synchronized long getOffHeapBytes() {
+        return offHeapBytes;
+    }
+
+    /**
+     * Frees memory before the heap runs out: evicts the heap entries worth the least until caches use at most half
+     * of the heap they used, but no less than an eighth of their limit. Does nothing if the caches did not grow
+     * since the last time. Evictions happen in the background.
+     */
+    public void relievePressure() {
+        metrics.memoryPressure();
+        evictor.execute(() -> {
+            long target;
+            synchronized (this) {
+                if (relievedTo >= 0 && heapBytes <= relievedTo) return;
+                target = Math.max(heapFloor, heapBytes / 2);
+            }
+            evict(target, offHeapLimit, heapFloor);
+            synchronized (this) {
+                relievedTo = heapBytes;
+            }
+        });
+    }
+
+    /**
+     * Sets usage thresholds on the heap memory pools that support them and relieves pressure whenever one is crossed.
+     * Failures are reported and otherwise ignored, since the player works without the thresholds.
+     */
+    public void watchPressure() {
+        int percent = Integer.getInteger("player.memory.pressurePercent", 85);
+        try {
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                long max = pool.getUsage() == null ? -1 : pool.getUsage().getMax();
+                if (pool.getType() != MemoryType.HEAP || max <= 0) continue;
+                long threshold = max / 100 * percent;
+                if (pool.isUsageThresholdSupported()) pool.setUsageThreshold(threshold);
+                if (pool.isCollectionUsageThresholdSupported()) pool.setCollectionUsageThreshold(threshold);
+            }
+            NotificationEmitter emitter = (NotificationEmitter) ManagementFactory.getMemoryMXBean();
+            emitter.addNotificationListener((Notification notification, Object handback) -> {
+                String type = notification.getType();
+                if (type.equals(MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED)
+                        || type.equals(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED)) {
+                    relievePressure();
+                }
+            }, null, null);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void requestTrim() {
+        if (!trimPending.compareAndSet(false, true)) return;
+        evictor.execute(() -> {
+            trimPending.set(false);
+            evict(heapLimit, offHeapLimit, 0);
+        });
+    }
+
+    /**
+     * Evicts the entries worth the least until the caches use at most {@code heapTarget} bytes of heap and
+     * {@code offHeapTarget} bytes outside it, then calls their owners back. Heap entries whose eviction would leave
+     * less than {@code heapMin} bytes are kept.
+     */
+    private void evict(long heapTarget, long offHeapTarget, long heapMin) {
+        List<Charge> victims = new ArrayList<>();
+        synchronized (this) {
+            if (heapBytes <= heapTarget && offHeapBytes <= offHeapTarget) return;
+            long now = System.nanoTime();
+            List<Charge> candidates = new ArrayList<>(charges);
+            Map<Charge, Double> values = new HashMap<>();
+            for (Charge charge : candidates) values.put(charge, charge.value(now));
+            candidates.sort(Comparator.comparingDouble(values::get));
+            for (Charge charge : candidates) {
+                boolean heapOver = heapBytes > heapTarget;
+                boolean offHeapOver = offHeapBytes > offHeapTarget;
+                if (!heapOver && !offHeapOver) break;
+                if (charge.offHeap ? !offHeapOver : !heapOver || heapBytes - charge.bytes < heapMin) continue;
+                releaseLocked(charge);
+                victims.add(charge);
+            }
+        }
+        for (Charge charge : victims) {
+            metrics.memoryEvicted(charge.bytes);
+            try {
+                charge.owner.evict(charge);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void releaseLocked(Charge charge) {
+        charge.released = true;
+        charges.remove(charge);
+        if (charge.offHeap) offHeapBytes -= charge.bytes;
+        else heapBytes -= charge.bytes;
+    }
+
+    /**
+     * Waits until the evictions requested so far are done. Used by tests.
+     */
+    public void awaitEvictions() throws InterruptedException {
+        try {
+            evictor.submit(() -> { }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
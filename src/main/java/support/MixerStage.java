@@ -0,0 +1,243 @@
+package support;
+
+import javazoom.jl.decoder.Obuffer;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * {@link DspStage} mixing other tracks, like announcements and jingles, over the music. Each {@link Source} has
+ * its own gain; while a source that ducks is playing, the music is turned down by {@code player.duckDb} decibels
+ * (default 12), fading down in {@value #ATTACK_MS} ms and back up in {@value #RELEASE_MS} ms once it ends.
+ * Sources are converted to the channels and sample rate of the music as they are mixed.<br>
+ * Sources are added and removed from any thread without locking: the set of sources is an array replaced with a
+ * compare-and-set, so the playback thread never waits for a thread adding a source. Mixing uses a buffer of fixed
+ * size allocated with the stage, so a running stream does not allocate. A source is closed on the playback thread
+ * once it ends or is cancelled.
+ */
+public class MixerStage implements DspStage {
+    static final int ATTACK_MS = 50;
+    static final int RELEASE_MS = 500;
+
+    private final AtomicReference<Source[]> sources = new AtomicReference<>(new Source[0]);
+    private final float duckGain = (float) Math.pow(10, -Math.abs(Float.parseFloat(
+            System.getProperty("player.duckDb", "12"))) / 20);
+    /**
+     * Gain currently applied to the music, ramping towards 1 or duckGain.
+     */
+    private float musicGain = 1f;
+    private final float[] scratch = new float[Obuffer.OBUFFERSIZE];
+    private final float[] alone = new float[Obuffer.OBUFFERSIZE];
+    private final short[] alonePcm = new short[Obuffer.OBUFFERSIZE];
+
+    /**
+     * A track mixed over the music. Created by {@link #add(TrackDecoder, float, boolean)}.
+     */
+    public static final class Source {
+        private final TrackDecoder track;
+        private final boolean ducksMusic;
+        private final CompletableFuture<Void> finished = new CompletableFuture<>();
+        private volatile float gain;
+        private volatile boolean cancelled;
+        /**
+         * Gain applied to the last block. Only used by the playback thread, like the fields below.
+         */
+        private float applied;
+        private final float[] previous = new float[2];
+        private final float[] next = new float[2];
+        /**
+         * Position of the next output sample between {@link #previous} and {@link #next}, in source frames.
+         */
+        private double position;
+        private boolean primed;
+        private boolean ended;
+
+        private Source(TrackDecoder track, float gain, boolean ducksMusic) {
+            this.track = track;
+            this.gain = gain;
+            this.applied = gain;
+            this.ducksMusic = ducksMusic;
+        }
+
+        public float getGain() {
+            return gain;
+        }
+
+        /**
+         * @param gain linear gain, ramped over one block.
+         */
+        public void setGain(float gain) {
+            this.gain = Math.max(0f, gain);
+        }
+
+        public boolean ducksMusic() {
+            return ducksMusic;
+        }
+
+        /**
+         * Stops mixing the source in. It is removed and closed by the playback thread.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * @return future completed once the source has ended or was cancelled, and was closed.
+         */
+        public CompletableFuture<Void> getFinished() {
+            return finished;
+        }
+
+        /**
+         * Reads samples converted to the specified format, linearly interpolated between the frames of the track.
+         *
+         * @return number of samples read, less than {@code length} once the track has ended.
+         */
+        private int read(float[] dst, int length, int channels, int sampleRate) {
+            int sourceChannels = track.getChannels();
+            double step = (double) track.getSampleRate() / sampleRate;
+            if (!primed) {
+                primed = true;
+                ended = !pull(previous, sourceChannels) || !pull(next, sourceChannels);
+            }
+            int count = 0;
+            while (count + channels <= length && !ended) {
+                float t = (float) position;
+                for (int c = 0; c < channels; c++) {
+                    dst[count++] = sample(previous, c, channels, sourceChannels)
+                            + (sample(next, c, channels, sourceChannels)
+                            - sample(previous, c, channels, sourceChannels)) * t;
+                }
+                position += step;
+                while (position >= 1 && !ended) {
+                    System.arraycopy(next, 0, previous, 0, sourceChannels);
+                    ended = !pull(next, sourceChannels);
+                    position -= 1;
+                }
+            }
+            return count;
+        }
+
+        private static float sample(float[] frame, int channel, int channels, int sourceChannels) {
+            if (sourceChannels == channels) return frame[channel];
+            if (sourceChannels == 1) return frame[0];
+            return (frame[0] + frame[1]) * 0.5f;        // stereo to mono
+        }
+
+        /**
+         * Reads the next frame of the track into {@code frame}.
+         *
+         * @return False if the track has ended.
+         */
+        private boolean pull(float[] frame, int sourceChannels) {
+            int read = 0;
+            while (read < sourceChannels) {
+                int n = track.read(frame, read, sourceChannels - read);
+                if (n < 0) return false;
+                read += n;
+            }
+            return true;
+        }
+
+        private void close() {
+            track.close();
+            finished.complete(null);
+        }
+    }
+
+    /**
+     * Starts mixing a track over the music. Can be called from any thread.
+     *
+     * @param track      track to be mixed in. It should have decoded its first frame, see
+     *                   {@link TrackDecoder#fill()}, so its format is known.
+     * @param gain       linear gain of the track.
+     * @param ducksMusic True to turn the music down while the track plays, as for announcements.
+     * @return the source, to change its gain, cancel it or wait for it to end.
+     */
+    public Source add(TrackDecoder track, float gain, boolean ducksMusic) {
+        Source source = new Source(track, Math.max(0f, gain), ducksMusic);
+        Source[] current;
+        Source[] next;
+        do {
+            current = sources.get();
+            next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = source;
+        } while (!sources.compareAndSet(current, next));
+        return source;
+    }
+
+    private void remove(Source source) {
+        Source[] current;
+        Source[] next;
+        do {
+            current = sources.get();
+            next = Arrays.stream(current).filter(s -> s != source).toArray(Source[]::new);
+        } while (!sources.compareAndSet(current, next));
+        source.close();
+    }
+
+    /**
+     * @return True if at least one source is being mixed in.
+     */
+    public boolean hasSources() {
+        return sources.get().length > 0;
+    }
+
+    @Override
+    public boolean isActive() {
+        return musicGain != 1f || hasSources();
+    }
+
+    @Override
+    public void process(float[] samples, int length, int channels, int sampleRate) {
+        Source[] current = sources.get();
+        boolean ducking = false;
+        for (Source source : current) ducking |= source.ducksMusic && !source.cancelled;
+
+        float target = ducking ? duckGain : 1f;
+        if (musicGain != 1f || target != 1f) {
+            float frames = (float) length / channels;
+            float maxStep = (1f - duckGain) * frames * 1000f / ((ducking ? ATTACK_MS : RELEASE_MS) * sampleRate);
+            float gain = target < musicGain ? Math.max(target, musicGain - maxStep)
+                    : Math.min(target, musicGain + maxStep);
+            VectorOps.ramp(samples, length, musicGain, gain);
+            musicGain = gain;
+        }
+
+        for (Source source : current) {
+            if (source.cancelled) {
+                remove(source);
+                continue;
+            }
+            float gain = source.gain;
+            int offset = 0;
+            while (offset < length) {
+                int chunk = Math.min(scratch.length, length - offset);
+                int read = source.read(scratch, chunk, channels, sampleRate);
+                float to = source.applied + (gain - source.applied) * (offset + read) / length;
+                VectorOps.accumulate(samples, offset, scratch, read, source.applied, to);
+                source.applied = to;
+                offset += read;
+                if (read < chunk) break;
+            }
+            if (source.ended) remove(source);
+        }
+    }
+
+    /**
+     * Mixes the sources over silence, for when the music is paused or stopped. Should be called from the playback
+     * thread.
+     *
+     * @param length     number of samples to mix, at most {@link Obuffer#OBUFFERSIZE}.
+     * @param channels   number of interleaved channels.
+     * @param sampleRate sample rate in Hz.
+     * @return the mixed samples, in a buffer reused by the next call.
+     */
+    public short[] processAlone(int length, int channels, int sampleRate) {
+        Arrays.fill(alone, 0, length, 0f);
+        process(alone, length, channels, sampleRate);
+        VectorOps.toShort(alone, alonePcm, length);
+        return alonePcm;
+    }
+}
@@ -0,0 +1,17 @@
+package support;
+
+/**
+ * A pull-based source of interleaved PCM samples, as floats in the 16-bit range.
+ */
+public interface PcmSource {
+
+    /**
+     * Reads up to {@code length} samples into {@code dst}.
+     *
+     * @param dst    array the samples are written to.
+     * @param offset index of {@code dst} the first sample is written to.
+     * @param length maximum number of samples to read.
+     * @return number of samples read, or -1 if the source is exhausted.
+     */
+    int read(float[] dst, int offset, int length);
+}
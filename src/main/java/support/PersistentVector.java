@@ -0,0 +1,388 @@
+package support;
+
+import java.util.*;
+
+/**
+ * Immutable list that shares structure between versions. Elements are stored in a relaxed radix balanced trie of
+ * 32-way nodes: a node whose children are all full but the last one is indexed by the bits of the index, like a
+ * plain radix trie, and any other node keeps a table of the cumulative sizes of its children. So
+ * {@link #get(int)} and {@link #set(int, Object)} cost O(log32 n), which is effectively constant, and so do
+ * {@link #append(Object)}, {@link #pop()}, {@link #remove(int)} and {@link #insert(int, Object)} at any position:
+ * removing or inserting splits or merges nodes along the path to the element, and gives them size tables, instead of
+ * shifting every element after it. Each of them only copies the path to the changed element, so a new version
+ * shares everything else with the previous one. Every "modifying" method returns a new vector and leaves this one
+ * untouched, so a vector can be read from any number of threads without locking.
+ *
+ * @param <T> type of the elements.
+ */
+public final class PersistentVector<T> implements Iterable<T> {
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final PersistentVector<?> EMPTY = new PersistentVector<>(0, 0, new Node(new Object[0], null));
+
+    private final int size;
+    /**
+     * Level of the root: 0 if it is a leaf, and {@link #BITS} more for every level of nodes above the leaves.
+     */
+    private final int shift;
+    private final Node root;
+
+    /**
+     * Node of the trie. The children of a leaf are the elements, those of the nodes above are nodes one level
+     * down; there are 1 to 32 of them, except in the root of the empty vector.
+     */
+    private static final class Node {
+        final Object[] children;
+        /**
+         * Number of elements under the first {@code i + 1} children, or null if every child but the last one is
+         * full, so the child holding an index is given by its bits.
+         */
+        final int[] sizes;
+
+        Node(Object[] children, int[] sizes) {
+            this.children = children;
+            this.sizes = sizes;
+        }
+    }
+
+    private PersistentVector(int size, int shift, Node root) {
+        this.size = size;
+        this.shift = shift;
+        this.root = root;
+    }
+
+    /**
+     * @return the empty vector.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> PersistentVector<T> empty() {
+        return (PersistentVector<T>) EMPTY;
+    }
+
+    /**
+     * @param elements elements of the new vector, in order.
+     * @return a vector holding the specified elements.
+     */
+    public static <T> PersistentVector<T> of(Iterable<? extends T> elements) {
+        List<Object> list = new ArrayList<>();
+        for (T element : elements) list.add(element);
+        return build(list.toArray());
+    }
+
+    /**
+     * Builds the vector directly from an array, filling whole leaves at once instead of appending one element at a
+     * time. The array is not kept, so the caller may reuse it.
+     *
+     * @param elements elements of the new vector, in order.
+     * @return a vector holding the specified elements.
+     */
+    public static <T> PersistentVector<T> of(T[] elements) {
+        return build(elements);
+    }
+
+    private static <T> PersistentVector<T> build(Object[] elements) {
+        int size = elements.length;
+        if (size == 0) return empty();
+        Node[] nodes = new Node[(size + WIDTH - 1) >>> BITS];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = new Node(Arrays.copyOfRange(elements, i << BITS, Math.min(size, (i + 1) << BITS),
+                    Object[].class), null);
+        }
+        int shift = 0;
+        while (nodes.length > 1) {
+            Node[] parents = new Node[(nodes.length + WIDTH - 1) >>> BITS];
+            for (int i = 0; i < parents.length; i++) {
+                parents[i] = new Node(Arrays.copyOfRange(nodes, i << BITS, Math.min(nodes.length, (i + 1) << BITS),
+                        Object[].class), null);
+            }
+            nodes = parents;
+            shift += BITS;
+        }
+        return new PersistentVector<>(size, shift, nodes[0]);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @param node  node at {@code level}.
+     * @param index index relative to the first element under the node, at most its size.
+     * @return the position of the child holding the index, or of the last child for the index after the last
+     * element.
+     */
+    private static int child(Node node, int level, int index) {
+        int last = node.children.length - 1;
+        int sub = Math.min(index >>> level, last);
+        if (node.sizes == null) return sub;
+        // No child holds more than a full one, so the index is in this child or after it.
+        while (sub < last && node.sizes[sub] <= index) sub++;
+        return sub;
+    }
+
+    /**
+     * @return the number of elements under the children of the node before {@code sub}.
+     */
+    private static int offset(Node node, int level, int sub) {
+        if (sub == 0) return 0;
+        return node.sizes == null ? sub << level : node.sizes[sub - 1];
+    }
+
+    private static int sizeOf(Node node, int level) {
+        if (level == 0) return node.children.length;
+        if (node.sizes != null) return node.sizes[node.sizes.length - 1];
+        int last = node.children.length - 1;
+        return (last << level) + sizeOf((Node) node.children[last], level - BITS);
+    }
+
+    /**
+     * @return a node with the specified children, with a size table unless every child but the last one is full.
+     */
+    private static Node node(Object[] children, int level) {
+        if (level == 0) return new Node(children, null);
+        int[] sizes = new int[children.length];
+        boolean full = true;
+        int total = 0;
+        for (int i = 0; i < children.length; i++) {
+            int childSize = sizeOf((Node) children[i], level - BITS);
+            if (i < children.length - 1 && childSize != 1 << level) full = false;
+            total += childSize;
+            sizes[i] = total;
+        }
+        return new Node(children, full ? null : sizes);
+    }
+
+    /**
+     * @return the leaf holding the element at the specified index.
+     */
+    private Node leafFor(int index) {
+        Node node = root;
+        for (int level = shift; level > 0; level -= BITS) {
+            int sub = child(node, level, index);
+            index -= offset(node, level, sub);
+            node = (Node) node.children[sub];
+        }
+        return node;
+    }
+
+    /**
+     * @param index index of the element to return.
+     * @return the element at the specified position.
+     * @throws IndexOutOfBoundsException if the index is out of range.
+     */
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        Objects.checkIndex(index, size);
+        Node node = root;
+        for (int level = shift; level > 0; level -= BITS) {
+            int sub = child(node, level, index);
+            index -= offset(node, level, sub);
+            node = (Node) node.children[sub];
+        }
+        return (T) node.children[index];
+    }
+
+    /**
+     * @param index   index of the element to replace.
+     * @param element new element.
+     * @return a vector with the element at the specified position replaced.
+     * @throws IndexOutOfBoundsException if the index is out of range.
+     */
+    public PersistentVector<T> set(int index, T element) {
+        Objects.checkIndex(index, size);
+        return new PersistentVector<>(size, shift, set(root, shift, index, element));
+    }
+
+    private static Node set(Node node, int level, int index, Object element) {
+        Object[] children = node.children.clone();
+        if (level == 0) {
+            children[index] = element;
+        } else {
+            int sub = child(node, level, index);
+            children[sub] = set((Node) children[sub], level - BITS, index - offset(node, level, sub), element);
+        }
+        return new Node(children, node.sizes);
+    }
+
+    /**
+     * @param element element to be appended.
+     * @return a vector with the element appended to the end.
+     */
+    public PersistentVector<T> append(T element) {
+        return insert(size, element);
+    }
+
+    /**
+     * @return a vector without the last element.
+     * @throws IllegalStateException if the vector is empty.
+     */
+    public PersistentVector<T> pop() {
+        if (size == 0) throw new IllegalStateException("Vector is empty");
+        return remove(size - 1);
+    }
+
+    /**
+     * Removes the element at the specified position, merging the nodes along the way that became less than half
+     * full with a neighbor when they fit in one node.
+     *
+     * @param index index of the element to remove.
+     * @return a vector without the element at the specified position.
+     * @throws IndexOutOfBoundsException if the index is out of range.
+     */
+    public PersistentVector<T> remove(int index) {
+        Objects.checkIndex(index, size);
+        if (size == 1) return empty();
+        Node newRoot = remove(root, shift, index);
+        int newShift = shift;
+        while (newShift > 0 && newRoot.children.length == 1) {
+            newRoot = (Node) newRoot.children[0];
+            newShift -= BITS;
+        }
+        return new PersistentVector<>(size - 1, newShift, newRoot);
+    }
+
+    /**
+     * @return the node without the element, or null if it was its only element.
+     */
+    private static Node remove(Node node, int level, int index) {
+        Object[] children = node.children;
+        if (level == 0) {
+            if (children.length == 1) return null;
+            Object[] result = new Object[children.length - 1];
+            System.arraycopy(children, 0, result, 0, index);
+            System.arraycopy(children, index + 1, result, index, result.length - index);
+            return new Node(result, null);
+        }
+        int sub = child(node, level, index);
+        Node changed = remove((Node) children[sub], level - BITS, index - offset(node, level, sub));
+        Object[] result;
+        if (changed == null) {
+            if (children.length == 1) return null;
+            result = new Object[children.length - 1];
+            System.arraycopy(children, 0, result, 0, sub);
+            System.arraycopy(children, sub + 1, result, sub, result.length - sub);
+        } else {
+            result = children.clone();
+            result[sub] = changed;
+            int neighbor = sub + 1 < result.length ? sub + 1 : sub - 1;
+            int length = changed.children.length;
+            if (length < WIDTH / 2 && neighbor >= 0
+                    && length + ((Node) result[neighbor]).children.length <= WIDTH) {
+                int left = Math.min(sub, neighbor);
+                Node merged = merge((Node) result[left], (Node) result[left + 1], level - BITS);
+                Object[] fewer = new Object[result.length - 1];
+                System.arraycopy(result, 0, fewer, 0, left);
+                fewer[left] = merged;
+                System.arraycopy(result, left + 2, fewer, left + 1, fewer.length - left - 1);
+                result = fewer;
+            }
+        }
+        return node(result, level);
+    }
+
+    private static Node merge(Node left, Node right, int level) {
+        Object[] children = Arrays.copyOf(left.children, left.children.length + right.children.length);
+        System.arraycopy(right.children, 0, children, left.children.length, right.children.length);
+        return node(children, level);
+    }
+
+    /**
+     * Inserts an element at the specified position, splitting the nodes along the way that overflow.
+     *
+     * @param index   index the element will have in the new vector.
+     * @param element element to be inserted.
+     * @return a vector with the element inserted.
+     * @throws IndexOutOfBoundsException if the index is out of range.
+     */
+    public PersistentVector<T> insert(int index, T element) {
+        Objects.checkIndex(index, size + 1);
+        Node[] nodes = insert(root, shift, index, element);
+        if (nodes.length == 1) return new PersistentVector<>(size + 1, shift, nodes[0]);
+        return new PersistentVector<>(size + 1, shift + BITS, node(nodes, shift + BITS));
+    }
+
+    /**
+     * @return the node with the element inserted, or the two nodes it was split into if it overflowed.
+     */
+    private static Node[] insert(Node node, int level, int index, Object element) {
+        Object[] children = node.children;
+        Object[] result;
+        int at;
+        if (level == 0) {
+            at = index;
+            result = new Object[children.length + 1];
+            result[index] = element;
+        } else {
+            int sub = child(node, level, index);
+            Node[] changed = insert((Node) children[sub], level - BITS, index - offset(node, level, sub), element);
+            at = sub + changed.length - 1;
+            result = new Object[children.length + changed.length - 1];
+            System.arraycopy(changed, 0, result, sub, changed.length);
+            index = sub;
+            if (changed.length == 1) {
+                System.arraycopy(children, 0, result, 0, sub);
+                System.arraycopy(children, sub + 1, result, sub + 1, children.length - sub - 1);
+                return new Node[]{node(result, level)};
+            }
+        }
+        System.arraycopy(children, 0, result, 0, index);
+        System.arraycopy(children, index + (at == index ? 0 : 1), result, at + 1, result.length - at - 1);
+        if (result.length <= WIDTH) return new Node[]{node(result, level)};
+        // Appending keeps the left node full, so a vector built by appending needs no size tables.
+        int split = at == result.length - 1 ? WIDTH : result.length / 2;
+        return new Node[]{node(Arrays.copyOfRange(result, 0, split), level),
+                node(Arrays.copyOfRange(result, split, result.length), level)};
+    }
+
+    /**
+     * @param element element to search for.
+     * @return index of the first occurrence of the element, or -1 if it is not in the vector.
+     */
+    public int indexOf(Object element) {
+        int index = 0;
+        for (T candidate : this) {
+            if (Objects.equals(candidate, element)) return index;
+            index++;
+        }
+        return -1;
+    }
+
+    /**
+     * @return a new mutable list holding the elements of this vector.
+     */
+    public ArrayList<T> toList() {
+        ArrayList<T> list = new ArrayList<>(size);
+        for (T element : this) list.add(element);
+        return list;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<>() {
+            private int index;
+            private Object[] leaf;
+            private int inLeaf;
+
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public T next() {
+                if (index >= size) throw new NoSuchElementException();
+                if (leaf == null || inLeaf == leaf.length) {
+                    leaf = leafFor(index).children;
+                    inLeaf = 0;
+                }
+                index++;
+                return (T) leaf[inLeaf++];
+            }
+        };
+    }
+}
@@ -0,0 +1,474 @@
+package support;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live figures of the playback core: decoding, writes to the audio device, underruns, seeks, track switches,
+ * metadata parsing, cache hit rates, rebuffering and reconnects of remote streams, file reads by priority, the
+ * memory of the caches, resources released while idle, the replication of the queue to other players, and songs
+ * started from a decoded intro. Counters are {@link LongAdder}s and durations go to
+ * {@link LatencyHistogram}s, so recording never makes the track thread wait for another thread.<br>
+ * The figures are published over JMX as {@code support:type=PlaybackMetrics}, for JConsole or any JMX client.
+ * When {@code player.metrics.port} is set, they are also served as plain text at
+ * {@code http://localhost:<port>/metrics}.
+ */
+public final class PlaybackMetrics implements PlaybackMetricsMXBean {
+    private static final PlaybackMetrics GLOBAL = new PlaybackMetrics();
+
+    private final LongAdder framesDecoded = new LongAdder();
+    private final LatencyHistogram decodeTime = new LatencyHistogram();
+    private final LatencyHistogram deviceWriteTime = new LatencyHistogram();
+    private final LongAdder underruns = new LongAdder();
+    private final LatencyHistogram seekTime = new LatencyHistogram();
+    private final LatencyHistogram trackSwitchTime = new LatencyHistogram();
+    private final LongAdder metadataQueued = new LongAdder();
+    private final LatencyHistogram metadataParseTime = new LatencyHistogram();
+    private final LongAdder prefetchHits = new LongAdder();
+    private final LongAdder prefetchMisses = new LongAdder();
+    private final LongAdder waveformMemoryHits = new LongAdder();
+    private final LongAdder waveformDiskHits = new LongAdder();
+    private final LongAdder waveformMisses = new LongAdder();
+    private final LongAdder streamRebuffers = new LongAdder();
+    private final LongAdder streamReconnects = new LongAdder();
+    /**
+     * Bytes read and read times of files, by {@link IoScheduler.Priority}.
+     */
+    private final LongAdder[] ioBytes = new LongAdder[IoScheduler.Priority.values().length];
+    private final LatencyHistogram[] ioReadTime = new LatencyHistogram[IoScheduler.Priority.values().length];
+    private final LongAdder ioPreemptions = new LongAdder();
+    private final LongAdder memoryEvictions = new LongAdder();
+    private final LongAdder memoryEvictedBytes = new LongAdder();
+    private final LongAdder memoryPressureEvents = new LongAdder();
+    private final LongAdder idleReleases = new LongAdder();
+    private final LatencyHistogram idleResumeTime = new LatencyHistogram();
+    private final LongAdder replicationOpsSent = new LongAdder();
+    private final LongAdder replicationSnapshots = new LongAdder();
+    private final LongAdder replicationOpsApplied = new LongAdder();
+    private final LongAdder introHits = new LongAdder();
+    private final LongAdder introMisses = new LongAdder();
+    private final LatencyHistogram introTakeoverWait = new LatencyHistogram();
+
+    PlaybackMetrics() {
+        for (int i = 0; i < ioBytes.length; i++) {
+            ioBytes[i] = new LongAdder();
+            ioReadTime[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @return the metrics of this process.
+     */
+    public static PlaybackMetrics global() {
+        return GLOBAL;
+    }
+
+    /**
+     * Registers the global metrics with the platform MBean server and, if {@code player.metrics.port} is set,
+     * starts serving them over HTTP. Failures are reported and otherwise ignored, since the player works without
+     * metrics.
+     */
+    public static void publish() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(GLOBAL,
+                    new ObjectName("support:type=PlaybackMetrics"));
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        int port = Integer.getInteger("player.metrics.port", 0);
+        if (port <= 0) return;
+        // The server's dispatcher thread inherits being a daemon from the thread that starts it.
+        Thread starter = new Thread(() -> serve(port), "metrics");
+        starter.setDaemon(true);
+        starter.start();
+    }
+
+    private static void serve(int port) {
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = GLOBAL.dump().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    //<editor-fold desc="Recording">
+    public void frameDecoded(long startNanos) {
+        framesDecoded.increment();
+        decodeTime.recordSince(startNanos);
+    }
+
+    public void deviceWritten(long startNanos) {
+        deviceWriteTime.recordSince(startNanos);
+    }
+
+    public void underrun() {
+        underruns.increment();
+    }
+
+    public void seeked(long startNanos) {
+        seekTime.recordSince(startNanos);
+    }
+
+    /**
+     * @param startNanos time the switch was requested, as returned by {@link System#nanoTime()}.
+     */
+    public void trackSwitched(long startNanos) {
+        trackSwitchTime.recordSince(startNanos);
+    }
+
+    /**
+     * Called before a file is parsed for its metadata; must be followed by {@link #metadataParsed(long)}.
+     *
+     * @return the time to pass to {@link #metadataParsed(long)}.
+     */
+    public long metadataQueued() {
+        metadataQueued.increment();
+        return System.nanoTime();
+    }
+
+    public void metadataParsed(long startNanos) {
+        metadataQueued.decrement();
+        metadataParseTime.recordSince(startNanos);
+    }
+
+    public void prefetch(boolean hit) {
+        (hit ? prefetchHits : prefetchMisses).increment();
+    }
+
+    public void waveformFromMemory() {
+        waveformMemoryHits.increment();
+    }
+
+    public void waveformFromDisk() {
+        waveformDiskHits.increment();
+    }
+
+    public void waveformComputed() {
+        waveformMisses.increment();
+    }
+
+    /**
+     * Called when a remote stream ran out of buffered data while being read.
+     */
+    public void streamRebuffered() {
+        streamRebuffers.increment();
+    }
+
+    public void streamReconnected() {
+        streamReconnects.increment();
+    }
+
+    /**
+     * @param startNanos time the read was requested, before the scheduler admitted it.
+     */
+    public void ioRead(IoScheduler.Priority priority, long bytes, long startNanos) {
+        ioBytes[priority.ordinal()].add(bytes);
+        ioReadTime[priority.ordinal()].recordSince(startNanos);
+    }
+
+    /**
+     * Called when a read waits because playback is short of data.
+     */
+    public void ioPreempted() {
+        ioPreemptions.increment();
+    }
+
+    /**
+     * Called when the {@link MemoryBudget} evicts an entry from a cache.
+     */
+    public void memoryEvicted(long bytes) {
+        memoryEvictions.increment();
+        memoryEvictedBytes.add(bytes);
+    }
+
+    /**
+     * Called when a heap memory pool crossed its usage threshold.
+     */
+    public void memoryPressure() {
+        memoryPressureEvents.increment();
+    }
+
+    /**
+     * Called when the audio device and the file of a paused or stopped song are released.
+     */
+    public void idleReleased() {
+        idleReleases.increment();
+    }
+
+    /**
+     * @param startNanos time the released song started being reopened.
+     */
+    public void idleResumed(long startNanos) {
+        idleResumeTime.recordSince(startNanos);
+    }
+
+    /**
+     * Called when a {@link ReplicationLeader} sends operations of its log to a follower.
+     */
+    public void replicationSent(int ops) {
+        replicationOpsSent.add(ops);
+    }
+
+    /**
+     * Called when a {@link ReplicationLeader} sends the whole queue to a follower that could not catch up from
+     * its log.
+     */
+    public void replicationSnapshotSent() {
+        replicationSnapshots.increment();
+    }
+
+    public void replicationApplied(int ops) {
+        replicationOpsApplied.add(ops);
+    }
+
+    /**
+     * @param hit True if the song started from its decoded intro, false if it had to wait for its file.
+     */
+    public void introStarted(boolean hit) {
+        (hit ? introHits : introMisses).increment();
+    }
+
+    /**
+     * @param startNanos time the intro ran out, before waiting for the decoder opened in the background.
+     */
+    public void introTakenOver(long startNanos) {
+        introTakeoverWait.recordSince(startNanos);
+    }
+    //</editor-fold>
+
+    @Override
+    public long getFramesDecoded() {
+        return framesDecoded.sum();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getDecodeTime() {
+        return decodeTime.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getDeviceWriteTime() {
+        return deviceWriteTime.snapshot();
+    }
+
+    @Override
+    public long getUnderruns() {
+        return underruns.sum();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getSeekTime() {
+        return seekTime.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getTrackSwitchTime() {
+        return trackSwitchTime.snapshot();
+    }
+
+    @Override
+    public long getMetadataQueueDepth() {
+        return metadataQueued.sum();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getMetadataParseTime() {
+        return metadataParseTime.snapshot();
+    }
+
+    @Override
+    public double getPrefetchHitRate() {
+        return rate(prefetchHits.sum(), prefetchMisses.sum());
+    }
+
+    @Override
+    public double getWaveformMemoryHitRate() {
+        long memory = waveformMemoryHits.sum();
+        return rate(memory, waveformDiskHits.sum() + waveformMisses.sum());
+    }
+
+    @Override
+    public double getWaveformDiskHitRate() {
+        long disk = waveformDiskHits.sum();
+        return rate(disk, waveformMisses.sum());
+    }
+
+    @Override
+    public long getStreamRebuffers() {
+        return streamRebuffers.sum();
+    }
+
+    @Override
+    public long getStreamReconnects() {
+        return streamReconnects.sum();
+    }
+
+    @Override
+    public long getIoPlaybackBytes() {
+        return ioBytes[IoScheduler.Priority.PLAYBACK.ordinal()].sum();
+    }
+
+    @Override
+    public long getIoInteractiveBytes() {
+        return ioBytes[IoScheduler.Priority.INTERACTIVE.ordinal()].sum();
+    }
+
+    @Override
+    public long getIoBackgroundBytes() {
+        return ioBytes[IoScheduler.Priority.BACKGROUND.ordinal()].sum();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getIoPlaybackReadTime() {
+        return ioReadTime[IoScheduler.Priority.PLAYBACK.ordinal()].snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getIoInteractiveReadTime() {
+        return ioReadTime[IoScheduler.Priority.INTERACTIVE.ordinal()].snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getIoBackgroundReadTime() {
+        return ioReadTime[IoScheduler.Priority.BACKGROUND.ordinal()].snapshot();
+    }
+
+    @Override
+    public long getIoPreemptions() {
+        return ioPreemptions.sum();
+    }
+
+    @Override
+    public long getCacheHeapBytes() {
+        return MemoryBudget.global().getHeapBytes();
+    }
+
+    @Override
+    public long getCacheOffHeapBytes() {
+        return MemoryBudget.global().getOffHeapBytes();
+    }
+
+    @Override
+    public long getMemoryEvictions() {
+        return memoryEvictions.sum();
+    }
+
+    @Override
+    public long getMemoryEvictedBytes() {
+        return memoryEvictedBytes.sum();
+    }
+
+    @Override
+    public long getMemoryPressureEvents() {
+        return memoryPressureEvents.sum();
+    }
+
+    @Override
+    public long getIdleReleases() {
+        return idleReleases.sum();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getIdleResumeTime() {
+        return idleResumeTime.snapshot();
+    }
+
+    @Override
+    public long getReplicationOpsSent() {
+        return replicationOpsSent.sum();
+    }
+
+    @Override
+    public long getReplicationSnapshots() {
+        return replicationSnapshots.sum();
+    }
+
+    @Override
+    public long getReplicationOpsApplied() {
+        return replicationOpsApplied.sum();
+    }
+
+    @Override
+    public double getIntroHitRate() {
+        return rate(introHits.sum(), introMisses.sum());
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getIntroTakeoverWait() {
+        return introTakeoverWait.snapshot();
+    }
+
+    private static double rate(long hits, long misses) {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    @Override
+    public String dump() {
+        StringBuilder out = new StringBuilder();
+        line(out, "frames_decoded", getFramesDecoded());
+        histogram(out, "decode_time", getDecodeTime());
+        histogram(out, "device_write_time", getDeviceWriteTime());
+        line(out, "underruns", getUnderruns());
+        histogram(out, "seek_time", getSeekTime());
+        histogram(out, "track_switch_time", getTrackSwitchTime());
+        line(out, "metadata_queue_depth", getMetadataQueueDepth());
+        histogram(out, "metadata_parse_time", getMetadataParseTime());
+        out.append(String.format(Locale.ROOT, "prefetch_hit_rate %.3f\n", getPrefetchHitRate()));
+        out.append(String.format(Locale.ROOT, "waveform_memory_hit_rate %.3f\n", getWaveformMemoryHitRate()));
+        out.append(String.format(Locale.ROOT, "waveform_disk_hit_rate %.3f\n", getWaveformDiskHitRate()));
+        line(out, "stream_rebuffers", getStreamRebuffers());
+        line(out, "stream_reconnects", getStreamReconnects());
+        line(out, "io_playback_bytes", getIoPlaybackBytes());
+        histogram(out, "io_playback_read_time", getIoPlaybackReadTime());
+        line(out, "io_interactive_bytes", getIoInteractiveBytes());
+        histogram(out, "io_interactive_read_time", getIoInteractiveReadTime());
+        line(out, "io_background_bytes", getIoBackgroundBytes());
+        histogram(out, "io_background_read_time", getIoBackgroundReadTime());
+        line(out, "io_preemptions", getIoPreemptions());
+        line(out, "cache_heap_bytes", getCacheHeapBytes());
+        line(out, "cache_off_heap_bytes", getCacheOffHeapBytes());
+        line(out, "memory_evictions", getMemoryEvictions());
+        line(out, "memory_evicted_bytes", getMemoryEvictedBytes());
+        line(out, "memory_pressure_events", getMemoryPressureEvents());
+        line(out, "idle_releases", getIdleReleases());
+        histogram(out, "idle_resume_time", getIdleResumeTime());
+        line(out, "replication_ops_sent", getReplicationOpsSent());
+        line(out, "replication_snapshots", getReplicationSnapshots());
+        line(out, "replication_ops_applied", getReplicationOpsApplied());
+        out.append(String.format(Locale.ROOT, "intro_hit_rate %.3f\n", getIntroHitRate()));
+        histogram(out, "intro_takeover_wait", getIntroTakeoverWait());
+        return out.toString();
+    }
+
+    private static void line(StringBuilder out, String name, long value) {
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void histogram(StringBuilder out, String name, LatencyHistogram.Snapshot snapshot) {
+        line(out, name + "_count", snapshot.getCount());
+        line(out, name + "_mean_us", snapshot.getMeanMicros());
+        line(out, name + "_p50_us", snapshot.getP50Micros());
+        line(out, name + "_p90_us", snapshot.getP90Micros());
+        line(out, name + "_p99_us", snapshot.getP99Micros());
+        line(out, name + "_max_us", snapshot.getMaxMicros());
+    }
+}
@@ -0,0 +1,76 @@
+package support;
+
+/**
+ * Management interface of {@link PlaybackMetrics}, registered as {@code support:type=PlaybackMetrics}.
+ * Durations are in microseconds.
+ */
+public interface PlaybackMetricsMXBean {
+    long getFramesDecoded();
+
+    LatencyHistogram.Snapshot getDecodeTime();
+
+    LatencyHistogram.Snapshot getDeviceWriteTime();
+
+    long getUnderruns();
+
+    LatencyHistogram.Snapshot getSeekTime();
+
+    LatencyHistogram.Snapshot getTrackSwitchTime();
+
+    long getMetadataQueueDepth();
+
+    LatencyHistogram.Snapshot getMetadataParseTime();
+
+    double getPrefetchHitRate();
+
+    double getWaveformMemoryHitRate();
+
+    double getWaveformDiskHitRate();
+
+    long getStreamRebuffers();
+
+    long getStreamReconnects();
+
+    long getIoPlaybackBytes();
+
+    long getIoInteractiveBytes();
+
+    long getIoBackgroundBytes();
+
+    LatencyHistogram.Snapshot getIoPlaybackReadTime();
+
+    LatencyHistogram.Snapshot getIoInteractiveReadTime();
+
+    LatencyHistogram.Snapshot getIoBackgroundReadTime();
+
+    long getIoPreemptions();
+
+    long getCacheHeapBytes();
+
+    long getCacheOffHeapBytes();
+
+    long getMemoryEvictions();
+
+    long getMemoryEvictedBytes();
+
+    long getMemoryPressureEvents();
+
+    long getIdleReleases();
+
+    LatencyHistogram.Snapshot getIdleResumeTime();
+
+    long getReplicationOpsSent();
+
+    long getReplicationSnapshots();
+
+    long getReplicationOpsApplied();
+
+    double getIntroHitRate();
+
+    LatencyHistogram.Snapshot getIntroTakeoverWait();
+
+    /**
+     * @return every figure as plain text, one per line.
+     */
+    String dump();
+}
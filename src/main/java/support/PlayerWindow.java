@@ -4,19 +4,36 @@ import com.formdev.flatlaf.FlatLightLaf;
 import com.mpatric.mp3agic.*;
 
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.event.MouseInputAdapter;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import javax.swing.table.DefaultTableCellRenderer;
 import javax.swing.table.DefaultTableModel;
+import javax.swing.table.TableRowSorter;
 import java.awt.*;
 import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 
 @SuppressWarnings("FieldCanBeLocal")
 public class PlayerWindow {
@@ -27,14 +44,19 @@ public class PlayerWindow {
     private final JFrame window = new JFrame();
     private final JPanel queuePanel;
     private final JTable queueList;
+    private final JTextField queueSearchField;
+    private RowFilter<Object, Object> queueFilter;
     private final JButton playNowButton;
     private final JButton removeSongButton;
     private final JButton addSongButton;
+    private final JButton importButton;
+    private final JButton exportButton;
+    private final JButton announceButton;
 
     private final JPanel miniPlayerPanel;
     private final JLabel miniPlayerSongInfo;
     private final JLabel miniPlayerCurrentTime;
-    private final JSlider miniPlayerScrubber;
+    private final WaveformScrubber miniPlayerScrubber;
     private final JLabel miniPlayerTotalTime;
     private final JToggleButton miniPlayerShuffleButton;
     private final JButton miniPlayerPreviousButton;
@@ -43,13 +65,14 @@ public class PlayerWindow {
     private final JButton miniPlayerNextButton;
     private final JToggleButton miniPlayerLoopButton;
 
-    private final ImageIcon iconNext;
-    private final ImageIcon iconPause;
-    private final ImageIcon iconPlay;
-    private final ImageIcon iconPrevious;
-    private final ImageIcon iconLoop;
-    private final ImageIcon iconShuffle;
-    private final ImageIcon iconStop;
+    private ImageIcon iconNext;
+    private ImageIcon iconPause;
+    private ImageIcon iconPlay;
+    private ImageIcon iconPrevious;
+    private ImageIcon iconLoop;
+    private ImageIcon iconShuffle;
+    private ImageIcon iconStop;
+    private int playPauseIcon = BUTTON_ICON_PLAY;
 
     /**
      * @param windowTitle               String to be used as the window title.
@@ -57,13 +80,21 @@ public class PlayerWindow {
      * @param buttonListenerPlayNow     ActionListener for the "Play Now" button.
      * @param buttonListenerRemove      ActionListener for the "Remove" button.
      * @param buttonListenerAddSong     ActionListener for the "Add Song" button.
+     * @param buttonListenerImport      ActionListener for the "Import" button.
+     * @param buttonListenerExport      ActionListener for the "Export" button.
+     * @param buttonListenerAnnounce    ActionListener for the "Announce" button.
      * @param buttonListenerShuffle     ActionListener for the "Shuffle" button.
      * @param buttonListenerPrevious    ActionListener for the "Previous" button.
      * @param buttonListenerPlayPause   ActionListener for the "Play/Pause" button.
+     * @param playPauseHoverListener    Called when the mouse enters the "Play/Pause" button.
      * @param buttonListenerStop        ActionListener for the "Stop" button.
      * @param buttonListenerNext        ActionListener for the "Next" button.
      * @param buttonListenerLoop        ActionListener for the "Loop" button.
      * @param scrubberMouseInputAdapter MouseInputAdapter for the Scrubber.
+     * @param queueSortListener         Called with the index of the column whose header was clicked in the queue.
+     * @param queueSearchListener       Called with the text of the search field whenever it changes.
+     * @param queueSelectionListener    Called with the index of the selected song in the queue whenever the selection
+     *                                  changes, -1 if none.
      */
     public PlayerWindow(
             String windowTitle,
@@ -71,57 +102,36 @@ public class PlayerWindow {
             ActionListener buttonListenerPlayNow,
             ActionListener buttonListenerRemove,
             ActionListener buttonListenerAddSong,
+            ActionListener buttonListenerImport,
+            ActionListener buttonListenerExport,
+            ActionListener buttonListenerAnnounce,
             ActionListener buttonListenerShuffle,
             ActionListener buttonListenerPrevious,
             ActionListener buttonListenerPlayPause,
+            Runnable playPauseHoverListener,
             ActionListener buttonListenerStop,
             ActionListener buttonListenerNext,
             ActionListener buttonListenerLoop,
-            MouseInputAdapter scrubberMouseInputAdapter) {
+            MouseInputAdapter scrubberMouseInputAdapter,
+            IntConsumer queueSortListener,
+            Consumer<String> queueSearchListener,
+            IntConsumer queueSelectionListener) {
 
-        // Setting theme and typeface.
+        // Setting theme and typeface. The typeface is applied as soon as it is loaded, without holding the window.
         try {
             UIManager.setLookAndFeel(new FlatLightLaf());
-
-            Font baseFont = Fonts.getRoboto();
-            Font finalFont = baseFont.deriveFont(Font.PLAIN, 14);
-            GraphicsEnvironment.getLocalGraphicsEnvironment().registerFont(finalFont);
-
-            UIManager.put("Button.font", finalFont);
-            UIManager.put("ToggleButton.font", finalFont);
-            UIManager.put("RadioButton.font", finalFont);
-            UIManager.put("CheckBox.font", finalFont);
-            UIManager.put("ColorChooser.font", finalFont);
-            UIManager.put("ComboBox.font", finalFont);
-            UIManager.put("Label.font", finalFont);
-            UIManager.put("List.font", finalFont);
-            UIManager.put("MenuBar.font", finalFont);
-            UIManager.put("MenuItem.font", finalFont);
-            UIManager.put("RadioButtonMenuItem.font", finalFont);
-            UIManager.put("CheckBoxMenuItem.font", finalFont);
-            UIManager.put("Menu.font", finalFont);
-            UIManager.put("PopupMenu.font", finalFont);
-            UIManager.put("OptionPane.font", finalFont);
-            UIManager.put("Panel.font", finalFont);
-            UIManager.put("ProgressBar.font", finalFont);
-            UIManager.put("ScrollPane.font", finalFont);
-            UIManager.put("Viewport.font", finalFont);
-            UIManager.put("TabbedPane.font", finalFont);
-            UIManager.put("Table.font", finalFont);
-            UIManager.put("TableHeader.font", finalFont);
-            UIManager.put("TextField.font", finalFont);
-            UIManager.put("FormattedTextField.font", finalFont);
-            UIManager.put("PasswordField.font", finalFont);
-            UIManager.put("TextArea.font", finalFont);
-            UIManager.put("TextPane.font", finalFont);
-            UIManager.put("EditorPane.font", finalFont);
-            UIManager.put("TitledBorder.font", finalFont);
-            UIManager.put("ToolBar.font", finalFont);
-            UIManager.put("ToolTip.font", finalFont);
-            UIManager.put("Tree.font", finalFont);
         } catch (UnsupportedLookAndFeelException e) {
             e.printStackTrace();
         }
+        Font loadedFont = Fonts.load().getNow(null);
+        if (loadedFont != null) {
+            setDefaultFont(loadedFont);
+        } else {
+            Fonts.load().thenAccept(font -> EventQueue.invokeLater(() -> {
+                setDefaultFont(font);
+                SwingUtilities.updateComponentTreeUI(window);
+            }));
+        }
 
         JPanel mainPanel = new JPanel();
 
@@ -132,28 +142,68 @@ public class PlayerWindow {
         JScrollPane queueListPane = new JScrollPane();
 
         queueList = new JTable();
+        queueSearchField = new JTextField();
 
         queuePanel.setLayout(new BorderLayout());
+        queueSearchField.putClientProperty("JTextField.placeholderText", "Search");
+        queueSearchField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                queueSearchListener.accept(queueSearchField.getText());
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                queueSearchListener.accept(queueSearchField.getText());
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+            }
+        });
         queueListPane.setViewportView(queueList);
+        queueList.getTableHeader().addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int column = queueList.columnAtPoint(e.getPoint());
+                if (column >= 0) queueSortListener.accept(queueList.convertColumnIndexToModel(column));
+            }
+        });
+        queueList.getSelectionModel().addListSelectionListener(e -> {
+            if (!e.getValueIsAdjusting()) queueSelectionListener.accept(getSelectedSongIndex());
+        });
         setQueueList(queueArray);
         queuePanelButtons.setLayout(new BoxLayout(queuePanelButtons, BoxLayout.X_AXIS));
         queuePanelButtons.setBorder(BorderFactory.createEmptyBorder(5, 0, 0, 0));
         playNowButton = new JButton("Play Now");
         removeSongButton = new JButton("Remove");
         addSongButton = new JButton("Add song...");
+        importButton = new JButton("Import...");
+        exportButton = new JButton("Export...");
+        announceButton = new JButton("Announce...");
         queuePanelButtons.add(playNowButton);
         queuePanelButtons.add(Box.createRigidArea(new Dimension(5, 0)));
         queuePanelButtons.add(removeSongButton);
         queuePanelButtons.add(Box.createHorizontalGlue());
+        queuePanelButtons.add(announceButton);
+        queuePanelButtons.add(Box.createRigidArea(new Dimension(5, 0)));
+        queuePanelButtons.add(importButton);
+        queuePanelButtons.add(Box.createRigidArea(new Dimension(5, 0)));
+        queuePanelButtons.add(exportButton);
+        queuePanelButtons.add(Box.createRigidArea(new Dimension(5, 0)));
         queuePanelButtons.add(addSongButton);
         playNowButton.setEnabled(false);
         removeSongButton.setEnabled(false);
+        queuePanel.add(queueSearchField, BorderLayout.PAGE_START);
         queuePanel.add(queueListPane, BorderLayout.CENTER);
         queuePanel.add(queuePanelButtons, BorderLayout.PAGE_END);
 
         playNowButton.addActionListener(buttonListenerPlayNow);
         removeSongButton.addActionListener(buttonListenerRemove);
         addSongButton.addActionListener(buttonListenerAddSong);
+        importButton.addActionListener(buttonListenerImport);
+        exportButton.addActionListener(buttonListenerExport);
+        announceButton.addActionListener(buttonListenerAnnounce);
         //</editor-fold>
 
         //<editor-fold desc="Mini-player Panel">
@@ -164,22 +214,19 @@ public class PlayerWindow {
 
         miniPlayerSongInfo = new JLabel();
         miniPlayerCurrentTime = new JLabel("- - : - -");
-        miniPlayerScrubber = new JSlider();
+        miniPlayerScrubber = new WaveformScrubber();
         miniPlayerTotalTime = new JLabel("- - : - -");
-        ImageIcon[] icons = Icons.getIcons24();
-        iconNext = icons[0];
-        iconPause = icons[1];
-        iconPlay = icons[2];
-        iconPrevious = icons[3];
-        iconLoop = icons[4];
-        iconShuffle = icons[5];
-        iconStop = icons[6];
-        miniPlayerShuffleButton = new JToggleButton(iconShuffle);
-        miniPlayerPreviousButton = new JButton(iconPrevious);
-        miniPlayerPlayPauseButton = new JButton(iconPlay);
-        miniPlayerStopButton = new JButton(iconStop);
-        miniPlayerNextButton = new JButton(iconNext);
-        miniPlayerLoopButton = new JToggleButton(iconLoop);
+        // Buttons keep an empty icon of the same size until the icons are loaded, so the layout doesn't change.
+        ImageIcon placeholder = new ImageIcon(new BufferedImage(24, 24, BufferedImage.TYPE_INT_ARGB));
+        miniPlayerShuffleButton = new JToggleButton(placeholder);
+        miniPlayerPreviousButton = new JButton(placeholder);
+        miniPlayerPlayPauseButton = new JButton(placeholder);
+        miniPlayerStopButton = new JButton(placeholder);
+        miniPlayerNextButton = new JButton(placeholder);
+        miniPlayerLoopButton = new JToggleButton(placeholder);
+        ImageIcon[] loadedIcons = Icons.load(24).getNow(null);
+        if (loadedIcons != null) setIcons(loadedIcons);
+        else Icons.load(24).thenAccept(icons -> EventQueue.invokeLater(() -> setIcons(icons)));
 
         miniPlayerPanel.setLayout(new BoxLayout(miniPlayerPanel, BoxLayout.PAGE_AXIS));
         miniPlayerPanel.setBorder(BorderFactory.createEmptyBorder(10, 0, 0, 0));
@@ -247,6 +294,12 @@ public class PlayerWindow {
         miniPlayerShuffleButton.addActionListener(buttonListenerShuffle);
         miniPlayerPreviousButton.addActionListener(buttonListenerPrevious);
         miniPlayerPlayPauseButton.addActionListener(buttonListenerPlayPause);
+        miniPlayerPlayPauseButton.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseEntered(MouseEvent e) {
+                playPauseHoverListener.run();
+            }
+        });
         miniPlayerStopButton.addActionListener(buttonListenerStop);
         miniPlayerNextButton.addActionListener(buttonListenerNext);
         miniPlayerLoopButton.addActionListener(buttonListenerLoop);
@@ -268,9 +321,68 @@ public class PlayerWindow {
         mainPanel.add(queuePanel);
         mainPanel.add(miniPlayerPanel);
         window.add(mainPanel);
+        window.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowOpened(WindowEvent e) {
+                StartupTrace.mark("window visible");
+            }
+        });
         window.setVisible(true);
     }
 
+    private static final String[] FONT_KEYS = {
+            "Button",
+            "ToggleButton",
+            "RadioButton",
+            "CheckBox",
+            "ColorChooser",
+            "ComboBox",
+            "Label",
+            "List",
+            "MenuBar",
+            "MenuItem",
+            "RadioButtonMenuItem",
+            "CheckBoxMenuItem",
+            "Menu",
+            "PopupMenu",
+            "OptionPane",
+            "Panel",
+            "ProgressBar",
+            "ScrollPane",
+            "Viewport",
+            "TabbedPane",
+            "Table",
+            "TableHeader",
+            "TextField",
+            "FormattedTextField",
+            "PasswordField",
+            "TextArea",
+            "TextPane",
+            "EditorPane",
+            "TitledBorder",
+            "ToolBar",
+            "ToolTip",
+            "Tree"
+    };
+
+    /**
+     * Makes {@code baseFont} the default font of every component type.
+     */
+    private static void setDefaultFont(Font baseFont) {
+        Font finalFont = baseFont.deriveFont(Font.PLAIN, 14);
+        GraphicsEnvironment.getLocalGraphicsEnvironment().registerFont(finalFont);
+        for (String key : FONT_KEYS) UIManager.put(key + ".font", finalFont);
+    }
+
+    /**
+     * Starts loading the typeface and the icons in the background, so they are ready, or nearly, when the window is
+     * created. Can be called before anything else at startup; calling it is optional.
+     */
+    public static void preloadResources() {
+        Fonts.load();
+        Icons.load(24);
+    }
+
     /**
      * Sets the information to be displayed in the queue list. Should be called whenever a song is added or removed.
      *
@@ -284,12 +396,18 @@ public class PlayerWindow {
         queueList.getTableHeader().setResizingAllowed(false);
         queueList.setAutoResizeMode(JTable.AUTO_RESIZE_OFF);
         queueList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
-        queueList.setModel(new DefaultTableModel(queueArray, COLUMN_TITLES) {
+        DefaultTableModel model = new DefaultTableModel(queueArray, COLUMN_TITLES) {
             @Override
             public boolean isCellEditable(int row, int column) {
                 return false;
             }
-        });
+        };
+        queueList.setModel(model);
+        // Rows are only filtered here, sorting is done by the playlist itself.
+        TableRowSorter<DefaultTableModel> sorter = new TableRowSorter<>(model);
+        for (int column = 0; column < COLUMN_TITLES.length; column++) sorter.setSortable(column, false);
+        sorter.setRowFilter(queueFilter);
+        queueList.setRowSorter(sorter);
         queueList.getSelectionModel().addListSelectionListener(e -> {
             if (queueList.getSelectionModel().isSelectionEmpty()) {
                 playNowButton.setEnabled(false);
@@ -335,12 +453,30 @@ public class PlayerWindow {
      *              and BUTTON_ICON_PAUSE (1) to display the pause icon (playing).
      */
     public void setPlayPauseButtonIcon(int state) {
+        playPauseIcon = state;
+        if (iconPlay == null) return;           // set once the icons are loaded
         switch (state) {
             case 0 -> miniPlayerPlayPauseButton.setIcon(iconPlay);
             case 1 -> miniPlayerPlayPauseButton.setIcon(iconPause);
         }
     }
 
+    private void setIcons(ImageIcon[] icons) {
+        iconNext = icons[0];
+        iconPause = icons[1];
+        iconPlay = icons[2];
+        iconPrevious = icons[3];
+        iconLoop = icons[4];
+        iconShuffle = icons[5];
+        iconStop = icons[6];
+        miniPlayerShuffleButton.setIcon(iconShuffle);
+        miniPlayerPreviousButton.setIcon(iconPrevious);
+        miniPlayerStopButton.setIcon(iconStop);
+        miniPlayerNextButton.setIcon(iconNext);
+        miniPlayerLoopButton.setIcon(iconLoop);
+        setPlayPauseButtonIcon(playPauseIcon);
+    }
+
     /**
      * Enables or disables the Shuffle button.
      *
@@ -404,6 +540,15 @@ public class PlayerWindow {
         miniPlayerScrubber.setEnabled(enable);
     }
 
+    /**
+     * Sets the waveform drawn behind the scrubber.
+     *
+     * @param peaks peaks of the current song, or null to draw no waveform.
+     */
+    public void setWaveform(WaveformPeaks peaks) {
+        miniPlayerScrubber.setPeaks(peaks);
+    }
+
     /**
      * Updates the labels and scrubber values in the mini-player.
      *
@@ -425,6 +570,7 @@ public class PlayerWindow {
         miniPlayerTotalTime.setText("- - : - -");
         miniPlayerSongInfo.setText("");
         miniPlayerScrubber.setMaximum(0);
+        miniPlayerScrubber.setPeaks(null);
         setPlayPauseButtonIcon(BUTTON_ICON_PLAY);
         setEnabledPreviousButton(false);
         setEnabledNextButton(false);
@@ -446,7 +592,23 @@ public class PlayerWindow {
      * buttons are pressed.
      */
     public int getSelectedSongIndex() {
-        return queueList.getSelectedRow();
+        int row = queueList.getSelectedRow();
+        return row < 0 ? row : queueList.convertRowIndexToModel(row);
+    }
+
+    /**
+     * Shows only the songs with the specified UUIDs in the queue, in the order of the queue.
+     *
+     * @param uuids UUIDs of the songs to show, or null to show every song.
+     */
+    public void setQueueFilter(Set<String> uuids) {
+        queueFilter = uuids == null ? null : new RowFilter<>() {
+            @Override
+            public boolean include(Entry<?, ?> entry) {
+                return uuids.contains(entry.getStringValue(5));
+            }
+        };
+        ((TableRowSorter<?>) queueList.getRowSorter()).setRowFilter(queueFilter);
     }
 
     /**
@@ -476,6 +638,36 @@ public class PlayerWindow {
         }
     }
 
+    /**
+     * Opens a file chooser for an M3U playlist to be imported.
+     *
+     * @return the chosen file, or {@code null} if cancelled.
+     */
+    public File openPlaylistChooser() {
+        PlaylistFileChooser fileChooser = new PlaylistFileChooser();
+        if (fileChooser.showOpenDialog(this.window) == JFileChooser.APPROVE_OPTION) {
+            return fileChooser.getSelectedFile();
+        }
+        return null;
+    }
+
+    /**
+     * Opens a file chooser for the M3U playlist the queue is exported to. Adds the {@code .m3u8} extension if the
+     * chosen name has none.
+     *
+     * @return the chosen file, or {@code null} if cancelled.
+     */
+    public File savePlaylistChooser() {
+        PlaylistFileChooser fileChooser = new PlaylistFileChooser();
+        if (fileChooser.showSaveDialog(this.window) == JFileChooser.APPROVE_OPTION) {
+            File file = fileChooser.getSelectedFile();
+            String name = file.getName().toLowerCase();
+            if (!name.endsWith(".m3u") && !name.endsWith(".m3u8")) file = new File(file.getPath() + ".m3u8");
+            return file;
+        }
+        return null;
+    }
+
     /**
      * Opens a file chooser and returns an array of multiple copies of a {@link Song} object
      * with information parsed from the file. Each object has its own {@link UUID}.
@@ -501,13 +693,39 @@ public class PlayerWindow {
         }
     }
 
-    private Song parseInfo(File file) {
+    /**
+     * Parses the ID3 tags and frames of an MP3 file chosen by the user.
+     *
+     * @return a new {@link Song} with its own {@link UUID}, or null if the file could not be read.
+     */
+    static Song parseInfo(File file) {
+        return parseInfo(file, IoScheduler.Priority.INTERACTIVE);
+    }
+
+    /**
+     * Parses the ID3 tags and frames of an MP3 file. The whole file is read, as one read of the
+     * {@link IoScheduler} with the specified priority.
+     *
+     * @return a new {@link Song} with its own {@link UUID}, or null if the file could not be read.
+     */
+    static Song parseInfo(File file, IoScheduler.Priority priority) {
+        long start = PlaybackMetrics.global().metadataQueued();
+        try {
+            return IoScheduler.global().run(priority, file.length(), () -> parseTags(file));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            PlaybackMetrics.global().metadataParsed(start);
+        }
+    }
+
+    private static Song parseTags(File file) {
         String title = "";
         String album = "";
         String artist = "";
         String year = "";
         float msLength;
-        String strLength;
         String filePath = file.getPath();
         int fileSize = 0;
         try {
@@ -516,7 +734,6 @@ public class PlayerWindow {
             e.printStackTrace();
         }
         int numFrames;
-        float msPerFrame;
 
         // Try to get ID3 info
         Mp3File mp3File = null;
@@ -542,21 +759,13 @@ public class PlayerWindow {
 
         numFrames = mp3File.getFrameCount();
         msLength = mp3File.getLengthInMilliseconds();
-        msPerFrame = msLength / numFrames;
-
-        Duration duration = Duration.ofMillis((long) msLength);
-        long HH = duration.toHours();
-        long MM = duration.toMinutesPart();
-        long SS = duration.toSecondsPart();
-        strLength = String.format("%d:%02d:%02d", HH, MM, SS);
 
         if (title == null || title.isBlank()) title = "Untitled";
         if (album == null || album.isBlank()) album = "Untitled";
         if (artist == null || artist.isBlank()) artist = "Unknown";
         if (year == null || year.isBlank()) year = "Unknown";
 
-        String uuid = UUID.randomUUID().toString();
-        return new Song(uuid, title, album, artist, year, strLength, msLength, filePath, fileSize, numFrames, msPerFrame);
+        return new Song(UUID.randomUUID(), title, album, artist, year, msLength, filePath, fileSize, numFrames);
     }
 
     static final class CustomFileChooser extends JFileChooser {
@@ -570,52 +779,130 @@ public class PlayerWindow {
         }
     }
 
+    static final class PlaylistFileChooser extends JFileChooser {
+        private static final long serialVersionUID = 1L;
+
+        public PlaylistFileChooser() {
+            this.setFileSelectionMode(JFileChooser.FILES_ONLY);
+            this.setAcceptAllFileFilterUsed(false);
+            this.setFileFilter(new FileNameExtensionFilter("M3U playlist", "m3u", "m3u8"));
+            this.setPreferredSize(new Dimension(700, 550));
+            this.setCurrentDirectory(new File(System.getProperty("user.home")));
+        }
+    }
+
+    /**
+     * Scrubber that draws the waveform of the current song behind the track. The waveform is reduced to one
+     * column per pixel from the {@link WaveformPeaks} mipmap, so repainting costs the same for any song length.
+     */
+    static final class WaveformScrubber extends JSlider {
+        private static final long serialVersionUID = 1L;
+        private static final Color PLAYED = new Color(64, 128, 255, 90);
+        private static final Color REMAINING = new Color(128, 128, 128, 70);
+
+        private WaveformPeaks peaks;
+        private float[] columnMin = new float[0];
+        private float[] columnMax = new float[0];
+        private WaveformPeaks columnsOf;
+
+        public WaveformScrubber() {
+            setOpaque(false);
+        }
+
+        public void setPeaks(WaveformPeaks peaks) {
+            this.peaks = peaks;
+            repaint();
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            if (peaks != null && getMaximum() > 0) {
+                Insets insets = getInsets();
+                Dimension thumb = UIManager.getDimension("Slider.thumbSize");
+                int thumbHalf = thumb == null ? 6 : thumb.width / 2;
+                int left = insets.left + thumbHalf;
+                int width = getWidth() - insets.right - thumbHalf - left;
+                if (width > 0) {
+                    if (columnsOf != peaks || columnMin.length != width) {
+                        columnMin = new float[width];
+                        columnMax = new float[width];
+                        peaks.columns(width, columnMin, columnMax);
+                        columnsOf = peaks;
+                    }
+                    int middle = getHeight() / 2;
+                    int half = middle - 1;
+                    int played = (int) ((long) width * getValue() / getMaximum());
+                    for (int x = 0; x < width; x++) {
+                        g.setColor(x < played ? PLAYED : REMAINING);
+                        g.drawLine(left + x, middle - (int) (columnMax[x] * half),
+                                left + x, middle - (int) (columnMin[x] * half));
+                    }
+                }
+            }
+            super.paintComponent(g);
+        }
+    }
+
+    /**
+     * Icons of the mini-player buttons. Each size is loaded once, with its images read in parallel.
+     */
     static final class Icons {
+        private static final String[] NAMES = {"next", "pause", "play", "previous", "loop", "shuffle", "stop"};
+        private static final Map<Integer, CompletableFuture<ImageIcon[]>> LOADED = new ConcurrentHashMap<>();
+
+        /**
+         * Starts loading the icons of the specified size, unless already started.
+         *
+         * @return future completed with the icons, in the order next, pause, play, previous, loop, shuffle, stop.
+         */
+        public static CompletableFuture<ImageIcon[]> load(int size) {
+            return LOADED.computeIfAbsent(size, s -> {
+                List<CompletableFuture<ImageIcon>> icons = new ArrayList<>();
+                for (String name : NAMES) {
+                    icons.add(CompletableFuture.supplyAsync(() -> new ImageIcon(Objects.requireNonNull(
+                            Icons.class.getResource("/icons/" + name + "-" + s + ".png")))));
+                }
+                return CompletableFuture.allOf(icons.toArray(new CompletableFuture<?>[0]))
+                        .thenApply(v -> icons.stream().map(CompletableFuture::join).toArray(ImageIcon[]::new));
+            });
+        }
+
         public static ImageIcon[] getIcons24(){
-            ImageIcon next = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/next-24.png")));
-            ImageIcon pause = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/pause-24.png")));
-            ImageIcon play = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/play-24.png")));
-            ImageIcon previous = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/previous-24.png")));
-            ImageIcon loop = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/loop-24.png")));
-            ImageIcon shuffle = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/shuffle-24.png")));
-            ImageIcon stop = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/stop-24.png")));
-            return new ImageIcon[]{next, pause, play, previous, loop, shuffle, stop};
+            return load(24).join();
         }
 
         public static ImageIcon[] getIcons48(){
-            ImageIcon next = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/next-48.png")));
-            ImageIcon pause = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/pause-48.png")));
-            ImageIcon play = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/play-48.png")));
-            ImageIcon previous = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/previous-48.png")));
-            ImageIcon loop = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/loop-48.png")));
-            ImageIcon shuffle = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/shuffle-48.png")));
-            ImageIcon stop = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/stop-48.png")));
-            return new ImageIcon[]{next, pause, play, previous, loop, shuffle, stop};
+            return load(48).join();
         }
 
         public static ImageIcon[] getIcons96(){
-            ImageIcon next = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/next-96.png")));
-            ImageIcon pause = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/pause-96.png")));
-            ImageIcon play = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/play-96.png")));
-            ImageIcon previous = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/previous-96.png")));
-            ImageIcon loop = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/loop-96.png")));
-            ImageIcon shuffle = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/shuffle-96.png")));
-            ImageIcon stop = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/stop-96.png")));
-            return new ImageIcon[]{next, pause, play, previous, loop, shuffle, stop};
+            return load(96).join();
         }
     }
 
     static final class Fonts {
-        public static Font getRoboto() {
-            Font roboto;
-            try {
-                roboto = Font.createFont(
-                        Font.TRUETYPE_FONT,
-                        (Objects.requireNonNull(Fonts.class.getResourceAsStream("/fonts/roboto_condensed/RobotoCondensed-Regular.ttf"))));
-            } catch (FontFormatException | IOException e) {
-                throw new RuntimeException(e);
+        private static final CompletableFuture<Font> ROBOTO = new CompletableFuture<>();
+        private static final AtomicBoolean STARTED = new AtomicBoolean();
+
+        /**
+         * Starts loading Roboto Condensed in the background, unless already started.
+         */
+        public static CompletableFuture<Font> load() {
+            if (STARTED.compareAndSet(false, true)) {
+                CompletableFuture.runAsync(() -> {
+                    try {
+                        ROBOTO.complete(Font.createFont(Font.TRUETYPE_FONT, Objects.requireNonNull(Fonts.class
+                                .getResourceAsStream("/fonts/roboto_condensed/RobotoCondensed-Regular.ttf"))));
+                    } catch (FontFormatException | IOException | RuntimeException e) {
+                        ROBOTO.completeExceptionally(e);
+                    }
+                });
             }
-            return roboto;
+            return ROBOTO;
+        }
+
+        public static Font getRoboto() {
+            return load().join();
         }
     }
 
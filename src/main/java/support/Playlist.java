@@ -1,27 +1,331 @@
 package support;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.stream.Collectors;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 
 /**
- * Abstraction of a playlist. The data structure used to store the song is an {@link ArrayList}.
- * It has an index to point at a specified position, representing the song that is currently playing,
- * flags for loop and shuffle, methods to toggle shuffle modes, return previous and next song in the
- * playlist and more.
+ * Abstraction of a playlist. The whole state of the playlist (the songs, the index of the song that is currently
+ * playing and the loop and shuffle flags) is kept in an immutable {@link Snapshot}, published through an
+ * {@link AtomicReference}. Readers get a consistent snapshot without locking, and writers build a new snapshot
+ * and swap it in atomically, so the playlist is thread safe. The songs are stored in a {@link PersistentVector},
+ * so a new snapshot shares almost all of its structure with the previous one.<br>
+ * Because old snapshots stay valid, edits to the queue (adding, removing, sorting and shuffling songs) can be undone and
+ * redone cheaply.
  *
- * @see ArrayList
+ * @see Snapshot
+ * @see PersistentVector
  */
 public class Playlist {
 
     public final int SONG_NOT_FOUND = 0;
     public final int SONG_REMOVED = 1;
     public final int CURRENT_SONG_REMOVED = 2;
-    private int currentIndex;
-    private boolean looping;
-    private boolean shuffled;
-    private ArrayList<Song> list = new ArrayList<>();
-    private ArrayList<Song> copy = new ArrayList<>();
+    private static final int HISTORY_SIZE = 100;
+
+    private final AtomicReference<Snapshot> state = new AtomicReference<>(Snapshot.EMPTY);
+    private final Deque<Snapshot> undoHistory = new ArrayDeque<>();
+    private final Deque<Snapshot> redoHistory = new ArrayDeque<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    /**
+     * Calls to the listeners not made yet, queued in the order of the changes while the changes are made, and
+     * made by {@link #deliver()} once the playlist is unlocked.
+     */
+    private final Queue<Runnable> notifications = new ConcurrentLinkedQueue<>();
+    /**
+     * True while a thread makes the queued calls, so they are made one at a time.
+     */
+    private final AtomicBoolean delivering = new AtomicBoolean();
+
+    /**
+     * Receives the songs added to and removed from a {@link Playlist}. Calls are made in the order of the changes,
+     * one at a time, after the change and without holding any lock of the playlist, so listeners may read and
+     * change it. They are made by the thread that changed the playlist, or, if another thread is calling the
+     * listeners at that moment, by that thread right after its own calls; so listeners should return quickly.
+     * Reordering the songs is only reported to {@link #stateChanged(Snapshot)}.
+     */
+    public interface Listener {
+        void songsAdded(List<Song> songs);
+
+        void songsRemoved(List<Song> songs);
+
+        /**
+         * Called after every change of the playlist, reordering and the current index included, like the other
+         * methods. Changes made by several threads at once may be reported out of order, so listeners should
+         * compare {@link Snapshot#getVersion() versions} or read the latest snapshot.
+         *
+         * @param snapshot the state right after the change.
+         */
+        default void stateChanged(Snapshot snapshot) {
+        }
+    }
+
+    /**
+     * Immutable state of a {@link Playlist}. All methods read only this snapshot, so a sequence of calls on the
+     * same snapshot always sees the same playlist.
+     */
+    public static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(PersistentVector.empty(), PersistentVector.empty(), 0, false, false, 0);
+
+        private final PersistentVector<Song> list;
+        private final PersistentVector<Song> unshuffled;
+        private final int currentIndex;
+        private final boolean looping;
+        private final boolean shuffled;
+        private final long version;
+        private volatile LibraryIndex index;
+
+        private Snapshot(PersistentVector<Song> list, PersistentVector<Song> unshuffled, int currentIndex,
+                         boolean looping, boolean shuffled, long version) {
+            this.list = list;
+            this.unshuffled = unshuffled;
+            this.currentIndex = currentIndex;
+            this.looping = looping;
+            this.shuffled = shuffled;
+            this.version = version;
+        }
+
+        private Snapshot with(PersistentVector<Song> list, PersistentVector<Song> unshuffled, int currentIndex,
+                              boolean looping, boolean shuffled) {
+            return new Snapshot(list, unshuffled, currentIndex, looping, shuffled, version + 1);
+        }
+
+        /**
+         * @return a number that increases every time the playlist changes.
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return the songs in playing order.
+         */
+        public PersistentVector<Song> getSongs() {
+            return list;
+        }
+
+        /**
+         * @return the songs in the order they were added, if the playlist is shuffled, or an empty vector.
+         */
+        public PersistentVector<Song> getUnshuffledSongs() {
+            return unshuffled;
+        }
+
+        /**
+         * Returns the song at the specified position in this snapshot.
+         *
+         * @param index index of the song to be returned.
+         * @return the element at the specified position, or null if index is out of bounds.
+         */
+        public Song get(int index) {
+            if (index >= 0 && index < list.size()) return list.get(index);
+            return null;
+        }
+
+        /**
+         * Returns the index of the song with the specified UUID, or -1 if there is no song with the specified UUID.
+         *
+         * @param uuid UUID of the song to search for.
+         * @return index of the song with the specified UUID, or -1 if there is no song with the specified UUID.
+         */
+        public int findIndex(String uuid) {
+            try {
+                return findIndex(UUID.fromString(uuid));
+            } catch (IllegalArgumentException | NullPointerException e) {
+                return -1;
+            }
+        }
+
+        /**
+         * @see #findIndex(String)
+         */
+        public int findIndex(UUID target) {
+            int index = 0;
+            for (Song song : list) {
+                if (song.hasUuid(target)) return index;
+                index++;
+            }
+            return -1;
+        }
+
+        /**
+         * @return a column oriented index of the songs, built the first time it is requested.
+         */
+        public LibraryIndex getIndex() {
+            LibraryIndex result = index;
+            if (result == null) index = result = LibraryIndex.of(list);
+            return result;
+        }
+
+        public int size() {
+            return list.size();
+        }
+
+        public boolean isEmpty() {
+            return list.isEmpty();
+        }
+
+        public int getCurrentIndex() {
+            return currentIndex;
+        }
+
+        public boolean isLooping() {
+            return looping;
+        }
+
+        public boolean isShuffled() {
+            return shuffled;
+        }
+
+        /**
+         * @see Playlist#getDisplayInfo()
+         */
+        public String[][] getDisplayInfo() {
+            String[][] info = new String[list.size()][];
+            int index = 0;
+            for (Song song : list) info[index++] = song.getDisplayInfo();
+            return info;
+        }
+
+        /**
+         * @see Playlist#getPreviousIndex()
+         */
+        public int getPreviousIndex() {
+            if (currentIndex > 0) return currentIndex - 1;
+            else return looping ? list.size() - 1 : 0;
+        }
+
+        /**
+         * @see Playlist#getNextIndex()
+         */
+        public int getNextIndex() {
+            if (currentIndex < list.size() - 1) return currentIndex + 1;
+            else return looping ? 0 : list.size() - 1;
+        }
+
+        /**
+         * @see Playlist#getUpcomingIndices(int)
+         */
+        public int[] getUpcomingIndices(int count) {
+            int size = list.size();
+            int available = looping ? size - 1 : size - 1 - currentIndex;
+            int[] indices = new int[Math.max(0, Math.min(count, available))];
+            for (int i = 0; i < indices.length; i++) indices[i] = (currentIndex + 1 + i) % size;
+            return indices;
+        }
+
+        /**
+         * @see Playlist#hasNext()
+         */
+        public boolean hasNext() {
+            return !isEmpty() && (looping || currentIndex < size() - 1);
+        }
+
+        /**
+         * @see Playlist#hasPrevious()
+         */
+        public boolean hasPrevious() {
+            return !isEmpty() && (looping || currentIndex > 0);
+        }
+    }
+
+    /**
+     * @return the current state of the playlist. The snapshot never changes, later edits produce new snapshots.
+     */
+    public Snapshot snapshot() {
+        return state.get();
+    }
+
+    /**
+     * Atomically replaces the state of the playlist with the result of {@code update}.
+     * The function may be called more than once if other threads change the playlist at the same time.
+     *
+     * @return the snapshot that was replaced.
+     */
+    private Snapshot update(UnaryOperator<Snapshot> update) {
+        Snapshot previous;
+        Snapshot next;
+        do {
+            previous = state.get();
+            next = update.apply(previous);
+        } while (previous != next && !state.compareAndSet(previous, next));
+        if (previous != next) {
+            Snapshot changed = next;
+            notifyListeners(listener -> listener.stateChanged(changed));
+            deliver();
+        }
+        return previous;
+    }
+
+    /**
+     * Same as {@link #update(UnaryOperator)}, but records the replaced snapshot so the edit can be undone.
+     */
+    private Snapshot edit(UnaryOperator<Snapshot> update) {
+        Snapshot previous;
+        synchronized (undoHistory) {
+            Snapshot[] next = new Snapshot[1];
+            previous = update(s -> next[0] = update.apply(s));
+            if (previous != next[0]) {
+                undoHistory.push(previous);
+                if (undoHistory.size() > HISTORY_SIZE) undoHistory.removeLast();
+                redoHistory.clear();
+            }
+        }
+        deliver();
+        return previous;
+    }
+
+    /**
+     * Queues a call to every listener, made by the next {@link #deliver()}. Called while making the change, so
+     * calls are queued in the order of the changes.
+     */
+    private void notifyListeners(Consumer<Listener> call) {
+        if (listeners.isEmpty()) return;
+        notifications.add(() -> {
+            for (Listener listener : listeners) call.accept(listener);
+        });
+    }
+
+    /**
+     * Makes the queued calls to the listeners, in order, unless another thread is making them, which then makes
+     * the calls queued meanwhile too. Does nothing while this thread holds the lock of the playlist; the
+     * method that took it delivers once it released it.
+     */
+    private void deliver() {
+        if (Thread.holdsLock(undoHistory)) return;
+        // Checked again after making the calls, for calls queued just before another thread gave up delivering.
+        while (!notifications.isEmpty() && delivering.compareAndSet(false, true)) {
+            try {
+                Runnable call;
+                while ((call = notifications.poll()) != null) call.run();
+            } finally {
+                delivering.set(false);
+            }
+        }
+    }
+
+    /**
+     * @param listener listener to be notified of songs added to and removed from this playlist.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
 
     /**
      * Appends the specified song to the end of the list.
@@ -29,13 +333,41 @@ public class Playlist {
      * @param song song to be appended to this list.
      */
     public void add(Song song) {
-        if (shuffled) copy.add(song);
-        list.add(song);
+        synchronized (undoHistory) {
+            edit(s -> s.with(s.list.append(song), s.shuffled ? s.unshuffled.append(song) : s.unshuffled,
+                    s.currentIndex, s.looping, s.shuffled));
+            notifyListeners(listener -> listener.songsAdded(List.of(song)));
+        }
+        deliver();
+    }
+
+    /**
+     * Appends the specified songs to the end of the list, in order, as a single edit.
+     *
+     * @param songs songs to be appended to this list.
+     */
+    public void addAll(List<Song> songs) {
+        if (songs.isEmpty()) return;
+        synchronized (undoHistory) {
+            edit(s -> {
+                PersistentVector<Song> list = s.list;
+                PersistentVector<Song> unshuffled = s.unshuffled;
+                for (Song song : songs) {
+                    list = list.append(song);
+                    if (s.shuffled) unshuffled = unshuffled.append(song);
+                }
+                return s.with(list, unshuffled, s.currentIndex, s.looping, s.shuffled);
+            });
+            List<Song> added = List.copyOf(songs);
+            notifyListeners(listener -> listener.songsAdded(added));
+        }
+        deliver();
     }
 
     /**
      * Removes the song at the specified position in this list.
-     * Shifts any subsequent elements to the left.
+     * Shifts any subsequent elements to the left, and the current index with them. Only the path to the song is
+     * copied; when shuffled, finding the song in the unshuffled order takes a scan of it.
      *
      * @param index the index of song to be removed.
      * @return 0 - if index is out of bounds;<br>
@@ -43,29 +375,126 @@ public class Playlist {
      *         2 - if song is removed and its index equals currentIndex.
      */
     public int remove(int index) {
-        if (shuffled) {
-            String uuid = list.get(index).getUuid();
-            copy = copy.stream()
-                    .filter(song -> !song.getUuid().equals(uuid))
-                    .collect(Collectors.toCollection(ArrayList::new));
+        Snapshot previous;
+        synchronized (undoHistory) {
+            previous = removeSong(index);
+            if (index < 0 || index >= previous.list.size()) return SONG_NOT_FOUND;
+            Song removed = previous.list.get(index);
+            notifyListeners(listener -> listener.songsRemoved(List.of(removed)));
         }
-        if (index >= 0 && index < list.size()) {
-            list.remove(index);
-            if (index == currentIndex) return CURRENT_SONG_REMOVED;
-            return SONG_REMOVED;
+        deliver();
+        return index == previous.currentIndex ? CURRENT_SONG_REMOVED : SONG_REMOVED;
+    }
+
+    private Snapshot removeSong(int index) {
+        return edit(s -> {
+            if (index < 0 || index >= s.list.size()) return s;
+            PersistentVector<Song> unshuffled = s.unshuffled;
+            int unshuffledIndex = unshuffled.indexOf(s.list.get(index));
+            if (s.shuffled && unshuffledIndex >= 0) unshuffled = unshuffled.remove(unshuffledIndex);
+            PersistentVector<Song> list = s.list.remove(index);
+            int current = index < s.currentIndex ? s.currentIndex - 1 : s.currentIndex;
+            current = Math.max(0, Math.min(current, list.size() - 1));
+            return s.with(list, unshuffled, current, s.looping, s.shuffled);
+        });
+    }
+
+    /**
+     * Replaces the songs of the playlist in a single change, as another playlist added and removed them. Songs kept
+     * keep their place in the order restored when shuffle is turned off, and songs added are appended to it. The
+     * current index follows the song that is currently playing, or stays where it was if that song was removed.
+     * Listeners are told of the songs removed and of the songs added once each. Used to replicate the queue of
+     * another player, so the change is not recorded for {@link #undo()}.
+     *
+     * @param songs the songs in playing order.
+     */
+    public void replace(List<Song> songs) {
+        PersistentVector<Song> list = PersistentVector.of(songs);
+        synchronized (undoHistory) {
+            Snapshot previous = update(s -> {
+                if (sameSongs(s.list, list)) return s;
+                PersistentVector<Song> unshuffled = s.shuffled ? keepOrder(s.unshuffled, list) : s.unshuffled;
+                Song current = s.get(s.currentIndex);
+                int index = current == null ? -1 : list.indexOf(current);
+                if (index < 0) index = Math.max(0, Math.min(s.currentIndex, list.size() - 1));
+                return s.with(list, unshuffled, index, s.looping, s.shuffled);
+            });
+            if (!sameSongs(previous.list, list)) notifyDifference(previous.list, list);
         }
-        return SONG_NOT_FOUND;
+        deliver();
+    }
+
+    private static boolean sameSongs(PersistentVector<Song> a, PersistentVector<Song> b) {
+        if (a.size() != b.size()) return false;
+        for (int i = 0; i < a.size(); i++) if (a.get(i) != b.get(i)) return false;
+        return true;
     }
 
     /**
-     * Returns the song at the specified position in this list.
+     * @return the songs of {@code order} that are in {@code songs}, in that order, followed by the other songs of
+     * {@code songs}.
+     */
+    private static PersistentVector<Song> keepOrder(PersistentVector<Song> order, PersistentVector<Song> songs) {
+        Set<Song> members = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Song song : songs) members.add(song);
+        List<Song> result = new ArrayList<>(songs.size());
+        for (Song song : order) if (members.remove(song)) result.add(song);
+        for (Song song : songs) if (members.remove(song)) result.add(song);
+        return PersistentVector.of(result);
+    }
+
+    /**
+     * Sorts the queue by the specified column. Songs with equal values keep their order, and the current index
+     * follows the song that is currently playing. The order before sorting can be restored with {@link #undo()}, and
+     * the order the songs were added in is still restored when shuffle is turned off.
+     *
+     * @param column    column to sort by.
+     * @param ascending True to sort in ascending order, false for descending.
+     * @see LibraryIndex
+     */
+    public void sort(LibraryIndex.Column column, boolean ascending) {
+        edit(s -> {
+            if (s.list.size() < 2) return s;
+            int[] rows = s.getIndex().sortedRows(column, ascending);
+            Song[] sorted = new Song[rows.length];
+            int current = 0;
+            for (int i = 0; i < rows.length; i++) {
+                sorted[i] = s.list.get(rows[i]);
+                if (rows[i] == s.currentIndex) current = i;
+            }
+            return s.with(PersistentVector.of(sorted), s.unshuffled, current, s.looping, s.shuffled);
+        });
+    }
+
+    /**
+     * Puts the songs in the specified order and sets the order restored when shuffle is turned off, as another
+     * playlist sorted or shuffled them. The current index follows the song that is currently playing. Used to
+     * replicate the queue of another player, so the change is not recorded for {@link #undo()}; both lists should
+     * hold the songs of this playlist.
+     *
+     * @param songs      the songs in playing order.
+     * @param unshuffled the songs in the order they were added if {@code shuffled}, otherwise ignored.
+     * @param shuffled   True if the playlist is shuffled.
+     */
+    public void setOrder(List<Song> songs, List<Song> unshuffled, boolean shuffled) {
+        PersistentVector<Song> list = PersistentVector.of(songs);
+        PersistentVector<Song> original = shuffled ? PersistentVector.of(unshuffled) : PersistentVector.empty();
+        update(s -> {
+            Song current = s.get(s.currentIndex);
+            int index = current == null ? 0 : Math.max(0, list.indexOf(current));
+            return s.with(list, original, index, s.looping, shuffled);
+        });
+    }
+
+    /**
+     * Returns the song at the specified position in this list. Songs are immutable, so the returned song is
+     * shared with the playlist instead of being copied.
      *
      * @param index index of the song to be returned.
      * @return the element at the specified position in this list, or null if index is out of bounds.
      */
     public Song get(int index) {
-        if (index >= 0 && index < list.size()) return new Song(list.get(index));
-        return null;
+        return snapshot().get(index);
     }
 
     /**
@@ -75,10 +504,7 @@ public class Playlist {
      * @return index of the song with the specified UUID, or -1 if there is no song with the specified UUID.
      */
     public int findIndex(String uuid) {
-        Song temp = list.stream()
-                .filter(song -> song.getUuid().equals(uuid))
-                .collect(Collectors.toCollection(ArrayList::new)).get(0);
-        return list.indexOf(temp);
+        return snapshot().findIndex(uuid);
     }
 
     /**
@@ -87,7 +513,7 @@ public class Playlist {
      * @return the number of songs in this playlist.
      */
     public int size() {
-        return list.size();
+        return snapshot().size();
     }
 
     /**
@@ -107,7 +533,7 @@ public class Playlist {
      * @return an array containing information about each song in this playlist in proper sequence.
      */
     public String[][] getDisplayInfo() {
-        return list.stream().map(Song::getDisplayInfo).toArray(String[][]::new);
+        return snapshot().getDisplayInfo();
     }
 
     /**
@@ -117,7 +543,7 @@ public class Playlist {
      * @return the integer defined as the current index of the playlist.
      */
     public int getCurrentIndex() {
-        return currentIndex;
+        return snapshot().getCurrentIndex();
     }
 
     /**
@@ -127,7 +553,28 @@ public class Playlist {
      * @param newIndex new value of the integer defined as the current index of the playlist.
      */
     public void setCurrentIndex(int newIndex) {
-        if (newIndex >= 0 && newIndex < list.size()) currentIndex = newIndex;
+        update(s -> newIndex >= 0 && newIndex < s.list.size() && newIndex != s.currentIndex
+                ? s.with(s.list, s.unshuffled, newIndex, s.looping, s.shuffled)
+                : s);
+    }
+
+    /**
+     * Makes the specified song the current one, wherever the edits made since it was picked moved it. If the song is
+     * in the list more than once, the one after the current song is preferred.
+     *
+     * @param song song to become the current one.
+     * @return the new current index, or -1 if the song is no longer in the list.
+     */
+    public int setCurrentSong(Song song) {
+        int[] index = new int[1];
+        update(s -> {
+            int next = s.getNextIndex();
+            index[0] = s.get(next) == song ? next : s.list.indexOf(song);
+            return index[0] < 0 || index[0] == s.currentIndex
+                    ? s
+                    : s.with(s.list, s.unshuffled, index[0], s.looping, s.shuffled);
+        });
+        return index[0];
     }
 
     /**
@@ -138,8 +585,7 @@ public class Playlist {
      * @return the integer defined as the index before the current index of the playlist.
      */
     public int getPreviousIndex() {
-        if (currentIndex > 0) return currentIndex - 1;
-        else return looping ? list.size() - 1 : 0;
+        return snapshot().getPreviousIndex();
     }
 
     /**
@@ -150,8 +596,19 @@ public class Playlist {
      * @return the integer defined as the index after the current index of the playlist.
      */
     public int getNextIndex() {
-        if (currentIndex < list.size() - 1) return currentIndex + 1;
-        else return looping ? 0 : list.size() - 1;
+        return snapshot().getNextIndex();
+    }
+
+    /**
+     * Returns the indices of the songs that will play after the current one, in order, following the same rules as
+     * {@link #getNextIndex()}: if the playlist is set to loop, wraps around to its start. The current song is never
+     * included. If the playlist is shuffled, the indices follow the shuffled order.
+     *
+     * @param count maximum number of indices to return.
+     * @return the indices of up to {@code count} songs that will play next.
+     */
+    public int[] getUpcomingIndices(int count) {
+        return snapshot().getUpcomingIndices(count);
     }
 
     /**
@@ -159,21 +616,21 @@ public class Playlist {
      * @return true - if playlist is set to loop.
      */
     public boolean isLooping() {
-        return looping;
+        return snapshot().isLooping();
     }
 
     /**
      * Toggle looping flag of playlist between true and false.
      */
     public void toggleLooping() {
-        looping = !looping;
+        update(s -> s.with(s.list, s.unshuffled, s.currentIndex, !s.looping, s.shuffled));
     }
 
     /**
      * @return True if playlist was set to shuffle.
      */
     public boolean isShuffled() {
-        return shuffled;
+        return snapshot().isShuffled();
     }
 
     /**
@@ -182,43 +639,139 @@ public class Playlist {
      *                    Has no effect when undoing shuffle.
      */
     public void toggleShuffle(boolean keepCurrent) {
-        if (shuffled) {
-            currentIndex = copy.indexOf(list.get(currentIndex));
-            list.clear();
-            list.addAll(copy);
-        } else {
-            copy.clear();
-            copy.addAll(list);
-            if (keepCurrent) {
-                list.remove(currentIndex);
-                Collections.shuffle(list);
-                list.add(0, copy.get(currentIndex));
+        edit(s -> {
+            if (s.shuffled) {
+                int current = s.isEmpty() ? 0 : Math.max(0, s.unshuffled.indexOf(s.list.get(s.currentIndex)));
+                return s.with(s.unshuffled, PersistentVector.empty(), current, s.looping, false);
+            }
+            ArrayList<Song> songs = s.list.toList();
+            if (keepCurrent && !songs.isEmpty()) {
+                Song current = songs.remove(s.currentIndex);
+                Collections.shuffle(songs);
+                songs.add(0, current);
             } else {
-                Collections.shuffle(list);
+                Collections.shuffle(songs);
             }
-            currentIndex = 0;
+            return s.with(PersistentVector.of(songs), s.list, 0, s.looping, true);
+        });
+    }
+
+    /**
+     * Undoes the last edit of the queue (adding, removing, sorting or shuffling songs). The current index follows the song
+     * that is currently playing, if it is still in the restored playlist.
+     *
+     * @return True if there was an edit to undo.
+     */
+    public boolean undo() {
+        synchronized (undoHistory) {
+            Snapshot target = undoHistory.poll();
+            if (target == null) return false;
+            redoHistory.push(restore(target));
+        }
+        deliver();
+        return true;
+    }
+
+    /**
+     * Redoes the last edit undone by {@link #undo()}.
+     *
+     * @return True if there was an edit to redo.
+     */
+    public boolean redo() {
+        synchronized (undoHistory) {
+            Snapshot target = redoHistory.poll();
+            if (target == null) return false;
+            undoHistory.push(restore(target));
+        }
+        deliver();
+        return true;
+    }
+
+    /**
+     * Replaces the songs and shuffle state with those of {@code target}, keeping the loop flag and the current song.
+     * Should be called holding the lock of the playlist.
+     *
+     * @return the snapshot that was replaced.
+     */
+    private Snapshot restore(Snapshot target) {
+        Snapshot previous = update(s -> {
+            Song current = s.get(s.currentIndex);
+            int index = current == null ? 0 : Math.max(0, target.list.indexOf(current));
+            return s.with(target.list, target.unshuffled, index, s.looping, target.shuffled);
+        });
+        notifyDifference(previous.list, target.list);
+        return previous;
+    }
+
+    /**
+     * Queues the calls telling the listeners of the songs removed and of the songs added once each, between the
+     * songs before a change and after it.
+     */
+    private void notifyDifference(PersistentVector<Song> before, PersistentVector<Song> after) {
+        if (listeners.isEmpty()) return;
+        List<Song> removed = difference(before, after);
+        List<Song> added = difference(after, before);
+        if (!removed.isEmpty()) notifyListeners(listener -> listener.songsRemoved(removed));
+        if (!added.isEmpty()) notifyListeners(listener -> listener.songsAdded(added));
+    }
+
+    /**
+     * @return the songs of {@code a} that are not in {@code b}.
+     */
+    private static List<Song> difference(PersistentVector<Song> a, PersistentVector<Song> b) {
+        Set<Song> other = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Song song : b) other.add(song);
+        List<Song> result = new ArrayList<>();
+        for (Song song : a) if (!other.contains(song)) result.add(song);
+        return result;
+    }
+
+    /**
+     * Marks the playlist as shuffled, keeping its current order and setting the order restored when shuffle is
+     * turned off. Used after loading a saved playlist that was shuffled.
+     *
+     * @param original the songs in the order they were added.
+     */
+    public void setShuffled(List<Song> original) {
+        PersistentVector<Song> unshuffled = PersistentVector.of(original);
+        update(s -> s.with(s.list, unshuffled, s.currentIndex, s.looping, true));
+    }
+
+    /**
+     * Sets whether the playlist loops, unlike {@link #toggleLooping()} which flips it.
+     */
+    public void setLooping(boolean looping) {
+        update(s -> s.looping == looping ? s : s.with(s.list, s.unshuffled, s.currentIndex, looping, s.shuffled));
+    }
+
+    /**
+     * Forgets every edit, so the current state can't be undone. Used after loading a saved playlist.
+     */
+    public void clearHistory() {
+        synchronized (undoHistory) {
+            undoHistory.clear();
+            redoHistory.clear();
         }
-        shuffled = !shuffled;
     }
 
     /**
      * @return True if playlist is empty.
      */
     public boolean isEmpty() {
-        return list.isEmpty();
+        return snapshot().isEmpty();
     }
 
     /**
      * @return True if there is a song after currentIndex, taking into account if playlist is set to loop.
      */
     public boolean hasNext() {
-        return !isEmpty() && (looping || currentIndex < size() - 1);
+        return snapshot().hasNext();
     }
 
     /**
      * @return True if there is a song before currentIndex, taking into account if playlist is set to loop.
      */
     public boolean hasPrevious() {
-        return !isEmpty() && (looping || currentIndex > 0);
+        return snapshot().hasPrevious();
     }
 }
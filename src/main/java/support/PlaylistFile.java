@@ -0,0 +1,254 @@
+package support;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Binary file holding the songs of a playlist with all of their metadata, so a playlist can be loaded without
+ * parsing the MP3 files again.<br>
+ * The file starts with a header (magic, version, number of songs, number of strings and length of the original
+ * order), followed by one record of {@value #RECORD_SIZE} bytes per song, the original order and a string table.
+ * The original order is only written for shuffled playlists: it lists the songs in the order they were added, as
+ * indices of their records. Records refer to strings by their index in
+ * the table, so an artist or album is stored once however many songs share it. The file is memory-mapped when
+ * opened and songs are decoded only when read, so the first songs of a large playlist are available right away.
+ *
+ * @see M3u
+ */
+public final class PlaylistFile implements AutoCloseable {
+    private static final int MAGIC = 0x4D50504C; // "MPPL"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 20;
+    private static final int HEADER_SIZE_V1 = 16;
+    /**
+     * UUID (2 longs), title, album, artist, year, directory and file name (6 string indices), length in
+     * milliseconds (float), file size and number of frames (2 ints).
+     */
+    static final int RECORD_SIZE = 16 + 6 * 4 + 4 + 2 * 4;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int headerSize;
+    private final int size;
+    private final int orderLength;
+    private final int[] stringOffsets;
+    private final String[] strings;
+
+    private PlaylistFile(FileChannel channel, MappedByteBuffer buffer) throws IOException {
+        this.channel = channel;
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a playlist file");
+        }
+        int version = buffer.getInt(4);
+        if (version != VERSION && version != 1) throw new IOException("Unsupported playlist file version " + version);
+        this.headerSize = version == 1 ? HEADER_SIZE_V1 : HEADER_SIZE;
+        this.size = buffer.getInt(8);
+        int stringCount = buffer.getInt(12);
+        this.orderLength = version == 1 ? 0 : buffer.getInt(16);
+        long tableStart = headerSize + (long) size * RECORD_SIZE + 4L * orderLength;
+        if (size < 0 || stringCount < 0 || orderLength < 0 || orderLength > size
+                || tableStart + 4L * (stringCount + 1) > buffer.capacity()) {
+            throw new IOException("Truncated playlist file");
+        }
+        this.stringOffsets = new int[stringCount + 1];
+        buffer.slice((int) tableStart, 4 * (stringCount + 1)).asIntBuffer().get(stringOffsets);
+        if (stringOffsets[stringCount] > buffer.capacity()) throw new IOException("Truncated playlist file");
+        this.strings = new String[stringCount];
+    }
+
+    /**
+     * Opens a playlist file. Only the header and the string offsets are read, songs are decoded by {@link #get(int)}.
+     *
+     * @param file file written by {@link #write(Path, Iterable)}.
+     * @return the opened file, to be closed once no more songs are needed.
+     * @throws IOException if the file can't be read or is not a valid playlist file.
+     */
+    public static PlaylistFile open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file);
+        try {
+            return new PlaylistFile(channel, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return number of songs in the file.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the order the songs were added in, as indices for {@link #get(int)}, or null if the playlist was not
+     * shuffled when written.
+     */
+    public int[] getOriginalOrder() {
+        if (orderLength == 0) return null;
+        int[] order = new int[orderLength];
+        buffer.slice(headerSize + size * RECORD_SIZE, 4 * orderLength).asIntBuffer().get(order);
+        return order;
+    }
+
+    /**
+     * Decodes a song. Strings shared by several songs are decoded once and reused.
+     * Not thread safe.
+     *
+     * @param index index of the song in the playlist.
+     * @return the song at the specified position.
+     * @throws IOException if the record refers to a string that is not in the file.
+     */
+    public Song get(int index) throws IOException {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException(index);
+        int position = headerSize + index * RECORD_SIZE;
+        ByteBuffer record = buffer.slice(position, RECORD_SIZE);
+        UUID uuid = new UUID(record.getLong(0), record.getLong(8));
+        String title = string(record.getInt(16));
+        String album = string(record.getInt(20));
+        String artist = string(record.getInt(24));
+        String year = string(record.getInt(28));
+        String path = string(record.getInt(32)) + string(record.getInt(36));
+        return new Song(uuid, title, album, artist, year, record.getFloat(40), path,
+                record.getInt(44), record.getInt(48));
+    }
+
+    private String string(int id) throws IOException {
+        if (id < 0 || id >= strings.length) throw new IOException("Invalid string index " + id);
+        String string = strings[id];
+        if (string == null) {
+            int start = stringOffsets[id];
+            int length = stringOffsets[id + 1] - start;
+            if (start < 0 || length < 0) throw new IOException("Invalid string offset");
+            byte[] bytes = new byte[length];
+            buffer.get(start, bytes);
+            strings[id] = string = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return string;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Writes the songs of a playlist, and their original order if it is shuffled.
+     *
+     * @param file     destination file.
+     * @param playlist state of the playlist to be written.
+     * @throws IOException if the file can't be written.
+     */
+    public static void write(Path file, Playlist.Snapshot playlist) throws IOException {
+        int[] order = null;
+        if (playlist.isShuffled()) {
+            Map<Song, Integer> indices = new IdentityHashMap<>();
+            int index = 0;
+            for (Song song : playlist.getSongs()) indices.put(song, index++);
+            order = new int[playlist.getUnshuffledSongs().size()];
+            index = 0;
+            for (Song song : playlist.getUnshuffledSongs()) order[index++] = indices.getOrDefault(song, 0);
+        }
+        write(file, playlist.getSongs(), order);
+    }
+
+    /**
+     * Writes the songs to a playlist file. The file is written next to the target and then moved over it, so a
+     * reader never sees a half written file.
+     *
+     * @param file  destination file.
+     * @param songs songs to be written, in order.
+     * @throws IOException if the file can't be written.
+     */
+    public static void write(Path file, Iterable<Song> songs) throws IOException {
+        write(file, songs, null);
+    }
+
+    private static void write(Path file, Iterable<Song> songs, int[] order) throws IOException {
+        Map<String, Integer> ids = new HashMap<>();
+        List<String> table = new ArrayList<>();
+        ByteBuffer records = ByteBuffer.allocate(RECORD_SIZE * 1024);
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        int count = 0;
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            channel.position(HEADER_SIZE);
+            for (Song song : songs) {
+                String path = song.getFilePath();
+                int separator = path.lastIndexOf(File.separatorChar);
+                records.putLong(song.getUuidMostSignificantBits());
+                records.putLong(song.getUuidLeastSignificantBits());
+                records.putInt(id(ids, table, song.getTitle()));
+                records.putInt(id(ids, table, song.getAlbum()));
+                records.putInt(id(ids, table, song.getArtist()));
+                records.putInt(id(ids, table, song.getYear()));
+                records.putInt(id(ids, table, path.substring(0, separator + 1)));
+                records.putInt(id(ids, table, path.substring(separator + 1)));
+                records.putFloat(song.getMsLength());
+                records.putInt(song.getFileSize());
+                records.putInt(song.getNumFrames());
+                count++;
+                if (!records.hasRemaining()) writeFully(channel, records);
+            }
+            writeFully(channel, records);
+            int orderLength = order == null ? 0 : order.length;
+            if (orderLength > 0) {
+                ByteBuffer indices = ByteBuffer.allocate(4 * orderLength);
+                indices.asIntBuffer().put(order);
+                while (indices.hasRemaining()) channel.write(indices);
+            }
+
+            long tableStart = HEADER_SIZE + (long) count * RECORD_SIZE + 4L * orderLength;
+            byte[][] encoded = new byte[table.size()][];
+            long offset = tableStart + 4L * (table.size() + 1);
+            ByteBuffer offsets = ByteBuffer.allocate(4 * (table.size() + 1));
+            for (int i = 0; i < encoded.length; i++) {
+                encoded[i] = table.get(i).getBytes(StandardCharsets.UTF_8);
+                offsets.putInt((int) offset);
+                offset += encoded[i].length;
+            }
+            if (offset > Integer.MAX_VALUE) throw new IOException("Playlist too large");
+            offsets.putInt((int) offset);
+            writeFully(channel, offsets);
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel));
+            for (byte[] bytes : encoded) out.write(bytes);
+            out.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(count).putInt(table.size()).putInt(orderLength).flip();
+            while (header.hasRemaining()) channel.write(header, header.position());
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int id(Map<String, Integer> ids, List<String> table, String value) {
+        return ids.computeIfAbsent(value == null ? "" : value, v -> {
+            table.add(v);
+            return table.size() - 1;
+        });
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+}
@@ -0,0 +1,243 @@
+package support;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Warms the songs that will play next, so starting them never waits on slow storage such as a network share.
+ * For each upcoming song the first bytes of the file are read into memory, and the rest of the file is read
+ * once and discarded so it lands in the operating system's page cache. Of remote songs only the prefix is read.<br>
+ * Reads happen on a single background thread and are capped by a bandwidth budget; buffers are capped by a
+ * memory budget, and each prefix is also charged to the {@link MemoryBudget} shared by all caches, which may evict
+ * it. The prefix is read with {@link IoScheduler.Priority#PLAYBACK} priority and the rest as background work, so it
+ * yields to the song playing. Both budgets, the number of songs to look ahead and the size of the in-memory prefix
+ * are read from system properties:<br>
+ * {@code player.prefetch.tracks} - number of upcoming songs to warm (default 2, 0 disables prefetching);<br>
+ * {@code player.prefetch.prefixKb} - bytes kept in memory per song (default 1024);<br>
+ * {@code player.prefetch.budgetMb} - total memory for prefixes (default 16);<br>
+ * {@code player.prefetch.bandwidthKbps} - maximum read rate in KiB/s (default 8192, 0 for unlimited).
+ */
+public class Prefetcher {
+    private static final int CHUNK = 64 * 1024;
+
+    private final int tracks = Integer.getInteger("player.prefetch.tracks", 2);
+    private final int prefixBytes = Integer.getInteger("player.prefetch.prefixKb", 1024) * 1024;
+    private final long budgetBytes = Long.getLong("player.prefetch.budgetMb", 16) * 1024 * 1024;
+    private final long bytesPerSecond = Long.getLong("player.prefetch.bandwidthKbps", 8192) * 1024;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ExecutorService reader = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "prefetch");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+    private final ExecutorService opener = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "prefetch-open");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * In-memory prefix of a file.
+     */
+    private static final class Entry {
+        final byte[] data;
+        volatile int length;
+        volatile boolean complete;
+        volatile MemoryBudget.Charge charge;
+
+        Entry(int capacity) {
+            data = new byte[capacity];
+        }
+    }
+
+    /**
+     * Stops the background threads. Work still queued is dropped.
+     */
+    public void shutdown() {
+        reader.shutdownNow();
+        opener.shutdownNow();
+    }
+
+    /**
+     * @return number of upcoming songs the player should pass to {@link #update(List)}.
+     */
+    public int getLookahead() {
+        return tracks;
+    }
+
+    /**
+     * Sets the songs that will play next. Prefixes of songs no longer upcoming are dropped and the new ones are
+     * read in the background, nearest first, as long as they fit the memory budget.
+     *
+     * @param upcoming songs that will play next, in order.
+     */
+    public synchronized void update(List<Song> upcoming) {
+        Map<String, Entry> wanted = new LinkedHashMap<>();
+        List<Song> toRead = new ArrayList<>();
+        long used = 0;
+        for (Song song : upcoming.subList(0, Math.min(tracks, upcoming.size()))) {
+            int size = Math.min(prefixBytes, Math.max(0, song.getFileSize()));
+            if (used + size > budgetBytes) break;
+            used += size;
+            String path = song.getFilePath();
+            Entry entry = entries.get(path);
+            if (entry == null) {
+                Entry created = new Entry(size);
+                created.charge = MemoryBudget.global().charge(charge -> drop(path, created), path, song, size, false, 1f);
+                entry = created;
+                toRead.add(song);
+            }
+            wanted.put(path, entry);
+        }
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (!wanted.containsKey(entry.getKey())) drop(entry.getKey(), entry.getValue());
+        }
+        entries.putAll(wanted);
+        for (Song song : toRead) {
+            Entry entry = wanted.get(song.getFilePath());
+            reader.execute(() -> warm(song, entry));
+        }
+    }
+
+    /**
+     * Opens the specified song. If its prefix is in memory, the returned stream starts with it and the file is
+     * opened in the background, so the first frames never wait on storage. Otherwise the file is opened directly.
+     *
+     * @param song song to be opened.
+     * @return a stream of the whole file.
+     */
+    public InputStream open(Song song) throws FileNotFoundException {
+        Entry entry = entries.get(song.getFilePath());
+        boolean hit = isWarm(entry);
+        PlaybackMetrics.global().prefetch(hit);
+        if (!hit) return song.getBufferedInputStream();
+        entry.charge.touch();
+
+        int length = entry.length;
+        CompletableFuture<InputStream> rest = CompletableFuture.supplyAsync(() -> {
+            try {
+                return song.getBufferedInputStream(length);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, opener);
+        return new SequenceInputStream(new ByteArrayInputStream(entry.data, 0, length), new DeferredInputStream(rest));
+    }
+
+    /**
+     * @return True if the prefix of the song is in memory, so {@link #open(Song)} starts with it.
+     */
+    boolean isWarm(Song song) {
+        return isWarm(entries.get(song.getFilePath()));
+    }
+
+    private static boolean isWarm(Entry entry) {
+        return entry != null && entry.complete;
+    }
+
+    private void warm(Song song, Entry entry) {
+        String path = song.getFilePath();
+        if (entries.get(path) != entry) return;
+        long started = System.nanoTime();
+        long read = 0;
+        int n;
+        try (InputStream in = song.isRemote() ? song.getBufferedInputStream()
+                : IoScheduler.global().open(Path.of(path), 0, IoScheduler.Priority.PLAYBACK)) {
+            while (entry.length < entry.data.length && entries.get(path) == entry
+                    && (n = in.read(entry.data, entry.length, Math.min(CHUNK, entry.data.length - entry.length))) > 0) {
+                entry.length += n;
+                read += n;
+                throttle(started, read);
+            }
+            entry.complete = true;
+            if (song.isRemote()) return;
+        } catch (InterruptedIOException e) {
+            drop(path, entry);
+            return;                         // shut down
+        } catch (IOException e) {
+            drop(path, entry);
+            e.printStackTrace();
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        // Read the rest once, so it is in the page cache when playback gets there. Nothing waits for it yet, so it
+        // is background work.
+        try (InputStream in = IoScheduler.global().open(Path.of(path), entry.length, IoScheduler.Priority.BACKGROUND)) {
+            byte[] chunk = new byte[CHUNK];
+            while (entries.get(path) == entry && (n = in.read(chunk)) > 0) {
+                read += n;
+                throttle(started, read);
+            }
+        } catch (InterruptedIOException e) {
+            // shut down
+        } catch (IOException e) {
+            e.printStackTrace();            // the prefix is still good
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Removes the prefix of the file, if it is still the one held, and gives its memory back to the budget.
+     */
+    private synchronized void drop(String path, Entry entry) {
+        if (entries.remove(path, entry)) entry.charge.release();
+    }
+
+    /**
+     * Sleeps as needed so that reading {@code bytes} since {@code started} stays within the bandwidth budget.
+     */
+    private void throttle(long started, long bytes) throws InterruptedException {
+        if (bytesPerSecond <= 0) return;
+        long due = started + bytes * 1_000_000_000L / bytesPerSecond;
+        long wait = due - System.nanoTime();
+        if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    /**
+     * Stream that waits for the stream it reads from only when it is first read.
+     */
+    private static final class DeferredInputStream extends InputStream {
+        private final CompletableFuture<InputStream> future;
+
+        DeferredInputStream(CompletableFuture<InputStream> future) {
+            this.future = future;
+        }
+
+        private InputStream stream() throws IOException {
+            try {
+                return future.join();
+            } catch (CompletionException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            return stream().read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return stream().read(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            future.thenAccept(stream -> {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package support;
+
+import com.mpatric.mp3agic.AbstractID3v2Tag;
+import com.mpatric.mp3agic.EncodedText;
+import com.mpatric.mp3agic.ID3v2Frame;
+import com.mpatric.mp3agic.ID3v2FrameSet;
+import com.mpatric.mp3agic.ID3v2TagFactory;
+import com.mpatric.mp3agic.InvalidDataException;
+import com.mpatric.mp3agic.NoSuchTagException;
+import com.mpatric.mp3agic.UnsupportedTagException;
+import javazoom.jl.decoder.Bitstream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the ReplayGain adjustment of a track from its ID3v2 tag: the user-defined text frame
+ * {@code REPLAYGAIN_TRACK_GAIN} written by ReplayGain scanners, with a value such as {@code -6.48 dB}.
+ * The tag is the one {@link Bitstream} reads when it is opened at the start of a file, so nothing is read twice.
+ */
+public final class ReplayGain {
+    private static final String TRACK_GAIN = "REPLAYGAIN_TRACK_GAIN";
+
+    private ReplayGain() {
+    }
+
+    /**
+     * @param bitstream bit stream opened at the start of the track.
+     * @return the track gain in decibels, 0 if the track has none or it could not be read.
+     */
+    public static float trackGain(Bitstream bitstream) {
+        try (InputStream raw = bitstream.getRawID3v2()) {
+            return raw == null ? 0f : trackGain(raw.readAllBytes());
+        } catch (IOException e) {
+            return 0f;
+        }
+    }
+
+    /**
+     * @param tag ID3v2 tag, from its header to its last frame.
+     * @return the track gain in decibels, 0 if the tag has none or it could not be read.
+     */
+    public static float trackGain(byte[] tag) {
+        AbstractID3v2Tag id3;
+        try {
+            id3 = ID3v2TagFactory.createTag(tag);
+        } catch (NoSuchTagException | UnsupportedTagException | InvalidDataException | RuntimeException e) {
+            return 0f;
+        }
+        // TXX in ID3v2.2, TXXX since.
+        for (String id : List.of("TXXX", "TXX")) {
+            ID3v2FrameSet frames = id3.getFrameSets().get(id);
+            if (frames == null) continue;
+            for (ID3v2Frame frame : frames.getFrames()) {
+                String[] text = userText(frame.getData());
+                if (text != null && text[0].equalsIgnoreCase(TRACK_GAIN)) return parseDb(text[1]);
+            }
+        }
+        return 0f;
+    }
+
+    /**
+     * @return the description and the value of a user-defined text frame, or null if it is malformed.
+     */
+    private static String[] userText(byte[] data) {
+        if (data == null || data.length < 2) return null;
+        byte encoding = data[0];
+        boolean wide = encoding == EncodedText.TEXT_ENCODING_UTF_16 || encoding == EncodedText.TEXT_ENCODING_UTF_16BE;
+        int step = wide ? 2 : 1;
+        for (int i = 1; i + step <= data.length; i += step) {
+            if (data[i] != 0 || (wide && data[i + 1] != 0)) continue;
+            String description = new EncodedText(encoding, Arrays.copyOfRange(data, 1, i)).toString();
+            String value = new EncodedText(encoding, Arrays.copyOfRange(data, i + step, data.length)).toString();
+            return description == null || value == null ? null : new String[]{description.trim(), value};
+        }
+        return null;
+    }
+
+    /**
+     * @param value gain such as {@code +2.10 dB}.
+     * @return the gain in decibels, 0 if it is not a number.
+     */
+    static float parseDb(String value) {
+        String number = value.replace('\0', ' ').trim();
+        if (number.regionMatches(true, Math.max(0, number.length() - 2), "dB", 0, 2)) {
+            number = number.substring(0, number.length() - 2).trim();
+        }
+        try {
+            float db = Float.parseFloat(number);
+            return Float.isFinite(db) ? db : 0f;
+        } catch (NumberFormatException e) {
+            return 0f;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package support;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Keeps a playlist in step with the queue of a {@link ReplicationLeader}, and passes the transport of the leader
+ * on to the player. Runs on its own daemon thread, which connects to the leader, applies the operations it
+ * receives in order, and connects again a second later whenever the connection drops or stays silent for
+ * {@value #TIMEOUT_MS} ms.<br>
+ * The follower remembers the epoch of its leader and the last operation it applied, so after a short disconnection
+ * it only receives the operations it missed. Operations received twice, when a batch was sent again after a
+ * reconnection, are skipped; a gap in the sequence makes it reconnect.<br>
+ * Songs are followed by file path, so the files must be at the same paths on both machines, or be URLs.
+ */
+public final class ReplicationFollower implements Closeable {
+    private static final int TIMEOUT_MS = 5000;
+    private static final long RECONNECT_MS = 1000;
+
+    private final Playlist playlist;
+    private final InetSocketAddress leader;
+    private final ReplicationLog.TransportListener transport;
+    private final Runnable changed;
+    private final PlaybackMetrics metrics = PlaybackMetrics.global();
+    private final Thread thread;
+    private volatile boolean closed;
+    private volatile Socket socket;
+
+    /*
+     * Written by the follower thread only.
+     */
+    private long epoch;
+    private volatile long applied;
+
+    /**
+     * Starts following the leader.
+     *
+     * @param playlist  queue kept in step with the leader's.
+     * @param leader    address of the leader.
+     * @param transport receives the transport operations of the leader.
+     * @param changed   called after each batch of operations applied, to show the new queue.
+     */
+    public ReplicationFollower(Playlist playlist, InetSocketAddress leader, ReplicationLog.TransportListener transport,
+                               Runnable changed) {
+        this.playlist = playlist;
+        this.leader = leader;
+        this.transport = transport;
+        this.changed = changed;
+        thread = new Thread(this::run, "replication-follower");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return the sequence number of the last operation applied.
+     */
+    public long getAppliedSeq() {
+        return applied;
+    }
+
+    private void run() {
+        while (!closed) {
+            try (Socket connection = new Socket()) {
+                socket = connection;
+                if (closed) break;
+                connection.connect(leader, TIMEOUT_MS);
+                connection.setSoTimeout(TIMEOUT_MS);
+                connection.setTcpNoDelay(true);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+                out.writeInt(ReplicationLeader.MAGIC);
+                out.writeByte(ReplicationLeader.VERSION);
+                out.writeLong(epoch);
+                out.writeLong(applied);
+                out.flush();
+                DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+                while (!closed) receive(in);
+            } catch (IOException e) {
+                // The leader is unreachable or went away; try again below.
+            }
+            try {
+                if (!closed) Thread.sleep(RECONNECT_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads a frame written by {@link ReplicationLeader} and applies its operations.
+     */
+    private void receive(DataInputStream in) throws IOException {
+        byte kind = in.readByte();
+        long frameEpoch = in.readLong();
+        long seq = in.readLong();
+        int count = in.readInt();
+        byte[][] ops = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            ops[i] = new byte[in.readInt()];
+            in.readFully(ops[i]);
+        }
+
+        if (kind == ReplicationLeader.SNAPSHOT) {
+            for (byte[] op : ops) ReplicationLog.apply(op, playlist, transport);
+            epoch = frameEpoch;
+            applied = seq;
+            metrics.replicationApplied(count);
+            changed.run();
+            return;
+        }
+        if (kind != ReplicationLeader.OPS || frameEpoch != epoch) throw new IOException("Unexpected frame " + kind);
+        int done = 0;
+        for (int i = 0; i < count; i++) {
+            long opSeq = seq + i;
+            if (opSeq <= applied) continue;
+            if (opSeq != applied + 1) throw new IOException("Missing operations after " + applied);
+            ReplicationLog.apply(ops[i], playlist, transport);
+            applied = opSeq;
+            done++;
+        }
+        metrics.replicationApplied(done);
+        if (done > 0) changed.run();
+    }
+
+    /**
+     * Drops the connection to the leader, as a network failure would. The follower connects again a second later.
+     */
+    public void disconnect() {
+        Socket connection = socket;
+        try {
+            if (connection != null) connection.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stops following the leader. The playlist keeps its songs.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        disconnect();
+        thread.interrupt();
+    }
+}
@@ -0,0 +1,264 @@
+package support;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ships the queue of a player and the state of its transport to {@link ReplicationFollower}s over TCP, so several
+ * players, in other processes or on other machines, play the same queue.<br>
+ * Every change of the playlist is turned into {@link ReplicationLog} operations by comparing the latest snapshot
+ * with the last one shipped, so changes made at once by several threads are shipped as one consistent step. Each
+ * follower has its own sender thread, which waits for new operations, lingers {@value #LINGER_MS} ms so a burst of
+ * edits goes in one write, and sends an empty batch every {@value #HEARTBEAT_MS} ms otherwise, so followers notice
+ * a dead connection.<br>
+ * A follower says which operation it applied last when it connects. If the log still holds everything after it,
+ * it only gets those; otherwise, or if it followed another leader, it gets a snapshot of the whole queue first.
+ * The leader picks a random epoch when it starts, so followers of a leader that restarted and numbers its log from
+ * 1 again are not mistaken for being up to date.
+ *
+ * @see Playlist#addListener(Playlist.Listener)
+ */
+public final class ReplicationLeader implements Playlist.Listener, Closeable {
+    static final int MAGIC = 0x4D505251; // "MPRQ"
+    static final int VERSION = 1;
+    /**
+     * Kinds of frames sent to followers: operations following the last one sent, or the whole state.
+     */
+    static final byte OPS = 1;
+    static final byte SNAPSHOT = 2;
+
+    private static final long LINGER_MS = 5;
+    private static final long HEARTBEAT_MS = 1000;
+    /**
+     * Maximum number of operations sent in one frame.
+     */
+    private static final int MAX_BATCH = 1024;
+
+    private final Playlist playlist;
+    private final long epoch = new SecureRandom().nextLong();
+    private final ServerSocket server;
+    private final Set<Socket> followers = ConcurrentHashMap.newKeySet();
+    private final PlaybackMetrics metrics = PlaybackMetrics.global();
+    private volatile boolean closed;
+
+    /*
+     * Guarded by this.
+     */
+    private final ReplicationLog log;
+    private Playlist.Snapshot shipped;
+    /**
+     * Last transport state shipped, and when, included in snapshots.
+     */
+    private ReplicationLog.Transport transportState;
+    private Song transportSong;
+    private int transportMs;
+    private long transportNanos;
+
+    /**
+     * Starts accepting followers. Should be registered as a listener of the playlist.
+     *
+     * @param playlist queue to ship.
+     * @param address  address and port to listen on; port 0 picks a free one, see {@link #getPort()}.
+     * @param logSize  number of operations kept for followers catching up after a disconnection.
+     * @throws IOException if the address could not be bound.
+     */
+    public ReplicationLeader(Playlist playlist, InetSocketAddress address, int logSize) throws IOException {
+        this.playlist = playlist;
+        this.log = new ReplicationLog(logSize);
+        this.shipped = playlist.snapshot();
+        this.server = new ServerSocket();
+        server.bind(address);
+        Thread acceptor = new Thread(this::accept, "replication-leader");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @return the port followers connect to.
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * @return the sequence number of the last operation of the log.
+     */
+    public synchronized long getLastSeq() {
+        return log.getLastSeq();
+    }
+
+    @Override
+    public void songsAdded(List<Song> songs) {
+    }
+
+    @Override
+    public void songsRemoved(List<Song> songs) {
+    }
+
+    @Override
+    public void stateChanged(Playlist.Snapshot snapshot) {
+        capture();
+    }
+
+    /**
+     * Ships the state of the player. Called whenever it plays, pauses, stops, seeks or changes song.
+     *
+     * @param song       the current song, or null when stopped.
+     * @param positionMs position in the song.
+     */
+    public synchronized void transport(ReplicationLog.Transport state, Song song, int positionMs) {
+        capture();         // the song must reach the followers before the command playing it
+        transportState = state;
+        transportSong = song;
+        transportMs = positionMs;
+        transportNanos = System.nanoTime();
+        log.append(ReplicationLog.transport(state, song, positionMs));
+        notifyAll();
+    }
+
+    /**
+     * @return the last transport operation, with the position moved on by the time elapsed since if playing, or
+     * null if there was none. Called holding the lock.
+     */
+    private byte[] currentTransport() {
+        if (transportState == null) return null;
+        int positionMs = transportMs;
+        if (transportState == ReplicationLog.Transport.PLAYING) {
+            positionMs += (int) TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - transportNanos);
+        }
+        return ReplicationLog.transport(transportState, transportSong, positionMs);
+    }
+
+    /**
+     * Appends the changes of the playlist since the last snapshot shipped to the log.
+     */
+    private synchronized void capture() {
+        Playlist.Snapshot next = playlist.snapshot();
+        if (next == shipped) return;
+        List<byte[]> ops = ReplicationLog.diff(shipped, next);
+        shipped = next;
+        if (ops.isEmpty()) return;
+        for (byte[] op : ops) log.append(op);
+        notifyAll();
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = server.accept();
+                Thread sender = new Thread(() -> serve(socket), "replication-sender");
+                sender.setDaemon(true);
+                sender.start();
+            } catch (IOException e) {
+                if (!closed) e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Body of the sender thread of a follower.
+     */
+    private void serve(Socket socket) {
+        followers.add(socket);
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+                throw new IOException("Not a replication follower: " + socket.getRemoteSocketAddress());
+            }
+            long followerEpoch = in.readLong();
+            long applied = in.readLong();
+
+            long sent;
+            List<byte[]> snapshot = null;
+            synchronized (this) {
+                capture();
+                if (followerEpoch == epoch && log.since(applied, 0) != null) {
+                    sent = applied;
+                } else {
+                    snapshot = ReplicationLog.snapshot(shipped, currentTransport());
+                    sent = log.getLastSeq();
+                }
+            }
+            if (snapshot != null) {
+                write(out, SNAPSHOT, sent, snapshot);
+                metrics.replicationSnapshotSent();
+            }
+
+            while (!closed) {
+                List<byte[]> ops;
+                synchronized (this) {
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_MS);
+                    long left;
+                    while (!closed && log.getLastSeq() == sent && (left = deadline - System.nanoTime()) > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(this, left);
+                    }
+                    ops = log.getLastSeq() == sent ? List.of() : null;
+                }
+                if (ops == null) {
+                    Thread.sleep(LINGER_MS);
+                    synchronized (this) {
+                        ops = log.since(sent, MAX_BATCH);
+                    }
+                    // Fell further behind than the log holds; reconnecting gets a snapshot.
+                    if (ops == null) return;
+                }
+                write(out, OPS, sent + 1, ops);
+                sent += ops.size();
+                metrics.replicationSent(ops.size());
+            }
+        } catch (SocketException ignored) {
+            // The follower went away, or the leader was closed.
+        } catch (IOException e) {
+            if (!closed) e.printStackTrace();
+        } catch (InterruptedException ignored) {
+        } finally {
+            followers.remove(socket);
+        }
+    }
+
+    /**
+     * Writes a frame: its kind, the epoch, a sequence number and the operations, each preceded by its length.
+     *
+     * @param seq for {@link #OPS}, the sequence number of the first operation; for {@link #SNAPSHOT}, the one of
+     *            the last operation the state includes.
+     */
+    private void write(DataOutputStream out, byte kind, long seq, List<byte[]> ops) throws IOException {
+        out.writeByte(kind);
+        out.writeLong(epoch);
+        out.writeLong(seq);
+        out.writeInt(ops.size());
+        for (byte[] op : ops) {
+            out.writeInt(op.length);
+            out.write(op);
+        }
+        out.flush();
+    }
+
+    /**
+     * Stops accepting followers and disconnects the ones connected.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        synchronized (this) {
+            notifyAll();
+        }
+        server.close();
+        for (Socket socket : followers) socket.close();
+    }
+}
@@ -0,0 +1,345 @@
+package support;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Operation log of a replicated queue: the changes of a {@link Playlist} and of the transport of its player, as
+ * compact binary operations applied in order by the followers of a {@link ReplicationLeader}.<br>
+ * Operations refer to songs by UUID rather than by index, and set a state rather than flip it (the looping flag, the
+ * current song, the order of the songs), so applying an operation twice, or to a queue that already has its
+ * effect, changes nothing. A follower that missed part of the log converges by applying a snapshot, which is the
+ * same operations built from the whole state, then the operations that follow it.<br>
+ * The log keeps the latest {@code capacity} operations in memory, numbered from 1, for followers catching up after
+ * a short disconnection. It is not thread safe; the leader guards it.
+ */
+public final class ReplicationLog {
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+    /**
+     * Exact set of songs: removes the songs not listed and adds the missing ones. Only found in snapshots.
+     */
+    private static final byte SONGS = 3;
+    private static final byte ORDER = 4;
+    private static final byte CURRENT = 5;
+    private static final byte LOOPING = 6;
+    private static final byte TRANSPORT = 7;
+
+    /**
+     * State of the player of a replicated queue.
+     */
+    public enum Transport {
+        PLAYING,
+        PAUSED,
+        STOPPED
+    }
+
+    /**
+     * Receives the transport operations applied by a follower.
+     */
+    @FunctionalInterface
+    public interface TransportListener {
+        /**
+         * @param transport  state of the player of the leader.
+         * @param song       UUID of the song of the leader, null when stopped.
+         * @param positionMs position of the leader in the song.
+         */
+        void transportChanged(Transport transport, UUID song, int positionMs);
+    }
+
+    private final byte[][] entries;
+    private long lastSeq;
+
+    /**
+     * @param capacity number of operations kept for followers catching up.
+     */
+    public ReplicationLog(int capacity) {
+        entries = new byte[Math.max(1, capacity)][];
+    }
+
+    /**
+     * Appends an operation.
+     *
+     * @return its sequence number.
+     */
+    public long append(byte[] op) {
+        lastSeq++;
+        entries[(int) (lastSeq % entries.length)] = op;
+        return lastSeq;
+    }
+
+    /**
+     * @return the sequence number of the last operation, 0 if there is none.
+     */
+    public long getLastSeq() {
+        return lastSeq;
+    }
+
+    /**
+     * @param seq sequence number of the last operation a follower applied.
+     * @param max maximum number of operations to return.
+     * @return the operations after {@code seq}, oldest first, or null if some of them are no longer kept.
+     */
+    public List<byte[]> since(long seq, int max) {
+        if (seq > lastSeq || seq < lastSeq - entries.length) return null;
+        int count = (int) Math.min(max, lastSeq - seq);
+        List<byte[]> ops = new ArrayList<>(count);
+        for (long s = seq + 1; s <= seq + count; s++) ops.add(entries[(int) (s % entries.length)]);
+        return ops;
+    }
+
+    //<editor-fold desc="Encoding">
+    /**
+     * @return the operations that turn a follower in state {@code previous} into state {@code next}.
+     */
+    public static List<byte[]> diff(Playlist.Snapshot previous, Playlist.Snapshot next) {
+        List<byte[]> ops = new ArrayList<>();
+        PersistentVector<Song> before = previous.getSongs();
+        PersistentVector<Song> after = next.getSongs();
+        if (before != after || previous.getUnshuffledSongs() != next.getUnshuffledSongs()
+                || previous.isShuffled() != next.isShuffled()) {
+            Set<Song> kept = identitySet(after);
+            Set<Song> known = identitySet(before);
+            List<Song> expected = new ArrayList<>(after.size());
+            List<Song> removed = new ArrayList<>();
+            for (Song song : before) {
+                if (kept.contains(song)) expected.add(song);
+                else removed.add(song);
+            }
+            List<Song> added = new ArrayList<>();
+            for (Song song : after) if (!known.contains(song)) added.add(song);
+            expected.addAll(added);
+            if (!removed.isEmpty()) ops.add(songs(REMOVE, removed, false));
+            if (!added.isEmpty()) ops.add(songs(ADD, added, true));
+            if (previous.isShuffled() != next.isShuffled() || !sameOrder(expected, after)
+                    || (next.isShuffled() && !sameOrder(next.getUnshuffledSongs(), previous.getUnshuffledSongs()))) {
+                ops.add(order(next));
+            }
+        }
+        Song current = next.get(next.getCurrentIndex());
+        if (current != null && current != previous.get(previous.getCurrentIndex())) ops.add(current(current));
+        if (previous.isLooping() != next.isLooping()) ops.add(looping(next.isLooping()));
+        return ops;
+    }
+
+    /**
+     * @param transport last transport operation, or null.
+     * @return the operations that turn any follower into state {@code snapshot}.
+     */
+    public static List<byte[]> snapshot(Playlist.Snapshot snapshot, byte[] transport) {
+        List<byte[]> ops = new ArrayList<>();
+        List<Song> songs = snapshot.getSongs().toList();
+        ops.add(songs(SONGS, songs, true));
+        ops.add(order(snapshot));
+        Song current = snapshot.get(snapshot.getCurrentIndex());
+        if (current != null) ops.add(current(current));
+        ops.add(looping(snapshot.isLooping()));
+        if (transport != null) ops.add(transport);
+        return ops;
+    }
+
+    /**
+     * @param song the current song of the player, or null.
+     */
+    public static byte[] transport(Transport transport, Song song, int positionMs) {
+        return encode(out -> {
+            out.writeByte(TRANSPORT);
+            out.writeByte(transport.ordinal());
+            out.writeLong(song == null ? 0 : song.getUuidMostSignificantBits());
+            out.writeLong(song == null ? 0 : song.getUuidLeastSignificantBits());
+            out.writeInt(positionMs);
+        });
+    }
+
+    private static byte[] songs(byte type, List<Song> songs, boolean metadata) {
+        return encode(out -> {
+            out.writeByte(type);
+            out.writeInt(songs.size());
+            for (Song song : songs) {
+                out.writeLong(song.getUuidMostSignificantBits());
+                out.writeLong(song.getUuidLeastSignificantBits());
+                if (!metadata) continue;
+                out.writeUTF(song.getTitle());
+                out.writeUTF(song.getAlbum());
+                out.writeUTF(song.getArtist());
+                out.writeUTF(song.getYear());
+                out.writeUTF(song.getFilePath());
+                out.writeFloat(song.getMsLength());
+                out.writeInt(song.getFileSize());
+                out.writeInt(song.getNumFrames());
+            }
+        });
+    }
+
+    private static byte[] order(Playlist.Snapshot snapshot) {
+        return encode(out -> {
+            out.writeByte(ORDER);
+            out.writeBoolean(snapshot.isShuffled());
+            writeUuids(out, snapshot.getSongs());
+            if (snapshot.isShuffled()) writeUuids(out, snapshot.getUnshuffledSongs());
+        });
+    }
+
+    private static byte[] current(Song song) {
+        return encode(out -> {
+            out.writeByte(CURRENT);
+            out.writeLong(song.getUuidMostSignificantBits());
+            out.writeLong(song.getUuidLeastSignificantBits());
+        });
+    }
+
+    private static byte[] looping(boolean looping) {
+        return encode(out -> {
+            out.writeByte(LOOPING);
+            out.writeBoolean(looping);
+        });
+    }
+
+    private static void writeUuids(DataOutputStream out, PersistentVector<Song> songs) throws IOException {
+        out.writeInt(songs.size());
+        for (Song song : songs) {
+            out.writeLong(song.getUuidMostSignificantBits());
+            out.writeLong(song.getUuidLeastSignificantBits());
+        }
+    }
+
+    @FunctionalInterface
+    private interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] encode(Writer writer) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writer.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);      // never thrown by a ByteArrayOutputStream
+        }
+        return bytes.toByteArray();
+    }
+
+    private static Set<Song> identitySet(Iterable<Song> songs) {
+        Set<Song> set = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Song song : songs) set.add(song);
+        return set;
+    }
+
+    private static boolean sameOrder(Iterable<Song> a, Iterable<Song> b) {
+        var other = b.iterator();
+        for (Song song : a) if (!other.hasNext() || other.next() != song) return false;
+        return !other.hasNext();
+    }
+    //</editor-fold>
+
+    //<editor-fold desc="Decoding">
+    /**
+     * Applies an operation to a follower.
+     *
+     * @param op        operation, as encoded by the leader.
+     * @param playlist  queue of the follower.
+     * @param transport receives transport operations.
+     * @throws IOException if the operation is malformed.
+     */
+    public static void apply(byte[] op, Playlist playlist, TransportListener transport) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(op));
+        byte type = in.readByte();
+        switch (type) {
+            case ADD, SONGS -> {
+                List<Song> songs = readSongs(in);
+                Set<UUID> incoming = new HashSet<>();
+                for (Song song : songs) incoming.add(uuid(song));
+                // Songs already here are kept as they are, the others appended, all in a single change.
+                List<Song> result = new ArrayList<>();
+                Set<UUID> known = new HashSet<>();
+                for (Song song : playlist.snapshot().getSongs()) {
+                    if (type == SONGS && !incoming.contains(uuid(song))) continue;
+                    result.add(song);
+                    known.add(uuid(song));
+                }
+                for (Song song : songs) if (known.add(uuid(song))) result.add(song);
+                playlist.replace(result);
+            }
+            case REMOVE -> {
+                Set<UUID> removed = new HashSet<>();
+                for (int i = in.readInt(); i > 0; i--) removed.add(new UUID(in.readLong(), in.readLong()));
+                List<Song> kept = new ArrayList<>();
+                for (Song song : playlist.snapshot().getSongs()) if (!removed.contains(uuid(song))) kept.add(song);
+                playlist.replace(kept);
+            }
+            case ORDER -> {
+                boolean shuffled = in.readBoolean();
+                Playlist.Snapshot snapshot = playlist.snapshot();
+                Map<UUID, Song> byUuid = new HashMap<>();
+                for (Song song : snapshot.getSongs()) byUuid.put(uuid(song), song);
+                List<Song> songs = readOrder(in, byUuid);
+                List<Song> unshuffled = shuffled ? readOrder(in, byUuid) : List.of();
+                if (shuffled != snapshot.isShuffled() || !sameOrder(songs, snapshot.getSongs())
+                        || (shuffled && !sameOrder(unshuffled, snapshot.getUnshuffledSongs()))) {
+                    playlist.setOrder(songs, unshuffled, shuffled);
+                }
+            }
+            case CURRENT -> {
+                int index = playlist.snapshot().findIndex(new UUID(in.readLong(), in.readLong()));
+                if (index >= 0) playlist.setCurrentIndex(index);
+            }
+            case LOOPING -> playlist.setLooping(in.readBoolean());
+            case TRANSPORT -> {
+                int ordinal = in.readUnsignedByte();
+                if (ordinal >= Transport.values().length) throw new IOException("Unknown transport " + ordinal);
+                Transport state = Transport.values()[ordinal];
+                long most = in.readLong();
+                long least = in.readLong();
+                int positionMs = in.readInt();
+                transport.transportChanged(state, most == 0 && least == 0 ? null : new UUID(most, least), positionMs);
+            }
+            default -> throw new IOException("Unknown operation " + type);
+        }
+    }
+
+    private static List<Song> readSongs(DataInput in) throws IOException {
+        int count = in.readInt();
+        List<Song> songs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            UUID uuid = new UUID(in.readLong(), in.readLong());
+            String title = in.readUTF();
+            String album = in.readUTF();
+            String artist = in.readUTF();
+            String year = in.readUTF();
+            String path = in.readUTF();
+            songs.add(new Song(uuid, title, album, artist, year, in.readFloat(), path, in.readInt(), in.readInt()));
+        }
+        return songs;
+    }
+
+    /**
+     * @return the songs of the follower listed by UUID, leaving out the ones it doesn't have.
+     */
+    private static List<Song> readOrder(DataInput in, Map<UUID, Song> byUuid) throws IOException {
+        int count = in.readInt();
+        List<Song> songs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Song song = byUuid.get(new UUID(in.readLong(), in.readLong()));
+            if (song != null) songs.add(song);
+        }
+        return songs;
+    }
+
+    private static UUID uuid(Song song) {
+        return new UUID(song.getUuidMostSignificantBits(), song.getUuidLeastSignificantBits());
+    }
+    //</editor-fold>
+}
@@ -0,0 +1,210 @@
+package support;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+
+/**
+ * Small memory-mapped file recording where playback is, so the player can resume at the same frame after the
+ * process dies. Each record holds the song UUID, the frame and the loop and shuffle flags.<br>
+ * Records alternate between two slots, each with a sequence number and a checksum, so a record torn by a crash
+ * is ignored in favour of the previous one. {@link #record} is rate limited by {@code player.resume.intervalMs}
+ * (default 250), stores straight into the mapped memory and never allocates, so it can be called from the track
+ * thread for every frame. Writes to the mapped memory survive the process dying; a daemon thread also forces them
+ * to disk once a second, so they survive a power loss too, until the journal is {@link #close closed}.
+ */
+public class ResumeJournal implements Closeable {
+    private static final int MAGIC = 0x4D50524A; // "MPRJ"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int SLOT_SIZE = 48;
+    private static final int SEQUENCE = 0;
+    private static final int UUID_MOST = 8;
+    private static final int UUID_LEAST = 16;
+    private static final int FRAME = 24;
+    private static final int FLAGS = 28;
+    private static final int CHECKSUM = 32;
+    private static final int FLAG_LOOPING = 1;
+    private static final int FLAG_SHUFFLED = 2;
+    private static final long FORCE_INTERVAL_MS = 1000;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final Thread forcer;
+    private final long intervalNs = Integer.getInteger("player.resume.intervalMs", 250) * 1_000_000L;
+    private long sequence;
+    private volatile long lastRecord;
+    private volatile boolean dirty;
+    private boolean closed;
+
+    /**
+     * Position recorded in the journal.
+     */
+    public static final class Point {
+        private final UUID uuid;
+        private final int frame;
+        private final boolean looping;
+        private final boolean shuffled;
+
+        private Point(UUID uuid, int frame, boolean looping, boolean shuffled) {
+            this.uuid = uuid;
+            this.frame = frame;
+            this.looping = looping;
+            this.shuffled = shuffled;
+        }
+
+        public UUID getUuid() {
+            return uuid;
+        }
+
+        public int getFrame() {
+            return frame;
+        }
+
+        public boolean isLooping() {
+            return looping;
+        }
+
+        public boolean isShuffled() {
+            return shuffled;
+        }
+    }
+
+    /**
+     * Opens the journal, creating it if needed.
+     *
+     * @param file file of the journal.
+     * @throws IOException if the file can't be opened or mapped.
+     */
+    public ResumeJournal(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + 2 * SLOT_SIZE);
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            for (int i = 0; i < buffer.capacity(); i++) buffer.put(i, (byte) 0);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+        }
+        sequence = Math.max(validSequence(0), validSequence(1));
+
+        forcer = new Thread(this::forceLoop, "resume-journal");
+        forcer.setDaemon(true);
+        forcer.setPriority(Thread.MIN_PRIORITY);
+        forcer.start();
+    }
+
+    /**
+     * Records the position, unless the last record is more recent than the interval. Never blocks on I/O and
+     * never allocates.
+     *
+     * @param song     song being played, or null if nothing is playing.
+     * @param frame    current frame of the song.
+     * @param looping  True if the playlist is set to loop.
+     * @param shuffled True if the playlist is shuffled.
+     */
+    public void record(Song song, int frame, boolean looping, boolean shuffled) {
+        long now = System.nanoTime();
+        if (now - lastRecord < intervalNs) return;
+        forceRecord(song, frame, looping, shuffled);
+    }
+
+    /**
+     * Same as {@link #record}, without the rate limit. Used for changes that must not be missed, like stopping.
+     * Does nothing once the journal is closed.
+     */
+    public synchronized void forceRecord(Song song, int frame, boolean looping, boolean shuffled) {
+        if (closed) return;
+        lastRecord = System.nanoTime();
+        long seq = ++sequence;
+        long most = song == null ? 0 : song.getUuidMostSignificantBits();
+        long least = song == null ? 0 : song.getUuidLeastSignificantBits();
+        int flags = (looping ? FLAG_LOOPING : 0) | (shuffled ? FLAG_SHUFFLED : 0);
+        int slot = slotOffset((int) (seq & 1));
+        buffer.putLong(slot + SEQUENCE, 0); // invalidates the slot while it is written
+        buffer.putLong(slot + UUID_MOST, most);
+        buffer.putLong(slot + UUID_LEAST, least);
+        buffer.putInt(slot + FRAME, frame);
+        buffer.putInt(slot + FLAGS, flags);
+        buffer.putLong(slot + CHECKSUM, checksum(seq, most, least, frame, flags));
+        buffer.putLong(slot + SEQUENCE, seq);
+        dirty = true;
+    }
+
+    /**
+     * @return the most recent valid position, or null if there is none or nothing was playing.
+     */
+    public synchronized Point read() {
+        int newest = validSequence(0) >= validSequence(1) ? 0 : 1;
+        if (validSequence(newest) == 0) return null;
+        int slot = slotOffset(newest);
+        long most = buffer.getLong(slot + UUID_MOST);
+        long least = buffer.getLong(slot + UUID_LEAST);
+        if (most == 0 && least == 0) return null;
+        int flags = buffer.getInt(slot + FLAGS);
+        return new Point(new UUID(most, least), buffer.getInt(slot + FRAME),
+                (flags & FLAG_LOOPING) != 0, (flags & FLAG_SHUFFLED) != 0);
+    }
+
+    /**
+     * Stops the thread forcing records to disk, forces the last ones and closes the file. Records made afterwards
+     * are dropped.
+     *
+     * @throws IOException if the file can't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            forcer.interrupt();
+            if (dirty) {
+                dirty = false;
+                buffer.force();
+            }
+        }
+        channel.close();
+    }
+
+    /**
+     * @return the sequence number of the slot, or 0 if it doesn't hold a valid record.
+     */
+    private long validSequence(int index) {
+        int slot = slotOffset(index);
+        long seq = buffer.getLong(slot + SEQUENCE);
+        if (seq <= 0) return 0;
+        long expected = checksum(seq, buffer.getLong(slot + UUID_MOST), buffer.getLong(slot + UUID_LEAST),
+                buffer.getInt(slot + FRAME), buffer.getInt(slot + FLAGS));
+        return buffer.getLong(slot + CHECKSUM) == expected ? seq : 0;
+    }
+
+    private static int slotOffset(int index) {
+        return HEADER_SIZE + index * SLOT_SIZE;
+    }
+
+    private static long checksum(long seq, long most, long least, int frame, int flags) {
+        long hash = 0xCBF29CE484222325L;
+        hash = (hash ^ seq) * 0x100000001B3L;
+        hash = (hash ^ most) * 0x100000001B3L;
+        hash = (hash ^ least) * 0x100000001B3L;
+        hash = (hash ^ frame) * 0x100000001B3L;
+        hash = (hash ^ flags) * 0x100000001B3L;
+        return hash ^ (hash >>> 29);
+    }
+
+    private void forceLoop() {
+        try {
+            while (channel.isOpen()) {
+                Thread.sleep(FORCE_INTERVAL_MS);
+                if (dirty) {
+                    dirty = false;
+                    buffer.force();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
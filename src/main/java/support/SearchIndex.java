@@ -0,0 +1,229 @@
+package support;
+
+import java.text.Normalizer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Prefix search over the title, album and artist of the songs of a {@link Playlist}. Every word of those fields is
+ * a key of a sorted map pointing to the songs that contain it, so the words starting with a prefix form one
+ * contiguous range of the map. The index is kept up to date by listening to the playlist, as songs are added and removed.<br>
+ * Words are runs of letters and numbers, compared in lower case and without accents. Every word of a query must be
+ * the prefix of some word of the song. Queries run on a single background thread, and a query is abandoned as soon as a newer one is
+ * submitted, so typing fast never queues work behind stale queries.
+ *
+ * @see Playlist#addListener(Playlist.Listener)
+ */
+public class SearchIndex implements Playlist.Listener {
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+    /**
+     * Lower case of each character without accents, for the Latin blocks, or 0 when that is not a single character.
+     */
+    private static final char[] FOLD = new char[0x250];
+
+    static {
+        for (char c = 0; c < FOLD.length; c++) {
+            String plain = MARKS.matcher(Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFD)).replaceAll("");
+            plain = plain.toLowerCase(Locale.ROOT);
+            if (plain.length() == 1) FOLD[c] = plain.charAt(0);
+        }
+    }
+
+    private final ConcurrentSkipListMap<String, Set<Song>> postings = new ConcurrentSkipListMap<>();
+    private final AtomicLong generation = new AtomicLong();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "search");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Override
+    public synchronized void songsAdded(List<Song> songs) {
+        for (Song song : songs) {
+            for (String word : words(song)) {
+                postings.computeIfAbsent(word, k -> ConcurrentHashMap.newKeySet()).add(song);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void songsRemoved(List<Song> songs) {
+        for (Song song : songs) {
+            for (String word : words(song)) {
+                Set<Song> set = postings.get(word);
+                if (set == null) continue;
+                set.remove(song);
+                if (set.isEmpty()) postings.remove(word);
+            }
+        }
+    }
+
+    /**
+     * Stops the background threads. Work still queued is dropped.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return number of distinct words in the index.
+     */
+    public int size() {
+        return postings.size();
+    }
+
+    /**
+     * Searches in the background. Submitting a new query cancels the ones still running: their futures complete
+     * with a {@link CancellationException}.
+     *
+     * @param query words to search for, separated by spaces.
+     * @param limit maximum number of songs returned.
+     * @return future completed with the matching songs, at most {@code limit}.
+     */
+    public CompletableFuture<List<Song>> searchAsync(String query, int limit) {
+        long id = generation.incrementAndGet();
+        return CompletableFuture.supplyAsync(() -> {
+            List<Song> result = search(query, limit, id);
+            if (result == null || generation.get() != id) {
+                throw new CancellationException("Superseded by a newer query");
+            }
+            return result;
+        }, executor);
+    }
+
+    /**
+     * Searches in the calling thread.
+     *
+     * @param query words to search for, separated by spaces.
+     * @param limit maximum number of songs returned.
+     * @return the matching songs, at most {@code limit}.
+     */
+    public List<Song> search(String query, int limit) {
+        return search(query, limit, -1);
+    }
+
+    /**
+     * @return the matching songs, or null if {@code id} stopped being the latest query before the search finished.
+     */
+    private List<Song> search(String query, int limit, long id) {
+        List<String> terms = normalizeWords(query);
+        if (terms.isEmpty()) return List.of();
+        // The word with the fewest matches drives the search, the others are checked on each song it finds.
+        String driver = null;
+        long driverCost = Long.MAX_VALUE;
+        for (String term : terms) {
+            long cost = cost(term, driverCost);
+            if (cost < driverCost) {
+                driver = term;
+                driverCost = cost;
+            }
+        }
+        if (driver == null) driver = terms.get(0);
+        Set<Song> result = new LinkedHashSet<>();
+        int checked = 0;
+        for (Set<Song> songs : range(driver).values()) {
+            for (Song song : songs) {
+                if (id >= 0 && (++checked & 1023) == 0 && generation.get() != id) return null;
+                if (result.contains(song) || !matchesAll(song, terms, driver)) continue;
+                result.add(song);
+                if (result.size() >= limit) return new ArrayList<>(result);
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    /**
+     * @return number of songs listed under the words starting with {@code prefix}, counting songs once per word,
+     * or a number of at least {@code bound} if there are that many.
+     */
+    private long cost(String prefix, long bound) {
+        long cost = 0;
+        for (Set<Song> songs : range(prefix).values()) {
+            cost += songs.size();
+            if (cost >= bound) break;
+        }
+        return cost;
+    }
+
+    private static boolean matchesAll(Song song, List<String> terms, String skip) {
+        for (String term : terms) {
+            if (term == skip) continue;
+            if (!hasWordStartingWith(song.getTitle(), term)
+                    && !hasWordStartingWith(song.getAlbum(), term)
+                    && !hasWordStartingWith(song.getArtist(), term)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Same as checking the result of {@link #normalizeWords(String)}, but without allocating for text in the Latin
+     * alphabets.
+     */
+    private static boolean hasWordStartingWith(String text, String prefix) {
+        if (text == null) return false;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= FOLD.length || FOLD[c] == 0) {
+                for (String word : normalizeWords(text)) if (word.startsWith(prefix)) return true;
+                return false;
+            }
+        }
+        boolean inWord = false;
+        for (int i = 0; i < length; i++) {
+            boolean wordChar = isWordChar(text.charAt(i));
+            if (wordChar && !inWord && i + prefix.length() <= length) {
+                int j = 0;
+                while (j < prefix.length() && FOLD[text.charAt(i + j)] == prefix.charAt(j)) j++;
+                if (j == prefix.length()) return true;
+            }
+            inWord = wordChar;
+        }
+        return false;
+    }
+
+    private NavigableMap<String, Set<Song>> range(String prefix) {
+        return postings.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+    }
+
+    private static Set<String> words(Song song) {
+        Set<String> words = new HashSet<>(normalizeWords(song.getTitle()));
+        words.addAll(normalizeWords(song.getAlbum()));
+        words.addAll(normalizeWords(song.getArtist()));
+        return words;
+    }
+
+    /**
+     * Splits {@code text} into words, in lower case and without accents.
+     */
+    static List<String> normalizeWords(String text) {
+        if (text == null || text.isBlank()) return List.of();
+        String plain = MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("")
+                .toLowerCase(Locale.ROOT);
+        List<String> words = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i < plain.length(); i += Character.charCount(plain.codePointAt(i))) {
+            boolean wordChar = isWordChar(plain.codePointAt(i));
+            if (wordChar && start < 0) start = i;
+            if (!wordChar && start >= 0) {
+                words.add(plain.substring(start, i));
+                start = -1;
+            }
+        }
+        if (start >= 0) words.add(plain.substring(start));
+        return words;
+    }
+
+    /**
+     * @return True if the character is part of a word: a letter or any kind of number, like superscript two or
+     * Roman numerals. Both the index and the search without allocation split words with it, so they always agree.
+     */
+    private static boolean isWordChar(int codePoint) {
+        if (Character.isLetter(codePoint)) return true;
+        int type = Character.getType(codePoint);
+        return type == Character.DECIMAL_DIGIT_NUMBER || type == Character.LETTER_NUMBER
+                || type == Character.OTHER_NUMBER;
+    }
+}
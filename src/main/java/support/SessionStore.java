@@ -0,0 +1,97 @@
+package support;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the queue between runs. The queue is saved as a {@link PlaylistFile} a few seconds after it changes, and
+ * restored on startup: the first songs are added right away so the queue shows them while the rest are decoded.
+ * A shuffled queue is restored shuffled, in the same order. Saving and restoring happen on one background thread,
+ * so a save never starts before the restore ended.
+ */
+public class SessionStore {
+    private static final int FIRST_BATCH = 256;
+    private static final long SAVE_DELAY_MS = 3000;
+
+    private final Path file;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "session");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private long savedVersion = -1;
+
+    /**
+     * @param file file the queue is saved to.
+     */
+    public SessionStore(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * @return the file of the default session, inside {@link AppData#root()}.
+     */
+    public static Path defaultFile() throws IOException {
+        return AppData.dir("session").resolve("queue.mppl");
+    }
+
+    /**
+     * Loads the saved queue into {@code playlist} in the background, then saves the playlist whenever it changes.
+     *
+     * @param playlist   playlist the songs are added to, usually still empty.
+     * @param onBatch    called after each batch of songs is added.
+     * @param onRestored called once every song was added, from the background thread.
+     */
+    public void restoreAndAutosave(Playlist playlist, Runnable onBatch, Runnable onRestored) {
+        executor.execute(() -> {
+            restore(playlist, onBatch);
+            savedVersion = playlist.snapshot().getVersion();
+            onRestored.run();
+        });
+        executor.scheduleWithFixedDelay(() -> save(playlist), SAVE_DELAY_MS, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void restore(Playlist playlist, Runnable onBatch) {
+        if (!Files.isRegularFile(file)) return;
+        try (PlaylistFile saved = PlaylistFile.open(file)) {
+            int size = saved.size();
+            int first = Math.min(FIRST_BATCH, size);
+            Song[] songs = new Song[size];
+            for (int i = 0; i < first; i++) songs[i] = saved.get(i);
+            playlist.addAll(Arrays.asList(songs).subList(0, first));
+            onBatch.run();
+            if (first < size) {
+                for (int i = first; i < size; i++) songs[i] = saved.get(i);
+                playlist.addAll(Arrays.asList(songs).subList(first, size));
+                onBatch.run();
+            }
+            int[] order = saved.getOriginalOrder();
+            if (order != null) {
+                List<Song> original = new ArrayList<>(order.length);
+                for (int index : order) if (index >= 0 && index < size) original.add(songs[index]);
+                playlist.setShuffled(original);
+            }
+            playlist.clearHistory();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void save(Playlist playlist) {
+        Playlist.Snapshot snapshot = playlist.snapshot();
+        if (snapshot.getVersion() == savedVersion) return;
+        try {
+            PlaylistFile.write(file, snapshot);
+            savedVersion = snapshot.getVersion();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package support;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Background tasks by key, so concurrent requests for the same key share a single run of the task. A task is
+ * forgotten once it completes, successfully or not, so the next request for its key runs it again.
+ *
+ * @param <K> type of the keys.
+ * @param <V> type of the results.
+ */
+final class SharedTasks<K, V> {
+    private final Map<K, CompletableFuture<V>> running = new ConcurrentHashMap<>();
+    private final Executor executor;
+
+    /**
+     * @param executor executor running the tasks.
+     */
+    SharedTasks(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Runs the task in the background, unless a task for the same key is still running.
+     *
+     * @return a future completed with the result of the task running for the key, or completed exceptionally
+     * right away if the executor rejected the task.
+     */
+    CompletableFuture<V> run(K key, Supplier<V> task) {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        CompletableFuture<V> existing = running.putIfAbsent(key, future);
+        if (existing != null) return existing;
+        // Only removed once published, and only if still the task of the key.
+        future.whenComplete((result, e) -> running.remove(key, future));
+        try {
+            CompletableFuture.supplyAsync(task, executor).whenComplete((result, e) -> {
+                if (e == null) future.complete(result);
+                else future.completeExceptionally(e);
+            });
+        } catch (RejectedExecutionException e) {
+            // Shut down: fails, and is forgotten like any failed task.
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+}
@@ -0,0 +1,39 @@
+package support;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Prints how long after the process started each step of the startup was reached, when {@code player.startupTrace}
+ * is set. With {@code true} the times are printed; with {@code exit} the player also exits once the first audio is
+ * played, which is how a training run for the class data sharing archive ends, and how each run of the
+ * {@code StartupBenchmark} of the tests ends.<br>
+ * Each step is printed once, the first time it is marked.
+ */
+public final class StartupTrace {
+    private static final String MODE = System.getProperty("player.startupTrace", "false");
+    private static final boolean ENABLED = MODE.equals("true") || MODE.equals("exit");
+    private static final Instant START = ProcessHandle.current().info().startInstant().orElseGet(Instant::now);
+    private static final Set<String> MARKED = ConcurrentHashMap.newKeySet();
+
+    private StartupTrace() {
+    }
+
+    /**
+     * Records that a step of the startup was reached.
+     *
+     * @param step name of the step, like "window visible" or "first audio".
+     */
+    public static void mark(String step) {
+        if (!ENABLED || !MARKED.add(step)) return;
+        System.out.println("startup: " + step + " after " + Duration.between(START, Instant.now()).toMillis() + " ms");
+        if (step.equals("first audio") && MODE.equals("exit")) {
+            // From a thread of its own: the step is marked by the track thread while it holds the player's lock,
+            // which the shutdown hooks run by exit may need.
+            Thread exit = new Thread(() -> System.exit(0), "startup-exit");
+            exit.start();
+        }
+    }
+}
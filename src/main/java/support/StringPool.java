@@ -0,0 +1,35 @@
+package support;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pool of canonical strings, used to store values repeated across many songs (artist, album and year)
+ * once instead of once per song. Thread safe.<br>
+ * The pool is a single global map that never evicts: a string stays in it for the life of the JVM, even after
+ * every song holding it was removed. That is fine for values with few distinct entries, which is why titles and
+ * paths are not interned, but a player loading many libraries in turn keeps the values of all of them.
+ */
+public final class StringPool {
+    private static final Map<String, String> POOL = new ConcurrentHashMap<>();
+
+    private StringPool() {
+    }
+
+    /**
+     * @param value string to be interned, may be null.
+     * @return the canonical instance equal to {@code value}, or null if {@code value} is null.
+     */
+    public static String intern(String value) {
+        if (value == null) return null;
+        String existing = POOL.putIfAbsent(value, value);
+        return existing == null ? value : existing;
+    }
+
+    /**
+     * @return number of distinct strings in the pool.
+     */
+    public static int size() {
+        return POOL.size();
+    }
+}
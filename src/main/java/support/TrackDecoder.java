@@ -0,0 +1,130 @@
+package support;
+
+import javazoom.jl.decoder.*;
+
+import java.io.InputStream;
+
+/**
+ * An MPEG audio {@link Bitstream} and its {@link Decoder}, decoding one frame at a time. Used for every
+ * decode that does not feed the main audio device directly, such as the incoming track of a crossfade.
+ * Also exposes the decoded samples as a {@link PcmSource}. This class is NOT THREAD SAFE!
+ */
+public class TrackDecoder implements PcmSource, AutoCloseable {
+    private final Bitstream bitstream;
+    private final FloatDecoder decoder = new FloatDecoder();
+    private int frame;
+
+    private FloatSampleBuffer pending;
+    private int pendingOffset;
+
+    /**
+     * @param input stream positioned at the start of an MPEG audio file.
+     */
+    public TrackDecoder(InputStream input) {
+        this.bitstream = new Bitstream(input);
+    }
+
+    /**
+     * Decodes the next frame.
+     *
+     * @return the decoded samples, or null if there are no more frames. The buffer is reused by the next call.
+     */
+    public FloatSampleBuffer decodeFrame() throws JavaLayerException {
+        Header h = bitstream.readFrame();
+        if (h == null) return null;
+        FloatSampleBuffer output = decoder.decodeFrame(h, bitstream);
+        bitstream.closeFrame();
+        frame++;
+        return output;
+    }
+
+    /**
+     * Skips the next frame without decoding it.
+     *
+     * @return False if there are no more frames to skip.
+     */
+    public boolean skipFrame() throws BitstreamException {
+        Header h = bitstream.readFrame();
+        if (h == null) return false;
+        bitstream.closeFrame();
+        frame++;
+        return true;
+    }
+
+    /**
+     * Decodes the next frame into the buffer consumed by {@link #read}, unless it still holds samples.
+     *
+     * @return False if there are no more frames.
+     */
+    public boolean fill() throws JavaLayerException {
+        if (pending != null && pendingOffset < pending.getBufferLength()) return true;
+        pending = decodeFrame();
+        pendingOffset = 0;
+        return pending != null;
+    }
+
+    @Override
+    public int read(float[] dst, int offset, int length) {
+        try {
+            if (!fill()) return -1;
+        } catch (JavaLayerException e) {
+            return -1;
+        }
+        int count = Math.min(length, pending.getBufferLength() - pendingOffset);
+        System.arraycopy(pending.getSamples(), pendingOffset, dst, offset, count);
+        pendingOffset += count;
+        return count;
+    }
+
+    /**
+     * Copies the samples not yet returned by {@link #read} into {@code dst}.
+     *
+     * @param dst array with room for at least {@link #available()} samples.
+     * @return number of samples copied.
+     */
+    public int drain(short[] dst) {
+        int count = available();
+        if (count > 0) System.arraycopy(pending.getBuffer(), pendingOffset, dst, 0, count);
+        pendingOffset += count;
+        return count;
+    }
+
+    /**
+     * @return number of samples decoded by the last frame that were not yet returned by {@link #read}.
+     */
+    public int available() {
+        return pending == null ? 0 : pending.getBufferLength() - pendingOffset;
+    }
+
+    /**
+     * @return index of the next frame to be decoded.
+     */
+    public int getFrame() {
+        return frame;
+    }
+
+    public Bitstream getBitstream() {
+        return bitstream;
+    }
+
+    public FloatDecoder getDecoder() {
+        return decoder;
+    }
+
+    public int getSampleRate() {
+        return decoder.getOutputFrequency();
+    }
+
+    public int getChannels() {
+        return decoder.getOutputChannels();
+    }
+
+    @Override
+    public void close() {
+        try {
+            bitstream.close();
+        } catch (BitstreamException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package support;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Bulk float operations used by the DSP stages and the similarity search of {@link FeatureMatrix}. When the {@code jdk.incubator.vector} module is
+ * present (run with {@code --add-modules jdk.incubator.vector}) the loops are executed with the
+ * Vector API, otherwise a plain scalar loop is used. Setting the system property
+ * {@code player.dsp.scalar} to {@code true} forces the scalar path.<br>
+ * All methods work in place and never allocate.
+ */
+final class VectorOps {
+
+    /**
+     * True if the Vector API is available and enabled.
+     */
+    static final boolean VECTORIZED = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()
+            && !Boolean.getBoolean("player.dsp.scalar");
+
+    private VectorOps() {
+    }
+
+    /**
+     * Multiplies the first {@code length} samples by a gain ramping linearly from {@code from} to {@code to}.
+     *
+     * @param samples samples to be scaled in place.
+     * @param length  number of samples to process.
+     * @param from    gain applied to the first sample.
+     * @param to      gain reached after the last sample.
+     */
+    static void ramp(float[] samples, int length, float from, float to) {
+        if (length <= 0) return;
+        float step = (to - from) / length;
+        if (VECTORIZED) Vectorized.ramp(samples, length, from, step);
+        else for (int i = 0; i < length; i++) samples[i] *= from + i * step;
+    }
+
+    /**
+     * Mixes {@code src} into {@code dst} as {@code dst = dst * a + src * b}, where {@code a} and {@code b}
+     * ramp linearly over the block. Used for crossfades.
+     *
+     * @param dst    destination samples, modified in place.
+     * @param src    samples to be mixed in.
+     * @param length number of samples to process.
+     * @param aFrom  gain of {@code dst} at the first sample.
+     * @param aTo    gain of {@code dst} after the last sample.
+     * @param bFrom  gain of {@code src} at the first sample.
+     * @param bTo    gain of {@code src} after the last sample.
+     */
+    static void mix(float[] dst, float[] src, int length, float aFrom, float aTo, float bFrom, float bTo) {
+        if (length <= 0) return;
+        float aStep = (aTo - aFrom) / length;
+        float bStep = (bTo - bFrom) / length;
+        if (VECTORIZED) Vectorized.mix(dst, src, length, aFrom, aStep, bFrom, bStep);
+        else for (int i = 0; i < length; i++) dst[i] = dst[i] * (aFrom + i * aStep) + src[i] * (bFrom + i * bStep);
+    }
+
+    /**
+     * Adds {@code src} to {@code dst} starting at {@code offset}, scaled by a gain ramping linearly from
+     * {@code from} to {@code to}. Used to mix sources over the music.
+     *
+     * @param dst    destination samples, modified in place.
+     * @param offset index of {@code dst} the first sample of {@code src} is added to.
+     * @param src    samples to be added.
+     * @param length number of samples to process.
+     * @param from   gain of {@code src} at the first sample.
+     * @param to     gain of {@code src} after the last sample.
+     */
+    static void accumulate(float[] dst, int offset, float[] src, int length, float from, float to) {
+        if (length <= 0) return;
+        float step = (to - from) / length;
+        if (VECTORIZED) Vectorized.accumulate(dst, offset, src, length, from, step);
+        else for (int i = 0; i < length; i++) dst[offset + i] += src[i] * (from + i * step);
+    }
+
+    /**
+     * Adds the weighted squared distance of each value to a target, {@code distances[i] += weight * (values[i] -
+     * target)^2}. Called once per feature to compute the distances of a block of rows of a {@link FeatureMatrix}.
+     *
+     * @param values    values of one feature for a block of rows.
+     * @param length    number of rows to process.
+     * @param target    value of the feature being searched for.
+     * @param weight    weight of the feature.
+     * @param distances distances of the rows, modified in place.
+     */
+    static void accumulateDistance(float[] values, int length, float target, float weight, float[] distances) {
+        if (VECTORIZED) Vectorized.accumulateDistance(values, length, target, weight, distances);
+        else for (int i = 0; i < length; i++) distances[i] += weight * (values[i] - target) * (values[i] - target);
+    }
+
+    /**
+     * Converts 16-bit samples to floats in the same range.
+     */
+    static void toFloat(short[] src, float[] dst, int length) {
+        for (int i = 0; i < length; i++) dst[i] = src[i];
+    }
+
+    /**
+     * Converts floats in the 16-bit range back to samples, clipping anything out of range.
+     */
+    static void toShort(float[] src, short[] dst, int length) {
+        // Clamped as ints, which the casts saturate: no branch, unlike comparing floats that may be NaN.
+        for (int i = 0; i < length; i++) {
+            dst[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, (int) src[i]));
+        }
+    }
+
+    /**
+     * Holds every reference to the incubator classes, so they are only loaded when {@link #VECTORIZED} is true.
+     */
+    private static final class Vectorized {
+        private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+        private static final FloatVector IOTA = FloatVector.zero(SPECIES).addIndex(1);
+
+        static void ramp(float[] samples, int length, float from, float step) {
+            int bound = SPECIES.loopBound(length);
+            int lanes = SPECIES.length();
+            FloatVector steps = IOTA.mul(step);
+            int i = 0;
+            for (; i < bound; i += lanes) {
+                FloatVector gain = steps.add(from + i * step);
+                FloatVector.fromArray(SPECIES, samples, i).mul(gain).intoArray(samples, i);
+            }
+            for (; i < length; i++) samples[i] *= from + i * step;
+        }
+
+        static void mix(float[] dst, float[] src, int length, float aFrom, float aStep, float bFrom, float bStep) {
+            int bound = SPECIES.loopBound(length);
+            int lanes = SPECIES.length();
+            FloatVector aSteps = IOTA.mul(aStep);
+            FloatVector bSteps = IOTA.mul(bStep);
+            int i = 0;
+            for (; i < bound; i += lanes) {
+                FloatVector a = aSteps.add(aFrom + i * aStep);
+                FloatVector b = bSteps.add(bFrom + i * bStep);
+                FloatVector s = FloatVector.fromArray(SPECIES, src, i).mul(b);
+                FloatVector.fromArray(SPECIES, dst, i).fma(a, s).intoArray(dst, i);
+            }
+            for (; i < length; i++) dst[i] = dst[i] * (aFrom + i * aStep) + src[i] * (bFrom + i * bStep);
+        }
+
+        static void accumulate(float[] dst, int offset, float[] src, int length, float from, float step) {
+            int bound = SPECIES.loopBound(length);
+            int lanes = SPECIES.length();
+            FloatVector steps = IOTA.mul(step);
+            int i = 0;
+            for (; i < bound; i += lanes) {
+                FloatVector gain = steps.add(from + i * step);
+                FloatVector d = FloatVector.fromArray(SPECIES, dst, offset + i);
+                FloatVector.fromArray(SPECIES, src, i).fma(gain, d).intoArray(dst, offset + i);
+            }
+            for (; i < length; i++) dst[offset + i] += src[i] * (from + i * step);
+        }
+
+        static void accumulateDistance(float[] values, int length, float target, float weight, float[] distances) {
+            int bound = SPECIES.loopBound(length);
+            int lanes = SPECIES.length();
+            int i = 0;
+            for (; i < bound; i += lanes) {
+                FloatVector diff = FloatVector.fromArray(SPECIES, values, i).sub(target);
+                FloatVector d = FloatVector.fromArray(SPECIES, distances, i);
+                diff.mul(weight).fma(diff, d).intoArray(distances, i);
+            }
+            for (; i < length; i++) distances[i] += weight * (values[i] - target) * (values[i] - target);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package support;
+
+import javax.swing.Timer;
+import java.awt.EventQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Shows the latest {@link ViewState} published by the player on its {@link PlayerWindow}. Renders can be requested
+ * from any thread: requests made while a render is pending are merged into it, and renders are at least
+ * {@value #MIN_INTERVAL_MS} ms apart, so the event dispatch thread does a bounded amount of work however often the
+ * state is published. Each render compares the latest state with the one rendered before and only updates the
+ * components that show something that changed.
+ */
+public class ViewRenderer {
+    static final int MIN_INTERVAL_MS = 33;
+    private static final long MIN_INTERVAL_NS = TimeUnit.MILLISECONDS.toNanos(MIN_INTERVAL_MS);
+
+    private final Supplier<ViewState> source;
+    private final Supplier<PlayerWindow> window;
+    private final AtomicBoolean pending = new AtomicBoolean();
+    private final Timer delayed;
+    /**
+     * State the window shows. Only used on the event dispatch thread, like lastRender.
+     */
+    private ViewState rendered;
+    private long lastRender;
+
+    /**
+     * @param shown  state the window shows when it is created.
+     * @param source latest state published.
+     * @param window the window, which may not exist until the first render.
+     */
+    public ViewRenderer(ViewState shown, Supplier<ViewState> source, Supplier<PlayerWindow> window) {
+        this.rendered = shown;
+        this.source = source;
+        this.window = window;
+        this.delayed = new Timer(MIN_INTERVAL_MS, e -> render());
+        this.delayed.setRepeats(false);
+        this.lastRender = System.nanoTime() - MIN_INTERVAL_NS;
+    }
+
+    /**
+     * Has the latest state rendered on the event dispatch thread, unless a render is already pending.
+     */
+    public void requestRender() {
+        if (pending.compareAndSet(false, true)) EventQueue.invokeLater(this::renderWhenDue);
+    }
+
+    private void renderWhenDue() {
+        long wait = lastRender + MIN_INTERVAL_NS - System.nanoTime();
+        if (wait <= 0) {
+            render();
+            return;
+        }
+        delayed.setInitialDelay((int) TimeUnit.NANOSECONDS.toMillis(wait) + 1);
+        delayed.restart();
+    }
+
+    private void render() {
+        pending.set(false);             // a state published from now on needs another render
+        PlayerWindow w = window.get();
+        if (w == null) return;
+        ViewState next = source.get();
+        render(rendered, next, w);
+        rendered = next;
+        lastRender = System.nanoTime();
+    }
+
+    private static void render(ViewState from, ViewState to, PlayerWindow w) {
+        if (to.getQueue().getSongs() != from.getQueue().getSongs()) {
+            w.setQueueList(to.getQueue().getDisplayInfo());
+        }
+        if (to.getQueueFilter() != from.getQueueFilter()) w.setQueueFilter(to.getQueueFilter());
+
+        if (to.isStopped()) {
+            if (!from.isStopped()) w.resetMiniPlayer();
+            return;
+        }
+        boolean all = from.isStopped();    // the mini-player was reset, everything has to be shown
+        if (all) {
+            w.setEnabledStopButton(true);
+            w.setEnabledPlayPauseButton(true);
+            w.setEnabledScrubber(true);
+        }
+        Song song = to.getSong();
+        if (all || song != from.getSong()) w.setPlayingSongInfo(song.getTitle(), song.getAlbum(), song.getArtist());
+        if (all || to.isPlaying() != from.isPlaying()) {
+            w.setPlayPauseButtonIcon(to.isPlaying() ? w.BUTTON_ICON_PAUSE : w.BUTTON_ICON_PLAY);
+        }
+        if (all || to.hasNext() != from.hasNext()) w.setEnabledNextButton(to.hasNext());
+        if (all || to.hasPrevious() != from.hasPrevious()) w.setEnabledPreviousButton(to.hasPrevious());
+        if (all || to.getPositionMs() != from.getPositionMs() || to.getLengthMs() != from.getLengthMs()) {
+            w.setTime(to.getPositionMs(), to.getLengthMs());
+        }
+        if (all || to.getWaveform() != from.getWaveform()) w.setWaveform(to.getWaveform());
+    }
+}
@@ -0,0 +1,126 @@
+package support;
+
+import java.util.Set;
+
+/**
+ * Everything the window shows about playback, taken at one point in time: the song, whether it plays, where it
+ * is, the queue and the songs found by the search. The player publishes a new state whenever one of them changes
+ * and {@link ViewRenderer} shows the latest one, so the window never mixes values read at different times.<br>
+ * Instances are immutable and may be shared between threads. The {@code with} methods return a changed copy.
+ */
+public final class ViewState {
+    private final Song song;
+    private final boolean playing;
+    private final int positionMs;
+    private final Playlist.Snapshot queue;
+    private final Set<String> queueFilter;
+    private final WaveformPeaks waveform;
+
+    private ViewState(Song song, boolean playing, int positionMs, Playlist.Snapshot queue, Set<String> queueFilter,
+                      WaveformPeaks waveform) {
+        this.song = song;
+        this.playing = playing;
+        this.positionMs = positionMs;
+        this.queue = queue;
+        this.queueFilter = queueFilter;
+        this.waveform = waveform;
+    }
+
+    /**
+     * @param queue the queue shown.
+     * @return the state of a player with no song, showing every song of the queue.
+     */
+    public static ViewState stopped(Playlist.Snapshot queue) {
+        return new ViewState(null, false, 0, queue, null, null);
+    }
+
+    /**
+     * Returns the state with the specified playback state and queue. The search results are kept; the waveform is
+     * kept only if the song is the same.
+     *
+     * @param song       song shown, or null when stopped.
+     * @param playing    True if the song plays, false if it is paused.
+     * @param positionMs position in the song in milliseconds.
+     * @param queue      the queue shown.
+     */
+    public ViewState with(Song song, boolean playing, int positionMs, Playlist.Snapshot queue) {
+        return new ViewState(song, song != null && playing, song == null ? 0 : positionMs, queue, queueFilter,
+                song == this.song ? waveform : null);
+    }
+
+    /**
+     * @param queueFilter UUIDs of the songs of the queue to show, or null to show every song.
+     */
+    public ViewState withQueueFilter(Set<String> queueFilter) {
+        return new ViewState(song, playing, positionMs, queue, queueFilter, waveform);
+    }
+
+    /**
+     * @param waveform peaks of the song shown, or null to draw no waveform.
+     */
+    public ViewState withWaveform(WaveformPeaks waveform) {
+        return new ViewState(song, playing, positionMs, queue, queueFilter, waveform);
+    }
+
+    /**
+     * @return the song shown, or null when stopped.
+     */
+    public Song getSong() {
+        return song;
+    }
+
+    public boolean isStopped() {
+        return song == null;
+    }
+
+    /**
+     * @return True if the song plays, false if it is paused or stopped.
+     */
+    public boolean isPlaying() {
+        return playing;
+    }
+
+    public int getPositionMs() {
+        return positionMs;
+    }
+
+    public int getLengthMs() {
+        return song == null ? 0 : (int) song.getMsLength();
+    }
+
+    public Playlist.Snapshot getQueue() {
+        return queue;
+    }
+
+    /**
+     * @return the version of the queue shown, see {@link Playlist.Snapshot#getVersion()}.
+     */
+    public long getQueueVersion() {
+        return queue.getVersion();
+    }
+
+    /**
+     * @return True if the Next button is enabled.
+     */
+    public boolean hasNext() {
+        return song != null && queue.hasNext();
+    }
+
+    /**
+     * @return True if the Previous button is enabled.
+     */
+    public boolean hasPrevious() {
+        return song != null && queue.hasPrevious();
+    }
+
+    /**
+     * @return UUIDs of the songs of the queue to show, or null to show every song.
+     */
+    public Set<String> getQueueFilter() {
+        return queueFilter;
+    }
+
+    public WaveformPeaks getWaveform() {
+        return waveform;
+    }
+}
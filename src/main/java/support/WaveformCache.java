@@ -0,0 +1,223 @@
+package support;
+
+import javazoom.jl.decoder.JavaLayerException;
+import javazoom.jl.decoder.SampleBuffer;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.*;
+
+/**
+ * Computes and caches the {@link WaveformPeaks} of songs. Peaks are looked up in memory, then in the
+ * binary cache on disk, and only then computed by decoding the whole file, read as background work of the
+ * {@link IoScheduler}. Computation runs on a pool of low priority daemon threads, never on the event dispatch
+ * thread or on the playback thread, and concurrent requests for the same file share a single computation.<br>
+ * Peaks are cached by the {@link ContentIndex} hash of the song, so copies of a track at different paths share
+ * them. Cache files are named after the hash, or after the path, size and modification time of the MP3 if it
+ * can't be hashed, and hold a small header followed by two bytes per frame. Peaks kept in memory are charged to the
+ * {@link MemoryBudget}, which evicts them when the caches of the player need the memory.
+ */
+public class WaveformCache {
+    private static final int MAGIC = 0x4D505746; // "MPWF"
+    private static final int VERSION = 1;
+    /**
+     * Cost of computing peaks again, for the {@link MemoryBudget}: they are usually read back from the disk cache,
+     * which costs a bit more than reading a prefix back from the MP3.
+     */
+    private static final float BUDGET_WEIGHT = 2f;
+
+    private final ExecutorService executor;
+    private final ContentIndex contents;
+    private final SharedTasks<String, WaveformPeaks> running;
+    /**
+     * Peaks kept in memory, as long as the {@link MemoryBudget} lets them. Guarded by itself.
+     */
+    private final Map<String, Cached> memory = new HashMap<>();
+
+    private static final class Cached {
+        final WaveformPeaks peaks;
+        final MemoryBudget.Charge charge;
+
+        Cached(WaveformPeaks peaks, MemoryBudget.Charge charge) {
+            this.peaks = peaks;
+            this.charge = charge;
+        }
+    }
+
+    /**
+     * @param contents index giving the content hash of songs.
+     */
+    public WaveformCache(ContentIndex contents) {
+        this.contents = contents;
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "waveform");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+        running = new SharedTasks<>(executor);
+    }
+
+    /**
+     * Stops the background threads. Work still queued is dropped.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns the peaks of the specified song, computing them in the background if needed. Remote songs have none:
+     * they are not hashed, so their peaks could not be cached, and computing them would download the whole file
+     * every time.
+     *
+     * @param song song to get the peaks of.
+     * @return a future completed with the peaks, or completed exceptionally if the file could not be decoded or
+     * the song is remote.
+     */
+    public CompletableFuture<WaveformPeaks> request(Song song) {
+        if (song.isRemote()) {
+            return CompletableFuture.failedFuture(new IOException("No peaks for remote song " + song.getFilePath()));
+        }
+        String hash = contents.getKnownHash(song);
+        if (hash != null) {
+            WaveformPeaks cached = fromMemory(hash);
+            if (cached != null) return CompletableFuture.completedFuture(cached);
+        }
+        return running.run(song.getFilePath(), () -> load(song));
+    }
+
+    private WaveformPeaks fromMemory(String key) {
+        synchronized (memory) {
+            Cached cached = memory.get(key);
+            if (cached == null) return null;
+            cached.charge.touch();
+            PlaybackMetrics.global().waveformFromMemory();
+            return cached.peaks;
+        }
+    }
+
+    private WaveformPeaks load(Song song) {
+        String key = key(song);
+        WaveformPeaks cached = fromMemory(key);
+        if (cached != null) return cached;
+        WaveformPeaks peaks = loadOrCompute(song, key);
+        MemoryBudget.Charge charge = MemoryBudget.global().charge(this::evict, key, song, peaks.getMemoryBytes(),
+                false, BUDGET_WEIGHT);
+        Cached replaced;
+        synchronized (memory) {
+            replaced = memory.put(key, new Cached(peaks, charge));
+        }
+        if (replaced != null) replaced.charge.release();
+        return peaks;
+    }
+
+    private void evict(MemoryBudget.Charge charge) {
+        synchronized (memory) {
+            Cached cached = memory.get((String) charge.getKey());
+            if (cached != null && cached.charge == charge) memory.remove((String) charge.getKey());
+        }
+    }
+
+    /**
+     * @return the content hash of the song, or a name made of its path, size and modification time if it can't
+     * be hashed. Hashes the song right away rather than after the songs queued for hashing before it.
+     */
+    private String key(Song song) {
+        try {
+            return contents.hashNow(song).join();
+        } catch (CompletionException e) {
+            File file = new File(song.getFilePath());
+            String id = file.getAbsolutePath() + '|' + file.length() + '|' + file.lastModified();
+            return UUID.nameUUIDFromBytes(id.getBytes(StandardCharsets.UTF_8)).toString();
+        }
+    }
+
+    private WaveformPeaks loadOrCompute(Song song, String key) {
+        Path file = null;
+        try {
+            file = AppData.dir("peaks").resolve(key + ".peaks");
+            if (Files.exists(file)) {
+                WaveformPeaks peaks = read(file);
+                PlaybackMetrics.global().waveformFromDisk();
+                return peaks;
+            }
+        } catch (InterruptedIOException e) {
+            throw new CompletionException(e);   // shut down
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        WaveformPeaks peaks = compute(song);
+        PlaybackMetrics.global().waveformComputed();
+        if (file != null) {
+            try {
+                write(file, peaks);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return peaks;
+    }
+
+    private static WaveformPeaks compute(Song song) {
+        int capacity = Math.max(16, song.getNumFrames());
+        byte[] min = new byte[capacity];
+        byte[] max = new byte[capacity];
+        int frames = 0;
+        try (TrackDecoder track = new TrackDecoder(song.getBufferedInputStream(0, IoScheduler.Priority.BACKGROUND))) {
+            SampleBuffer output;
+            while ((output = track.decodeFrame()) != null) {
+                short[] pcm = output.getBuffer();
+                int lo = 0;
+                int hi = 0;
+                for (int i = 0, n = output.getBufferLength(); i < n; i++) {
+                    lo = Math.min(lo, pcm[i]);
+                    hi = Math.max(hi, pcm[i]);
+                }
+                if (frames == min.length) {
+                    min = Arrays.copyOf(min, frames * 2);
+                    max = Arrays.copyOf(max, frames * 2);
+                }
+                min[frames] = (byte) (lo >> 8);
+                max[frames] = (byte) (hi >> 8);
+                frames++;
+            }
+        } catch (IOException | JavaLayerException e) {
+            throw new CompletionException(e);
+        }
+        return new WaveformPeaks(Arrays.copyOf(min, frames), Arrays.copyOf(max, frames));
+    }
+
+    private static WaveformPeaks read(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                IoScheduler.global().open(file, 0, IoScheduler.Priority.BACKGROUND)))) {
+            if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) throw new IOException("Invalid peaks file " + file);
+            int frames = in.readInt();
+            byte[] min = new byte[frames];
+            byte[] max = new byte[frames];
+            in.readFully(min);
+            in.readFully(max);
+            return new WaveformPeaks(min, max);
+        }
+    }
+
+    private static void write(Path file, WaveformPeaks peaks) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(peaks.getFrameCount());
+            out.write(peaks.getFrameMins());
+            out.write(peaks.getFrameMaxs());
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,96 @@
+package support;
+
+/**
+ * Minimum and maximum sample value of every MP3 frame of a song, used to draw its waveform.
+ * Values are quantized to a byte (the high byte of the 16-bit sample), so a frame costs two bytes.<br>
+ * Besides the per-frame values the peaks are kept as a mipmap: each level halves the number of buckets of
+ * the previous one, so drawing into {@code w} pixels reads at most {@code 2 * w} buckets, however long
+ * the song is. Instances are immutable and may be shared between threads.
+ */
+public final class WaveformPeaks {
+    private final byte[][] mins;
+    private final byte[][] maxs;
+
+    /**
+     * @param min minimum of each frame, quantized to a byte. The array is not copied.
+     * @param max maximum of each frame, quantized to a byte. The array is not copied.
+     */
+    public WaveformPeaks(byte[] min, byte[] max) {
+        int levels = 1;
+        for (int n = min.length; n > 1; n = (n + 1) / 2) levels++;
+        mins = new byte[levels][];
+        maxs = new byte[levels][];
+        mins[0] = min;
+        maxs[0] = max;
+        for (int level = 1; level < levels; level++) {
+            byte[] lowerMin = mins[level - 1];
+            byte[] lowerMax = maxs[level - 1];
+            int n = (lowerMin.length + 1) / 2;
+            mins[level] = new byte[n];
+            maxs[level] = new byte[n];
+            for (int i = 0; i < n; i++) {
+                int j = Math.min(2 * i + 1, lowerMin.length - 1);
+                mins[level][i] = (byte) Math.min(lowerMin[2 * i], lowerMin[j]);
+                maxs[level][i] = (byte) Math.max(lowerMax[2 * i], lowerMax[j]);
+            }
+        }
+    }
+
+    /**
+     * @return bytes of heap taken by the peaks, about four per frame with the mipmap.
+     */
+    public long getMemoryBytes() {
+        long bytes = 0;
+        for (byte[] level : mins) bytes += level.length;
+        return 2 * bytes;
+    }
+
+    /**
+     * @return number of frames covered by the peaks.
+     */
+    public int getFrameCount() {
+        return mins[0].length;
+    }
+
+    /**
+     * @return per-frame minimums. Callers must not modify the returned array.
+     */
+    byte[] getFrameMins() {
+        return mins[0];
+    }
+
+    /**
+     * @return per-frame maximums. Callers must not modify the returned array.
+     */
+    byte[] getFrameMaxs() {
+        return maxs[0];
+    }
+
+    /**
+     * Reduces the peaks to {@code width} columns, reading from the coarsest level that still has at least one
+     * bucket per column.
+     *
+     * @param width  number of columns.
+     * @param outMin minimum of each column, as a fraction of full scale from -1 to 0.
+     * @param outMax maximum of each column, as a fraction of full scale from 0 to 1.
+     */
+    public void columns(int width, float[] outMin, float[] outMax) {
+        int level = 0;
+        while (level + 1 < mins.length && mins[level + 1].length >= width) level++;
+        byte[] min = mins[level];
+        byte[] max = maxs[level];
+        int n = min.length;
+        for (int x = 0; x < width; x++) {
+            int from = (int) ((long) x * n / width);
+            int to = Math.max(from + 1, (int) ((long) (x + 1) * n / width));
+            int lo = 0;
+            int hi = 0;
+            for (int i = from; i < to && i < n; i++) {
+                lo = Math.min(lo, min[i]);
+                hi = Math.max(hi, max[i]);
+            }
+            outMin[x] = lo / 128f;
+            outMax[x] = hi / 127f;
+        }
+    }
+}
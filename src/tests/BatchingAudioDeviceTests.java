@@ -0,0 +1,183 @@
+import javazoom.jl.decoder.JavaLayerException;
+import javazoom.jl.player.AudioDeviceBase;
+import org.junit.jupiter.api.Test;
+import support.BatchingAudioDevice;
+import support.FloatDecoder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Writes numbered frames to a {@link BatchingAudioDevice} and checks what reaches the wrapped device, when, and
+ * the frames reported as not heard yet.
+ */
+class BatchingAudioDeviceTests {
+    /**
+     * Samples of a mono MPEG-1 frame, about 26 ms at 44.1 kHz, so the default batch of 100 ms holds 3 of them.
+     */
+    private static final int FRAME = 1152;
+
+    /**
+     * Keeps a copy of every write. A blocking device waits for {@link #release} in each write, like a full line.
+     */
+    private static final class RecordingDevice extends AudioDeviceBase {
+        final List<short[]> writes = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release;
+
+        RecordingDevice(boolean blocking) {
+            release = new CountDownLatch(blocking ? 1 : 0);
+        }
+
+        @Override
+        protected void writeImpl(short[] samples, int offs, int len) {
+            writing.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writes.add(Arrays.copyOfRange(samples, offs, offs + len));
+        }
+
+        @Override
+        public int getPosition() {
+            return 0;
+        }
+    }
+
+    private static BatchingAudioDevice open(RecordingDevice recording) throws JavaLayerException {
+        BatchingAudioDevice device = new BatchingAudioDevice(recording);
+        device.open(new FloatDecoder(44100, 1));
+        return device;
+    }
+
+    /**
+     * Writes frames whose samples all hold their number.
+     */
+    private static void writeFrames(BatchingAudioDevice device, int from, int count) {
+        short[] frame = new short[FRAME];
+        for (int i = from; i < from + count; i++) {
+            Arrays.fill(frame, (short) i);
+            device.write(frame, 0, FRAME);
+        }
+    }
+
+    /**
+     * @return the numbers of the frames in a write.
+     */
+    private static List<Integer> frames(short[] write) {
+        assertEquals(0, write.length % FRAME);
+        List<Integer> frames = new ArrayList<>();
+        for (int i = 0; i < write.length; i += FRAME) frames.add((int) write[i]);
+        return frames;
+    }
+
+    @Test
+    void writesFullBatchesOnlyWhenAskedTo() throws JavaLayerException {
+        RecordingDevice recording = new RecordingDevice(false);
+        BatchingAudioDevice device = open(recording);
+
+        writeFrames(device, 0, 2);
+        assertEquals(2, device.getPendingFrames());
+        writeFrames(device, 2, 1);
+        // Full, handed over, still not heard.
+        assertEquals(List.of(), recording.writes);
+        assertEquals(3, device.getPendingFrames());
+
+        writeFrames(device, 3, 1);
+        device.writeReady();
+        assertEquals(1, recording.writes.size());
+        assertEquals(List.of(0, 1, 2), frames(recording.writes.get(0)));
+        assertEquals(1, device.getPendingFrames());
+        device.writeReady();
+        assertEquals(1, recording.writes.size(), "nothing handed over");
+    }
+
+    @Test
+    void endBatchHandsOverWhatWasCollected() throws JavaLayerException {
+        RecordingDevice recording = new RecordingDevice(false);
+        BatchingAudioDevice device = open(recording);
+
+        writeFrames(device, 0, 1);
+        device.endBatch();
+        writeFrames(device, 1, 1);
+        device.endBatch();
+        assertEquals(2, device.getPendingFrames());
+        // Batches not written yet are written together, in order.
+        device.writeReady();
+        assertEquals(1, recording.writes.size());
+        assertEquals(List.of(0, 1), frames(recording.writes.get(0)));
+
+        writeFrames(device, 2, 4);
+        device.flushBatch();
+        assertEquals(List.of(2, 3, 4, 5), recording.writes.stream().skip(1).flatMap(w -> frames(w).stream()).toList());
+        assertEquals(0, device.getPendingFrames());
+    }
+
+    @Test
+    void closeDropsTheFramesNotWritten() throws JavaLayerException {
+        RecordingDevice recording = new RecordingDevice(false);
+        BatchingAudioDevice device = open(recording);
+
+        writeFrames(device, 0, 4);
+        device.close();
+        assertEquals(0, device.getPendingFrames());
+        device.writeReady();
+        assertEquals(List.of(), recording.writes);
+        assertFalse(recording.isOpen());
+    }
+
+    @Test
+    void writingFramesAndClosingNeverWaitForTheLine() throws Exception {
+        RecordingDevice recording = new RecordingDevice(true);
+        BatchingAudioDevice device = open(recording);
+        writeFrames(device, 0, 3);
+        CompletableFuture<Void> blocked = CompletableFuture.runAsync(() -> {
+            try {
+                device.writeReady();
+            } catch (JavaLayerException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertTrue(recording.writing.await(10, TimeUnit.SECONDS));
+
+        // The batch being written is not heard yet either.
+        writeFrames(device, 3, 4);
+        assertEquals(7, device.getPendingFrames());
+        device.close();
+        assertFalse(blocked.isDone());
+
+        recording.release.countDown();
+        blocked.get(10, TimeUnit.SECONDS);
+        device.writeReady();
+        assertEquals(1, recording.writes.size(), "frames handed over after the line filled up were dropped");
+        assertEquals(List.of(0, 1, 2), frames(recording.writes.get(0)));
+    }
+
+    @Test
+    void batchSizeCanBeSetInFrames() throws JavaLayerException {
+        RecordingDevice recording = new RecordingDevice(false);
+        BatchingAudioDevice device;
+        System.setProperty("player.batchFrames", "1");
+        try {
+            device = open(recording);
+        } finally {
+            System.clearProperty("player.batchFrames");
+        }
+        writeFrames(device, 0, 2);
+        device.writeReady();
+        assertEquals(List.of(0, 1), frames(recording.writes.get(0)), "both batches handed over before a write");
+        writeFrames(device, 2, 1);
+        assertEquals(1, device.getPendingFrames());
+        device.writeReady();
+        assertEquals(List.of(2), frames(recording.writes.get(1)));
+    }
+}
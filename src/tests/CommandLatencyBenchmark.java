@@ -0,0 +1,133 @@
+import javazoom.jl.player.AudioDeviceBase;
+import support.LatencyHistogram;
+import support.Song;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Time from a command of {@link Player} to its effect on the audio: from play to the first audio, from a seek to
+ * playback at the new position, and from pause to silence. The player runs headless, on generated silent MP3
+ * files, against a device that takes as long as the samples would take to play, so the times include the audio
+ * already queued, as on a real device. Reports the distribution of each; the results depend on the machine, which
+ * is why they are not checked by a test. Run it with the test classes on the class path:
+ * {@code java CommandLatencyBenchmark [rounds]}.
+ */
+public class CommandLatencyBenchmark {
+    private static final int SONGS = 4;
+    private static final int FRAMES_PER_SONG = 400;
+    private static final int FRAME_BYTES = 417;
+    private static final float MS_PER_FRAME = 1152 * 1000f / 44100;
+    private static final long TIMEOUT_NS = TimeUnit.SECONDS.toNanos(10);
+
+    private static final AtomicLong writes = new AtomicLong();
+    private static volatile long lastWrite;
+    private static volatile boolean writing;
+
+    /**
+     * Discards the samples after the time they take to play.
+     */
+    private static final class PacedDevice extends AudioDeviceBase {
+        @Override
+        protected void writeImpl(short[] samples, int offs, int len) {
+            writes.incrementAndGet();
+            writing = true;
+            LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(len) / 44100);
+            writing = false;
+            lastWrite = System.nanoTime();
+        }
+
+        @Override
+        public int getPosition() {
+            return 0;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        Path directory = Files.createTempDirectory("command-latency");
+        Player player = new Player(PacedDevice::new, true);
+        try {
+            for (int i = 0; i < SONGS; i++) player.getPlaylist().add(song(directory, i));
+            player.getPlaylist().setLooping(true);
+
+            LatencyHistogram play = new LatencyHistogram();
+            LatencyHistogram seek = new LatencyHistogram();
+            LatencyHistogram pause = new LatencyHistogram();
+            for (int i = 0; i < rounds; i++) {
+                long start = System.nanoTime();
+                long before = writes.get();
+                player.playNow(i % SONGS);
+                await(() -> writes.get() > before);
+                play.recordSince(start);
+
+                start = System.nanoTime();
+                player.seek((int) (FRAMES_PER_SONG / 2 * MS_PER_FRAME));
+                await(() -> !player.isSeeking());
+                seek.recordSince(start);
+
+                start = System.nanoTime();
+                player.playPause();
+                long returned = System.nanoTime();
+                awaitQuiet();
+                pause.record(Math.max(returned, lastWrite) - start);
+                player.playPause();
+            }
+            report("play -> first audio", play.snapshot());
+            report("seek -> done", seek.snapshot());
+            report("pause -> silence", pause.snapshot());
+        } finally {
+            player.shutdown();
+            try (var files = Files.list(directory)) {
+                for (Path file : files.toList()) Files.delete(file);
+            }
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     * @return a song of silent MPEG-1 Layer III frames, 128 kbps, 44.1 kHz, mono.
+     */
+    private static Song song(Path directory, int i) throws IOException {
+        byte[] mp3 = new byte[FRAME_BYTES * FRAMES_PER_SONG];
+        for (int frame = 0; frame < FRAMES_PER_SONG; frame++) {
+            mp3[frame * FRAME_BYTES] = (byte) 0xFF;
+            mp3[frame * FRAME_BYTES + 1] = (byte) 0xFB;
+            mp3[frame * FRAME_BYTES + 2] = (byte) 0x90;
+            mp3[frame * FRAME_BYTES + 3] = (byte) 0xC0;
+        }
+        Path file = Files.write(directory.resolve("song" + i + ".mp3"), mp3);
+        return new Song(UUID.randomUUID(), "Song " + i, "Album", "Artist", "2023", FRAMES_PER_SONG * MS_PER_FRAME,
+                file.toString(), mp3.length, FRAMES_PER_SONG);
+    }
+
+    private static void await(BooleanSupplier effect) {
+        long deadline = System.nanoTime() + TIMEOUT_NS;
+        while (!effect.getAsBoolean()) {
+            if (System.nanoTime() > deadline) throw new IllegalStateException("command had no effect");
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Waits until nothing was written for 20 ms, and no write is in progress.
+     */
+    private static void awaitQuiet() throws InterruptedException {
+        long count;
+        do {
+            count = writes.get();
+            Thread.sleep(20);
+        } while (writes.get() != count || writing);
+    }
+
+    private static void report(String name, LatencyHistogram.Snapshot snapshot) {
+        System.out.printf("%s: p50 %d us, p90 %d us, p99 %d us, max %d us%n", name, snapshot.getP50Micros(),
+                snapshot.getP90Micros(), snapshot.getP99Micros(), snapshot.getMaxMicros());
+    }
+}
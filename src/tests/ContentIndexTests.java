@@ -0,0 +1,224 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import support.ContentIndex;
+import support.Layer3Frames;
+import support.Song;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Hashes the audio of made-up MP3 files with tags of each kind a {@link ContentIndex} strips, and follows songs
+ * added to and removed from the index.
+ */
+class ContentIndexTests {
+    private static final int FRAMES = 20;
+
+    private Path directory;
+    private final ContentIndex index = new ContentIndex();
+    private final byte[] audio = Layer3Frames.frames(1, Layer3Frames.MPEG1, Layer3Frames.STEREO, 0, FRAMES);
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("content-index-tests");
+    }
+
+    @AfterEach
+    void deleteFiles() throws IOException {
+        index.shutdown();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) Files.delete(path);
+        }
+    }
+
+    /**
+     * @return an ID3v2.4 tag holding {@code body}, with a footer if asked.
+     */
+    private static byte[] id3v2(String body, boolean footer) {
+        byte[] bytes = body.getBytes(StandardCharsets.ISO_8859_1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] header = {'I', 'D', '3', 4, 0, (byte) (footer ? 0x10 : 0), 0, 0, 0, 0};
+        syncsafe(header, bytes.length);
+        out.writeBytes(header);
+        out.writeBytes(bytes);
+        if (footer) {
+            header[0] = '3';
+            header[1] = 'D';
+            header[2] = 'I';
+            out.writeBytes(header);
+        }
+        return out.toByteArray();
+    }
+
+    private static void syncsafe(byte[] header, int size) {
+        for (int i = 0; i < 4; i++) header[6 + i] = (byte) (size >> (7 * (3 - i)) & 0x7F);
+    }
+
+    /**
+     * @return an ID3v1 tag, {@code TAG} and 125 bytes of fields.
+     */
+    private static byte[] id3v1(String title) {
+        byte[] tag = new byte[128];
+        System.arraycopy("TAG".getBytes(StandardCharsets.US_ASCII), 0, tag, 0, 3);
+        byte[] bytes = title.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, tag, 3, Math.min(30, bytes.length));
+        return tag;
+    }
+
+    /**
+     * @return an extended ID3v1 tag, {@code TAG+} and 223 bytes of fields, which comes right before an ID3v1 tag.
+     */
+    private static byte[] id3v1Extended(String title) {
+        byte[] tag = new byte[227];
+        System.arraycopy("TAG+".getBytes(StandardCharsets.US_ASCII), 0, tag, 0, 4);
+        byte[] bytes = title.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, tag, 4, Math.min(60, bytes.length));
+        return tag;
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) out.writeBytes(part);
+        return out.toByteArray();
+    }
+
+    private static byte[] sha256(byte[] bytes) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(bytes);
+    }
+
+    private Path write(String name, byte[] bytes) throws IOException {
+        return Files.write(directory.resolve(name), bytes);
+    }
+
+    private static Song song(Path file) throws IOException {
+        return new Song(UUID.randomUUID(), file.getFileName().toString(), "Album", "Artist", "2024", FRAMES * 26,
+                file.toString(), (int) Files.size(file), FRAMES);
+    }
+
+    private static void await(BooleanSupplier condition, String message) throws InterruptedException {
+        for (long deadline = System.nanoTime() + 10_000_000_000L; !condition.getAsBoolean(); ) {
+            assertTrue(System.nanoTime() < deadline, message);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    void stripsId3v2TagsAtTheStartWithTheirFooter() throws Exception {
+        byte[] expected = sha256(audio);
+        assertArrayEquals(expected, ContentIndex.hashAudio(write("header.mp3",
+                concat(id3v2("TIT2 title", false), audio))));
+        assertArrayEquals(expected, ContentIndex.hashAudio(write("footer.mp3",
+                concat(id3v2("TIT2 title", true), audio))));
+        assertArrayEquals(expected, ContentIndex.hashAudio(write("two.mp3",
+                concat(id3v2("TIT2 first", false), id3v2("TIT2 second tag", true), audio))));
+        assertArrayEquals(expected, ContentIndex.hashAudio(write("plain.mp3", audio)));
+    }
+
+    @Test
+    void stripsId3v1ExtendedAndAppendedId3v2TagsAtTheEnd() throws Exception {
+        byte[] expected = sha256(audio);
+        assertArrayEquals(expected, ContentIndex.hashAudio(write("v1.mp3", concat(audio, id3v1("title")))));
+        assertArrayEquals(expected, ContentIndex.hashAudio(write("extended.mp3",
+                concat(audio, id3v1Extended("a longer title"), id3v1("title")))));
+        assertArrayEquals(expected, ContentIndex.hashAudio(write("appended.mp3",
+                concat(audio, id3v2("TIT2 appended", true)))));
+        assertArrayEquals(expected, ContentIndex.hashAudio(write("all.mp3",
+                concat(id3v2("TIT2 start", true), audio, id3v2("TIT2 end", true), id3v1("title")))));
+
+        // Without ID3v1 after it, the extended tag is audio.
+        byte[] extendedOnly = concat(audio, id3v1Extended("title"));
+        assertArrayEquals(sha256(extendedOnly), ContentIndex.hashAudio(write("extended-only.mp3", extendedOnly)));
+    }
+
+    @Test
+    void copiesWithDifferentTagsShareTheirHash() throws Exception {
+        Song plain = song(write("plain.mp3", audio));
+        Song tagged = song(write("tagged.mp3", concat(id3v2("TIT2 tagged", false), audio, id3v1("tagged"))));
+        Song other = song(write("other.mp3",
+                Layer3Frames.frames(2, Layer3Frames.MPEG1, Layer3Frames.STEREO, 0, FRAMES)));
+        index.songsAdded(List.of(plain, tagged, other));
+
+        String hash = index.hash(plain).get(10, TimeUnit.SECONDS);
+        assertEquals(HexFormat.of().formatHex(sha256(audio)), hash);
+        assertEquals(hash, index.hash(tagged).get(10, TimeUnit.SECONDS));
+        assertNotEquals(hash, index.hash(other).get(10, TimeUnit.SECONDS));
+
+        await(() -> index.getDuplicates().size() == 1, "copies not grouped");
+        assertEquals(Set.of(plain, tagged), index.getDuplicates().get(0));
+        assertEquals(Set.of(plain, tagged), index.getSameContent(tagged));
+        await(() -> index.getSameContent(other).equals(Set.of(other)), "other song not grouped");
+    }
+
+    @Test
+    void hashesAgainWhenTheSizeOrModificationTimeChanges() throws Exception {
+        Path file = write("song.mp3", audio);
+        Song song = song(file);
+        String hash = index.hashNow(song).get(10, TimeUnit.SECONDS);
+        assertEquals(hash, index.getKnownHash(song));
+
+        // Same audio with a tag: larger, same hash.
+        Files.write(file, concat(audio, id3v1("title")));
+        assertEquals(hash, index.hash(song).get(10, TimeUnit.SECONDS));
+
+        // Same size and a new modification time.
+        byte[] changed = concat(audio, id3v1("title"));
+        changed[100] ^= 1;
+        Files.write(file, changed);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 60_000));
+        String changedHash = index.hash(song).get(10, TimeUnit.SECONDS);
+        assertNotEquals(hash, changedHash);
+        assertEquals(HexFormat.of().formatHex(sha256(Arrays.copyOf(changed, audio.length))), changedHash);
+
+        // Smaller, with the same modification time.
+        FileTime modified = Files.getLastModifiedTime(file);
+        Files.write(file, Arrays.copyOf(audio, audio.length / 2));
+        Files.setLastModifiedTime(file, modified);
+        assertEquals(HexFormat.of().formatHex(sha256(Arrays.copyOf(audio, audio.length / 2))),
+                index.hashNow(song).get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void forgetsTheHashesOfRemovedPaths() throws Exception {
+        Path file = write("song.mp3", audio);
+        Song song = song(file);
+        Song samePath = song(file);
+        Song copy = song(write("copy.mp3", audio));
+        index.songsAdded(List.of(song, samePath, copy));
+        String hash = index.hash(song).get(10, TimeUnit.SECONDS);
+        await(() -> index.getSameContent(song).size() == 3, "songs not grouped");
+
+        // Another song still has the path.
+        index.songsRemoved(List.of(song));
+        assertEquals(hash, index.getKnownHash(samePath));
+        assertEquals(Set.of(samePath, copy), index.getSameContent(copy));
+
+        index.songsRemoved(List.of(samePath));
+        assertNull(index.getKnownHash(samePath));
+        assertEquals(Set.of(copy), index.getSameContent(copy));
+        assertEquals(List.of(), index.getDuplicates());
+
+        // Removing again does nothing.
+        index.songsRemoved(List.of(samePath));
+        assertEquals(hash, index.getKnownHash(copy));
+        index.songsRemoved(List.of(copy));
+        assertNull(index.getKnownHash(copy));
+        assertEquals(Set.of(), index.getSameContent(copy));
+    }
+}
@@ -0,0 +1,113 @@
+import javazoom.jl.decoder.Bitstream;
+import javazoom.jl.decoder.Decoder;
+import javazoom.jl.decoder.Header;
+import javazoom.jl.decoder.JavaLayerException;
+import javazoom.jl.decoder.SampleBuffer;
+import org.junit.jupiter.api.Test;
+import support.FloatDecoder;
+import support.FloatSampleBuffer;
+import support.Layer3Frames;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that {@link FloatDecoder} produces the same 16-bit samples as JLayer's own decoder, except that it clips to
+ * -32768 where JLayer stops at -32767. Layer I and II frames are filled with random sample data, loud enough for
+ * many samples to clip. Layer III frames, decoded by {@link javazoom.jl.decoder.Layer3Decoder}, come from
+ * {@link Layer3Frames}, covering every block type and stereo mode of MPEG-1 and MPEG-2.
+ */
+class DecoderTests {
+    private static final int FRAMES = 500;
+
+    @Test
+    void monoMatchesJLayer() throws JavaLayerException {
+        // Layer II, 192 kbps, 44.1 kHz, mono: 626 bytes per frame.
+        assertSameSamples(frames(1, 626, 0xFD, 0xA0, 0xC0));
+    }
+
+    @Test
+    void stereoMatchesJLayer() throws JavaLayerException {
+        // Layer I, 384 kbps, 44.1 kHz, stereo: 416 bytes per frame.
+        assertSameSamples(frames(2, 416, 0xFF, 0xC0, 0x00));
+    }
+
+    @Test
+    void layer3MonoMatchesJLayer() throws JavaLayerException {
+        assertSameSamples(Layer3Frames.frames(3, Layer3Frames.MPEG1, Layer3Frames.MONO, 0, FRAMES));
+    }
+
+    @Test
+    void layer3StereoMatchesJLayer() throws JavaLayerException {
+        assertSameSamples(Layer3Frames.frames(4, Layer3Frames.MPEG1, Layer3Frames.STEREO, 0, FRAMES));
+    }
+
+    @Test
+    void layer3JointStereoMatchesJLayer() throws JavaLayerException {
+        assertSameSamples(Layer3Frames.frames(5, Layer3Frames.MPEG1, Layer3Frames.JOINT_STEREO,
+                Layer3Frames.MID_SIDE, FRAMES));
+        assertSameSamples(Layer3Frames.frames(6, Layer3Frames.MPEG1, Layer3Frames.JOINT_STEREO,
+                Layer3Frames.INTENSITY, FRAMES));
+        assertSameSamples(Layer3Frames.frames(7, Layer3Frames.MPEG1, Layer3Frames.JOINT_STEREO,
+                Layer3Frames.INTENSITY | Layer3Frames.MID_SIDE, FRAMES));
+    }
+
+    @Test
+    void layer3LowSampleRatesMatchJLayer() throws JavaLayerException {
+        assertSameSamples(Layer3Frames.frames(8, Layer3Frames.MPEG2, Layer3Frames.MONO, 0, FRAMES));
+        assertSameSamples(Layer3Frames.frames(9, Layer3Frames.MPEG2, Layer3Frames.JOINT_STEREO,
+                Layer3Frames.INTENSITY, FRAMES));
+        assertSameSamples(Layer3Frames.frames(10, Layer3Frames.MPEG2, Layer3Frames.JOINT_STEREO,
+                Layer3Frames.INTENSITY | Layer3Frames.MID_SIDE, FRAMES));
+    }
+
+    private static byte[] frames(long seed, int size, int header1, int header2, int header3) {
+        Random random = new Random(seed);
+        byte[] mp3 = new byte[size * FRAMES];
+        random.nextBytes(mp3);
+        for (int offset = 0; offset < mp3.length; offset += size) {
+            mp3[offset] = (byte) 0xFF;
+            mp3[offset + 1] = (byte) header1;
+            mp3[offset + 2] = (byte) header2;
+            mp3[offset + 3] = (byte) header3;
+            // Allocation 15 is forbidden in Layer I: 4 bits per subband and channel follow the header.
+            for (int i = offset + 4; i < offset + 36; i++) {
+                if ((mp3[i] & 0xF0) == 0xF0) mp3[i] &= (byte) 0xEF;
+                if ((mp3[i] & 0x0F) == 0x0F) mp3[i] &= (byte) 0xFE;
+            }
+        }
+        return mp3;
+    }
+
+    private static void assertSameSamples(byte[] mp3) throws JavaLayerException {
+        Bitstream expectedStream = new Bitstream(new ByteArrayInputStream(mp3));
+        Bitstream actualStream = new Bitstream(new ByteArrayInputStream(mp3));
+        Decoder expectedDecoder = new Decoder();
+        FloatDecoder actualDecoder = new FloatDecoder();
+        int frames = 0;
+        boolean clippedLow = false;
+        Header header;
+        while ((header = expectedStream.readFrame()) != null) {
+            SampleBuffer expected = (SampleBuffer) expectedDecoder.decodeFrame(header, expectedStream);
+            FloatSampleBuffer actual = actualDecoder.decodeFrame(actualStream.readFrame(), actualStream);
+            int length = expected.getBufferLength();
+            assertEquals(length, actual.getBufferLength());
+            short[] samples = Arrays.copyOf(actual.getBuffer(), length);
+            for (int i = 0; i < length; i++) {
+                if (samples[i] == Short.MIN_VALUE) {
+                    samples[i] = -Short.MAX_VALUE;
+                    clippedLow = true;
+                }
+            }
+            assertArrayEquals(Arrays.copyOf(expected.getBuffer(), length), samples, "frame " + frames);
+            expectedStream.closeFrame();
+            actualStream.closeFrame();
+            frames++;
+        }
+        assertEquals(FRAMES, frames);
+        assertTrue(clippedLow, "no sample clipped to -32768");
+    }
+}
@@ -0,0 +1,91 @@
+import org.junit.jupiter.api.Test;
+import support.FeatureMatrix;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Compares the nearest-neighbour scan of {@link FeatureMatrix} with a brute force search over the same vectors, and
+ * times it over a million rows.
+ */
+class FeatureMatrixTests {
+    private static final int DIMENSIONS = 4;
+    private static final float[] WEIGHTS = {1f, 0.5f, 2f, 1f};
+
+    private static float[] randomVector(Random random) {
+        float[] vector = new float[DIMENSIONS];
+        for (int d = 0; d < DIMENSIONS; d++) vector[d] = random.nextFloat();
+        return vector;
+    }
+
+    private static float distance(float[] a, float[] b) {
+        float sum = 0;
+        for (int d = 0; d < DIMENSIONS; d++) sum += WEIGHTS[d] * (a[d] - b[d]) * (a[d] - b[d]);
+        return sum;
+    }
+
+    @Test
+    void findsTheSameRowsAsBruteForce() {
+        Random random = new Random(5);
+        int rows = 10_000;
+        float[][] vectors = new float[rows][];
+        FeatureMatrix matrix = new FeatureMatrix(DIMENSIONS, 16);       // grows several times
+        for (int i = 0; i < rows; i++) {
+            vectors[i] = randomVector(random);
+            assertEquals(i, matrix.add(vectors[i]));
+        }
+        assertEquals(rows, matrix.size());
+        assertArrayEquals(vectors[1234], matrix.get(1234));
+
+        for (int q = 0; q < 20; q++) {
+            float[] query = randomVector(random);
+            int[] expected = IntStream.range(0, rows).filter(row -> row % 3 != 0).boxed()
+                    .sorted(Comparator.comparingDouble(row -> distance(vectors[row], query)))
+                    .limit(5).mapToInt(Integer::intValue).toArray();
+            assertArrayEquals(expected, matrix.nearest(query, WEIGHTS, 5, row -> row % 3 != 0));
+        }
+    }
+
+    @Test
+    void skipsAndReusesRemovedRows() {
+        FeatureMatrix matrix = new FeatureMatrix(DIMENSIONS, 4);
+        matrix.add(new float[]{0, 0, 0, 0});
+        matrix.add(new float[]{1, 1, 1, 1});
+        matrix.add(new float[]{0.1f, 0, 0, 0});
+        matrix.remove(0);
+        assertEquals(2, matrix.size());
+        assertArrayEquals(new int[]{2, 1}, matrix.nearest(new float[4], WEIGHTS, 5, row -> true));
+
+        assertEquals(0, matrix.add(new float[]{0.05f, 0, 0, 0}));
+        assertArrayEquals(new int[]{0, 2}, matrix.nearest(new float[4], WEIGHTS, 2, row -> true));
+
+        matrix.clear(4);
+        assertEquals(0, matrix.size());
+        assertArrayEquals(new int[0], matrix.nearest(new float[4], WEIGHTS, 2, row -> true));
+    }
+
+    @Test
+    void scansAMillionRowsInMilliseconds() {
+        Random random = new Random(11);
+        int rows = 1_000_000;
+        FeatureMatrix matrix = new FeatureMatrix(DIMENSIONS, rows);
+        for (int i = 0; i < rows; i++) matrix.add(randomVector(random));
+        assertEquals(16_000_000, matrix.getMemoryBytes());
+
+        long[] micros = new long[20];
+        for (int i = 0; i < micros.length; i++) {
+            float[] query = randomVector(random);
+            long start = System.nanoTime();
+            int[] found = matrix.nearest(query, WEIGHTS, 10, row -> true);
+            micros[i] = (System.nanoTime() - start) / 1000;
+            assertEquals(10, found.length);
+        }
+        Arrays.sort(micros);
+        // Generous bound, for the scalar path on a slow machine.
+        assertTrue(micros[micros.length / 2] < 100_000, "median " + micros[micros.length / 2] + " us");
+    }
+}
@@ -0,0 +1,225 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import support.FrameIndex;
+import support.HttpStream;
+import support.PlaybackMetrics;
+import support.Song;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Reads files through {@link HttpStream} from a local stand-in for the server of the catalog, which can serve byte
+ * ranges or ignore them, and drop connections halfway through a response.
+ */
+class HttpStreamTests {
+    private static final int SIZE = 3 * 1024 * 1024 + 123;
+    private static final int FRAME_BYTES = 417;
+    private static final int FRAMES = 120;
+
+    private final byte[] data = new byte[SIZE];
+    private HttpServer server;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger aborted = new AtomicInteger();
+    /**
+     * Number of responses, from the next one, to be cut off after dropAfter bytes. A stalled response stops
+     * sending and keeps the connection open; otherwise the response ends early.
+     */
+    private volatile int drops;
+    private volatile int dropAfter;
+    private volatile boolean stall;
+    private volatile boolean ignoreRanges;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        new Random(7).nextBytes(data);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/song.bin", exchange -> serve(exchange, data));
+        server.createContext("/missing.bin", exchange -> {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+        });
+        server.createContext("/silence.mp3", exchange -> serve(exchange, silentMp3()));
+        server.createContext("/chunked.mp3", exchange -> {
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(silentMp3());
+            }
+        });
+        // Longer than the socket buffers can hold, so the response is still being sent when the client gives up.
+        server.createContext("/endless.bin", exchange -> {
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = exchange.getResponseBody()) {
+                for (int i = 0; i < 1024; i++) out.write(data);
+            } catch (IOException e) {
+                aborted.incrementAndGet();
+            }
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    private void serve(HttpExchange exchange, byte[] body) throws IOException {
+        requests.incrementAndGet();
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        boolean ranged = range != null && !ignoreRanges;
+        int from = ranged ? Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-'))) : 0;
+        int length = body.length - from;
+        boolean drop = drops > 0;
+        if (drop) drops--;
+        if (ranged || drop) {
+            exchange.getResponseHeaders().set("Content-Range",
+                    "bytes " + from + "-" + (body.length - 1) + "/" + body.length);
+        }
+        // A response ending early is sent chunked, so it looks complete; the client sees it is short.
+        exchange.sendResponseHeaders(ranged || drop ? 206 : 200, drop && !stall ? 0 : length);
+        if (drop) length = Math.min(length, dropAfter);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body, from, length);
+        } catch (IOException e) {
+            // closing a stalled response fails, the client has to give up on it
+        }
+    }
+
+    private URI uri(String path) {
+        return URI.create("http://127.0.0.1:" + server.getAddress().getPort() + path);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        try (in) {
+            return in.readAllBytes();
+        }
+    }
+
+    @Test
+    void readsWholeFile() throws IOException {
+        assertArrayEquals(data, readAll(new HttpStream(uri("/song.bin"), 0)), "content");
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    void startsAtOffsetWithRangeRequest() throws IOException {
+        int offset = SIZE / 2 + 17;
+        assertArrayEquals(Arrays.copyOfRange(data, offset, SIZE), readAll(new HttpStream(uri("/song.bin"), offset)),
+                "content from offset");
+    }
+
+    @Test
+    void skipsToOffsetWhenServerIgnoresRanges() throws IOException {
+        ignoreRanges = true;
+        int offset = 100_000;
+        assertArrayEquals(Arrays.copyOfRange(data, offset, SIZE), readAll(new HttpStream(uri("/song.bin"), offset)),
+                "content from offset");
+    }
+
+    @Test
+    void resumesWhereClosedConnectionsStopped() throws IOException {
+        drops = 3;
+        dropAfter = 700_000;
+        long reconnects = PlaybackMetrics.global().getStreamReconnects();
+        assertArrayEquals(data, readAll(new HttpStream(uri("/song.bin"), 0)), "content");
+        assertEquals(4, requests.get());
+        assertEquals(reconnects + 3, PlaybackMetrics.global().getStreamReconnects());
+    }
+
+    @Test
+    void resumesAfterStalledConnection() throws IOException {
+        drops = 1;
+        dropAfter = 500_000;
+        stall = true;
+        assertArrayEquals(data, readAll(new HttpStream(uri("/song.bin"), 0)), "content");
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    void failsOnClientError() {
+        HttpStream stream = new HttpStream(uri("/missing.bin"), 0);
+        assertThrows(IOException.class, () -> readAll(stream));
+    }
+
+    @Test
+    void probeDescribesRemoteSong() throws IOException {
+        Song song = HttpStream.probe(uri("/silence.mp3"), "Artist", null);
+        assertTrue(song.isRemote(), "remote");
+        assertEquals("silence.mp3", song.getTitle());
+        assertEquals("Artist", song.getArtist());
+        assertEquals(FRAMES * FRAME_BYTES, song.getFileSize());
+        assertTrue(Math.abs(song.getNumFrames() - FRAMES) <= 1, "frames " + song.getNumFrames());
+        assertTrue(Math.abs(song.getMsLength() - FRAMES * 1152 * 1000f / 44100) < 30, "length " + song.getMsLength());
+        assertEquals(1152 * 1000f / 44100, song.getMsPerFrame(), 0.01f);
+    }
+
+    @Test
+    void remoteFrameIndexIsEstimatedWithoutDownloading() throws IOException {
+        Song song = HttpStream.probe(uri("/silence.mp3"), null, null);
+        int probes = requests.get();
+        FrameIndex index = FrameIndex.scanAsync(song).join();
+        assertTrue(index.isEstimated(), "estimated");
+        assertEquals(song.getNumFrames(), index.size());
+        assertEquals(probes, requests.get(), "file downloaded to index it");
+
+        byte[] rest = readAll(index.open(song, FRAMES / 2));
+        assertEquals(0, rest.length % FRAME_BYTES, "stream not moved to a frame header");
+        int frame = FRAMES - rest.length / FRAME_BYTES;
+        assertTrue(Math.abs(frame - FRAMES / 2) <= 1, "frame " + frame);
+        assertArrayEquals(Arrays.copyOfRange(silentMp3(), frame * FRAME_BYTES, FRAMES * FRAME_BYTES), rest);
+    }
+
+    @Test
+    void songOfUnknownLengthHasEmptyFrameIndex() throws IOException {
+        Song song = HttpStream.probe(uri("/chunked.mp3"), null, null);
+        assertEquals(0, song.getFileSize());
+        assertEquals(0, FrameIndex.scanAsync(song).join().size());
+        // No frames to divide the length by: the length of a frame comes from the header, for seeking.
+        assertEquals(1152 * 1000f / 44100, song.getMsPerFrame(), 0.01f);
+    }
+
+    @Test
+    void abandonedStreamReleasesItsConnection() throws Exception {
+        abandon(new HttpStream(uri("/endless.bin"), 0));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (aborted.get() == 0) {
+            assertTrue(System.nanoTime() < deadline, "connection of the abandoned stream still open");
+            System.gc();
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * Reads from the stream and drops it without closing it.
+     */
+    private static void abandon(HttpStream stream) throws IOException {
+        assertTrue(stream.read() >= 0);
+    }
+
+    /**
+     * MPEG-1 Layer III, 128 kbps, 44.1 kHz, mono, as in {@link PlayerTests}.
+     */
+    private static byte[] silentMp3() {
+        byte[] mp3 = new byte[FRAME_BYTES * FRAMES];
+        for (int i = 0; i < FRAMES; i++) {
+            mp3[i * FRAME_BYTES] = (byte) 0xFF;
+            mp3[i * FRAME_BYTES + 1] = (byte) 0xFB;
+            mp3[i * FRAME_BYTES + 2] = (byte) 0x90;
+            mp3[i * FRAME_BYTES + 3] = (byte) 0xC0;
+        }
+        return mp3;
+    }
+}
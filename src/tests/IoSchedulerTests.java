@@ -0,0 +1,126 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import support.IoScheduler;
+import support.PlaybackMetrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Reads a file through {@link IoScheduler}s with small budgets, and checks that each priority is held back as
+ * documented while playback has plenty of audio queued or is short of it.
+ */
+class IoSchedulerTests {
+    private static final int SIZE = 4 * 1024 * 1024;
+    private static final long RATE = 4 * 1024 * 1024;
+
+    private final byte[] data = new byte[SIZE];
+    private Path file;
+
+    @BeforeEach
+    void createFile() throws IOException {
+        new Random(3).nextBytes(data);
+        file = Files.write(Files.createTempFile("io-scheduler", ".bin"), data);
+    }
+
+    @AfterEach
+    void deleteFile() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        try (in) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static long millisSince(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    @Test
+    void backgroundReadsAreThrottled() throws IOException {
+        IoScheduler scheduler = new IoScheduler(0, RATE, 150);
+        long bytes = PlaybackMetrics.global().getIoBackgroundBytes();
+        long start = System.nanoTime();
+        assertArrayEquals(data, readAll(scheduler.open(file, 0, IoScheduler.Priority.BACKGROUND)), "content");
+        // A quarter of a second of reads is allowed at once, the rest comes at the configured rate.
+        long elapsed = millisSince(start);
+        assertTrue(elapsed >= 650, "read in " + elapsed + " ms");
+        assertEquals(bytes + SIZE, PlaybackMetrics.global().getIoBackgroundBytes());
+    }
+
+    @Test
+    void playbackReadsAreNotThrottled() throws IOException {
+        IoScheduler scheduler = new IoScheduler(RATE, RATE, 150);
+        long start = System.nanoTime();
+        assertArrayEquals(data, readAll(scheduler.open(file, 0, IoScheduler.Priority.PLAYBACK)), "content");
+        long elapsed = millisSince(start);
+        assertTrue(elapsed < 500, "read in " + elapsed + " ms");
+    }
+
+    @Test
+    void readsStartAtOffset() throws IOException {
+        IoScheduler scheduler = new IoScheduler(0, 0, 150);
+        int offset = SIZE / 3;
+        byte[] read = readAll(scheduler.open(file, offset, IoScheduler.Priority.INTERACTIVE));
+        assertEquals(SIZE - offset, read.length);
+        assertEquals(data[offset], read[0]);
+        assertEquals(data[SIZE - 1], read[read.length - 1]);
+    }
+
+    @Test
+    void backgroundWaitsWhilePlaybackIsShort() throws Exception {
+        IoScheduler scheduler = new IoScheduler(0, 0, 150);
+        scheduler.playbackQueued(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(scheduler.isPlaybackShort());
+        long preemptions = PlaybackMetrics.global().getIoPreemptions();
+
+        // Playback catches up after 200 ms.
+        Thread refill = new Thread(() -> {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                return;
+            }
+            scheduler.playbackQueued(System.nanoTime() + TimeUnit.SECONDS.toNanos(10));
+        });
+        refill.start();
+        long start = System.nanoTime();
+        try (InputStream in = scheduler.open(file, 0, IoScheduler.Priority.BACKGROUND)) {
+            assertEquals(data[0] & 0xFF, in.read());
+        }
+        long elapsed = millisSince(start);
+        refill.join();
+        assertTrue(elapsed >= 180 && elapsed < 900, "read in " + elapsed + " ms");
+        assertTrue(PlaybackMetrics.global().getIoPreemptions() > preemptions, "preemption not counted");
+    }
+
+    @Test
+    void interactiveWaitsBrieflyWhilePlaybackIsShort() throws IOException {
+        IoScheduler scheduler = new IoScheduler(0, 0, 150);
+        scheduler.playbackQueued(System.nanoTime());
+        long start = System.nanoTime();
+        try (InputStream in = scheduler.open(file, 0, IoScheduler.Priority.INTERACTIVE)) {
+            assertEquals(data[0] & 0xFF, in.read());
+        }
+        long elapsed = millisSince(start);
+        assertTrue(elapsed < 200, "read in " + elapsed + " ms");
+    }
+
+    @Test
+    void pausedPlaybackHoldsNothingBack() {
+        IoScheduler scheduler = new IoScheduler(0, 0, 150);
+        scheduler.playbackQueued(0);
+        assertFalse(scheduler.isPlaybackShort());
+        scheduler.playbackQueued(System.nanoTime() - TimeUnit.SECONDS.toNanos(5));
+        assertFalse(scheduler.isPlaybackShort());
+    }
+}
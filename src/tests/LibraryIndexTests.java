@@ -0,0 +1,158 @@
+import org.junit.jupiter.api.Test;
+import support.LibraryIndex;
+import support.PersistentVector;
+import support.Song;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Builds {@link LibraryIndex}es of made-up songs and compares their dictionaries and sort orders with the songs
+ * themselves and with a stable sort of the rows.
+ */
+class LibraryIndexTests {
+    private static final String[] WORDS = {"alpha", "beta", "gamma", "delta", "epsilon", "zeta"};
+
+    private static Song song(String title, String album, String artist, String year, float msLength) {
+        return new Song(UUID.randomUUID(), title, album, artist, year, msLength, "/music/" + title + ".mp3", 1000,
+                38);
+    }
+
+    /**
+     * @return songs with few distinct values per column, so most rows tie with others.
+     */
+    private static List<Song> randomSongs(int count, long seed) {
+        Random random = new Random(seed);
+        List<Song> songs = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            songs.add(song(WORDS[random.nextInt(WORDS.length)], WORDS[random.nextInt(3)],
+                    WORDS[random.nextInt(WORDS.length)], String.valueOf(1990 + random.nextInt(5)),
+                    random.nextInt(4) * 60_000f));
+        }
+        return songs;
+    }
+
+    private static Function<Song, String> getter(LibraryIndex.Column column) {
+        return switch (column) {
+            case TITLE -> Song::getTitle;
+            case ALBUM -> Song::getAlbum;
+            case ARTIST -> Song::getArtist;
+            default -> Song::getYear;
+        };
+    }
+
+    @Test
+    void encodesEqualValuesWithEqualIds() {
+        List<Song> songs = randomSongs(500, 1);
+        LibraryIndex index = LibraryIndex.of(PersistentVector.of(songs));
+        assertEquals(songs.size(), index.size());
+        for (LibraryIndex.Column column : List.of(LibraryIndex.Column.TITLE, LibraryIndex.Column.ALBUM,
+                LibraryIndex.Column.ARTIST, LibraryIndex.Column.YEAR)) {
+            Function<Song, String> value = getter(column);
+            assertEquals(songs.stream().map(value).distinct().count(), index.getDistinctCount(column));
+            for (int row = 0; row < songs.size(); row++) {
+                int id = index.getId(column, row);
+                assertEquals(value.apply(songs.get(row)), index.getValue(column, id));
+                assertEquals(value.apply(songs.get(row)).equals(value.apply(songs.get(0))),
+                        id == index.getId(column, 0));
+            }
+            String first = value.apply(songs.get(0));
+            int[] expected = IntStream.range(0, songs.size())
+                    .filter(row -> value.apply(songs.get(row)).equals(first)).toArray();
+            assertArrayEquals(expected, index.rowsWith(column, first));
+        }
+        assertArrayEquals(new int[0], index.rowsWith(LibraryIndex.Column.TITLE, "missing"));
+        assertEquals(songs.get(7).getMsLength(), index.getMsLength(7));
+        assertThrows(IllegalArgumentException.class, () -> index.getId(LibraryIndex.Column.LENGTH, 0));
+    }
+
+    @Test
+    void sortsLikeAStableSortOfTheRows() {
+        List<Song> songs = randomSongs(2000, 2);
+        LibraryIndex index = LibraryIndex.of(PersistentVector.of(songs));
+        for (LibraryIndex.Column column : LibraryIndex.Column.values()) {
+            Comparator<Integer> byValue = column == LibraryIndex.Column.LENGTH
+                    ? Comparator.comparingDouble(row -> songs.get(row).getMsLength())
+                    : Comparator.comparing(row -> getter(column).apply(songs.get(row)), String.CASE_INSENSITIVE_ORDER);
+            for (boolean ascending : new boolean[]{true, false}) {
+                // List.sort is stable, so rows with equal values stay in row order in both directions.
+                List<Integer> expected = new ArrayList<>(IntStream.range(0, songs.size()).boxed().toList());
+                expected.sort(ascending ? byValue : byValue.reversed());
+                int[] rows = index.sortedRows(column, ascending);
+                assertArrayEquals(expected.stream().mapToInt(Integer::intValue).toArray(), rows,
+                        column + (ascending ? " ascending" : " descending"));
+            }
+        }
+    }
+
+    @Test
+    void keepsTiesInRowOrderAndIgnoresCase() {
+        List<Song> songs = List.of(
+                song("Beta", "Same", "x", "2001", 3000),
+                song("alpha", "Same", "x", "2000", 1000),
+                song("Charlie", "Same", "x", "2000", 3000),
+                song("beta", "Same", "x", "2002", 2000));
+        LibraryIndex index = LibraryIndex.of(PersistentVector.of(songs));
+
+        assertArrayEquals(new int[]{1, 0, 3, 2}, index.sortedRows(LibraryIndex.Column.TITLE, true));
+        assertArrayEquals(new int[]{0, 1, 2, 3}, index.sortedRows(LibraryIndex.Column.ALBUM, true));
+        assertArrayEquals(new int[]{0, 1, 2, 3}, index.sortedRows(LibraryIndex.Column.ALBUM, false));
+        assertArrayEquals(new int[]{1, 2, 0, 3}, index.sortedRows(LibraryIndex.Column.YEAR, true));
+        assertArrayEquals(new int[]{3, 0, 1, 2}, index.sortedRows(LibraryIndex.Column.YEAR, false));
+        assertArrayEquals(new int[]{1, 3, 0, 2}, index.sortedRows(LibraryIndex.Column.LENGTH, true));
+        assertArrayEquals(new int[]{0, 2, 3, 1}, index.sortedRows(LibraryIndex.Column.LENGTH, false));
+        assertArrayEquals(new int[0], LibraryIndex.of(PersistentVector.empty())
+                .sortedRows(LibraryIndex.Column.TITLE, true));
+    }
+
+    /**
+     * A million rows, as in the largest libraries the index is meant for. Each sort is timed three times and the
+     * fastest run checked, so a pause of the machine doesn't fail the test; the bound is far above what the sort
+     * takes, to catch a sort that got slower by an order of magnitude, not to measure it.
+     */
+    @Test
+    void sortsAMillionRowsWellUnderASecondWithoutAnObjectPerRow() {
+        int rows = 1_000_000;
+        Random random = new Random(3);
+        String[] titles = IntStream.range(0, 50_000).mapToObj(i -> "Title " + i).toArray(String[]::new);
+        String[] artists = IntStream.range(0, 2_000).mapToObj(i -> "Artist " + i).toArray(String[]::new);
+        List<Song> songs = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            String artist = artists[random.nextInt(artists.length)];
+            songs.add(song(titles[random.nextInt(titles.length)], artist + " album " + random.nextInt(5), artist,
+                    String.valueOf(1950 + random.nextInt(75)), random.nextInt(600_000)));
+        }
+        PersistentVector<Song> vector = PersistentVector.of(songs);
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        LibraryIndex index = LibraryIndex.of(vector);
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+        // Seven columns of 4 bytes per row, plus the dictionaries.
+        assertTrue(allocated < 40L * rows, "indexing allocated " + allocated / rows + " bytes per row");
+
+        for (LibraryIndex.Column column : LibraryIndex.Column.values()) {
+            long fastest = Long.MAX_VALUE;
+            for (int run = 0; run < 3; run++) {
+                allocated = threads.getThreadAllocatedBytes(thread);
+                long start = System.nanoTime();
+                int[] sorted = index.sortedRows(column, run % 2 == 0);
+                fastest = Math.min(fastest, System.nanoTime() - start);
+                allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+                assertEquals(rows, sorted.length);
+                // The keys, the rows and the buffer of the sort; the ranks of a column on its first sort.
+                assertTrue(allocated < 32L * rows, column + " sort allocated " + allocated / rows + " bytes per row");
+            }
+            assertTrue(fastest < 1_000_000_000L, column + " sorted in " + fastest / 1_000_000 + " ms");
+        }
+    }
+}
@@ -0,0 +1,179 @@
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import support.M3u;
+import support.Song;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Imports M3U playlists listing generated MP3 files by relative and absolute paths and files served by a local
+ * HTTP server, and exports them again.
+ */
+class M3uTests {
+    private static final int FRAME_BYTES = 417;
+    private static final int FRAMES = 40;
+
+    private Path directory;
+    private HttpServer server;
+
+    @BeforeEach
+    void createFiles() throws IOException {
+        directory = Files.createTempDirectory("m3u-tests");
+        Files.createDirectories(directory.resolve("music").resolve("sub"));
+        for (String name : List.of("music/a.mp3", "music/sub/b.mp3", "c.mp3")) {
+            Files.write(directory.resolve(name), silentMp3());
+        }
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/remote.mp3", exchange -> {
+            byte[] body = silentMp3();
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void deleteFiles() throws IOException {
+        server.stop(0);
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) Files.delete(path);
+        }
+    }
+
+    /**
+     * @return MPEG-1 Layer III frames at 128 kbps, 44.1 kHz, mono, all zeros: silence.
+     */
+    private static byte[] silentMp3() {
+        byte[] mp3 = new byte[FRAME_BYTES * FRAMES];
+        for (int i = 0; i < FRAMES; i++) {
+            mp3[i * FRAME_BYTES] = (byte) 0xFF;
+            mp3[i * FRAME_BYTES + 1] = (byte) 0xFB;
+            mp3[i * FRAME_BYTES + 2] = (byte) 0x90;
+            mp3[i * FRAME_BYTES + 3] = (byte) 0xC0;
+        }
+        return mp3;
+    }
+
+    private static List<Song> importAll(Path playlist, int batchSize) throws IOException {
+        List<Song> songs = new ArrayList<>();
+        List<Integer> batches = new ArrayList<>();
+        int count = M3u.importFrom(playlist, batchSize, batch -> {
+            batches.add(batch.size());
+            songs.addAll(batch);
+        });
+        assertEquals(songs.size(), count);
+        for (int i = 0; i < batches.size(); i++) {
+            assertTrue(batches.get(i) == batchSize || i == batches.size() - 1, "batches " + batches);
+        }
+        return songs;
+    }
+
+    private static List<Path> paths(List<Song> songs) {
+        return songs.stream().map(song -> Path.of(song.getFilePath())).toList();
+    }
+
+    @Test
+    void resolvesRelativePathsAgainstThePlaylist() throws IOException {
+        Path playlist = directory.resolve("list.m3u8");
+        Files.writeString(playlist, String.join("\n",
+                "\uFEFF#EXTM3U",
+                "#EXTINF:1,Ignored - For Local Files",
+                "music/a.mp3",
+                "",
+                "# a comment",
+                "  music/sub/b.mp3  ",
+                "missing.mp3",
+                directory.resolve("c.mp3").toString()), StandardCharsets.UTF_8);
+
+        List<Song> songs = importAll(playlist, 2);
+        assertEquals(List.of(directory.resolve("music/a.mp3"), directory.resolve("music/sub/b.mp3"),
+                directory.resolve("c.mp3")), paths(songs));
+        assertEquals(FRAMES, songs.get(0).getNumFrames());
+        assertEquals("Untitled", songs.get(0).getTitle(), "title read from the file, which has no tag");
+    }
+
+    @Test
+    void describesRemoteSongsByTheirExtinf() throws IOException {
+        String url = "http://localhost:" + server.getAddress().getPort() + "/remote.mp3";
+        Path playlist = directory.resolve("remote.m3u");
+        Files.writeString(playlist, String.join("\n",
+                "#EXTM3U",
+                "#EXTINF:1,Some Artist - Some Title",
+                url,
+                "#EXTINF:-1,Just A Title",
+                url,
+                url), StandardCharsets.UTF_8);
+
+        List<Song> songs = importAll(playlist, 10);
+        assertEquals(3, songs.size());
+        assertTrue(songs.get(0).isRemote());
+        assertEquals(url, songs.get(0).getFilePath());
+        assertEquals("Some Artist", songs.get(0).getArtist());
+        assertEquals("Some Title", songs.get(0).getTitle());
+        assertEquals("Just A Title", songs.get(1).getTitle());
+        // An #EXTINF line only describes the entry right after it.
+        assertEquals("remote.mp3", songs.get(2).getTitle());
+    }
+
+    @Test
+    void exportsWhatImportsBack() throws IOException {
+        Path original = directory.resolve("original.m3u");
+        Files.writeString(original, "music/sub/b.mp3\nc.mp3\nmusic/a.mp3\n", StandardCharsets.UTF_8);
+        List<Song> songs = importAll(original, 10);
+
+        Path exported = directory.resolve("music").resolve("exported.m3u8");
+        M3u.exportTo(exported, songs);
+        List<String> lines = Files.readAllLines(exported, StandardCharsets.UTF_8);
+        assertEquals("#EXTM3U", lines.get(0));
+        assertEquals(1 + 2 * songs.size(), lines.size());
+        Song first = songs.get(0);
+        assertEquals("#EXTINF:" + Math.round(first.getMsLength() / 1000) + "," + first.getArtist() + " - "
+                + first.getTitle(), lines.get(1));
+        assertEquals(first.getFilePath(), lines.get(2));
+
+        assertEquals(paths(songs), paths(importAll(exported, 1)));
+    }
+
+    @Test
+    void remoteSongsKeepTheirTitleThroughExport() throws IOException {
+        String url = "http://localhost:" + server.getAddress().getPort() + "/remote.mp3";
+        Path original = directory.resolve("remote.m3u");
+        Files.writeString(original, String.join("\n",
+                "#EXTM3U",
+                "#EXTINF:1,Some Artist - Some Title",
+                url,
+                "#EXTINF:-1,Just A Title",
+                url), StandardCharsets.UTF_8);
+        List<Song> songs = importAll(original, 10);
+        assertEquals("", songs.get(1).getArtist());
+
+        Path exported = directory.resolve("exported.m3u");
+        M3u.exportTo(exported, songs);
+        List<String> lines = Files.readAllLines(exported, StandardCharsets.UTF_8);
+        assertEquals("#EXTINF:" + Math.round(songs.get(1).getMsLength() / 1000) + ",Just A Title", lines.get(3));
+
+        List<Song> imported = importAll(exported, 10);
+        assertEquals(2, imported.size());
+        for (int i = 0; i < songs.size(); i++) {
+            assertEquals(url, imported.get(i).getFilePath());
+            assertEquals(songs.get(i).getArtist(), imported.get(i).getArtist());
+            assertEquals(songs.get(i).getTitle(), imported.get(i).getTitle());
+        }
+    }
+}
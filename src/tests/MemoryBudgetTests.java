@@ -0,0 +1,125 @@
+import org.junit.jupiter.api.Test;
+import support.MemoryBudget;
+import support.Song;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Charges entries of made-up caches to small {@link MemoryBudget}s and checks which ones are evicted.
+ */
+class MemoryBudgetTests {
+    private final List<Object> evicted = Collections.synchronizedList(new ArrayList<>());
+    private final MemoryBudget.Owner owner = charge -> evicted.add(charge.getKey());
+
+    private static Song song(String title) {
+        return new Song(UUID.randomUUID(), title, "Album", "Artist", "2023", 1000, "/music/" + title + ".mp3",
+                1000, 38);
+    }
+
+    @Test
+    void evictsLeastValuablePerByteFirst() throws InterruptedException {
+        MemoryBudget budget = new MemoryBudget(1000, 1000);
+        Song current = song("current");
+        budget.setFocus(current, List.of());
+        budget.charge(owner, "large", song("other"), 450, false, 1f);
+        budget.charge(owner, "current", current, 450, false, 1f);
+        budget.charge(owner, "small", null, 200, false, 1f);
+        budget.awaitEvictions();
+        assertEquals(List.of("large"), evicted);
+        assertEquals(650, budget.getHeapBytes());
+    }
+
+    @Test
+    void keepsEntriesCostlierToRebuild() throws InterruptedException {
+        MemoryBudget budget = new MemoryBudget(1000, 1000);
+        budget.charge(owner, "computed", null, 600, false, 4f);
+        budget.charge(owner, "read back", null, 600, false, 1f);
+        budget.awaitEvictions();
+        assertEquals(List.of("read back"), evicted);
+    }
+
+    @Test
+    void favoursUpcomingSongsInOrder() throws InterruptedException {
+        MemoryBudget budget = new MemoryBudget(1000, 1000);
+        Song next = song("next");
+        Song later = song("later");
+        budget.setFocus(null, List.of(next, later));
+        budget.charge(owner, "later", later, 400, false, 1f);
+        budget.charge(owner, "next", next, 400, false, 1f);
+        budget.charge(owner, "elsewhere", song("elsewhere"), 400, false, 1f);
+        budget.awaitEvictions();
+        assertEquals(List.of("elsewhere"), evicted);
+
+        budget.charge(owner, "more", next, 400, false, 1f);
+        budget.awaitEvictions();
+        assertEquals(List.of("elsewhere", "later"), evicted);
+    }
+
+    @Test
+    void limitsHeapAndOffHeapSeparately() throws InterruptedException {
+        MemoryBudget budget = new MemoryBudget(1000, 1000);
+        budget.charge(owner, "direct", null, 900, true, 1f);
+        budget.charge(owner, "heap", null, 900, false, 1f);
+        budget.awaitEvictions();
+        assertEquals(List.of(), evicted);
+
+        budget.charge(owner, "direct 2", null, 200, true, 4f);
+        budget.awaitEvictions();
+        assertEquals(List.of("direct"), evicted);
+        assertEquals(200, budget.getOffHeapBytes());
+        assertEquals(900, budget.getHeapBytes());
+    }
+
+    @Test
+    void releasedEntriesAreNeverEvicted() throws InterruptedException {
+        MemoryBudget budget = new MemoryBudget(1000, 1000);
+        MemoryBudget.Charge released = budget.charge(owner, "released", null, 800, false, 1f);
+        released.release();
+        released.release();
+        assertEquals(0, budget.getHeapBytes());
+        budget.charge(owner, "kept", null, 800, false, 1f);
+        budget.awaitEvictions();
+        assertEquals(List.of(), evicted);
+        assertEquals(800, budget.getHeapBytes());
+    }
+
+    @Test
+    void pressureHalvesHeapOfCaches() throws InterruptedException {
+        MemoryBudget budget = new MemoryBudget(1000, 1000);
+        for (int i = 0; i < 8; i++) budget.charge(owner, i, null, 100, false, 1f);
+        budget.charge(owner, "direct", null, 500, true, 1f);
+        budget.relievePressure();
+        budget.awaitEvictions();
+        assertEquals(4, evicted.size());
+        assertEquals(400, budget.getHeapBytes());
+        assertEquals(500, budget.getOffHeapBytes());
+    }
+
+    @Test
+    void repeatedPressureOnlyTrimsCachesThatGrew() throws InterruptedException {
+        MemoryBudget budget = new MemoryBudget(1000, 1000);
+        for (int i = 0; i < 8; i++) budget.charge(owner, i, null, 100, false, 1f);
+        budget.relievePressure();
+        budget.awaitEvictions();
+        assertEquals(400, budget.getHeapBytes());
+
+        // Thresholds crossed after every collection while something else fills the heap.
+        for (int i = 0; i < 5; i++) budget.relievePressure();
+        budget.awaitEvictions();
+        assertEquals(400, budget.getHeapBytes());
+
+        // Grown since, the caches are trimmed again, down to an eighth of their limit at most.
+        budget.charge(owner, "grown", null, 100, false, 1f);
+        for (int i = 0; i < 5; i++) {
+            budget.relievePressure();
+            budget.awaitEvictions();
+            budget.charge(owner, "more" + i, null, 10, false, 1f);
+        }
+        assertTrue(budget.getHeapBytes() >= 125, "heap " + budget.getHeapBytes());
+    }
+}
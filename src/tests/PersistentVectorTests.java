@@ -0,0 +1,155 @@
+import org.junit.jupiter.api.Test;
+import support.PersistentVector;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Applies random edits to {@link PersistentVector}s and to {@link ArrayList}s side by side, across the sizes where
+ * the trie gains or loses a level, and checks that earlier versions never change.
+ */
+class PersistentVectorTests {
+    /**
+     * Sizes around the leaves, the second level and the third level of the trie.
+     */
+    private static final int[] SIZES = {0, 1, 31, 32, 33, 64, 1023, 1024, 1025, 1056, 1057, 32 * 1024 + 33};
+
+    private static List<Integer> range(int size) {
+        return IntStream.range(0, size).boxed().toList();
+    }
+
+    private static void assertSameElements(List<Integer> expected, PersistentVector<Integer> vector) {
+        assertEquals(expected.size(), vector.size());
+        for (int i = 0; i < expected.size(); i++) assertEquals(expected.get(i), vector.get(i), "index " + i);
+        assertEquals(expected, vector.toList());
+    }
+
+    @Test
+    void buildsTheSameVectorFromAnArrayOrByAppending() {
+        for (int size : SIZES) {
+            List<Integer> elements = range(size);
+            PersistentVector<Integer> appended = PersistentVector.of(elements);
+            PersistentVector<Integer> built = PersistentVector.of(elements.toArray(new Integer[0]));
+            assertSameElements(elements, appended);
+            assertSameElements(elements, built);
+            // Both shapes grow and shrink the same way.
+            assertSameElements(range(size + 1), built.append(size));
+            if (size > 0) assertSameElements(range(size - 1), built.pop());
+        }
+    }
+
+    @Test
+    void popsBackThroughEveryLevel() {
+        int size = 32 * 1024 + 33;
+        PersistentVector<Integer> vector = PersistentVector.of(range(size));
+        for (int expected = size; expected > 0; expected--) {
+            assertEquals(expected, vector.size());
+            assertEquals(expected - 1, vector.get(expected - 1));
+            vector = vector.pop();
+        }
+        assertTrue(vector.isEmpty());
+        assertThrows(IllegalStateException.class, vector::pop);
+    }
+
+    @Test
+    void matchesAListUnderRandomEdits() {
+        Random random = new Random(7);
+        for (int size : SIZES) {
+            List<Integer> expected = new ArrayList<>(range(size));
+            PersistentVector<Integer> vector = PersistentVector.of(expected);
+            for (int i = 0; i < 300; i++) {
+                int next = size + i;
+                switch (random.nextInt(5)) {
+                    case 0 -> {
+                        expected.add(next);
+                        vector = vector.append(next);
+                    }
+                    case 1 -> {
+                        if (expected.isEmpty()) continue;
+                        expected.remove(expected.size() - 1);
+                        vector = vector.pop();
+                    }
+                    case 2 -> {
+                        if (expected.isEmpty()) continue;
+                        int index = random.nextInt(expected.size());
+                        expected.set(index, next);
+                        vector = vector.set(index, next);
+                    }
+                    case 3 -> {
+                        if (expected.isEmpty()) continue;
+                        int index = random.nextInt(expected.size());
+                        expected.remove(index);
+                        vector = vector.remove(index);
+                    }
+                    default -> {
+                        int index = random.nextInt(expected.size() + 1);
+                        expected.add(index, next);
+                        vector = vector.insert(index, next);
+                    }
+                }
+            }
+            assertSameElements(expected, vector);
+            assertEquals(expected.indexOf(size), vector.indexOf(size));
+        }
+    }
+
+    @Test
+    void editsLeaveEarlierVersionsUntouched() {
+        List<Integer> elements = range(1057);
+        PersistentVector<Integer> original = PersistentVector.of(elements);
+        List<PersistentVector<Integer>> edited = List.of(
+                original.set(0, -1), original.set(1056, -1), original.set(500, -1),
+                original.append(-1), original.pop(), original.remove(0), original.remove(600),
+                original.insert(0, -1), original.insert(1057, -1));
+        for (PersistentVector<Integer> version : edited) assertNotEquals(elements, version.toList());
+        assertSameElements(elements, original);
+    }
+
+    @Test
+    void rejectsIndicesOutOfRange() {
+        PersistentVector<Integer> vector = PersistentVector.of(range(40));
+        assertThrows(IndexOutOfBoundsException.class, () -> vector.get(40));
+        assertThrows(IndexOutOfBoundsException.class, () -> vector.get(-1));
+        assertThrows(IndexOutOfBoundsException.class, () -> vector.set(40, 0));
+        assertThrows(IndexOutOfBoundsException.class, () -> vector.remove(40));
+        assertThrows(IndexOutOfBoundsException.class, () -> vector.insert(41, 0));
+        assertSameElements(range(41), vector.insert(40, 40));
+    }
+
+    /**
+     * Removals and insertions at the front and in the middle of a large vector, which would take minutes if they
+     * shifted the elements after them, and a vector that keeps its height and shares its untouched nodes.
+     */
+    @Test
+    void editsAnywhereOnlyCopyThePathToTheElement() {
+        int size = 32 * 1024 + 33;
+        List<Integer> expected = new ArrayList<>(range(size));
+        PersistentVector<Integer> vector = PersistentVector.of(expected);
+        Random random = new Random(11);
+        for (int i = 0; i < 20_000; i++) {
+            int index = i % 4 < 2 ? 0 : random.nextInt(expected.size());
+            if (i % 2 == 0) {
+                expected.remove(index);
+                vector = vector.remove(index);
+            } else {
+                expected.add(index, -i);
+                vector = vector.insert(index, -i);
+            }
+        }
+        assertSameElements(expected, vector);
+
+        // Emptied from the front, the vector keeps every other element in order.
+        for (int i = 0; i < 5_000; i++) {
+            expected.remove(0);
+            vector = vector.remove(0);
+        }
+        assertSameElements(expected, vector);
+        while (!vector.isEmpty()) vector = vector.remove(vector.size() / 2);
+        assertSameElements(List.of(), vector);
+        assertSameElements(List.of(1, 2), vector.append(2).insert(0, 1));
+    }
+}
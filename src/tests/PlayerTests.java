@@ -1,3 +1,588 @@
+import javazoom.jl.player.AudioDeviceBase;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.RepeatedTest;
+import org.junit.jupiter.api.RepetitionInfo;
+import org.junit.jupiter.api.Test;
+import support.MixerStage;
+import support.PlaybackMetrics;
+import support.ResumeJournal;
+import support.Song;
+import support.ViewState;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Stress and latency harness for the controls of {@link Player}, run headless against an audio device that discards
+ * the samples. The songs are generated silent MP3 files, short enough for playback to keep crossing from one song
+ * to the next while the controls are hammered.<br>
+ * A command that doesn't return, a player thread that doesn't make progress or dies, or a deadlock fails the test
+ * with a dump of every thread. The stress test is repeated with a different seed each time, so interleavings that
+ * break the player only once in a while still fail the build.
+ */
 class PlayerTests {
+    private static final int SONGS = 8;
+    private static final int FRAMES_PER_SONG = 120;
+    private static final int FRAME_BYTES = 417;
+    private static final float MS_PER_FRAME = 1152 * 1000f / 44100;
+    private static final int THREADS = 8;
+    private static final int COMMANDS_PER_THREAD = 400;
+    private static final long STALL_TIMEOUT_MS = 10_000;
+    private static final long EFFECT_TIMEOUT_MS = 2_000;
+
+    private static Path directory;
+    private static final List<Path> files = new ArrayList<>();
+
+    private final List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+    private Thread.UncaughtExceptionHandler previousHandler;
+    /**
+     * What the devices of the player of the test wrote.
+     */
+    private final Output output = new Output();
+    private Player player;
+
+    private static final class Output {
+        /**
+         * Number of writes started.
+         */
+        final AtomicLong writes = new AtomicLong();
+        /**
+         * When the audio of the last write finished playing, as returned by {@link System#nanoTime()}.
+         */
+        volatile long lastWrite;
+        /**
+         * True while a paced write waits.
+         */
+        volatile boolean writing;
+        /**
+         * Device created last, the one of the song opened last.
+         */
+        volatile CountingDevice last;
+    }
+
+    /**
+     * Discards the samples, counting the writes and recording when the last one happened. A paced device takes the
+     * time the samples would take to play, divided by its speedup, as a real device does when its buffer is full,
+     * so latencies measured on it are the ones heard, and playback stays within a song long enough for a test to act
+     * on it.
+     */
+    private static final class CountingDevice extends AudioDeviceBase {
+        private final Output output;
+        private final int speedup;
+        /**
+         * Writes started on this device, and samples written to it.
+         */
+        final AtomicLong writes = new AtomicLong();
+        final AtomicLong samples = new AtomicLong();
+
+        /**
+         * @param speedup how many times faster than real time the samples are written, 0 for as fast as possible.
+         */
+        CountingDevice(Output output, int speedup) {
+            this.output = output;
+            this.speedup = speedup;
+            output.last = this;
+        }
+
+        @Override
+        protected void writeImpl(short[] samples, int offs, int len) {
+            writes.incrementAndGet();
+            output.writes.incrementAndGet();
+            if (speedup > 0) {
+                output.writing = true;
+                LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(len) / 44100 / speedup);
+                output.writing = false;
+            }
+            this.samples.addAndGet(len);
+            output.lastWrite = System.nanoTime();
+        }
+
+        @Override
+        public int getPosition() {
+            return 0;
+        }
+    }
+
+    @BeforeAll
+    static void createSongs() throws IOException {
+        directory = Files.createTempDirectory("player-tests");
+        byte[] frame = new byte[FRAME_BYTES];
+        // MPEG-1 Layer III, 128 kbps, 44.1 kHz, mono. Side information and main data all zeros: silence.
+        frame[0] = (byte) 0xFF;
+        frame[1] = (byte) 0xFB;
+        frame[2] = (byte) 0x90;
+        frame[3] = (byte) 0xC0;
+        byte[] mp3 = new byte[FRAME_BYTES * FRAMES_PER_SONG];
+        for (int i = 0; i < FRAMES_PER_SONG; i++) System.arraycopy(frame, 0, mp3, i * FRAME_BYTES, FRAME_BYTES);
+        for (int i = 0; i < SONGS; i++) files.add(Files.write(directory.resolve("song" + i + ".mp3"), mp3));
+    }
+
+    @AfterAll
+    static void deleteSongs() throws IOException {
+        for (Path file : files) Files.deleteIfExists(file);
+        Files.deleteIfExists(directory);
+    }
+
+    @BeforeEach
+    void startPlayer() {
+        previousHandler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler((thread, e) -> failures.add(e));
+        player = newPlayer(0);
+    }
+
+    /**
+     * Creates a player with the system properties set at the time, its devices writing to {@link #output}, and
+     * queues the songs.
+     *
+     * @param speedup speedup of the devices, see {@link CountingDevice}.
+     */
+    private Player newPlayer(int speedup) {
+        Player created = new Player(() -> new CountingDevice(output, speedup), true);
+        for (Path file : files) created.getPlaylist().add(song(file));
+        created.getPlaylist().setLooping(true);      // playback never runs out of songs
+        return created;
+    }
+
+    @AfterEach
+    void stopPlayer() throws InterruptedException {
+        player.shutdown();
+        Thread.setDefaultUncaughtExceptionHandler(previousHandler);
+    }
+
+    private static Song song(Path file) {
+        return new Song(UUID.randomUUID(), file.getFileName().toString(), "Album", "Artist", "2023",
+                FRAMES_PER_SONG * MS_PER_FRAME, file.toString(), FRAMES_PER_SONG * FRAME_BYTES, FRAMES_PER_SONG);
+    }
+
+    @RepeatedTest(20)
+    void concurrentControlsNeverDeadlockOrStall(RepetitionInfo repetition) throws Exception {
+        long seed = 31L * repetition.getCurrentRepetition();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                Random random = new Random(seed + t);
+                workers.add(executor.submit(() -> {
+                    for (int i = 0; i < COMMANDS_PER_THREAD; i++) randomCommand(random);
+                    return null;
+                }));
+            }
+            for (Future<?> worker : workers) {
+                try {
+                    worker.get(STALL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException e) {
+                    fail("Controls stalled\n" + threadDump());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertNoDeadlock();
+        assertEquals(List.of(), failures, "Player threads failed");
+
+        // The player must still respond once the storm is over.
+        awaitEffect(() -> !player.isSeeking(), "seek never finished");
+        long writes = output.writes.get();
+        player.playNow(0);
+        awaitEffect(() -> output.writes.get() > writes, "no audio after play");
+        assertTrue(player.isPlaying());
+        assertEquals(List.of(), failures, "Player threads failed");
+    }
+
+    private void randomCommand(Random random) {
+        int size = Math.max(1, player.getPlaylist().size());
+        switch (random.nextInt(8)) {
+            case 0, 1 -> player.playNow(random.nextInt(size));
+            case 2 -> player.playPause();
+            case 3 -> player.stop();
+            case 4 -> player.next();
+            case 5 -> player.previous();
+            case 6 -> player.seek((int) (random.nextInt(FRAMES_PER_SONG) * MS_PER_FRAME));
+            case 7 -> {
+                int index = random.nextInt(size);
+                Song removed = player.getPlaylist().get(index);
+                player.remove(index);
+                if (removed != null) player.getPlaylist().add(song(Path.of(removed.getFilePath())));
+            }
+        }
+    }
+
+    @Test
+    void commandsTakeEffectBeforeTheNextWrite() throws Exception {
+        // Checked on writes rather than on time: a write started after a command returned may only be the batch
+        // handed over before it, then the writes must follow the command.
+        for (int i = 0; i < 50; i++) {
+            CountingDevice before = output.last;
+            player.playNow(i % SONGS);
+            long stale = before == null ? 0 : before.writes.get();
+            CountingDevice started = output.last;
+            assertNotSame(before, started, "play opened no device");
+            awaitEffect(() -> started.writes.get() > 0, "no audio after play");
+            if (before != null) assertTrue(before.writes.get() - stale <= 1, "previous song kept playing");
+
+            player.seek((int) (FRAMES_PER_SONG / 2 * MS_PER_FRAME));
+            stale = started.writes.get();
+            awaitEffect(() -> !player.isSeeking(), "seek never finished");
+            CountingDevice seeked = output.last;
+            awaitEffect(() -> seeked.writes.get() > 0, "no audio after seek");
+            assertTrue(started.writes.get() - stale <= 1, "audio before the seek kept playing");
+
+            player.playPause();
+            long writes = output.writes.get();
+            awaitQuiet();
+            assertTrue(output.writes.get() - writes <= 1, "audio kept playing after pause");
+            assertFalse(player.isPlaying());
+            player.playPause();
+        }
+        assertEquals(List.of(), failures, "Player threads failed");
+    }
+
+    @Test
+    void announcementsPlayOverMusicAndAlone() throws Exception {
+        player.playNow(0);
+        long writes = output.writes.get();
+        awaitEffect(() -> output.writes.get() > writes, "no audio after play");
+        MixerStage.Source overMusic = player.announce(song(files.get(1)));
+        assertNotNull(overMusic, "announcement not opened");
+        overMusic.getFinished().get(STALL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        player.playPause();
+        awaitQuiet();
+        assertFalse(player.isPlaying());
+        long paused = output.writes.get();
+        MixerStage.Source alone = player.announce(song(files.get(2)));
+        alone.getFinished().get(STALL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertTrue(output.writes.get() > paused, "announcement not played while paused");
+        awaitQuiet();
+        assertFalse(player.isPlaying());
+        assertEquals(List.of(), failures, "Player threads failed");
+    }
+
+    @Test
+    void viewFollowsCommands() throws Exception {
+        // Played in real time, the song lasts seconds longer than the test needs it.
+        player.shutdown();
+        player = newPlayer(1);
+
+        player.playNow(2);
+        ViewState view = player.getView();
+        assertSame(player.getPlaylist().get(2), view.getSong());
+        assertTrue(view.isPlaying());
+        assertTrue(view.hasNext() && view.hasPrevious());
+        assertEquals(player.getPlaylist().snapshot().getVersion(), view.getQueueVersion());
+
+        // Rounded up, so the seek lands on the frame starting there rather than the one before.
+        player.seek((int) Math.ceil(FRAMES_PER_SONG / 2 * MS_PER_FRAME));
+        awaitEffect(() -> !player.isSeeking(), "seek never finished");
+        player.playPause();
+        awaitQuiet();
+        view = player.getView();
+        assertFalse(view.isPlaying());
+        assertSame(player.getPlaylist().get(2), view.getSong());
+        assertTrue(view.getPositionMs() >= FRAMES_PER_SONG / 2 * MS_PER_FRAME - 1, "position " + view.getPositionMs());
+
+        player.remove(5);
+        assertEquals(SONGS - 1, player.getView().getQueue().size());
+        player.stop();
+        view = player.getView();
+        assertTrue(view.isStopped());
+        assertFalse(view.isPlaying() || view.hasNext() || view.hasPrevious());
+        assertEquals(0, view.getPositionMs());
+        assertEquals(List.of(), failures, "Player threads failed");
+    }
+
+    @Test
+    void positionLeavesOutTheFramesNotWrittenToTheDevice() throws Exception {
+        // Played in real time, so the pause lands in the middle of the song and of a batch.
+        player.shutdown();
+        player = newPlayer(1);
+        for (int i = 0; i < 5; i++) {
+            player.playNow(i);
+            CountingDevice device = output.last;
+            awaitEffect(() -> device.writes.get() >= 2, "no audio after play");
+            player.playPause();
+            awaitQuiet();
+            assertSame(device, output.last);
+            // Mono frames of 1152 samples; the frames still batched when paused were not heard.
+            long heard = device.samples.get() / 1152;
+            assertEquals(heard * MS_PER_FRAME, player.getView().getPositionMs(), 1);
+        }
+        assertEquals(List.of(), failures, "Player threads failed");
+    }
+
+    @Test
+    void resumeLoadsTheRecordedSongPausedAtItsFrame() throws Exception {
+        // Played in real time, so the song is still playing when checked after resuming.
+        player.shutdown();
+        player = newPlayer(1);
+        Path file = Files.createTempFile("resume", ".journal");
+        try (ResumeJournal journal = new ResumeJournal(file)) {
+            Song recorded = player.getPlaylist().get(4);
+            journal.forceRecord(recorded, FRAMES_PER_SONG / 2, false, false);
+
+            player.resume(journal.read());
+            assertFalse(player.isPlaying() || player.isStopped());
+            assertSame(recorded, player.getCurrentSong());
+            assertEquals(4, player.getPlaylist().getCurrentIndex());
+            assertFalse(player.getPlaylist().isLooping());
+            ViewState view = player.getView();
+            assertSame(recorded, view.getSong());
+            assertEquals(FRAMES_PER_SONG / 2 * MS_PER_FRAME, view.getPositionMs(), MS_PER_FRAME);
+
+            // Play goes on from there.
+            long writes = output.writes.get();
+            player.playPause();
+            awaitEffect(() -> output.writes.get() > writes, "no audio after resume");
+            assertSame(recorded, player.getCurrentSong());
+
+            // A song started before the journal was read is kept.
+            player.playNow(1);
+            player.resume(journal.read());
+            assertTrue(player.isPlaying());
+            assertSame(player.getPlaylist().get(1), player.getCurrentSong());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+        assertEquals(List.of(), failures, "Player threads failed");
+    }
+
+    @Test
+    void draggingPlaysThrottledPreviewsAndReleasingSeeks() throws Exception {
+        // Played in real time, so the song is still playing when the scrubber is dragged.
+        player.shutdown();
+        player = newPlayer(1);
+        player.playNow(3);
+        Song song = player.getCurrentSong();
+        awaitEffect(() -> output.writes.get() > 0, "no audio after play");
+        CountingDevice device = output.last;
+        long preview = 3 * 1152;
+
+        // The track thread holds still; previews play once the frame index of the song is ready.
+        player.drag((int) (20 * MS_PER_FRAME));
+        awaitQuiet();
+        long before = device.samples.get();
+        for (int frame = 21; device.samples.get() == before; frame++) {
+            assertTrue(frame < 100, "no preview");
+            player.drag((int) (frame * MS_PER_FRAME));
+            assertEquals((int) (frame * MS_PER_FRAME), player.getView().getPositionMs());
+            Thread.sleep(20);
+        }
+        // Longer than the interval between previews, so the preview of the last position is played too.
+        Thread.sleep(200);
+        awaitQuiet();
+
+        // Positions dragged to faster than the interval between previews replace each other.
+        long samples = device.samples.get();
+        for (int i = 0; i < 200; i++) player.drag((int) ((30 + i % 50) * MS_PER_FRAME));
+        awaitEffect(() -> device.samples.get() > samples, "no preview");
+        Thread.sleep(200);
+        awaitQuiet();
+        long played = device.samples.get() - samples;
+        assertTrue(played == preview || played == 2 * preview, played + " samples played");
+        assertTrue(player.isSeeking());
+        assertTrue(player.isPlaying());
+
+        // Releasing the scrubber moves playback there.
+        int released = (int) Math.ceil(90 * MS_PER_FRAME);
+        long writes = output.writes.get();
+        player.seek(released);
+        awaitEffect(() -> !player.isSeeking(), "seek never finished");
+        awaitEffect(() -> output.writes.get() > writes, "no audio after release");
+        assertSame(song, player.getCurrentSong());
+        assertTrue(player.getView().getPositionMs() >= released - 1, "position " + player.getView().getPositionMs());
+        assertEquals(List.of(), failures, "Player threads failed");
+    }
+
+    @Test
+    void idlePlayerReleasesDeviceAndResumes() throws Exception {
+        player.shutdown();
+        System.setProperty("player.idle.releaseMs", "100");
+        try {
+            player = newPlayer(0);
+        } finally {
+            System.clearProperty("player.idle.releaseMs");
+        }
+        long releases = PlaybackMetrics.global().getIdleReleases();
+
+        player.playNow(3);
+        long writes = output.writes.get();
+        awaitEffect(() -> output.writes.get() > writes, "no audio after play");
+        player.playPause();
+        awaitQuiet();
+        Song paused = player.getCurrentSong();
+        awaitEffect(player::isReleased, "device never released");
+        assertTrue(PlaybackMetrics.global().getIdleReleases() > releases);
+
+        // Hovering reopens everything in the background, without starting playback.
+        player.hoverPlay();
+        awaitEffect(() -> !player.isReleased(), "device never reopened");
+        assertFalse(player.isPlaying());
+        assertSame(paused, player.getCurrentSong());
+
+        // Play right after a release reopens on the track thread.
+        awaitEffect(player::isReleased, "device never released again");
+        long resumed = output.writes.get();
+        player.playPause();
+        awaitEffect(() -> output.writes.get() > resumed, "no audio after resume");
+        assertFalse(player.isReleased());
+        assertEquals(List.of(), failures, "Player threads failed");
+    }
+
+    @Test
+    void followerPlaysWhatTheLeaderPlays() throws Exception {
+        int port;
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        player.shutdown();
+        System.setProperty("player.replication.listen", String.valueOf(port));
+        try {
+            player = newPlayer(0);
+        } finally {
+            System.clearProperty("player.replication.listen");
+        }
+
+        Player follower;
+        System.setProperty("player.replication.leader", "localhost:" + port);
+        try {
+            follower = new Player(() -> new CountingDevice(new Output(), 0), true);
+        } finally {
+            System.clearProperty("player.replication.leader");
+        }
+        try {
+            awaitEffect(() -> follower.getPlaylist().size() == SONGS && follower.getPlaylist().isLooping(),
+                    "queue not replicated");
+
+            player.playNow(3);
+            Song playing = player.getCurrentSong();
+            awaitEffect(() -> follower.isPlaying() && follower.getCurrentSong() != null
+                    && follower.getCurrentSong().getUuid().equals(playing.getUuid()), "follower did not play");
+
+            player.playPause();
+            awaitEffect(() -> !follower.isPlaying(), "follower did not pause");
+            player.remove(0);
+            awaitEffect(() -> follower.getPlaylist().size() == SONGS - 1, "removal not replicated");
+            player.stop();
+            awaitEffect(follower::isStopped, "follower did not stop");
+        } finally {
+            follower.shutdown();
+        }
+        assertEquals(List.of(), failures, "Player threads failed");
+    }
+
+    @Test
+    void selectedSongStartsFromItsIntro() throws Exception {
+        Song selected = player.getPlaylist().get(5);
+        player.select(5);
+        awaitEffect(() -> player.hasIntro(selected), "intro never decoded");
+
+        player.playNow(5);
+        assertTrue(PlaybackMetrics.global().getIntroHitRate() > 0);
+        // The decoder takes over after the intro and plays the song to its end.
+        awaitEffect(() -> player.getCurrentSong() != selected, "song never ended");
+
+        // Seeking during the intro hands over to the decoder at once.
+        player.playNow(5);
+        player.seek((int) (FRAMES_PER_SONG * MS_PER_FRAME / 2));
+        awaitEffect(() -> !player.isSeeking(), "seek never finished");
+        long writes = output.writes.get();
+        awaitEffect(() -> output.writes.get() > writes, "no audio after seek");
+        assertEquals(List.of(), failures, "Player threads failed");
+    }
+
+    @Test
+    void crossfadeHandsOverToTheIncomingSongWhereverEditsMovedIt() throws Exception {
+        player.shutdown();
+        System.setProperty("player.crossfadeMs", "1000");
+        try {
+            player = newPlayer(10);
+        } finally {
+            System.clearProperty("player.crossfadeMs");
+        }
+        List<Song> songs = player.getPlaylist().snapshot().getSongs().toList();
+
+        player.playNow(0);
+        awaitEffect(player::isCrossfading, "crossfade never started");
+        player.playPause();
+        // Reversed, the song after the current one is no longer the one being mixed in.
+        List<Song> reversed = new ArrayList<>(songs);
+        Collections.reverse(reversed);
+        player.getPlaylist().setOrder(reversed, List.of(), false);
+        player.playPause();
+        // The view is published last.
+        awaitEffect(() -> player.getView().getSong() != songs.get(0), "crossfade never handed over");
+        assertSame(songs.get(1), player.getView().getSong());
+        assertSame(songs.get(1), player.getCurrentSong());
+        assertSame(songs.get(1), player.getPlaylist().get(player.getPlaylist().getCurrentIndex()));
+
+        // Removed while mixed in, the song is never handed over to.
+        awaitEffect(player::isCrossfading, "second crossfade never started");
+        player.playPause();
+        Song removed = player.getPlaylist().get(player.getPlaylist().getNextIndex());
+        player.remove(player.getPlaylist().getNextIndex());
+        player.playPause();
+        awaitEffect(() -> player.getCurrentSong() != songs.get(1), "song never ended");
+        assertNotSame(removed, player.getCurrentSong());
+        assertSame(player.getCurrentSong(), player.getPlaylist().get(player.getPlaylist().getCurrentIndex()));
+        assertEquals(List.of(), failures, "Player threads failed");
+    }
+
+    /**
+     * Waits until {@code effect} holds, failing with a thread dump if it takes longer than EFFECT_TIMEOUT_MS.
+     */
+    private static void awaitEffect(BooleanSupplier effect, String message) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(EFFECT_TIMEOUT_MS);
+        while (!effect.getAsBoolean()) {
+            if (System.nanoTime() > deadline) fail(message + "\n" + threadDump());
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Waits until nothing was written to the device for 20 ms, and no write is in progress.
+     */
+    private void awaitQuiet() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(EFFECT_TIMEOUT_MS);
+        long writes;
+        do {
+            writes = output.writes.get();
+            Thread.sleep(20);
+            if (System.nanoTime() > deadline) fail("audio never stopped\n" + threadDump());
+        } while (output.writes.get() != writes || output.writing);
+    }
+
+    private static void assertNoDeadlock() {
+        long[] deadlocked = ManagementFactory.getThreadMXBean().findDeadlockedThreads();
+        assertNull(deadlocked, () -> "Deadlock\n" + threadDump());
+    }
 
-}
\ No newline at end of file
+    private static String threadDump() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        StringBuilder dump = new StringBuilder();
+        for (ThreadInfo info : threads.dumpAllThreads(true, true)) dump.append(info);
+        return dump.toString();
+    }
+}
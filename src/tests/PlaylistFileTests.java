@@ -0,0 +1,144 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import support.Playlist;
+import support.PlaylistFile;
+import support.Song;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Writes playlists to {@link PlaylistFile}s and reads them back, and reads files of the first version and broken
+ * files.
+ */
+class PlaylistFileTests {
+    private static final int MAGIC = 0x4D50504C;
+    private static final int RECORD_SIZE = 52;
+
+    private Path file;
+
+    @BeforeEach
+    void createFile() throws IOException {
+        file = Files.createTempFile("playlist", ".mppl");
+    }
+
+    @AfterEach
+    void deleteFile() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    private static Song song(int i) {
+        String directory = File.separator + "music" + File.separator + "album " + (i % 3) + File.separator;
+        return new Song(UUID.randomUUID(), "Title " + i + " \u00e9t\u00e9", "Album " + (i % 3),
+                "Artist " + (i % 5), String.valueOf(2000 + i % 7), 1000.5f * i, directory + "track " + i + ".mp3",
+                4000 + i, 38 + i);
+    }
+
+    private static void assertSameSong(Song expected, Song actual) {
+        assertEquals(expected.getUuid(), actual.getUuid());
+        assertEquals(expected.getTitle(), actual.getTitle());
+        assertEquals(expected.getAlbum(), actual.getAlbum());
+        assertEquals(expected.getArtist(), actual.getArtist());
+        assertEquals(expected.getYear(), actual.getYear());
+        assertEquals(expected.getMsLength(), actual.getMsLength());
+        assertEquals(expected.getFilePath(), actual.getFilePath());
+        assertEquals(expected.getFileSize(), actual.getFileSize());
+        assertEquals(expected.getNumFrames(), actual.getNumFrames());
+    }
+
+    @Test
+    void readsBackEverySong() throws IOException {
+        // More than the records buffered at once by the writer.
+        List<Song> songs = new ArrayList<>();
+        for (int i = 0; i < 2500; i++) songs.add(song(i));
+        PlaylistFile.write(file, songs);
+
+        try (PlaylistFile read = PlaylistFile.open(file)) {
+            assertEquals(songs.size(), read.size());
+            assertNull(read.getOriginalOrder());
+            for (int i = 0; i < songs.size(); i++) assertSameSong(songs.get(i), read.get(i));
+            assertThrows(IndexOutOfBoundsException.class, () -> read.get(songs.size()));
+        }
+        assertFalse(Files.exists(file.resolveSibling(file.getFileName() + ".tmp")));
+    }
+
+    @Test
+    void keepsTheOriginalOrderOfAShuffledPlaylist() throws IOException {
+        Playlist playlist = new Playlist();
+        for (int i = 0; i < 50; i++) playlist.add(song(i));
+        playlist.toggleShuffle(false);
+        Playlist.Snapshot snapshot = playlist.snapshot();
+        PlaylistFile.write(file, snapshot);
+
+        try (PlaylistFile read = PlaylistFile.open(file)) {
+            assertEquals(snapshot.size(), read.size());
+            for (int i = 0; i < read.size(); i++) assertSameSong(snapshot.get(i), read.get(i));
+            int[] order = read.getOriginalOrder();
+            assertEquals(snapshot.getUnshuffledSongs().size(), order.length);
+            for (int i = 0; i < order.length; i++) {
+                assertSameSong(snapshot.getUnshuffledSongs().get(i), read.get(order[i]));
+            }
+        }
+    }
+
+    @Test
+    void readsTheFirstVersion() throws IOException {
+        // Version 1 had a 16 byte header and no original order.
+        Song song = song(1);
+        String directory = song.getFilePath().substring(0, song.getFilePath().lastIndexOf(File.separatorChar) + 1);
+        String name = song.getFilePath().substring(directory.length());
+        String[] strings = {song.getTitle(), song.getAlbum(), song.getArtist(), song.getYear(), directory, name};
+        byte[][] encoded = new byte[strings.length][];
+        int tableStart = 16 + RECORD_SIZE;
+        int offset = tableStart + 4 * (strings.length + 1);
+        int end = offset;
+        for (int i = 0; i < strings.length; i++) {
+            encoded[i] = strings[i].getBytes(StandardCharsets.UTF_8);
+            end += encoded[i].length;
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(end);
+        bytes.putInt(MAGIC).putInt(1).putInt(1).putInt(strings.length);
+        bytes.putLong(song.getUuidMostSignificantBits()).putLong(song.getUuidLeastSignificantBits());
+        for (int i = 0; i < strings.length; i++) bytes.putInt(i);
+        bytes.putFloat(song.getMsLength()).putInt(song.getFileSize()).putInt(song.getNumFrames());
+        for (byte[] string : encoded) {
+            bytes.putInt(offset);
+            offset += string.length;
+        }
+        bytes.putInt(offset);
+        for (byte[] string : encoded) bytes.put(string);
+        Files.write(file, bytes.array());
+
+        try (PlaylistFile read = PlaylistFile.open(file)) {
+            assertEquals(1, read.size());
+            assertNull(read.getOriginalOrder());
+            assertSameSong(song, read.get(0));
+        }
+    }
+
+    @Test
+    void rejectsOtherAndBrokenFiles() throws IOException {
+        Files.write(file, "#EXTM3U\nsong.mp3\n".getBytes(StandardCharsets.UTF_8));
+        assertThrows(IOException.class, () -> PlaylistFile.open(file));
+
+        Files.write(file, ByteBuffer.allocate(20).putInt(MAGIC).putInt(99).array());
+        IOException e = assertThrows(IOException.class, () -> PlaylistFile.open(file));
+        assertTrue(e.getMessage().contains("99"), e.getMessage());
+
+        PlaylistFile.write(file, List.of(song(1), song(2)));
+        byte[] whole = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(whole, 20 + RECORD_SIZE));
+        assertThrows(IOException.class, () -> PlaylistFile.open(file));
+    }
+}
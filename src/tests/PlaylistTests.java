@@ -0,0 +1,230 @@
+import org.junit.jupiter.api.Test;
+import support.LibraryIndex;
+import support.Playlist;
+import support.Song;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Edits a {@link Playlist} and checks its snapshots, the listeners and undo and redo, with one thread and with
+ * several threads editing at once.
+ */
+class PlaylistTests {
+    private static Song song(String title) {
+        return new Song(UUID.randomUUID(), title, "Album", "Artist", "2023", 1000, "/music/" + title + ".mp3",
+                1000, 38);
+    }
+
+    private static List<String> titles(Playlist.Snapshot snapshot) {
+        List<String> titles = new ArrayList<>();
+        for (Song song : snapshot.getSongs()) titles.add(song.getTitle());
+        return titles;
+    }
+
+    private static Playlist playlist(String... titles) {
+        Playlist playlist = new Playlist();
+        for (String title : titles) playlist.add(song(title));
+        return playlist;
+    }
+
+    @Test
+    void snapshotsNeverChange() {
+        Playlist playlist = playlist("a", "b", "c");
+        playlist.setCurrentIndex(1);
+        Playlist.Snapshot before = playlist.snapshot();
+
+        playlist.add(song("d"));
+        playlist.remove(0);
+        playlist.sort(LibraryIndex.Column.TITLE, false);
+        playlist.toggleShuffle(true);
+        playlist.setLooping(true);
+
+        assertEquals(List.of("a", "b", "c"), titles(before));
+        assertEquals(1, before.getCurrentIndex());
+        assertFalse(before.isLooping() || before.isShuffled());
+        assertTrue(playlist.snapshot().getVersion() > before.getVersion());
+        assertEquals(3, playlist.size());
+    }
+
+    @Test
+    void removingShiftsTheCurrentIndex() {
+        Playlist playlist = playlist("a", "b", "c", "d");
+        playlist.setCurrentIndex(2);
+        assertEquals(playlist.SONG_REMOVED, playlist.remove(0));
+        assertEquals("c", playlist.get(playlist.getCurrentIndex()).getTitle());
+        assertEquals(playlist.CURRENT_SONG_REMOVED, playlist.remove(1));
+        assertEquals(List.of("b", "d"), titles(playlist.snapshot()));
+        assertEquals(playlist.SONG_NOT_FOUND, playlist.remove(2));
+    }
+
+    @Test
+    void concurrentWritersLoseNoEdit() throws Exception {
+        int threads = 8;
+        int songsPerThread = 200;
+        Playlist playlist = new Playlist();
+        Set<Song> added = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+        Set<Song> removed = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+        playlist.addListener(new Playlist.Listener() {
+            @Override
+            public void songsAdded(List<Song> songs) {
+                for (Song song : songs) assertTrue(added.add(song), "added twice");
+            }
+
+            @Override
+            public void songsRemoved(List<Song> songs) {
+                for (Song song : songs) assertTrue(removed.add(song), "removed twice");
+            }
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                workers.add(executor.submit(() -> {
+                    for (int i = 0; i < songsPerThread; i++) {
+                        playlist.add(song(thread + "-" + i));
+                        if (i % 2 == 1) playlist.remove(0);
+                        if (i % 50 == 0) playlist.toggleShuffle(false);
+                        if (i % 50 == 25) playlist.sort(LibraryIndex.Column.TITLE, true);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> worker : workers) worker.get(30, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Playlist.Snapshot snapshot = playlist.snapshot();
+        assertEquals(threads * songsPerThread / 2, snapshot.size());
+        assertEquals(threads * songsPerThread, added.size());
+        assertEquals(threads * songsPerThread / 2, removed.size());
+        // Exactly the songs added and not removed, each once.
+        Set<Song> left = Collections.newSetFromMap(new IdentityHashMap<>());
+        left.addAll(added);
+        left.removeAll(removed);
+        for (Song song : snapshot.getSongs()) assertTrue(left.remove(song), song.getTitle());
+        assertEquals(Set.of(), left);
+        if (snapshot.isShuffled()) assertEquals(snapshot.size(), snapshot.getUnshuffledSongs().size());
+    }
+
+    @Test
+    void undoAndRedoEditsFollowingTheCurrentSong() {
+        Playlist playlist = playlist("c", "a", "b");
+        playlist.clearHistory();
+        assertFalse(playlist.undo());
+        playlist.setCurrentIndex(0);
+
+        playlist.sort(LibraryIndex.Column.TITLE, true);
+        assertEquals(List.of("a", "b", "c"), titles(playlist.snapshot()));
+        assertEquals("c", playlist.get(playlist.getCurrentIndex()).getTitle());
+        playlist.remove(0);
+        playlist.add(song("d"));
+        assertEquals(List.of("b", "c", "d"), titles(playlist.snapshot()));
+
+        assertTrue(playlist.undo());
+        assertEquals(List.of("b", "c"), titles(playlist.snapshot()));
+        assertTrue(playlist.undo());
+        assertTrue(playlist.undo());
+        assertEquals(List.of("c", "a", "b"), titles(playlist.snapshot()));
+        assertEquals("c", playlist.get(playlist.getCurrentIndex()).getTitle());
+        assertFalse(playlist.undo());
+
+        assertTrue(playlist.redo());
+        assertTrue(playlist.redo());
+        assertEquals(List.of("b", "c"), titles(playlist.snapshot()));
+        assertEquals("c", playlist.get(playlist.getCurrentIndex()).getTitle());
+
+        // A new edit drops what could still be redone.
+        playlist.add(song("e"));
+        assertFalse(playlist.redo());
+        assertEquals(List.of("b", "c", "e"), titles(playlist.snapshot()));
+    }
+
+    @Test
+    void undoingShuffleRestoresTheOrder() {
+        Playlist playlist = playlist("a", "b", "c", "d", "e", "f", "g", "h");
+        playlist.toggleShuffle(false);
+        assertTrue(playlist.isShuffled());
+        assertEquals(List.of("a", "b", "c", "d", "e", "f", "g", "h"),
+                titles(playlist.snapshot()).stream().sorted().toList());
+        playlist.add(song("i"));
+        assertTrue(playlist.undo());
+        assertTrue(playlist.undo());
+        assertFalse(playlist.isShuffled());
+        assertEquals(List.of("a", "b", "c", "d", "e", "f", "g", "h"), titles(playlist.snapshot()));
+    }
+
+    @Test
+    void listenersHearUndoneAndRedoneSongs() {
+        Playlist playlist = playlist("a");
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+        playlist.addListener(new Playlist.Listener() {
+            @Override
+            public void songsAdded(List<Song> songs) {
+                for (Song song : songs) events.add("+" + song.getTitle());
+            }
+
+            @Override
+            public void songsRemoved(List<Song> songs) {
+                for (Song song : songs) events.add("-" + song.getTitle());
+            }
+        });
+        playlist.add(song("b"));
+        playlist.remove(0);
+        playlist.undo();
+        playlist.undo();
+        playlist.redo();
+        assertEquals(List.of("+b", "-a", "+a", "-b", "+b"), events);
+    }
+
+    @Test
+    void listenersAreCalledInOrderWithoutHoldingThePlaylist() throws Exception {
+        Playlist playlist = playlist("a");
+        List<String> events = Collections.synchronizedList(new ArrayList<>());
+        ExecutorService other = Executors.newSingleThreadExecutor();
+        try {
+            playlist.addListener(new Playlist.Listener() {
+                @Override
+                public void songsAdded(List<Song> songs) {
+                    String title = songs.get(0).getTitle();
+                    events.add("+" + title);
+                    if (!title.equals("b")) return;
+                    // Waits for another thread to edit the playlist, which it could not while it was locked.
+                    try {
+                        other.submit(() -> {
+                            playlist.add(song("c"));
+                            playlist.remove(0);
+                        }).get(10, TimeUnit.SECONDS);
+                    } catch (Exception e) {
+                        throw new AssertionError(e);
+                    }
+                    events.add("edited");
+                }
+
+                @Override
+                public void songsRemoved(List<Song> songs) {
+                    events.add("-" + songs.get(0).getTitle());
+                }
+            });
+            playlist.add(song("b"));
+        } finally {
+            other.shutdownNow();
+        }
+        // The other thread's changes are reported after the call that was running, in the order they were made.
+        assertEquals(List.of("+b", "edited", "+c", "-a"), events);
+        assertEquals(List.of("b", "c"), titles(playlist.snapshot()));
+    }
+}
@@ -0,0 +1,95 @@
+import javazoom.jl.decoder.Bitstream;
+import org.junit.jupiter.api.Test;
+import support.ReplayGain;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Reads the track gain from ID3v2.3 tags built byte by byte, alone and at the start of a file opened by
+ * {@link Bitstream}.
+ */
+class ReplayGainTests {
+    /**
+     * @return a user-defined text frame in ISO-8859-1.
+     */
+    private static byte[] userText(String description, String value) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        data.write(0);
+        data.writeBytes(description.getBytes(StandardCharsets.ISO_8859_1));
+        data.write(0);
+        data.writeBytes(value.getBytes(StandardCharsets.ISO_8859_1));
+        return frame(data.toByteArray());
+    }
+
+    /**
+     * @return a user-defined text frame in UTF-16 with a byte order mark.
+     */
+    private static byte[] wideUserText(String description, String value) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        data.write(1);
+        data.writeBytes(description.getBytes(StandardCharsets.UTF_16));
+        data.writeBytes(new byte[2]);
+        data.writeBytes(value.getBytes(StandardCharsets.UTF_16));
+        return frame(data.toByteArray());
+    }
+
+    private static byte[] frame(byte[] data) {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.writeBytes("TXXX".getBytes(StandardCharsets.ISO_8859_1));
+        frame.writeBytes(new byte[]{(byte) (data.length >>> 24), (byte) (data.length >>> 16),
+                (byte) (data.length >>> 8), (byte) data.length, 0, 0});
+        frame.writeBytes(data);
+        return frame.toByteArray();
+    }
+
+    private static byte[] tag(byte[]... frames) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (byte[] frame : frames) body.writeBytes(frame);
+        int size = body.size();
+        ByteArrayOutputStream tag = new ByteArrayOutputStream();
+        tag.writeBytes(new byte[]{'I', 'D', '3', 3, 0, 0,
+                (byte) (size >>> 21 & 0x7F), (byte) (size >>> 14 & 0x7F), (byte) (size >>> 7 & 0x7F),
+                (byte) (size & 0x7F)});
+        tag.writeBytes(body.toByteArray());
+        return tag.toByteArray();
+    }
+
+    @Test
+    void readsTheTrackGain() {
+        assertEquals(-6.48f, ReplayGain.trackGain(tag(userText("REPLAYGAIN_TRACK_GAIN", "-6.48 dB"))), 1e-4f);
+        assertEquals(2.1f, ReplayGain.trackGain(tag(userText("replaygain_track_gain", "+2.10 dB"))), 1e-4f);
+        assertEquals(-3.5f, ReplayGain.trackGain(tag(wideUserText("REPLAYGAIN_TRACK_GAIN", "-3.50 dB"))), 1e-4f);
+    }
+
+    @Test
+    void ignoresTheOtherFrames() {
+        byte[] tag = tag(userText("REPLAYGAIN_ALBUM_GAIN", "-9.00 dB"), userText("REPLAYGAIN_TRACK_PEAK", "0.98"),
+                userText("REPLAYGAIN_TRACK_GAIN", "-1.25 dB"));
+        assertEquals(-1.25f, ReplayGain.trackGain(tag), 1e-4f);
+        assertEquals(0f, ReplayGain.trackGain(tag(userText("REPLAYGAIN_ALBUM_GAIN", "-9.00 dB"))));
+    }
+
+    @Test
+    void noGainWhenTheTagIsMissingOrBroken() {
+        assertEquals(0f, ReplayGain.trackGain(tag(userText("REPLAYGAIN_TRACK_GAIN", "loud"))));
+        assertEquals(0f, ReplayGain.trackGain(new byte[]{'I', 'D', '3'}));
+        assertEquals(0f, ReplayGain.trackGain(new byte[0]));
+        assertEquals(0f, ReplayGain.trackGain(new Bitstream(new ByteArrayInputStream(new byte[4]))));
+    }
+
+    @Test
+    void readsTheTagOfTheOpenedFile() {
+        byte[] tag = tag(userText("REPLAYGAIN_TRACK_GAIN", "-4.00 dB"));
+        byte[] file = new byte[tag.length + 417];
+        System.arraycopy(tag, 0, file, 0, tag.length);
+        file[tag.length] = (byte) 0xFF;
+        file[tag.length + 1] = (byte) 0xFB;
+        file[tag.length + 2] = (byte) 0x90;
+        file[tag.length + 3] = (byte) 0xC0;
+        assertEquals(-4f, ReplayGain.trackGain(new Bitstream(new ByteArrayInputStream(file))), 1e-4f);
+    }
+}
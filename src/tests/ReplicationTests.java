@@ -0,0 +1,262 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import support.LibraryIndex;
+import support.PlaybackMetrics;
+import support.Playlist;
+import support.ReplicationFollower;
+import support.ReplicationLeader;
+import support.ReplicationLog;
+import support.Song;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Replicates a queue from a {@link ReplicationLeader} to followers over loopback, in this process and in other
+ * JVMs, and checks that every follower ends with the same songs, order, current song and flags as the leader,
+ * whether it joined late, lost its connection or received operations twice.
+ */
+class ReplicationTests {
+    private static final long TIMEOUT_MS = 10_000;
+
+    private final Playlist playlist = new Playlist();
+    private ReplicationLeader leader;
+    private final List<ReplicationFollower> followers = new ArrayList<>();
+
+    @BeforeEach
+    void startLeader() throws IOException {
+        leader = new ReplicationLeader(playlist, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 100);
+        playlist.addListener(leader);
+    }
+
+    @AfterEach
+    void stopLeader() throws IOException {
+        for (ReplicationFollower follower : followers) follower.close();
+        leader.close();
+    }
+
+    private ReplicationFollower follow(Playlist queue) {
+        ReplicationFollower follower = new ReplicationFollower(queue, leaderAddress(leader.getPort()),
+                (transport, song, ms) -> {}, () -> {});
+        followers.add(follower);
+        return follower;
+    }
+
+    private static InetSocketAddress leaderAddress(int port) {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    }
+
+    private static Song song(int i) {
+        return new Song(UUID.randomUUID(), "Song " + i, "Album", "Artist", "2023", 1000 + i,
+                Path.of("music", "song" + i + ".mp3").toString(), 4000, 38);
+    }
+
+    /**
+     * Adds, removes, shuffles and moves around the queue, as a user would.
+     */
+    private void edit(int round) {
+        List<Song> songs = new ArrayList<>();
+        for (int i = 0; i < 20; i++) songs.add(song(round * 100 + i));
+        playlist.addAll(songs);
+        playlist.add(song(round * 100 + 99));
+        playlist.remove(3);
+        playlist.remove(playlist.size() - 1);
+        playlist.setCurrentIndex(5);
+        playlist.toggleShuffle(true);
+        playlist.toggleLooping();
+        playlist.undo();
+        playlist.setCurrentIndex(2);
+    }
+
+    /**
+     * @return the state of a queue as text: flags, then each song in order, the current one marked.
+     */
+    private static String describe(Playlist.Snapshot snapshot) {
+        StringBuilder out = new StringBuilder();
+        out.append(snapshot.isLooping()).append(' ').append(snapshot.isShuffled()).append('\n');
+        for (int i = 0; i < snapshot.size(); i++) {
+            Song song = snapshot.get(i);
+            out.append(i == snapshot.getCurrentIndex() ? '>' : ' ').append(song.getUuid()).append(' ')
+                    .append(song.getTitle()).append('\n');
+        }
+        if (snapshot.isShuffled()) {
+            for (Song song : snapshot.getUnshuffledSongs()) out.append('~').append(song.getUuid()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void awaitEqual(String expected, Playlist queue) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (!expected.equals(describe(queue.snapshot())) && System.nanoTime() < deadline) Thread.sleep(5);
+        assertEquals(expected, describe(queue.snapshot()));
+    }
+
+    private static void await(BooleanSupplier condition, String message) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) fail(message);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    void followersConvergeFromSnapshotAndTail() throws Exception {
+        edit(0);
+        Playlist early = new Playlist();
+        early.add(song(999));           // a song the leader doesn't have, dropped by the snapshot
+        ReplicationFollower earlyFollower = follow(early);
+        awaitEqual(describe(playlist.snapshot()), early);
+
+        edit(1);
+        playlist.toggleShuffle(false);
+        Playlist late = new Playlist();
+        follow(late);
+        String expected = describe(playlist.snapshot());
+        awaitEqual(expected, early);
+        awaitEqual(expected, late);
+
+        // A short disconnection is caught up from the log, without a snapshot.
+        long snapshots = PlaybackMetrics.global().getReplicationSnapshots();
+        earlyFollower.disconnect();
+        edit(2);
+        playlist.sort(LibraryIndex.Column.TITLE, false);
+        expected = describe(playlist.snapshot());
+        awaitEqual(expected, early);
+        awaitEqual(expected, late);
+        await(() -> earlyFollower.getAppliedSeq() == leader.getLastSeq(), "follower did not catch up");
+        assertEquals(snapshots, PlaybackMetrics.global().getReplicationSnapshots());
+    }
+
+    @Test
+    void fallingBehindTheLogSendsASnapshot() throws Exception {
+        Playlist queue = new Playlist();
+        ReplicationFollower follower = follow(queue);
+        edit(0);
+        awaitEqual(describe(playlist.snapshot()), queue);
+
+        long snapshots = PlaybackMetrics.global().getReplicationSnapshots();
+        follower.disconnect();
+        for (int i = 0; i < 200; i++) playlist.setCurrentIndex(i % 10);    // more than the log holds
+        playlist.setCurrentIndex(12);
+        awaitEqual(describe(playlist.snapshot()), queue);
+        assertTrue(PlaybackMetrics.global().getReplicationSnapshots() > snapshots);
+    }
+
+    @Test
+    void applyingOperationsTwiceChangesNothing() throws Exception {
+        Playlist.Snapshot before = playlist.snapshot();
+        edit(0);
+        List<byte[]> ops = ReplicationLog.diff(before, playlist.snapshot());
+        List<String> transports = new ArrayList<>();
+        ReplicationLog.TransportListener listener = (transport, song, ms) -> transports.add(transport + " " + ms);
+
+        Playlist queue = new Playlist();
+        for (byte[] op : ops) ReplicationLog.apply(op, queue, listener);
+        String once = describe(queue.snapshot());
+        assertEquals(describe(playlist.snapshot()), once);
+        for (byte[] op : ops) ReplicationLog.apply(op, queue, listener);
+        assertEquals(once, describe(queue.snapshot()));
+        for (byte[] op : ReplicationLog.snapshot(playlist.snapshot(), null)) ReplicationLog.apply(op, queue, listener);
+        assertEquals(once, describe(queue.snapshot()));
+
+        ReplicationLog.apply(ReplicationLog.transport(ReplicationLog.Transport.PAUSED, playlist.get(1), 1234), queue,
+                listener);
+        assertEquals(List.of("PAUSED 1234"), transports);
+    }
+
+    @Test
+    void snapshotReplacesTheQueueInOneChange() throws Exception {
+        edit(0);
+        Playlist queue = new Playlist();
+        for (int i = 0; i < 500; i++) queue.add(song(1000 + i));    // songs the leader doesn't have
+        queue.clearHistory();
+        List<Integer> changes = new ArrayList<>();
+        queue.addListener(new Playlist.Listener() {
+            @Override
+            public void songsAdded(List<Song> songs) {
+                changes.add(songs.size());
+            }
+
+            @Override
+            public void songsRemoved(List<Song> songs) {
+                changes.add(-songs.size());
+            }
+        });
+
+        List<byte[]> ops = ReplicationLog.snapshot(playlist.snapshot(), null);
+        ReplicationLog.apply(ops.get(0), queue, (transport, song, ms) -> {});
+        assertEquals(List.of(-500, playlist.size()), changes);
+        assertFalse(queue.undo(), "replicated change recorded for undo");
+
+        changes.clear();
+        Playlist.Snapshot before = playlist.snapshot();
+        playlist.remove(4);
+        playlist.remove(2);
+        for (byte[] op : ReplicationLog.diff(before, playlist.snapshot())) {
+            ReplicationLog.apply(op, queue, (transport, song, ms) -> {});
+        }
+        assertEquals(List.of(-2), changes);
+        assertEquals(playlist.size(), queue.size());
+    }
+
+    @Test
+    void unknownTransportIsRejected() {
+        byte[] op = ReplicationLog.transport(ReplicationLog.Transport.PAUSED, null, 0);
+        op[1] = (byte) ReplicationLog.Transport.values().length;
+        assertThrows(IOException.class, () -> ReplicationLog.apply(op, new Playlist(), (transport, song, ms) -> {}));
+    }
+
+    @Test
+    void followersInOtherProcessesConverge() throws Exception {
+        edit(0);
+        List<Process> processes = new ArrayList<>();
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        for (int i = 0; i < 2; i++) {
+            processes.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    ReplicationTests.class.getName(), String.valueOf(leader.getPort()))
+                    .redirectError(ProcessBuilder.Redirect.INHERIT).start());
+        }
+        Thread.sleep(200);
+        edit(1);
+        String expected = describe(playlist.snapshot());
+        for (Process process : processes) {
+            process.getOutputStream().write((leader.getLastSeq() + "\n").getBytes());
+            process.getOutputStream().flush();
+        }
+        for (Process process : processes) {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                StringBuilder state = new StringBuilder();
+                for (String line; (line = in.readLine()) != null; ) state.append(line).append('\n');
+                assertTrue(process.waitFor(TIMEOUT_MS, TimeUnit.MILLISECONDS), "follower process did not exit");
+                assertEquals(expected, state.toString());
+            }
+        }
+    }
+
+    /**
+     * Follower process of {@link #followersInOtherProcessesConverge()}: follows the leader at the port given,
+     * waits until it applied the sequence number read from standard input, then prints its queue and exits.
+     */
+    public static void main(String[] args) throws Exception {
+        Playlist queue = new Playlist();
+        ReplicationFollower follower = new ReplicationFollower(queue, leaderAddress(Integer.parseInt(args[0])),
+                (transport, song, ms) -> {}, () -> {});
+        long seq = Long.parseLong(new BufferedReader(new InputStreamReader(System.in)).readLine().trim());
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (follower.getAppliedSeq() < seq && System.nanoTime() < deadline) Thread.sleep(5);
+        follower.close();
+        System.out.print(describe(queue.snapshot()));
+    }
+}
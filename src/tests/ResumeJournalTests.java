@@ -0,0 +1,152 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import support.ResumeJournal;
+import support.Song;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Records positions in a {@link ResumeJournal} and reads them back, from the same journal, from a journal opened
+ * again on the file, and after a record was torn.
+ */
+class ResumeJournalTests {
+    /**
+     * Offset of the frame of the record with an even sequence number: after the header and the sequence number and
+     * UUID of the slot.
+     */
+    private static final int EVEN_SLOT_FRAME = 8 + 24;
+
+    private Path file;
+
+    @BeforeEach
+    void createFile() throws IOException {
+        file = Files.createTempFile("resume", ".journal");
+    }
+
+    @AfterEach
+    void deleteFile() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    private static Song song(String title) {
+        return new Song(UUID.randomUUID(), title, "Album", "Artist", "2023", 1000, "/music/" + title + ".mp3",
+                1000, 38);
+    }
+
+    @Test
+    void readsTheLastRecordAfterReopening() throws IOException {
+        Song first = song("first");
+        Song second = song("second");
+        try (ResumeJournal journal = new ResumeJournal(file)) {
+            assertNull(journal.read());
+            journal.forceRecord(first, 10, false, true);
+            journal.forceRecord(second, 20, true, false);
+
+            try (ResumeJournal reopened = new ResumeJournal(file)) {
+                ResumeJournal.Point point = reopened.read();
+                assertTrue(second.hasUuid(point.getUuid()));
+                assertEquals(20, point.getFrame());
+                assertTrue(point.isLooping());
+                assertFalse(point.isShuffled());
+            }
+
+            journal.forceRecord(null, 0, true, false);
+            try (ResumeJournal reopened = new ResumeJournal(file)) {
+                assertNull(reopened.read(), "stopped");
+            }
+        }
+    }
+
+    @Test
+    void skipsRecordsWithinTheInterval() throws IOException {
+        Song song = song("song");
+        ResumeJournal journal;
+        System.setProperty("player.resume.intervalMs", "60000");
+        try {
+            journal = new ResumeJournal(file);
+        } finally {
+            System.clearProperty("player.resume.intervalMs");
+        }
+        try (journal) {
+            journal.forceRecord(song, 10, false, false);
+            journal.record(song, 20, false, false);
+            assertEquals(10, journal.read().getFrame());
+            journal.forceRecord(song, 30, false, false);
+            assertEquals(30, journal.read().getFrame());
+        }
+    }
+
+    @Test
+    void fallsBackToThePreviousRecordWhenTheLastOneIsTorn() throws IOException {
+        Song first = song("first");
+        Song second = song("second");
+        try (ResumeJournal journal = new ResumeJournal(file)) {
+            journal.forceRecord(first, 10, false, false);
+            journal.forceRecord(second, 20, false, false);      // second record, even slot
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0, 21), EVEN_SLOT_FRAME);
+        }
+        try (ResumeJournal journal = new ResumeJournal(file)) {
+            ResumeJournal.Point point = journal.read();
+            assertTrue(first.hasUuid(point.getUuid()));
+            assertEquals(10, point.getFrame());
+        }
+    }
+
+    @Test
+    void startsEmptyOnAFileOfAnotherFormat() throws IOException {
+        Files.write(file, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        Song song = song("song");
+        try (ResumeJournal journal = new ResumeJournal(file)) {
+            assertNull(journal.read());
+            journal.forceRecord(song, 5, false, false);
+        }
+        try (ResumeJournal journal = new ResumeJournal(file)) {
+            assertTrue(song.hasUuid(journal.read().getUuid()));
+        }
+    }
+
+    @Test
+    void closingStopsTheForcingThreadAndDropsLaterRecords() throws Exception {
+        Song first = song("first");
+        Song second = song("second");
+        Set<Thread> before = journalThreads();
+        ResumeJournal journal = new ResumeJournal(file);
+        Set<Thread> forcers = journalThreads();
+        forcers.removeAll(before);
+        assertEquals(1, forcers.size());
+        Thread forcer = forcers.iterator().next();
+
+        journal.forceRecord(first, 10, false, false);
+        journal.close();
+        journal.close();
+        journal.forceRecord(second, 20, false, false);
+        journal.record(second, 30, false, false);
+
+        forcer.join(5000);
+        assertFalse(forcer.isAlive(), "the forcing thread is still running");
+        try (ResumeJournal reopened = new ResumeJournal(file)) {
+            ResumeJournal.Point point = reopened.read();
+            assertTrue(first.hasUuid(point.getUuid()));
+            assertEquals(10, point.getFrame());
+        }
+    }
+
+    private static Set<Thread> journalThreads() {
+        return Thread.getAllStackTraces().keySet().stream().filter(t -> t.getName().equals("resume-journal"))
+                .collect(Collectors.toSet());
+    }
+}
@@ -0,0 +1,107 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import support.Playlist;
+import support.SearchIndex;
+import support.Song;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Searches a {@link SearchIndex} kept up to date by a {@link Playlist}, in the calling thread and in the background.
+ */
+class SearchIndexTests {
+    private final Playlist playlist = new Playlist();
+    private final SearchIndex index = new SearchIndex();
+
+    {
+        playlist.addListener(index);
+    }
+
+    @AfterEach
+    void shutdown() {
+        index.shutdown();
+    }
+
+    private static Song song(String title, String album, String artist) {
+        return new Song(UUID.randomUUID(), title, album, artist, "2023", 1000, "/music/" + title + ".mp3", 1000, 38);
+    }
+
+    @Test
+    void findsSongsWithEveryWordAsAPrefix() {
+        Song blue = song("Blue in Green", "Kind of Blue", "Miles Davis");
+        Song so = song("So What", "Kind of Blue", "Miles Davis");
+        Song naima = song("Naima", "Giant Steps", "John Coltrane");
+        playlist.addAll(List.of(blue, so, naima));
+
+        assertEquals(List.of(naima), index.search("coltr", 10));
+        assertEquals(List.of(blue), index.search("kind gre", 10));
+        assertEquals(2, index.search("miles blue", 10).size());
+        assertEquals(1, index.search("miles blue", 1).size());
+        assertEquals(List.of(), index.search("blue coltrane", 10));
+        assertEquals(List.of(), index.search("iles", 10), "not a prefix of a word");
+        assertEquals(List.of(), index.search("  ", 10));
+    }
+
+    @Test
+    void ignoresCaseAndAccents() {
+        Song song = song("Gymnop\u00e9die No. 1", "Piano", "\u00c9RIK SATIE");
+        playlist.add(song);
+        assertEquals(List.of(song), index.search("gymnopedie erik", 10));
+        assertEquals(List.of(song), index.search("GYMNOP\u00c9 satie", 10));
+    }
+
+    @Test
+    void splitsWordsTheSameWayWhenIndexingAndMatching() {
+        // A superscript two is a number, so it is part of the word, not a separator.
+        Song squared = song("a\u00b2x", "Album", "zed");
+        playlist.add(squared);
+        for (int i = 0; i < 3; i++) playlist.add(song("x" + i, "Album", "Other"));
+
+        assertEquals(List.of(squared), index.search("a\u00b2", 10));
+        assertEquals(List.of(squared), index.search("a\u00b2x zed", 10));
+        // "zed" drives this search, then "x" is checked without allocating, and must not match inside that word.
+        assertEquals(List.of(), index.search("x zed", 10));
+        assertEquals(3, index.search("x", 10).size());
+    }
+
+    @Test
+    void followsSongsAddedAndRemoved() {
+        Song first = song("Morning", "Songs", "Someone");
+        Song second = song("Evening", "Songs", "Someone");
+        playlist.add(first);
+        int words = index.size();
+        playlist.add(second);
+        assertEquals(words + 1, index.size());
+        assertEquals(List.of(second), index.search("eve", 10));
+
+        playlist.remove(0);
+        assertEquals(List.of(), index.search("morn", 10));
+        assertEquals(List.of(second), index.search("songs someone", 10));
+        assertEquals(words, index.size());
+
+        playlist.undo();
+        assertEquals(List.of(first), index.search("morn", 10));
+    }
+
+    @Test
+    void newerQueryCancelsTheRunningOne() throws Exception {
+        List<Song> songs = new ArrayList<>();
+        for (int i = 0; i < 200_000; i++) songs.add(song("Track " + i, "Album", "Artist"));
+        playlist.addAll(songs);
+
+        // Every song matches, so the search runs long enough to be superseded.
+        CompletableFuture<List<Song>> stale = index.searchAsync("track album", Integer.MAX_VALUE);
+        CompletableFuture<List<Song>> latest = index.searchAsync("track 1234", 5);
+        ExecutionException e = assertThrows(ExecutionException.class, () -> stale.get(10, TimeUnit.SECONDS));
+        assertInstanceOf(CancellationException.class, e.getCause());
+        assertFalse(latest.get(10, TimeUnit.SECONDS).isEmpty());
+    }
+}
@@ -0,0 +1,120 @@
+import support.Song;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.function.IntFunction;
+
+/**
+ * Heap retained per song by {@link Song} and by the representation it replaced, where every field was its own
+ * {@link String}, for a made-up library of albums of 12 tracks with tags and paths of typical lengths. Every value
+ * is a new string, as when read from the tags of each file. Measured from the heap used after a full collection,
+ * with the songs held in an array, so the figures include the strings and depend on the JVM flags, such as
+ * compressed references. Run it with the test classes on the class path:
+ * {@code java SongMemoryBenchmark [songs]}.
+ */
+public class SongMemoryBenchmark {
+    private static final int TRACKS_PER_ALBUM = 12;
+
+    /**
+     * A song as it was stored before, every value a string of its own.
+     */
+    @SuppressWarnings("unused")
+    private static final class LegacySong {
+        private final String uuid;
+        private final String title;
+        private final String album;
+        private final String artist;
+        private final String year;
+        private final String strLength;
+        private final float msLength;
+        private final String filePath;
+        private final int fileSize;
+        private final int numFrames;
+        private final float msPerFrame;
+
+        LegacySong(String uuid, String title, String album, String artist, String year, String strLength,
+                   float msLength, String filePath, int fileSize, int numFrames, float msPerFrame) {
+            this.uuid = uuid;
+            this.title = title;
+            this.album = album;
+            this.artist = artist;
+            this.year = year;
+            this.strLength = strLength;
+            this.msLength = msLength;
+            this.filePath = filePath;
+            this.fileSize = fileSize;
+            this.numFrames = numFrames;
+            this.msPerFrame = msPerFrame;
+        }
+    }
+
+    public static void main(String[] args) {
+        int songs = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        // Once untimed, as warmup of the pool and the collector.
+        for (boolean measured : new boolean[]{false, true}) {
+            long legacy = retained(songs, i -> {
+                float ms = msLength(i);
+                Duration duration = Duration.ofMillis((long) ms);
+                String strLength = String.format("%d:%02d:%02d", duration.toHours(), duration.toMinutesPart(),
+                        duration.toSecondsPart());
+                return new LegacySong(UUID.randomUUID().toString(), title(i), album(i), artist(i), year(i),
+                        strLength, ms, path(i), 5_000_000, frames(i), ms / frames(i));
+            });
+            long compact = retained(songs, i -> new Song(UUID.randomUUID(), title(i), album(i), artist(i), year(i),
+                    msLength(i), path(i), 5_000_000, frames(i)));
+            if (measured) {
+                System.out.printf("every field a string: %d bytes per song%n", legacy / songs);
+                System.out.printf("Song: %d bytes per song%n", compact / songs);
+            }
+        }
+    }
+
+    /**
+     * @return the bytes of heap taken by {@code count} objects made by {@code song}.
+     */
+    private static long retained(int count, IntFunction<Object> song) {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        Object[] held = new Object[count];
+        long before = usedAfterGc(memory);
+        for (int i = 0; i < count; i++) held[i] = song.apply(i);
+        long after = usedAfterGc(memory);
+        if (held[count - 1] == null) throw new AssertionError();
+        return after - before;
+    }
+
+    private static long usedAfterGc(MemoryMXBean memory) {
+        for (int i = 0; i < 3; i++) System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static String artist(int i) {
+        return new String("Artist Name " + i / TRACKS_PER_ALBUM / 3);
+    }
+
+    private static String album(int i) {
+        return new String("Album Title Number " + i / TRACKS_PER_ALBUM);
+    }
+
+    private static String year(int i) {
+        return new String(String.valueOf(1970 + i / TRACKS_PER_ALBUM % 50));
+    }
+
+    private static String title(int i) {
+        return "Song Title " + i % TRACKS_PER_ALBUM + " of " + i / TRACKS_PER_ALBUM;
+    }
+
+    private static String path(int i) {
+        return "/home/user/Music/Artist Name " + i / TRACKS_PER_ALBUM / 3 + "/Album Title Number "
+                + i / TRACKS_PER_ALBUM + "/" + String.format("%02d", i % TRACKS_PER_ALBUM + 1) + " Song Title.mp3";
+    }
+
+    private static float msLength(int i) {
+        return 180_000 + i % 97 * 1000;
+    }
+
+    private static int frames(int i) {
+        return (int) (msLength(i) * 44100 / 1152 / 1000);
+    }
+}
@@ -0,0 +1,138 @@
+import support.AppData;
+import support.PlaylistFile;
+import support.ResumeJournal;
+import support.SessionStore;
+import support.Song;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Time from the start of the process to each step of the startup traced by {@code StartupTrace}, over several runs
+ * of the player in a JVM of its own: the window becoming visible and the first audio, among others. Every run
+ * restores the same queue of one generated silent MP3 file from a temporary data directory, and resumes playing it
+ * from the journal, so it ends at the first audio. Needs a display and an audio line. Reports the distribution of
+ * each step; the results depend on the machine and on the JVM options, which are passed to every run, so the same
+ * command compares a run with the class data sharing archive against one without. Run it with the test classes on
+ * the class path: {@code java StartupBenchmark [runs] [JVM options of the player]}, for instance
+ * {@code java StartupBenchmark 20 -XX:SharedArchiveFile=out/player.jsa}.
+ */
+public class StartupBenchmark {
+    private static final int FRAMES = 400;
+    private static final int FRAME_BYTES = 417;
+    private static final float MS_PER_FRAME = 1152 * 1000f / 44100;
+    private static final long TIMEOUT_MS = 60_000;
+    private static final Pattern STEP = Pattern.compile("startup: (.+) after (\\d+) ms");
+
+    public static void main(String[] args) throws Exception {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        List<String> options = args.length > 1 ? Arrays.asList(args).subList(1, args.length) : List.of();
+        Path directory = Files.createTempDirectory("startup-benchmark");
+        System.setProperty("player.dataDir", directory.resolve("data").toString());
+        try {
+            Song song = song(directory);
+            PlaylistFile.write(SessionStore.defaultFile(), List.of(song));
+            Path journal = AppData.dir("session").resolve("resume.journal");
+
+            Map<String, List<Long>> steps = new LinkedHashMap<>();
+            int failed = 0;
+            for (int i = 0; i < runs; i++) {
+                // The previous run moved the position on, and the same position makes every run alike.
+                try (ResumeJournal resume = new ResumeJournal(journal)) {
+                    resume.forceRecord(song, 0, false, false);
+                }
+                if (!run(options, directory, steps)) failed++;
+            }
+
+            for (Map.Entry<String, List<Long>> step : steps.entrySet()) report(step.getKey(), step.getValue());
+            if (failed > 0) System.out.println(failed + " of " + runs + " runs did not reach the first audio");
+        } finally {
+            try (Stream<Path> files = Files.walk(directory)) {
+                for (Path path : files.sorted(Comparator.reverseOrder()).toList()) Files.delete(path);
+            }
+        }
+    }
+
+    /**
+     * Starts the player and records when it reached each step.
+     *
+     * @return True if the player reached the first audio. It also exits 0 without playing if it fails to start.
+     */
+    private static boolean run(List<String> options, Path directory, Map<String, List<Long>> steps)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("--add-modules");
+        command.add("jdk.incubator.vector");
+        command.addAll(options);
+        command.add("-Dplayer.dataDir=" + directory.resolve("data"));
+        command.add("-Dplayer.startupTrace=exit");
+        command.add("-Dplayer.autoplay=true");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("Main");
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+
+        Map<String, Long> reached = new LinkedHashMap<>();
+        Thread reader = new Thread(() -> {
+            try (BufferedReader out = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = out.readLine()) != null) {
+                    Matcher matcher = STEP.matcher(line);
+                    if (matcher.find()) reached.put(matcher.group(1), Long.parseLong(matcher.group(2)));
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "startup-output");
+        reader.start();
+        if (!process.waitFor(TIMEOUT_MS, TimeUnit.MILLISECONDS)) process.destroyForcibly().waitFor();
+        reader.join();
+        for (Map.Entry<String, Long> step : reached.entrySet()) {
+            steps.computeIfAbsent(step.getKey(), k -> new ArrayList<>()).add(step.getValue());
+        }
+        return reached.containsKey("first audio");
+    }
+
+    /**
+     * @return a song of silent MPEG-1 Layer III frames, 128 kbps, 44.1 kHz, mono.
+     */
+    private static Song song(Path directory) throws IOException {
+        byte[] mp3 = new byte[FRAME_BYTES * FRAMES];
+        for (int frame = 0; frame < FRAMES; frame++) {
+            mp3[frame * FRAME_BYTES] = (byte) 0xFF;
+            mp3[frame * FRAME_BYTES + 1] = (byte) 0xFB;
+            mp3[frame * FRAME_BYTES + 2] = (byte) 0x90;
+            mp3[frame * FRAME_BYTES + 3] = (byte) 0xC0;
+        }
+        Path file = Files.write(directory.resolve("song.mp3"), mp3);
+        return new Song(UUID.randomUUID(), "Song", "Album", "Artist", "2023", FRAMES * MS_PER_FRAME,
+                file.toString(), mp3.length, FRAMES);
+    }
+
+    private static void report(String step, List<Long> ms) {
+        long[] sorted = ms.stream().mapToLong(Long::longValue).sorted().toArray();
+        System.out.printf("%s: %d runs, min %d ms, p50 %d ms, p90 %d ms, max %d ms%n", step, sorted.length,
+                sorted[0], percentile(sorted, 0.50), percentile(sorted, 0.90), sorted[sorted.length - 1]);
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        return sorted[Math.max(0, (int) Math.ceil(sorted.length * fraction) - 1)];
+    }
+}
@@ -0,0 +1,118 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import support.ContentIndex;
+import support.Layer3Frames;
+import support.Song;
+import support.WaveformCache;
+import support.WaveformPeaks;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Requests the peaks of songs from a {@link WaveformCache}, with the cache files in a temporary data directory.
+ */
+class WaveformCacheTests {
+    private static final int FRAMES = 40;
+
+    private Path dir;
+    private final ContentIndex contents = new ContentIndex();
+    private final WaveformCache cache = new WaveformCache(contents);
+
+    @BeforeEach
+    void useTemporaryDataDir() throws IOException {
+        dir = Files.createTempDirectory("waveform-cache-tests");
+        System.setProperty("player.dataDir", dir.resolve("data").toString());
+    }
+
+    @AfterEach
+    void shutdown() throws IOException {
+        cache.shutdown();
+        contents.shutdown();
+        System.clearProperty("player.dataDir");
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) Files.delete(path);
+        }
+    }
+
+    private Song song() throws IOException {
+        Path mp3 = dir.resolve("song.mp3");
+        Files.write(mp3, Layer3Frames.frames(1, Layer3Frames.MPEG1, Layer3Frames.STEREO, 0, FRAMES));
+        return new Song(UUID.randomUUID(), "Song", "", "", "", FRAMES * 26, mp3.toString(), (int) Files.size(mp3),
+                FRAMES);
+    }
+
+    private Path peaksFile(Song song) throws Exception {
+        return dir.resolve("data").resolve("peaks").resolve(contents.hashNow(song).get(10, TimeUnit.SECONDS) + ".peaks");
+    }
+
+    @Test
+    void peaksAreWrittenToDiskAndReadBack() throws Exception {
+        Song song = song();
+        WaveformPeaks computed = cache.request(song).get(30, TimeUnit.SECONDS);
+        assertEquals(FRAMES, computed.getFrameCount());
+
+        Path file = peaksFile(song);
+        assertEquals(4 + 1 + 4 + 2 * FRAMES, Files.size(file));
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            assertEquals(0x4D505746, in.readInt(), "MPWF");
+            assertEquals(1, in.readUnsignedByte());
+            assertEquals(FRAMES, in.readInt());
+        }
+
+        // Known values, which only reading the file gives back.
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(file))) {
+            out.writeInt(0x4D505746);
+            out.writeByte(1);
+            out.writeInt(2);
+            out.write(new byte[]{-128, -64});
+            out.write(new byte[]{127, 64});
+        }
+        WaveformCache fresh = new WaveformCache(contents);
+        try {
+            WaveformPeaks read = fresh.request(song).get(30, TimeUnit.SECONDS);
+            assertEquals(2, read.getFrameCount());
+            float[] lo = new float[2];
+            float[] hi = new float[2];
+            read.columns(2, lo, hi);
+            assertArrayEquals(new float[]{-1f, -0.5f}, lo);
+            assertArrayEquals(new float[]{1f, 64 / 127f}, hi);
+        } finally {
+            fresh.shutdown();
+        }
+    }
+
+    @Test
+    void invalidFilesAreComputedAgain() throws Exception {
+        Song song = song();
+        Path file = peaksFile(song);
+        Files.createDirectories(file.getParent());
+        Files.write(file, new byte[]{'N', 'O', 'P', 'E', 1, 0, 0, 0, 2, 0, 0, 0, 0});
+
+        WaveformPeaks peaks = cache.request(song).get(30, TimeUnit.SECONDS);
+        assertEquals(FRAMES, peaks.getFrameCount());
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            assertEquals(0x4D505746, in.readInt(), "written again");
+            assertEquals(1, in.readUnsignedByte());
+            assertEquals(FRAMES, in.readInt());
+        }
+    }
+
+    @Test
+    void remoteSongsHaveNoPeaks() {
+        Song remote = new Song(UUID.randomUUID(), "Stream", "", "", "", 0, "http://127.0.0.1:9/stream.mp3", 0, 0);
+        CompletableFuture<?> peaks = cache.request(remote);
+        assertTrue(peaks.isCompletedExceptionally(), "failed right away, without connecting");
+    }
+}
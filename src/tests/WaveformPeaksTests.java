@@ -0,0 +1,126 @@
+import org.junit.jupiter.api.Test;
+import support.WaveformPeaks;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Reduces made-up peaks to columns, at widths read from the per-frame values and from every level of the mipmap.
+ */
+class WaveformPeaksTests {
+    private static WaveformPeaks random(int frames, long seed) {
+        Random random = new Random(seed);
+        byte[] min = new byte[frames];
+        byte[] max = new byte[frames];
+        for (int i = 0; i < frames; i++) {
+            min[i] = (byte) -random.nextInt(129);
+            max[i] = (byte) random.nextInt(128);
+        }
+        return new WaveformPeaks(min, max);
+    }
+
+    @Test
+    void oneColumnPerFrameShowsEachFrame() {
+        byte[] min = {0, -128, -64, -1, -10};
+        byte[] max = {127, 0, 64, 1, 10};
+        WaveformPeaks peaks = new WaveformPeaks(min, max);
+        assertEquals(5, peaks.getFrameCount());
+        float[] lo = new float[5];
+        float[] hi = new float[5];
+        peaks.columns(5, lo, hi);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(min[i] / 128f, lo[i], 1e-6f);
+            assertEquals(max[i] / 127f, hi[i], 1e-6f);
+        }
+        assertEquals(-1f, lo[1]);
+        assertEquals(1f, hi[0]);
+    }
+
+    @Test
+    void columnsReadFromTheMipmapKeepEveryPeak() {
+        int frames = 1000;
+        for (int width : new int[]{1, 2, 3, 7, 64, 300, 999, 1000, 1500}) {
+            for (int spike = 0; spike < frames; spike += 97) {
+                byte[] min = new byte[frames];
+                byte[] max = new byte[frames];
+                Arrays.fill(min, (byte) -1);
+                Arrays.fill(max, (byte) 1);
+                min[spike] = -128;
+                max[spike] = 127;
+                float[] lo = new float[width];
+                float[] hi = new float[width];
+                new WaveformPeaks(min, max).columns(width, lo, hi);
+                // The spike is drawn once at least, wherever the buckets of the level read fall.
+                int lows = 0;
+                int highs = 0;
+                for (int x = 0; x < width; x++) {
+                    if (lo[x] == -1f) lows++;
+                    if (hi[x] == 1f) highs++;
+                    assertTrue(lo[x] < 0 && hi[x] > 0, "column " + x + " of " + width + " is empty");
+                }
+                assertTrue(lows >= 1 && highs >= 1, "spike at " + spike + " lost at width " + width);
+                assertTrue(width < frames / 2 || lows <= 2, "spike at " + spike + " spread at width " + width);
+            }
+        }
+    }
+
+    @Test
+    void coarserColumnsCoverTheFinerOnes() {
+        WaveformPeaks peaks = random(777, 5);
+        float[] fineLo = new float[777];
+        float[] fineHi = new float[777];
+        peaks.columns(777, fineLo, fineHi);
+        for (int width : new int[]{1, 10, 100, 388, 389}) {
+            float[] lo = new float[width];
+            float[] hi = new float[width];
+            peaks.columns(width, lo, hi);
+            float overallLo = 0;
+            float overallHi = 0;
+            for (int x = 0; x < width; x++) {
+                overallLo = Math.min(overallLo, lo[x]);
+                overallHi = Math.max(overallHi, hi[x]);
+            }
+            float expectedLo = 0;
+            float expectedHi = 0;
+            for (int i = 0; i < 777; i++) {
+                expectedLo = Math.min(expectedLo, fineLo[i]);
+                expectedHi = Math.max(expectedHi, fineHi[i]);
+            }
+            assertEquals(expectedLo, overallLo, "width " + width);
+            assertEquals(expectedHi, overallHi, "width " + width);
+        }
+    }
+
+    @Test
+    void mipmapTakesAboutTwiceThePerFrameValues() {
+        // 1000 + 500 + 250 + 125 + 63 + 32 + 16 + 8 + 4 + 2 + 1 buckets, each of a minimum and a maximum.
+        assertEquals(2 * 2001, random(1000, 1).getMemoryBytes());
+        for (int frames : new int[]{0, 1, 2, 3, 1 << 16, 100_001}) {
+            WaveformPeaks peaks = random(frames, frames);
+            assertEquals(frames, peaks.getFrameCount());
+            assertTrue(peaks.getMemoryBytes() >= 2L * frames && peaks.getMemoryBytes() <= 4L * frames + 2 * 64,
+                    frames + " frames take " + peaks.getMemoryBytes() + " bytes");
+        }
+    }
+
+    @Test
+    void shortSongsFillEveryColumn() {
+        WaveformPeaks one = new WaveformPeaks(new byte[]{-64}, new byte[]{32});
+        float[] lo = new float[4];
+        float[] hi = new float[4];
+        one.columns(4, lo, hi);
+        for (int x = 0; x < 4; x++) {
+            assertEquals(-0.5f, lo[x]);
+            assertEquals(32 / 127f, hi[x]);
+        }
+
+        WaveformPeaks none = new WaveformPeaks(new byte[0], new byte[0]);
+        none.columns(4, lo, hi);
+        for (int x = 0; x < 4; x++) {
+            assertEquals(0f, lo[x]);
+            assertEquals(0f, hi[x]);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package support;
+
+import javazoom.jl.decoder.Bitstream;
+import javazoom.jl.decoder.Decoder;
+import javazoom.jl.decoder.Header;
+import javazoom.jl.decoder.JavaLayerException;
+import javazoom.jl.decoder.SampleBuffer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to decode a second of Layer III audio with JLayer's decoder and with {@link FloatDecoder}, in MPEG-1 joint
+ * stereo at 320 kbps and MPEG-2 mono. Run it from the IDE, or with the test classes on the class path:
+ * {@code java support.DecoderBenchmark}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@State(Scope.Benchmark)
+public class DecoderBenchmark {
+    /**
+     * About a second of audio: 1152 samples per frame at 44.1 kHz in MPEG-1, 576 at 22.05 kHz in MPEG-2.
+     */
+    private static final int FRAMES = 39;
+
+    @Param({"mpeg1-joint-stereo", "mpeg2-mono"})
+    public String stream;
+    private byte[] mp3;
+
+    @Setup
+    public void setUp() {
+        mp3 = stream.equals("mpeg2-mono")
+                ? Layer3Frames.frames(1, Layer3Frames.MPEG2, Layer3Frames.MONO, 0, FRAMES)
+                : Layer3Frames.frames(1, Layer3Frames.MPEG1, Layer3Frames.JOINT_STEREO,
+                Layer3Frames.INTENSITY | Layer3Frames.MID_SIDE, FRAMES);
+    }
+
+    @Benchmark
+    public void jlayer(Blackhole blackhole) throws JavaLayerException {
+        decode(new Decoder(), blackhole);
+    }
+
+    @Benchmark
+    public void floatDecoder(Blackhole blackhole) throws JavaLayerException {
+        decode(new FloatDecoder(), blackhole);
+    }
+
+    private void decode(Decoder decoder, Blackhole blackhole) throws JavaLayerException {
+        Bitstream bitstream = new Bitstream(new ByteArrayInputStream(mp3));
+        Header header;
+        while ((header = bitstream.readFrame()) != null) {
+            blackhole.consume(((SampleBuffer) decoder.decodeFrame(header, bitstream)).getBuffer());
+            bitstream.closeFrame();
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new org.openjdk.jmh.runner.Runner(new OptionsBuilder().include(DecoderBenchmark.class.getSimpleName()).build())
+                .run();
+    }
+}
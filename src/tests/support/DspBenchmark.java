@@ -0,0 +1,104 @@
+package support;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to process a second of stereo audio at 44.1 kHz, one MPEG-1 frame at a time: through a {@link DspChain}
+ * applying an equalizer and the ReplayGain of a track, and with the {@link VectorOps} behind the gain and the
+ * crossfade alone. Each benchmark runs in a JVM with the Vector API and in one forcing the scalar loops. Run it
+ * from the IDE, or with the test classes on the class path: {@code java support.DspBenchmark}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@State(Scope.Benchmark)
+public class DspBenchmark {
+    private static final int FRAMES = 39;
+    private static final int FRAME = 2 * 1152;
+    private static final String SCALAR = "-Dplayer.dsp.scalar=true";
+
+    private final DspChain chain = new DspChain();
+    private final short[] decoded = new short[FRAME];
+    private final short[] pcm = new short[FRAME];
+    private final float[] samples = new float[FRAME];
+    private final float[] incoming = new float[FRAME];
+
+    @Setup
+    public void setUp() {
+        EqualizerStage equalizer = new EqualizerStage();
+        equalizer.setBands(EqualizerStage.parseBands("60:4:0.7,1000:-2:1,8000:3:0.7"));
+        GainStage gain = new GainStage();
+        gain.setReplayGain(-6.5f);
+        chain.add(equalizer);
+        chain.add(gain);
+        for (int i = 0; i < FRAME; i++) {
+            decoded[i] = (short) (Math.sin(i * 0.05) * 8000);
+            samples[i] = decoded[i];
+            incoming[i] = (float) (Math.cos(i * 0.03) * 8000);
+        }
+    }
+
+    @Benchmark
+    public void chain(Blackhole blackhole) {
+        processChain(blackhole);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"--add-modules=jdk.incubator.vector", SCALAR})
+    public void chainScalar(Blackhole blackhole) {
+        processChain(blackhole);
+    }
+
+    @Benchmark
+    public void gainRamp(Blackhole blackhole) {
+        ramp(blackhole);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"--add-modules=jdk.incubator.vector", SCALAR})
+    public void gainRampScalar(Blackhole blackhole) {
+        ramp(blackhole);
+    }
+
+    @Benchmark
+    public void crossfadeMix(Blackhole blackhole) {
+        mix(blackhole);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"--add-modules=jdk.incubator.vector", SCALAR})
+    public void crossfadeMixScalar(Blackhole blackhole) {
+        mix(blackhole);
+    }
+
+    private void processChain(Blackhole blackhole) {
+        for (int i = 0; i < FRAMES; i++) {
+            System.arraycopy(decoded, 0, pcm, 0, FRAME);
+            chain.process(pcm, FRAME, 2, 44100);
+        }
+        blackhole.consume(pcm);
+    }
+
+    // A gain of 1, so the samples keep their range however long it runs; the loop is the same for any gain.
+    private void ramp(Blackhole blackhole) {
+        for (int i = 0; i < FRAMES; i++) VectorOps.ramp(samples, FRAME, 1f, 1f);
+        blackhole.consume(samples);
+    }
+
+    private void mix(Blackhole blackhole) {
+        for (int i = 0; i < FRAMES; i++) VectorOps.mix(samples, incoming, FRAME, 0.5f, 0.5f, 0.5f, 0.5f);
+        blackhole.consume(samples);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new org.openjdk.jmh.runner.Runner(new OptionsBuilder().include(DspBenchmark.class.getSimpleName()).build())
+                .run();
+    }
+}
@@ -0,0 +1,399 @@
+package support;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the {@link DspStage}s over generated signals, with generated tracks mixed in by the {@link MixerStage}, and
+ * checks the Vector API path of {@link VectorOps} against plain loops. In the {@code support} package to reach {@link VectorOps}.
+ */
+class DspTests {
+    private static final int RATE = 44100;
+
+    @Test
+    void gainAppliesVolumeAndReplayGain() {
+        GainStage gain = new GainStage();
+        assertFalse(gain.isActive());
+        gain.setVolume(0.5f);
+        gain.setReplayGain(-6.0206f);
+        assertTrue(gain.isActive());
+
+        float[] ramp = constant(1000, 100f);
+        gain.process(ramp, ramp.length, 1, RATE);
+        // Ramped over the first block, from the previous gain.
+        assertEquals(100f, ramp[0], 1e-3f);
+        assertEquals(25f, ramp[ramp.length - 1], 0.1f);
+        for (int i = 1; i < ramp.length; i++) assertTrue(ramp[i] <= ramp[i - 1]);
+
+        float[] steady = constant(1000, 100f);
+        gain.process(steady, steady.length, 1, RATE);
+        for (float sample : steady) assertEquals(25f, sample, 1e-2f);
+    }
+
+    @Test
+    void gainIsInactiveOnceBackToUnity() {
+        GainStage gain = new GainStage();
+        gain.setVolume(0.5f);
+        float[] samples = constant(100, 100f);
+        gain.process(samples, samples.length, 1, RATE);
+        gain.setVolume(1f);
+        // Still active until the ramp back to unity has been applied.
+        assertTrue(gain.isActive());
+        gain.process(samples, samples.length, 1, RATE);
+        assertFalse(gain.isActive());
+    }
+
+    @Test
+    void equalizerBoostsOnlyAroundItsBand() {
+        EqualizerStage equalizer = new EqualizerStage();
+        equalizer.setBands(EqualizerStage.parseBands("1000:6:1"));
+        assertTrue(equalizer.isActive());
+        assertEquals(2.0, gainOf(equalizer, 1000), 0.05);
+        assertEquals(1.0, gainOf(equalizer, 50), 0.05);
+        assertEquals(1.0, gainOf(equalizer, 15000), 0.05);
+
+        equalizer.setBands(EqualizerStage.parseBands("1000:-6:1"));
+        assertEquals(0.5, gainOf(equalizer, 1000), 0.02);
+    }
+
+    @Test
+    void equalizerIgnoresMalformedBands() {
+        EqualizerStage.Band[] bands = EqualizerStage.parseBands("100:4:0.7, 200:x:1, 300:1, 0:2:1, 400:2:0, 3000:-2:1");
+        assertEquals(2, bands.length);
+        assertEquals(100f, bands[0].getFrequency());
+        assertEquals(-2f, bands[1].getGainDb());
+        assertEquals(0, EqualizerStage.parseBands(null).length);
+        assertFalse(new EqualizerStage().isActive());
+    }
+
+    @Test
+    void crossfadeKeepsPowerConstant() {
+        // 100 ms at 1 kHz: 100 samples, then 50 more with the incoming track alone.
+        float[] outgoing = fade(1000f, 0f, 150);
+        float[] incoming = fade(0f, 1000f, 150);
+        assertEquals(1000f, outgoing[0]);
+        assertEquals(0f, incoming[0]);
+        for (int i = 0; i < 150; i++) {
+            float a = outgoing[i] / 1000f;
+            float b = incoming[i] / 1000f;
+            assertEquals(1f, a * a + b * b, 0.01f, "sample " + i);
+        }
+        for (int i = 100; i < 150; i++) {
+            assertEquals(0f, outgoing[i], 1e-2f);
+            assertEquals(1000f, incoming[i], 1e-2f);
+        }
+    }
+
+    @Test
+    void crossfadeMixesSilenceOnceTheIncomingTrackEnds() {
+        float[] samples = fade(1000f, 1000f, 300);
+        for (int i = 200; i < 300; i++) assertEquals(0f, samples[i], 1e-2f);
+    }
+
+    @Test
+    void vectorOpsMatchPlainLoops() {
+        Random random = new Random(1);
+        // Not a multiple of any vector length, so the scalar tails run too.
+        int length = 1003;
+        float[] a = noise(random, length);
+        float[] b = noise(random, length);
+
+        float[] ramped = a.clone();
+        VectorOps.ramp(ramped, length, 0.25f, 1.5f);
+        float step = (1.5f - 0.25f) / length;
+        for (int i = 0; i < length; i++) assertEquals(a[i] * (0.25f + i * step), ramped[i], 1e-2f);
+
+        float[] mixed = a.clone();
+        VectorOps.mix(mixed, b, length, 1f, 0f, 0f, 1f);
+        for (int i = 0; i < length; i++) {
+            float t = (float) i / length;
+            assertEquals(a[i] * (1 - t) + b[i] * t, mixed[i], 1e-2f);
+        }
+
+        float[] accumulated = new float[length + 7];
+        VectorOps.accumulate(accumulated, 7, a, length, 0.5f, 0.5f);
+        for (int i = 0; i < 7; i++) assertEquals(0f, accumulated[i]);
+        for (int i = 0; i < length; i++) assertEquals(a[i] * 0.5f, accumulated[7 + i], 1e-2f);
+
+        float[] distances = new float[length];
+        VectorOps.accumulateDistance(a, length, 3f, 2f, distances);
+        for (int i = 0; i < length; i++) assertEquals(2f * (a[i] - 3f) * (a[i] - 3f), distances[i], 1e-1f);
+
+        short[] pcm = new short[5];
+        VectorOps.toShort(new float[]{40000f, -40000f, 1.9f, -1.9f, Float.NaN}, pcm, 5);
+        assertArrayEquals(new short[]{32767, -32768, 1, -1, 0}, pcm);
+    }
+
+    @Test
+    void chainSkipsInactiveStagesAndKeepsShortsUntouched() {
+        DspChain chain = new DspChain();
+        GainStage gain = new GainStage();
+        chain.add(gain);
+        assertFalse(chain.isActive());
+        short[] pcm = {1, -2, 32767, -32768};
+        chain.process(pcm, pcm.length, 2, RATE);
+        assertArrayEquals(new short[]{1, -2, 32767, -32768}, pcm);
+
+        gain.setVolume(0f);
+        assertTrue(chain.isActive());
+        short[] silence = {1000, 1000, 1000, 1000};
+        chain.process(silence, silence.length, 2, RATE);
+        chain.process(silence, silence.length, 2, RATE);
+        assertArrayEquals(new short[4], silence);
+    }
+
+    @Test
+    void mixerDucksTheMusicWithinTheAttackAndReleaseTimes() {
+        MixerStage mixer = new MixerStage();
+        assertFalse(mixer.isActive());
+        MixerStage.Source announcement = mixer.add(new Generated(1, RATE, Integer.MAX_VALUE, (f, c) -> 0f), 1f, true);
+        assertTrue(mixer.isActive());
+        float duck = (float) Math.pow(10, -12 / 20.0);
+        // Blocks of 10 ms: down in 5 blocks, back up in 50.
+        int block = RATE / 100;
+        float last = 1f;
+        for (int i = 1; i <= MixerStage.ATTACK_MS / 10; i++) {
+            float[] music = constant(block, 1f);
+            mixer.process(music, block, 1, RATE);
+            assertTrue(music[block - 1] < last, "ducking");
+            last = music[block - 1];
+            if (i < MixerStage.ATTACK_MS / 10) assertTrue(last > duck + 0.01f, "ducked too early at block " + i);
+        }
+        assertEquals(duck, last, 0.01f);
+        float[] ducked = constant(block, 1f);
+        mixer.process(ducked, block, 1, RATE);
+        for (float sample : ducked) assertEquals(duck, sample, 1e-5f);
+
+        announcement.cancel();
+        for (int i = 1; i <= MixerStage.RELEASE_MS / 10; i++) {
+            float[] music = constant(block, 1f);
+            mixer.process(music, block, 1, RATE);
+            assertTrue(music[block - 1] > last, "releasing");
+            last = music[block - 1];
+            if (i < MixerStage.RELEASE_MS / 10) assertTrue(mixer.isActive(), "released too early at block " + i);
+        }
+        assertEquals(1f, last, 0.01f);
+        // Or one block later, the steps adding up to a bit less than the whole way.
+        if (mixer.isActive()) mixer.process(constant(block, 1f), block, 1, RATE);
+        assertFalse(mixer.isActive());
+        assertTrue(announcement.getFinished().isDone());
+    }
+
+    @Test
+    void mixerRampsTheGainOfASourceOverOneBlock() {
+        MixerStage mixer = new MixerStage();
+        Generated track = new Generated(2, RATE, Integer.MAX_VALUE, (f, c) -> 1f);
+        MixerStage.Source source = mixer.add(track, 0.5f, false);
+        float[] samples = new float[1000];
+        mixer.process(samples, samples.length, 2, RATE);
+        for (float sample : samples) assertEquals(0.5f, sample, 1e-6f);
+
+        source.setGain(1f);
+        Arrays.fill(samples, 0f);
+        mixer.process(samples, samples.length, 2, RATE);
+        assertEquals(0.5f, samples[0], 1e-3f);
+        assertEquals(1f, samples[samples.length - 1], 1e-2f);
+        for (int i = 1; i < samples.length; i++) assertTrue(samples[i] >= samples[i - 1]);
+
+        // Mixed over the music, which it does not duck.
+        samples = constant(1000, 0.25f);
+        mixer.process(samples, samples.length, 2, RATE);
+        for (float sample : samples) assertEquals(1.25f, sample, 1e-6f);
+
+        source.setGain(-1f);
+        assertEquals(0f, source.getGain());
+        mixer.process(samples, samples.length, 2, RATE);
+        samples = constant(1000, 0.25f);
+        mixer.process(samples, samples.length, 2, RATE);
+        for (float sample : samples) assertEquals(0.25f, sample, 1e-6f);
+    }
+
+    @Test
+    void mixerConvertsTheRateAndChannelsOfSources() {
+        // Mono at half the rate: every other output frame is halfway between two source frames.
+        MixerStage mixer = new MixerStage();
+        mixer.add(new Generated(1, RATE / 2, Integer.MAX_VALUE, (f, c) -> f), 1f, false);
+        float[] samples = new float[200];
+        mixer.process(samples, samples.length, 2, RATE);
+        for (int i = 0; i < samples.length; i += 2) {
+            assertEquals(i / 4f, samples[i], 1e-4f);
+            assertEquals(samples[i], samples[i + 1], "both channels");
+        }
+
+        // Stereo at twice the rate, to mono: every other source frame, the average of its channels.
+        mixer = new MixerStage();
+        mixer.add(new Generated(2, RATE * 2, Integer.MAX_VALUE, (f, c) -> c == 0 ? f : f + 10), 1f, false);
+        samples = new float[100];
+        mixer.process(samples, samples.length, 1, RATE);
+        for (int i = 0; i < samples.length; i++) assertEquals(2 * i + 5f, samples[i], 1e-4f);
+    }
+
+    @Test
+    void mixerRemovesAndClosesSourcesThatEndOrAreCancelled() {
+        MixerStage mixer = new MixerStage();
+        Generated shortTrack = new Generated(1, RATE, 30, (f, c) -> 1f);
+        Generated longTrack = new Generated(1, RATE, Integer.MAX_VALUE, (f, c) -> 2f);
+        MixerStage.Source ending = mixer.add(shortTrack, 1f, false);
+        MixerStage.Source cancelled = mixer.add(longTrack, 1f, false);
+
+        float[] samples = new float[100];
+        mixer.process(samples, samples.length, 1, RATE);
+        // The short track ends within the block, and is only mixed in until then.
+        assertEquals(3f, samples[0], 1e-6f);
+        assertEquals(2f, samples[99], 1e-6f);
+        assertTrue(ending.getFinished().isDone());
+        assertEquals(1, shortTrack.closed);
+
+        cancelled.cancel();
+        Arrays.fill(samples, 0f);
+        mixer.process(samples, samples.length, 1, RATE);
+        assertArrayEquals(new float[100], samples, "not mixed once cancelled");
+        assertTrue(cancelled.getFinished().isDone());
+        assertEquals(1, longTrack.closed);
+        assertFalse(mixer.hasSources());
+    }
+
+    @Test
+    void mixerTakesSourcesAddedAndCancelledWhileMixing() throws Exception {
+        MixerStage mixer = new MixerStage();
+        int count = 2000;
+        List<MixerStage.Source> added = new ArrayList<>();
+        List<Generated> tracks = new ArrayList<>();
+        AtomicBoolean done = new AtomicBoolean();
+        Thread adder = new Thread(() -> {
+            Random random = new Random(3);
+            for (int i = 0; i < count; i++) {
+                Generated track = new Generated(1, RATE, 1 + random.nextInt(500), (f, c) -> 1f);
+                MixerStage.Source source = mixer.add(track, 0.5f, random.nextBoolean());
+                synchronized (added) {
+                    added.add(source);
+                    tracks.add(track);
+                }
+                if (random.nextBoolean()) source.cancel();
+            }
+            done.set(true);
+        });
+        adder.start();
+        float[] samples = new float[256];
+        while (!done.get() || mixer.hasSources()) mixer.process(samples, samples.length, 1, RATE);
+        adder.join();
+
+        assertEquals(count, added.size());
+        for (MixerStage.Source source : added) assertTrue(source.getFinished().isDone());
+        for (Generated track : tracks) assertEquals(1, track.closed);
+    }
+
+    /**
+     * Crossfades 100 ms at 1 kHz in mono, in blocks of 10 samples, from a constant track into another one lasting
+     * 200 samples.
+     */
+    private static float[] fade(float outgoing, float incoming, int length) {
+        CrossfadeStage crossfade = new CrossfadeStage(100);
+        int[] left = {200};
+        crossfade.start((dst, offset, count) -> {
+            if (left[0] == 0) return -1;
+            int n = Math.min(count, left[0]);
+            for (int i = 0; i < n; i++) dst[offset + i] = incoming;
+            left[0] -= n;
+            return n;
+        }, 1000, 1);
+        assertTrue(crossfade.isRunning());
+        float[] samples = constant(length, outgoing);
+        float[] block = new float[10];
+        for (int i = 0; i < length; i += block.length) {
+            System.arraycopy(samples, i, block, 0, block.length);
+            crossfade.process(block, block.length, 1, 1000);
+            System.arraycopy(block, 0, samples, i, block.length);
+        }
+        crossfade.stop();
+        assertFalse(crossfade.isActive());
+        return samples;
+    }
+
+    /**
+     * @return the ratio of the RMS of a sine at {@code frequency} after the equalizer to before it, once the
+     * filters have settled.
+     */
+    private static double gainOf(EqualizerStage equalizer, double frequency) {
+        float[] samples = new float[RATE / 2];
+        for (int i = 0; i < samples.length; i++) samples[i] = (float) (1000 * Math.sin(2 * Math.PI * frequency * i / RATE));
+        double before = rms(samples, samples.length / 2);
+        equalizer.process(samples, samples.length, 1, RATE);
+        return rms(samples, samples.length / 2) / before;
+    }
+
+    private static double rms(float[] samples, int from) {
+        double sum = 0;
+        for (int i = from; i < samples.length; i++) sum += samples[i] * samples[i];
+        return Math.sqrt(sum / (samples.length - from));
+    }
+
+    /**
+     * Track of made-up samples for the {@link MixerStage}, without decoding anything.
+     */
+    private static final class Generated extends TrackDecoder {
+        interface Signal {
+            float sample(int frame, int channel);
+        }
+
+        private final int channels;
+        private final int sampleRate;
+        private final long samples;
+        private final Signal signal;
+        private long next;
+        volatile int closed;
+
+        Generated(int channels, int sampleRate, int frames, Signal signal) {
+            super(new ByteArrayInputStream(new byte[0]));
+            this.channels = channels;
+            this.sampleRate = sampleRate;
+            this.samples = (long) frames * channels;
+            this.signal = signal;
+        }
+
+        @Override
+        public int read(float[] dst, int offset, int length) {
+            if (next == samples) return -1;
+            int count = (int) Math.min(length, samples - next);
+            for (int i = 0; i < count; i++, next++) {
+                dst[offset + i] = signal.sample((int) (next / channels), (int) (next % channels));
+            }
+            return count;
+        }
+
+        @Override
+        public int getSampleRate() {
+            return sampleRate;
+        }
+
+        @Override
+        public int getChannels() {
+            return channels;
+        }
+
+        @Override
+        public void close() {
+            closed++;
+        }
+    }
+
+    private static float[] constant(int length, float value) {
+        float[] samples = new float[length];
+        Arrays.fill(samples, value);
+        return samples;
+    }
+
+    private static float[] noise(Random random, int length) {
+        float[] samples = new float[length];
+        for (int i = 0; i < length; i++) samples[i] = (random.nextFloat() - 0.5f) * 2000;
+        return samples;
+    }
+}
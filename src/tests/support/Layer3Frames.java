@@ -0,0 +1,104 @@
+package support;
+
+import java.util.Random;
+
+/**
+ * Random but decodable MPEG audio Layer III frames, for tests and benchmarks of the decoder. Unlike in Layers I and
+ * II, random data is not valid Layer III: the side info of each granule is drawn within the ranges the format
+ * allows, and only the main data is random, which the Huffman tables decode whatever it holds. Every frame is
+ * self-contained, its main data starting right after its side info.
+ */
+public final class Layer3Frames {
+    public static final int MPEG1 = 1;
+    public static final int MPEG2 = 0;
+    public static final int STEREO = 0;
+    public static final int JOINT_STEREO = 1;
+    public static final int MONO = 3;
+    /**
+     * Mode extension bits of {@link #JOINT_STEREO}.
+     */
+    public static final int INTENSITY = 1, MID_SIDE = 2;
+
+    private Layer3Frames() {
+    }
+
+    /**
+     * @param seed          seed of the random data.
+     * @param version       {@link #MPEG1}, at 320 kbps and 44.1 kHz, or {@link #MPEG2}, at 160 kbps and 22.05 kHz.
+     * @param mode          {@link #STEREO}, {@link #JOINT_STEREO} or {@link #MONO}.
+     * @param modeExtension {@link #INTENSITY} and {@link #MID_SIDE} bits, for {@link #JOINT_STEREO}.
+     * @param count         number of frames.
+     * @return the frames.
+     */
+    public static byte[] frames(long seed, int version, int mode, int modeExtension, int count) {
+        Random random = new Random(seed);
+        int size = version == MPEG1 ? 144 * 320000 / 44100 : 72 * 160000 / 22050;
+        int channels = mode == MONO ? 1 : 2;
+        int granules = version == MPEG1 ? 2 : 1;
+        int sideInfo = version == MPEG1 ? (channels == 1 ? 17 : 32) : (channels == 1 ? 9 : 17);
+        int budget = (size - 4 - sideInfo) * 8 / (granules * channels);
+        byte[] mp3 = new byte[size * count];
+        byte[] main = new byte[size - 4 - sideInfo];
+        for (int offset = 0; offset < mp3.length; offset += size) {
+            random.nextBytes(main);
+            System.arraycopy(main, 0, mp3, offset + 4 + sideInfo, main.length);
+            mp3[offset] = (byte) 0xFF;
+            mp3[offset + 1] = (byte) (version == MPEG1 ? 0xFB : 0xF3);
+            // Bitrate index 14, first sample rate, no padding.
+            mp3[offset + 2] = (byte) 0xE0;
+            mp3[offset + 3] = (byte) (mode << 6 | modeExtension << 4);
+            Bits bits = new Bits(mp3, offset + 4);
+            // main_data_begin, then the private bits.
+            bits.put(0, version == MPEG1 ? 9 : 8);
+            bits.put(0, version == MPEG1 ? (channels == 1 ? 5 : 3) : channels);
+            if (version == MPEG1) for (int ch = 0; ch < channels; ch++) bits.put(random.nextInt(16), 4);
+            for (int gr = 0; gr < granules; gr++) {
+                for (int ch = 0; ch < channels; ch++) {
+                    bits.put(budget / 2 + random.nextInt(budget / 2), 12);
+                    bits.put(random.nextInt(289), 9);
+                    // Loud enough for some samples to clip, not so loud that most do.
+                    bits.put(90 + random.nextInt(70), 8);
+                    bits.put(random.nextInt(version == MPEG1 ? 16 : 512), version == MPEG1 ? 4 : 9);
+                    boolean switching = random.nextInt(3) == 0;
+                    bits.put(switching ? 1 : 0, 1);
+                    if (switching) {
+                        bits.put(1 + random.nextInt(3), 2);
+                        // JLayer divides by zero on MPEG-2 mixed blocks, which encoders do not emit anyway.
+                        bits.put(version == MPEG1 ? random.nextInt(2) : 0, 1);
+                        for (int i = 0; i < 2; i++) bits.put(random.nextInt(32), 5);
+                        for (int i = 0; i < 3; i++) bits.put(random.nextInt(8), 3);
+                    } else {
+                        for (int i = 0; i < 3; i++) bits.put(random.nextInt(32), 5);
+                        int region0 = random.nextInt(16);
+                        bits.put(region0, 4);
+                        bits.put(random.nextInt(Math.min(8, 21 - region0)), 3);
+                    }
+                    if (version == MPEG1) bits.put(random.nextInt(2), 1);
+                    // Intensity stereo scale factors of MPEG-2 overrun JLayer's gain table once scaled up.
+                    bits.put(version == MPEG1 ? random.nextInt(2) : 0, 1);
+                    bits.put(random.nextInt(2), 1);
+                }
+            }
+        }
+        return mp3;
+    }
+
+    /**
+     * Writes bits into zeroed bytes, most significant first.
+     */
+    private static final class Bits {
+        private final byte[] out;
+        private int position;
+
+        Bits(byte[] out, int offset) {
+            this.out = out;
+            this.position = offset * 8;
+        }
+
+        void put(int value, int count) {
+            for (int i = count - 1; i >= 0; i--, position++) {
+                if ((value >>> i & 1) != 0) out[position >> 3] |= (byte) (0x80 >>> (position & 7));
+            }
+        }
+    }
+}
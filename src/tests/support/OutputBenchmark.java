@@ -0,0 +1,84 @@
+package support;
+
+import javazoom.jl.decoder.JavaLayerException;
+import javazoom.jl.player.AudioDevice;
+import javazoom.jl.player.FactoryRegistry;
+import javazoom.jl.player.JavaSoundAudioDevice;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+
+/**
+ * CPU time the writing thread spends per second of audio, with decoded frames written to the audio line one at a
+ * time and in batches of {@link BatchingAudioDevice}. CPU time rather than elapsed time, since writes to a line
+ * block in real time. The frames are written to the line of the default mixer; without a sound card, to a device
+ * that converts them to bytes as JLayer's line does and discards them, which only measures the part of the cost
+ * paid on the player's side. Run it with the test classes on the class path:
+ * {@code java support.OutputBenchmark [seconds of audio per run]}.
+ */
+public class OutputBenchmark {
+    /**
+     * Samples of a stereo MPEG-1 frame at 44.1 kHz.
+     */
+    private static final int FRAME = 2 * 1152;
+    private static final int FRAMES_PER_SECOND = 44100 / 1152;
+
+    /**
+     * Converts the samples like {@link JavaSoundAudioDevice} and drops them.
+     */
+    private static final class DiscardingDevice extends JavaSoundAudioDevice {
+        @Override
+        protected void openImpl() {
+        }
+
+        @Override
+        protected void writeImpl(short[] samples, int offs, int len) {
+            toByteArray(samples, offs, len);
+        }
+    }
+
+    public static void main(String[] args) throws JavaLayerException {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        boolean line = hasLine();
+        System.out.println(line ? "Default audio line, real time" : "No audio line, discarding device");
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        short[] frame = new short[FRAME];
+        for (int i = 0; i < FRAME; i++) frame[i] = (short) (Math.sin(i * 0.05) * 8000);
+
+        // Once untimed, as warmup.
+        for (boolean timed : new boolean[]{false, true}) {
+            for (String batchFrames : List.of("1", "2", "4", "8")) {
+                System.setProperty("player.batchFrames", batchFrames);
+                BatchingAudioDevice device = new BatchingAudioDevice(line
+                        ? FactoryRegistry.systemRegistry().createAudioDevice() : new DiscardingDevice());
+                device.open(new FloatDecoder(44100, 2));
+                long cpu = threads.getCurrentThreadCpuTime();
+                for (int i = 0; i < seconds * FRAMES_PER_SECOND; i++) {
+                    device.write(frame, 0, FRAME);
+                    device.writeReady();
+                }
+                device.flushBatch();
+                cpu = threads.getCurrentThreadCpuTime() - cpu;
+                device.close();
+                if (timed) {
+                    System.out.printf("%s frame(s) per write: %.3f ms of CPU per second of audio%n", batchFrames,
+                            cpu / 1e6 / seconds);
+                }
+            }
+        }
+        System.clearProperty("player.batchFrames");
+    }
+
+    private static boolean hasLine() {
+        try {
+            AudioDevice device = FactoryRegistry.systemRegistry().createAudioDevice();
+            device.open(new FloatDecoder(44100, 2));
+            device.write(new short[FRAME], 0, FRAME);       // the line is only opened by the first write
+            device.close();
+            return true;
+        } catch (JavaLayerException | RuntimeException e) {
+            return false;
+        }
+    }
+}
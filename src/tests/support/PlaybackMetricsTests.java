@@ -0,0 +1,160 @@
+package support;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Records made-up durations in {@link LatencyHistogram}s and events in a {@link PlaybackMetrics} of their own, and
+ * reads back the figures. In the {@code support} package to create metrics other than the global ones.
+ */
+class PlaybackMetricsTests {
+    private static final long MS = 1_000_000;
+
+    @Test
+    void emptyHistogramReadsZero() {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getMeanMicros());
+        assertEquals(0, snapshot.getP50Micros());
+        assertEquals(0, snapshot.getP99Micros());
+        assertEquals(0, snapshot.getMaxMicros());
+    }
+
+    @Test
+    void percentilesAreTheUpperBoundOfTheirBucketUpToTheMaximum() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(12_345_678);
+        LatencyHistogram.Snapshot single = histogram.snapshot();
+        assertEquals(1, single.getCount());
+        assertEquals(12_345, single.getMeanMicros());
+        assertEquals(12_345, single.getP50Micros(), "capped at the maximum");
+        assertEquals(12_345, single.getP99Micros());
+        assertEquals(12_345, single.getMaxMicros());
+
+        // 2^20 ns falls in the first of the 4 buckets between 2^20 and 2^21, which ends at 2^20 + 2^18 - 1.
+        histogram = new LatencyHistogram();
+        histogram.record(1 << 20);
+        histogram.record(1 << 21);
+        LatencyHistogram.Snapshot two = histogram.snapshot();
+        assertEquals(((1 << 20) + (1 << 18) - 1) / 1000, two.getP50Micros());
+        assertEquals((1 << 21) / 1000, two.getP90Micros());
+        assertEquals((1 << 21) / 1000, two.getMaxMicros());
+        assertEquals(((1 << 20) + (1 << 21)) / 2 / 1000, two.getMeanMicros());
+
+        histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(0);
+        assertEquals(2, histogram.snapshot().getCount());
+        assertEquals(0, histogram.snapshot().getMaxMicros(), "negative durations recorded as 0");
+    }
+
+    @Test
+    void percentilesAreWithinAQuarterOfTheRealValues() {
+        for (long seed = 1; seed <= 5; seed++) {
+            Random random = new Random(seed);
+            LatencyHistogram histogram = new LatencyHistogram();
+            long[] values = new long[10_000];
+            for (int i = 0; i < values.length; i++) {
+                // Log-uniform from 1 ms to about 1 s, as device writes and seeks spread.
+                values[i] = (long) (MS * Math.pow(1000, random.nextDouble()));
+                histogram.record(values[i]);
+            }
+            Arrays.sort(values);
+            LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+            assertEquals(values.length, snapshot.getCount());
+            assertEquals(values[values.length - 1] / 1000, snapshot.getMaxMicros());
+            assertEquals(Arrays.stream(values).sum() / values.length / 1000, snapshot.getMeanMicros());
+            assertWithinAQuarter(values[values.length / 2 - 1], snapshot.getP50Micros());
+            assertWithinAQuarter(values[values.length * 9 / 10 - 1], snapshot.getP90Micros());
+            assertWithinAQuarter(values[values.length * 99 / 100 - 1], snapshot.getP99Micros());
+        }
+    }
+
+    private static void assertWithinAQuarter(long nanos, long micros) {
+        assertTrue(micros >= nanos / 1000 && micros <= nanos * 5 / 4 / 1000,
+                micros + " us reported for " + nanos + " ns");
+    }
+
+    @Test
+    void threadsRecordingAtOnceLoseNothing() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 100_000; i++) histogram.record(MS);
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) thread.join();
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(400_000, snapshot.getCount());
+        assertEquals(1000, snapshot.getMeanMicros());
+        assertEquals(1000, snapshot.getP99Micros());
+    }
+
+    @Test
+    void metricsCountEventsAndDumpThem() {
+        PlaybackMetrics metrics = new PlaybackMetrics();
+        assertEquals(0, metrics.getPrefetchHitRate());
+        long start = System.nanoTime() - 2 * MS;
+        metrics.frameDecoded(start);
+        metrics.frameDecoded(start);
+        metrics.underrun();
+        for (int i = 0; i < 3; i++) metrics.prefetch(true);
+        metrics.prefetch(false);
+        metrics.waveformFromMemory();
+        metrics.waveformFromDisk();
+        metrics.waveformComputed();
+        metrics.waveformComputed();
+        metrics.waveformComputed();
+        metrics.ioRead(IoScheduler.Priority.BACKGROUND, 4096, start);
+        metrics.ioRead(IoScheduler.Priority.PLAYBACK, 100, start);
+        metrics.memoryEvicted(1000);
+        metrics.memoryEvicted(500);
+        metrics.replicationSent(7);
+        metrics.introStarted(false);
+
+        long queued = metrics.metadataQueued();
+        metrics.metadataQueued();
+        assertEquals(2, metrics.getMetadataQueueDepth());
+        metrics.metadataParsed(queued);
+        assertEquals(1, metrics.getMetadataQueueDepth());
+        assertEquals(1, metrics.getMetadataParseTime().getCount());
+
+        assertEquals(2, metrics.getFramesDecoded());
+        assertEquals(2, metrics.getDecodeTime().getCount());
+        assertTrue(metrics.getDecodeTime().getP50Micros() >= 2000);
+        assertEquals(1, metrics.getUnderruns());
+        assertEquals(0.75, metrics.getPrefetchHitRate());
+        assertEquals(0.2, metrics.getWaveformMemoryHitRate());
+        assertEquals(0.25, metrics.getWaveformDiskHitRate());
+        assertEquals(4096, metrics.getIoBackgroundBytes());
+        assertEquals(100, metrics.getIoPlaybackBytes());
+        assertEquals(0, metrics.getIoInteractiveBytes());
+        assertEquals(1, metrics.getIoPlaybackReadTime().getCount());
+        assertEquals(0, metrics.getIoInteractiveReadTime().getCount());
+        assertEquals(2, metrics.getMemoryEvictions());
+        assertEquals(1500, metrics.getMemoryEvictedBytes());
+        assertEquals(7, metrics.getReplicationOpsSent());
+        assertEquals(0, metrics.getIntroHitRate());
+
+        List<String> lines = List.of(metrics.dump().split("\n"));
+        assertTrue(lines.contains("frames_decoded 2"), "dump");
+        assertTrue(lines.contains("decode_time_count 2"));
+        assertTrue(lines.contains("underruns 1"));
+        assertTrue(lines.contains("metadata_queue_depth 1"));
+        assertTrue(lines.contains("prefetch_hit_rate 0.750"));
+        assertTrue(lines.contains("waveform_disk_hit_rate 0.250"));
+        assertTrue(lines.contains("io_background_bytes 4096"));
+        assertTrue(lines.contains("memory_evicted_bytes 1500"));
+        assertTrue(lines.contains("intro_hit_rate 0.000"));
+        for (String line : lines) assertTrue(line.matches("[a-z0-9_]+ -?[0-9.]+"), line);
+    }
+}
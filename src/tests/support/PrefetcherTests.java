@@ -0,0 +1,152 @@
+package support;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Warms made-up files with a {@link Prefetcher} on small budgets, and opens them from their prefix. In the
+ * {@code support} package to see which prefixes are in memory.
+ */
+class PrefetcherTests {
+    private Path directory;
+    private Prefetcher prefetcher;
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("prefetcher-tests");
+    }
+
+    @AfterEach
+    void deleteFiles() throws IOException {
+        if (prefetcher != null) prefetcher.shutdown();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) Files.delete(path);
+        }
+    }
+
+    /**
+     * Creates the prefetcher with the specified system properties, as {@code name=value} pairs.
+     */
+    private Prefetcher prefetcher(String... properties) {
+        for (String property : properties) {
+            String[] pair = property.split("=");
+            System.setProperty(pair[0], pair[1]);
+        }
+        try {
+            return prefetcher = new Prefetcher();
+        } finally {
+            for (String property : properties) System.clearProperty(property.split("=")[0]);
+        }
+    }
+
+    private Song song(String name, byte[] bytes) throws IOException {
+        Path file = Files.write(directory.resolve(name), bytes);
+        return new Song(UUID.randomUUID(), name, "Album", "Artist", "2024", 1000, file.toString(), bytes.length, 38);
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void await(BooleanSupplier condition, String message) throws InterruptedException {
+        for (long deadline = System.nanoTime() + 10_000_000_000L; !condition.getAsBoolean(); ) {
+            assertTrue(System.nanoTime() < deadline, message);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    void keepsThePrefixesThatFitTheBudgetAndDropsTheOthers() throws Exception {
+        Prefetcher prefetcher = prefetcher("player.prefetch.tracks=3", "player.prefetch.budgetMb=1",
+                "player.prefetch.bandwidthKbps=0");
+        Song first = song("first.mp3", random(300 * 1024, 1));
+        Song second = song("second.mp3", random(600 * 1024, 2));
+        Song third = song("third.mp3", random(200 * 1024, 3));
+        Song fourth = song("fourth.mp3", random(100 * 1024, 4));
+        long heap = MemoryBudget.global().getHeapBytes();
+
+        // The third one would take the prefixes past 1 MiB, and the fourth is beyond the lookahead.
+        prefetcher.update(List.of(first, second, third, fourth));
+        await(() -> prefetcher.isWarm(first) && prefetcher.isWarm(second), "prefixes never read");
+        assertFalse(prefetcher.isWarm(third));
+        assertFalse(prefetcher.isWarm(fourth));
+        assertEquals(heap + 900 * 1024, MemoryBudget.global().getHeapBytes());
+
+        // Songs no longer upcoming are dropped, giving their memory back, and the ones now in reach are read.
+        prefetcher.update(List.of(second, third, fourth));
+        assertFalse(prefetcher.isWarm(first));
+        assertTrue(prefetcher.isWarm(second));
+        await(() -> prefetcher.isWarm(third) && prefetcher.isWarm(fourth), "prefixes never read");
+        assertEquals(heap + 900 * 1024, MemoryBudget.global().getHeapBytes());
+
+        prefetcher.update(List.of());
+        assertFalse(prefetcher.isWarm(second) || prefetcher.isWarm(third) || prefetcher.isWarm(fourth));
+        assertEquals(heap, MemoryBudget.global().getHeapBytes());
+    }
+
+    @Test
+    void opensAHitFromThePrefixThenTheRestOfTheFile() throws Exception {
+        Prefetcher prefetcher = prefetcher("player.prefetch.prefixKb=4", "player.prefetch.bandwidthKbps=0");
+        byte[] bytes = random(10_000, 5);
+        Song song = song("song.mp3", bytes);
+        Song other = song("other.mp3", random(5000, 6));
+        prefetcher.update(List.of(song));
+        await(() -> prefetcher.isWarm(song), "prefix never read");
+
+        // Reads of odd sizes, one of them across the end of the prefix, and single bytes around it.
+        try (InputStream in = prefetcher.open(song)) {
+            ByteArrayOutputStream read = new ByteArrayOutputStream();
+            byte[] buffer = new byte[999];
+            while (read.size() < 4094) {
+                int n = in.read(buffer, 0, Math.min(buffer.length, 4094 - read.size()));
+                read.write(buffer, 0, n);
+            }
+            for (int i = 0; i < 4; i++) read.write(in.read());
+            int n;
+            while ((n = in.read(buffer)) > 0) read.write(buffer, 0, n);
+            assertArrayEquals(bytes, read.toByteArray());
+        }
+
+        // A miss is read from the file.
+        assertFalse(prefetcher.isWarm(other));
+        try (InputStream in = prefetcher.open(other)) {
+            assertArrayEquals(Files.readAllBytes(Path.of(other.getFilePath())), in.readAllBytes());
+        }
+    }
+
+    @Test
+    void readsThePrefixOfAFileGoneSinceAndFailsAfterIt() throws Exception {
+        Prefetcher prefetcher = prefetcher("player.prefetch.prefixKb=4", "player.prefetch.bandwidthKbps=0");
+        byte[] bytes = random(10_000, 7);
+        Song song = song("song.mp3", bytes);
+        prefetcher.update(List.of(song));
+        await(() -> prefetcher.isWarm(song), "prefix never read");
+        Files.delete(Path.of(song.getFilePath()));
+
+        try (InputStream in = prefetcher.open(song)) {
+            byte[] prefix = new byte[4096];
+            int read = 0;
+            while (read < prefix.length) read += in.read(prefix, read, prefix.length - read);
+            assertArrayEquals(Arrays.copyOf(bytes, 4096), prefix);
+            assertThrows(IOException.class, in::read);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package support;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs tasks through {@link SharedTasks}: shared while running, forgotten once done, failed or rejected. In the
+ * {@code support} package, where the class is.
+ */
+class SharedTasksTests {
+    @Test
+    void requestsForARunningKeyShareItsTask() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            SharedTasks<String, Integer> tasks = new SharedTasks<>(executor);
+            CountDownLatch release = new CountDownLatch(1);
+            AtomicInteger runs = new AtomicInteger();
+            CompletableFuture<Integer> first = tasks.run("key", () -> {
+                runs.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return 1;
+            });
+            assertSame(first, tasks.run("key", () -> 2));
+            release.countDown();
+            assertEquals(1, first.get(10, TimeUnit.SECONDS));
+
+            // Done, so the next request runs the task again.
+            assertEquals(3, tasks.run("key", () -> 3).get(10, TimeUnit.SECONDS));
+            assertEquals(1, runs.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void rejectedTasksFailAndAreForgotten() throws Exception {
+        AtomicBoolean shutDown = new AtomicBoolean(true);
+        SharedTasks<String, Integer> tasks = new SharedTasks<>(command -> {
+            if (shutDown.get()) throw new RejectedExecutionException("shut down");
+            command.run();
+        });
+
+        CompletableFuture<Integer> rejected = tasks.run("key", () -> 1);
+        assertTrue(rejected.isCompletedExceptionally());
+        ExecutionException e = assertThrows(ExecutionException.class, rejected::get);
+        assertInstanceOf(RejectedExecutionException.class, e.getCause());
+
+        shutDown.set(false);
+        CompletableFuture<Integer> next = tasks.run("key", () -> 2);
+        assertNotSame(rejected, next);
+        assertEquals(2, next.get(10, TimeUnit.SECONDS));
+    }
+}